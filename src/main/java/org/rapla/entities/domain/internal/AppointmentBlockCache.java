@@ -0,0 +1,144 @@
+/*--------------------------------------------------------------------------*
+ | Copyright (C) 2014 Christopher Kohlhaas                                  |
+ |                                                                          |
+ | This program is free software; you can redistribute it and/or modify     |
+ | it under the terms of the GNU General Public License as published by the |
+ | Free Software Foundation. A copy of the license has been included with   |
+ | these distribution in the COPYING file, if not go to www.fsf.org .       |
+ |                                                                          |
+ | As a special exception, you are granted the permissions to link this     |
+ | program with every library, which license fulfills the Open Source       |
+ | Definition as published by the Open Source Initiative (OSI).             |
+ *--------------------------------------------------------------------------*/
+package org.rapla.entities.domain.internal;
+
+import java.util.Collection;
+
+import org.rapla.components.util.DateTools;
+import org.rapla.entities.domain.AppointmentBlock;
+
+/**
+ * The expanded blocks of a read only repeating appointment within a time window, stored as primitive start and end arrays
+ * sorted by start. Exception blocks are included and marked, so the cache serves calls with and without excludeExceptions.
+ * A cache is immutable, a request outside of the window creates a new cache.
+ */
+final class AppointmentBlockCache
+{
+    /** larger expansions are not cached */
+    static final int MAX_CACHED_BLOCKS = 1000;
+
+    private final long windowStart;
+    private final long windowEnd;
+    private final long[] starts;
+    private final long[] ends;
+    /** null if there are no exceptions */
+    private final boolean[] exceptions;
+    private final long firstStart;
+    private final boolean daily;
+    private final long maxEnding;
+
+    AppointmentBlockCache(long windowStart, long windowEnd, long[] starts, long[] ends, boolean[] exceptions, long firstStart, boolean daily, long maxEnding)
+    {
+        this.windowStart = windowStart;
+        this.windowEnd = windowEnd;
+        this.starts = starts;
+        this.ends = ends;
+        this.exceptions = exceptions;
+        this.firstStart = firstStart;
+        this.daily = daily;
+        this.maxEnding = maxEnding;
+    }
+
+    long getWindowStart()
+    {
+        return windowStart;
+    }
+
+    long getWindowEnd()
+    {
+        return windowEnd;
+    }
+
+    int size()
+    {
+        return starts.length;
+    }
+
+    boolean covers(long start, long end)
+    {
+        return windowStart <= start && end <= windowEnd;
+    }
+
+    /**
+     * adds the blocks that overlap start and end, with the same rules as the expansion in {@link AppointmentImpl}.
+     * Returns true if there is at least one block. If blocks is null only the check is performed.
+     */
+    boolean slice(AppointmentImpl appointment, long start, long end, Collection<AppointmentBlock> blocks, boolean excludeExceptions,
+            Collection<AppointmentBlock> additionalSet)
+    {
+        // a daily repeating that is queried up to a day boundary, excludes the block that starts at the end of the repeating
+        final boolean excludeMaxEnding = daily && end == DateTools.cutDate(end);
+        boolean found = false;
+        for (int i = firstCandidate(start); i < starts.length; i++)
+        {
+            final long blockStart = starts[i];
+            if (blockStart >= end)
+            {
+                break;
+            }
+            final long blockEnd = ends[i];
+            if (blockEnd <= start)
+            {
+                continue;
+            }
+            if (blockStart != firstStart && excludeMaxEnding && blockStart >= maxEnding)
+            {
+                continue;
+            }
+            final boolean isException = exceptions != null && exceptions[i];
+            if (isException && excludeExceptions)
+            {
+                continue;
+            }
+            if (blocks == null)
+            {
+                return true;
+            }
+            AppointmentBlock block = new AppointmentBlock(blockStart, blockEnd, appointment, isException);
+            blocks.add(block);
+            if (additionalSet != null)
+            {
+                additionalSet.add(block);
+            }
+            found = true;
+        }
+        return found;
+    }
+
+    /** returns the index of the first block that could end after start. All blocks after the first occurrence have the same length. */
+    private int firstCandidate(long start)
+    {
+        if (starts.length < 2)
+        {
+            return 0;
+        }
+        final long blockLength = ends[1] - starts[1];
+        long minStart = start - blockLength;
+        int low = 1;
+        int high = starts.length - 1;
+        while (low <= high)
+        {
+            int mid = (low + high) >>> 1;
+            if (starts[mid] <= minStart)
+            {
+                low = mid + 1;
+            }
+            else
+            {
+                high = mid - 1;
+            }
+        }
+        // the first occurrence can be shorter, but not longer than the others, so it can be skipped together with the second block
+        return low == 1 ? 0 : low;
+    }
+}
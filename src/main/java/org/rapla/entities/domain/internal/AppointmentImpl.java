@@ -192,6 +192,8 @@ public final class AppointmentImpl extends SimpleEntity implements Appointment
     }
 
     transient Date maxDate;
+    // the expanded blocks of a read only appointment. Clones and copies start without a cache
+    transient private volatile AppointmentBlockCache blockCache;
 
     /** returns the largest date that covers the appointment
         and null if the appointments repeats forever.
@@ -362,6 +364,90 @@ public final class AppointmentImpl extends SimpleEntity implements Appointment
     /* returns true if there is at least one block in an array. If the passed blocks array is not null it will contain all blocks
      * that overlap the start,end period after a call.*/
     private boolean processBlocks(long start,long end,Collection<AppointmentBlock> blocks, boolean excludeExceptions, Collection<AppointmentBlock> additionalSet) {
+        // only read only appointments can be cached, because they can't be edited
+        if ( repeating != null && isReadOnly())
+        {
+            AppointmentBlockCache cache = getBlockCache( start, end, blocks != null);
+            if ( cache != null)
+            {
+                return cache.slice( this, start, end, blocks, excludeExceptions, additionalSet);
+            }
+        }
+        return expandBlocks(start, end, blocks, excludeExceptions, additionalSet);
+    }
+
+    /** returns a block cache that covers start and end. If create is false only an existing cache is returned.
+     * Returns null if the expansion is too large to be cached.*/
+    private AppointmentBlockCache getBlockCache(long start, long end, boolean create)
+    {
+        AppointmentBlockCache cache = blockCache;
+        if ( cache != null && cache.covers( start, end))
+        {
+            return cache;
+        }
+        if ( !create || start >= end)
+        {
+            return null;
+        }
+        long windowStart = start;
+        long windowEnd = end;
+        // extend the existing window, so that views that switch between neighbouring periods are served from the cache
+        if ( cache != null && estimateBlockCount( Math.min( start, cache.getWindowStart()), Math.max( end, cache.getWindowEnd())) <= AppointmentBlockCache.MAX_CACHED_BLOCKS)
+        {
+            windowStart = Math.min( start, cache.getWindowStart());
+            windowEnd = Math.max( end, cache.getWindowEnd());
+        }
+        else if ( estimateBlockCount( windowStart, windowEnd) > AppointmentBlockCache.MAX_CACHED_BLOCKS)
+        {
+            return null;
+        }
+        // a daily repeating excludes the block at the repeating end, if the end of the interval is on a day boundary.
+        // So the expansion goes one millisecond further and the cache filters on every request
+        long expansionEnd = windowEnd == DateTools.cutDate( windowEnd) ? windowEnd + 1 : windowEnd;
+        List<AppointmentBlock> list = new ArrayList<AppointmentBlock>();
+        expandBlocks( windowStart, expansionEnd, list, false, null);
+        if ( list.size() > AppointmentBlockCache.MAX_CACHED_BLOCKS)
+        {
+            return null;
+        }
+        int size = list.size();
+        long[] starts = new long[size];
+        long[] ends = new long[size];
+        boolean[] exceptions = null;
+        for ( int i=0;i<size;i++)
+        {
+            AppointmentBlock block = list.get( i);
+            starts[i] = block.getStart();
+            ends[i] = block.getEnd();
+            if ( block.isException())
+            {
+                if ( exceptions == null)
+                {
+                    exceptions = new boolean[size];
+                }
+                exceptions[i] = true;
+            }
+        }
+        long maxEnding = repeating.getNumber() >= 0 ? repeating.getEnd().getTime() : Long.MAX_VALUE;
+        cache = new AppointmentBlockCache( windowStart, windowEnd, starts, ends, exceptions, this.start.getTime(), repeating.isDaily(), maxEnding);
+        blockCache = cache;
+        return cache;
+    }
+
+    private long estimateBlockCount(long start, long end)
+    {
+        long from = Math.max( start, this.start.getTime());
+        Date maxEnd = getMaxEnd();
+        long to = maxEnd != null ? Math.min( end, maxEnd.getTime()) : end;
+        if ( to <= from)
+        {
+            return 1;
+        }
+        long intervalLength = repeating.isFixedIntervalLength() ? repeating.getFixedIntervalLength() : DateTools.MILLISECONDS_PER_WEEK * 4;
+        return (to - from) / intervalLength + 2;
+    }
+
+    private boolean expandBlocks(long start,long end,Collection<AppointmentBlock> blocks, boolean excludeExceptions, Collection<AppointmentBlock> additionalSet) {
         long c1 = start;
         long c2 = end;
         long s = this.start.getTime();
@@ -510,16 +596,6 @@ public final class AppointmentImpl extends SimpleEntity implements Appointment
         return overlaps;
     }
 
-    private static Date getOverlappingEnd(Repeating r1,Repeating r2) {
-        Date maxEnd = null;
-        if (r1.getEnd() != null)
-            maxEnd = r1.getEnd();
-        if (r2.getEnd() != null)
-            if (maxEnd != null && r2.getEnd().before(maxEnd))
-                maxEnd = r2.getEnd();
-        return maxEnd;
-    }
-    
     public boolean overlaps(Appointment a2) {
         if ( a2 == this)
             return true;
@@ -546,106 +622,7 @@ public final class AppointmentImpl extends SimpleEntity implements Appointment
         }
 
         // So both appointments have a repeating
-
-        // If r2 has no exceptions we can check if a1 overlaps the first appointment of a2
-        if (overlaps(start2,end2) && !r2.isException(start2.getTime())) {
-            DD=DE?BUG: print("Primitive overlap for " + getReservation() + " with " + a2.getReservation());
-            return true;
-        }
-
-        // Check if appointments could overlap because of the end-dates of an repeating
-        Date end = getOverlappingEnd(r1,r2);
-        if (end != null && (end.getTime()<=s1 || end.getTime()<=s2))
-            return false;
-        end = getOverlappingEnd(r2,r1);
-        if (end != null && (end.getTime()<=s1 || end.getTime()<=s2))
-        // We cant compare the fixed interval length here so we have to compare the blocks
-        if ( !r1.isFixedIntervalLength())
-        {
-            return overlapsHard( (AppointmentImpl)a2);
-        }
-        if ( !r2.isFixedIntervalLength())
-        {
-            return ((AppointmentImpl)a2).overlapsHard( this);
-        }
-        // O.K. we found 2 Candidates for the hard way
-        long l1 = r1.getFixedIntervalLength();
-        long l2 = r2.getFixedIntervalLength();
-        // The greatest common divider of the two intervals
-        long gcd = gcd(l1,l2);
-        long startx1 = Math.max(0,(s2-e1))/l1;
-        long startx2 = Math.max(0,(s1-e2))/l2;
-
-        DD=DE?BUG: print("l? = intervalsize for A?, x? = stepcount for A? ");
-        long max_x1 = l2/gcd + startx1;
-        if (end!= null && (end.getTime()-s1)/l1 + startx1 < max_x1)
-            max_x1 = (end.getTime()-s1)/l1 + startx1;
-        long max_x2 = l1/gcd + startx2;
-        if (end!= null && (end.getTime()-s2)/l2 + startx2 < max_x2)
-            max_x2 = (end.getTime()-s2)/l2 + startx2;
-        long x1 =startx1;
-        long x2 =startx2;
-
-        DD=DE?BUG: print(
-              "l1: " + n(l1)
-              + " l2: " + n(l2)
-              + " gcd: " + n(gcd)
-              + " start_x1: " + startx1
-              + " start_x2: " + startx2
-              + " max_x1: " + max_x1
-              + " max_x2: " + max_x2
-              );
-        boolean overlaps = false;
-        long current1 = x1 *l1;
-        long current2 = x2 *l2;
-        long maxEnd1 = max_x1*l1;
-        long maxEnd2 = max_x2*l2;
-        
-        while (current1<=maxEnd1 && current2<=maxEnd2) {
-        //    DD=DE?BUG: print("x1: " + x1 + " x2:" + x2);
-            DD=DE?BUG: print(" A1: " + f(s1 + current1, e1 + current1));
-            DD=DE?BUG: print(" A2: " + f(s2 + current2, e2 + current2));
-            if ((s1 + current1) < (e2 + current2) &&
-                (e1 + current1) > (s2 + current2)) {
-                if (!hasExceptionForEveryPossibleCollisionInInterval(s1 + current1,s2 + current2,r2)) {
-                    overlaps = true;
-                    break;
-                }
-            }
-            if ((s1 + current1) < (s2 + current2))
-                current1+=l1;
-            else
-                current2+=l2;
-        }
-        if (overlaps)
-            DD=DE?BUG: print("Appointments overlap");
-        else
-            DD=DE?BUG: print("Appointments don't overlap");
-        return overlaps;
-    }
-
-    private boolean overlapsHard( AppointmentImpl a2 )
-    {
-        Repeating r2 = a2.getRepeating();
-        Collection<AppointmentBlock> array = new ArrayList<AppointmentBlock>(); 
-        Date maxEnd =r2.getEnd();
-        // overlaps will be checked two  250 weeks (5 years) from now on
-        long maxCheck = System.currentTimeMillis() + DateTools.MILLISECONDS_PER_WEEK * 250;
-        if ( maxEnd == null || maxEnd.getTime() > maxCheck)
-        {
-        	maxEnd = new Date(maxCheck); 
-        }
-        createBlocks( getStart(), maxEnd, array);
-        for ( AppointmentBlock block:array)
-        {
-            long start = block.getStart();
-            long end = block.getEnd();
-            if (a2.overlaps( start, end, true))
-            {
-                return true;
-            }
-        }
-        return false;
+        return AppointmentOverlap.overlaps( this, (AppointmentImpl)a2);
     }
 
     /** the greatest common divider of a and b (Euklids Algorithm) */
@@ -654,89 +631,6 @@ public final class AppointmentImpl extends SimpleEntity implements Appointment
     }
 
 
-    /* Prueft im Abstand von "gap" millisekunden das Intervall von start bis ende
-       auf Ausnahmen. Gibt es fuer einen Punkt keine Ausnahme wird false zurueckgeliefert.
-    */
-    private boolean hasExceptionForEveryPossibleCollisionInInterval(long s1,long s2,RepeatingImpl r2) {
-        RepeatingImpl r1 = getRepeating();
-        Date end= getOverlappingEnd(r1,r2);
-        if (end == null)
-            return false;
-
-        if ((!r1.hasExceptions() && !r2.hasExceptions()))
-            return false;
-
-        long l1 = r1.getFixedIntervalLength();
-        long l2 = r2.getFixedIntervalLength();
-        long gap = (l1 * l2) / gcd(l1,l2);
-        Date[] exceptions1 = r1.getExceptions();
-        Date[] exceptions2 = r2.getExceptions();
-        DD=DE?BUG: print(" Testing Exceptions for overlapp " + f(s1) + " with " + f(s2) + " gap " + n(gap));
-        int i1 = 0;
-        int i2 = 0;
-        long x = 0;
-        if (exceptions1.length>i1)
-            DD=DE?BUG: print("Exception a1: " + fe(exceptions1[i1].getTime()));
-        if (exceptions2.length>i2)
-            DD=DE?BUG: print("Exception a2: " + fe(exceptions2[i2].getTime()));
-        long exceptionTime1 = 0;
-        long exceptionTime2 = 0;
-  
-        while (s1 + x * gap < end.getTime()) {
-            DD=DE?BUG: print("Looking for exception for gap " + x + " s1: " + fe(s1+x*gap) + " s2: " + fe(s2+x*gap));
-            long pos1 = s1 + x*gap;
-            long pos2 = s2 + x*gap;
-           
-            // Find first exception from app1 that matches gap
-            while (i1<exceptions1.length)
-            {
-               	exceptionTime1=exceptions1[i1].getTime();
-            	if ( exceptionTime1  >= pos1)
-            	{
-            		DD=DE?BUG: print("Exception  a1: " + fe(exceptionTime1));
-            		break;
-            	}
-            	i1 ++;            	
-            }
-
-            // Find first exception from app2 that matches gap
-            while (i2<exceptions2.length)
-            {
-            	exceptionTime2 = exceptions2[i2].getTime();
-            	if ( exceptionTime2 >= pos1)
-            	{
-            		DD=DE?BUG: print("Exception a2: " + fe(exceptionTime2));
-            		break;
-            	}
-            	i2 ++;
-            }
-            
-            boolean matches1 = false;
-            if (pos1 >= exceptionTime1 && pos1<= exceptionTime1 +  DateTools.MILLISECONDS_PER_DAY) 
-            {
-            	DD=DE?BUG: print("Exception from a1 matches!");
-            	matches1=true;
-            }
-            
-            boolean matches2 = false;
-    	    if ((pos2 >= exceptionTime2  && pos2 <= exceptionTime2 + DateTools.MILLISECONDS_PER_DAY)) 
-            { 
-    	    	DD=DE?BUG: print("Exception from a2 matches!");
-                matches2=true;
-            }     	    
-  
-    	    if (!matches1 && !matches2)
-            {
-    	    	DD=DE?BUG: print("No matching exception found at date " + fe(pos1) + " or " + fe(pos2) );
-                return false;
-            }
-            DD=DE?BUG: print("Exception found for gap " + x);
-            x ++;
-        }
-        DD=DE?BUG: print("Exceptions found for every gap. No overlapping. ");
-        return true;
-    }
-
     private static String print(String string) {
         if (string != null)
             System.out.println(string);
@@ -779,6 +673,7 @@ public final class AppointmentImpl extends SimpleEntity implements Appointment
         if (dest.repeating != null)
             dest.repeating.setAppointment(dest);
         dest.parent = source.parent;
+        dest.blockCache = null;
     }
 
     
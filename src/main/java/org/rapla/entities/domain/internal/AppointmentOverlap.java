@@ -0,0 +1,337 @@
+/*--------------------------------------------------------------------------*
+ | Copyright (C) 2014 Christopher Kohlhaas                                  |
+ |                                                                          |
+ | This program is free software; you can redistribute it and/or modify     |
+ | it under the terms of the GNU General Public License as published by the |
+ | Free Software Foundation. A copy of the license has been included with   |
+ | these distribution in the COPYING file, if not go to www.fsf.org .       |
+ |                                                                          |
+ | As a special exception, you are granted the permissions to link this     |
+ | program with every library, which license fulfills the Open Source       |
+ | Definition as published by the Open Source Initiative (OSI).             |
+ *--------------------------------------------------------------------------*/
+package org.rapla.entities.domain.internal;
+
+import java.util.Date;
+
+import org.rapla.components.util.DateTools;
+import org.rapla.components.util.DateTools.DateWithoutTimezone;
+
+/**
+ * Overlap test for two repeating appointments, that doesn't expand the appointment blocks.
+ * <p>
+ * The occurrences of daily, weekly, monthly and yearly repeatings are computed directly from the
+ * start of the appointment, so the occurrence next to a point in time is found without iterating
+ * over the previous occurrences. Exceptions are looked up with a binary search in the sorted exception array.
+ * <ul>
+ * <li>Two fixed interval repeatings (daily, weekly) repeat their relative position every lcm of the interval lengths.
+ * So every pair of overlapping occurrences within one period is the first member of a family of pairs, that
+ * is shifted by the period. The family overlaps if it has more members than there are exceptions or one member
+ * is not hit by an exception.</li>
+ * <li>If one repeating is monthly or yearly, its occurrences are iterated and the occurrences of the other repeating
+ * that could overlap are computed directly. If both repeat forever only the next 250 weeks are checked.</li>
+ * </ul>
+ * The occurrences are the same as in {@link AppointmentImpl#createBlocks(Date, Date, java.util.Collection)}.
+ */
+final class AppointmentOverlap
+{
+    /** the start of the first occurrence */
+    private final long start;
+    private final long duration;
+    /** the start of all occurrences except the first must not be after the repeating end. For daily repeatings it must be before the end */
+    private final long repeatingEnd;
+    private final boolean daily;
+    private final Date[] exceptions;
+    private final long intervalLength;
+    private final boolean monthly;
+    private final boolean yearly;
+    private final long timeOfDay;
+    private final int weekday;
+    private final int dayOfWeekInMonth;
+    private final int month;
+    private final int dayOfMonth;
+
+    private AppointmentOverlap(AppointmentImpl appointment)
+    {
+        RepeatingImpl repeating = appointment.getRepeating();
+        start = appointment.getStart().getTime();
+        duration = Math.max(0, appointment.getEnd().getTime() - start);
+        Date end = repeating.getEnd();
+        repeatingEnd = end != null ? end.getTime() : Long.MAX_VALUE;
+        exceptions = repeating.getExceptions();
+        daily = repeating.isDaily();
+        monthly = repeating.isMonthly();
+        yearly = repeating.isYearly();
+        intervalLength = repeating.isFixedIntervalLength() ? repeating.getFixedIntervalLength() : 0;
+        final long dayStart = DateTools.cutDate(start);
+        timeOfDay = start - dayStart;
+        weekday = weekday(dayStart);
+        DateWithoutTimezone date = DateTools.toDate(start);
+        dayOfWeekInMonth = (date.day - 1) / 7 + 1;
+        month = date.month;
+        dayOfMonth = date.day;
+    }
+
+    /** returns true if a non exception occurrence of a1 overlaps a non exception occurrence of a2. Both appointments must have a repeating. */
+    static boolean overlaps(AppointmentImpl a1, AppointmentImpl a2)
+    {
+        AppointmentOverlap o1 = new AppointmentOverlap(a1);
+        AppointmentOverlap o2 = new AppointmentOverlap(a2);
+        if (o1.intervalLength > 0 && o2.intervalLength > 0)
+        {
+            return overlapsFixed(o1, o2);
+        }
+        // iterate over the repeating with fewer occurrences
+        if (o1.meanIntervalLength() >= o2.meanIntervalLength())
+        {
+            return overlapsIterating(o1, o2);
+        }
+        else
+        {
+            return overlapsIterating(o2, o1);
+        }
+    }
+
+    /** returns true if the time is on the same day as one of the sorted exceptions */
+    static boolean isException(Date[] exceptions, long time)
+    {
+        int low = 0;
+        int high = exceptions.length - 1;
+        // find the last exception that starts not after time
+        while (low <= high)
+        {
+            int mid = (low + high) >>> 1;
+            if (exceptions[mid].getTime() <= time)
+            {
+                low = mid + 1;
+            }
+            else
+            {
+                high = mid - 1;
+            }
+        }
+        return high >= 0 && time < exceptions[high].getTime() + DateTools.MILLISECONDS_PER_DAY;
+    }
+
+    private static boolean overlapsFixed(AppointmentOverlap o1, AppointmentOverlap o2)
+    {
+        final long l1 = o1.intervalLength;
+        final long l2 = o2.intervalLength;
+        final long period = l1 / AppointmentImpl.gcd(l1, l2) * l2;
+        final long p1 = period / l1;
+        final long p2 = period / l2;
+        final long max1 = o1.maxIndex();
+        final long max2 = o2.maxIndex();
+        final int exceptionCount = o1.exceptions.length + o2.exceptions.length;
+        // occurrences of o1 that end before o2 starts can't overlap
+        long first1 = 0;
+        if (o1.start + o1.duration <= o2.start)
+        {
+            first1 = floorDiv(o2.start - o1.duration - o1.start, l1) + 1;
+        }
+        final long last1 = Math.min(max1, first1 + p1 - 1);
+        for (long k1 = first1; k1 <= last1; k1++)
+        {
+            final long s1 = o1.start + k1 * l1;
+            final long e1 = s1 + o1.duration;
+            // occurrences of the unbounded o2 sequence, that overlap the occurrence k1. The index can be negative
+            long k2 = floorDiv(s1 - o2.duration - o2.start, l2) + 1;
+            for (; o2.start + k2 * l2 < e1; k2++)
+            {
+                final long s2 = o2.start + k2 * l2;
+                if (!(s1 < s2 + o2.duration && s2 < e1))
+                {
+                    continue;
+                }
+                // the family k1 + i * p1, k2 + i * p2 that starts with the first non negative k2
+                final long iMin = k2 >= 0 ? 0 : ceilDiv(-k2, p2);
+                long iMax = Long.MAX_VALUE;
+                if (max1 != Long.MAX_VALUE)
+                {
+                    iMax = (max1 - k1) / p1;
+                }
+                if (max2 != Long.MAX_VALUE)
+                {
+                    iMax = Math.min(iMax, floorDiv(max2 - k2, p2));
+                }
+                if (iMax < iMin)
+                {
+                    continue;
+                }
+                // every exception can only hit one member of the family, because the members are at least a day apart
+                if (iMax == Long.MAX_VALUE || iMax - iMin >= exceptionCount)
+                {
+                    return true;
+                }
+                for (long i = iMin; i <= iMax; i++)
+                {
+                    if (!isException(o1.exceptions, s1 + i * period) && !isException(o2.exceptions, s2 + i * period))
+                    {
+                        return true;
+                    }
+                }
+            }
+        }
+        return false;
+    }
+
+    private static boolean overlapsIterating(AppointmentOverlap sparse, AppointmentOverlap dense)
+    {
+        long horizon = Math.min(sparse.lastEnd(), dense.lastEnd());
+        if (horizon == Long.MAX_VALUE)
+        {
+            // overlaps will be checked 250 weeks (5 years) from now on
+            horizon = Math.max(System.currentTimeMillis(), Math.max(sparse.start, dense.start)) + DateTools.MILLISECONDS_PER_WEEK * 250;
+        }
+        for (long s1 = sparse.firstAfter(dense.start - sparse.duration - 1); s1 < horizon; s1 = sparse.firstAfter(s1))
+        {
+            if (isException(sparse.exceptions, s1))
+            {
+                continue;
+            }
+            final long e1 = s1 + sparse.duration;
+            for (long s2 = dense.firstAfter(s1 - dense.duration); s2 < e1; s2 = dense.firstAfter(s2))
+            {
+                if (!isException(dense.exceptions, s2))
+                {
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+
+    /** returns the start of the first occurrence that starts after time or Long.MAX_VALUE if there is none */
+    private long firstAfter(long time)
+    {
+        if (start > time)
+        {
+            return start;
+        }
+        long result;
+        if (intervalLength > 0)
+        {
+            long k = floorDiv(time - start, intervalLength) + 1;
+            result = start + k * intervalLength;
+        }
+        else
+        {
+            DateWithoutTimezone date = DateTools.toDate(time);
+            int year = date.year;
+            if (monthly)
+            {
+                int currentMonth = date.month;
+                while (true)
+                {
+                    long candidate = nthWeekdayInMonth(year, currentMonth);
+                    if (candidate > time)
+                    {
+                        result = candidate;
+                        break;
+                    }
+                    currentMonth++;
+                    if (currentMonth > 12)
+                    {
+                        currentMonth = 1;
+                        year++;
+                    }
+                }
+            }
+            else
+            {
+                while (true)
+                {
+                    long candidate = dayInYear(year);
+                    if (candidate > time)
+                    {
+                        result = candidate;
+                        break;
+                    }
+                    year++;
+                }
+            }
+        }
+        if (result > repeatingEnd || (daily && result == repeatingEnd))
+        {
+            return Long.MAX_VALUE;
+        }
+        return result;
+    }
+
+    /** returns the occurrence in the month or Long.MIN_VALUE if the month has no such weekday */
+    private long nthWeekdayInMonth(int year, int month)
+    {
+        long firstDay = DateTools.toDate(year, month, 1);
+        int day = 1 + (weekday - weekday(firstDay) + 7) % 7 + 7 * (dayOfWeekInMonth - 1);
+        if (day > DateTools.getDaysInMonth(year, month))
+        {
+            return Long.MIN_VALUE;
+        }
+        return firstDay + (day - 1) * DateTools.MILLISECONDS_PER_DAY + timeOfDay;
+    }
+
+    /** returns the occurrence in the year or Long.MIN_VALUE if the year has no such day (29th of february) */
+    private long dayInYear(int year)
+    {
+        if (dayOfMonth > DateTools.getDaysInMonth(year, month))
+        {
+            return Long.MIN_VALUE;
+        }
+        return DateTools.toDate(year, month, dayOfMonth) + timeOfDay;
+    }
+
+    /** the index of the last occurrence of a fixed interval repeating or Long.MAX_VALUE if it repeats forever */
+    private long maxIndex()
+    {
+        if (repeatingEnd == Long.MAX_VALUE)
+        {
+            return Long.MAX_VALUE;
+        }
+        if (daily)
+        {
+            return Math.max(0, ceilDiv(repeatingEnd - start, intervalLength) - 1);
+        }
+        return Math.max(0, floorDiv(repeatingEnd - start, intervalLength));
+    }
+
+    /** an upper bound for the end of the last occurrence */
+    private long lastEnd()
+    {
+        if (repeatingEnd == Long.MAX_VALUE)
+        {
+            return Long.MAX_VALUE;
+        }
+        return Math.max(start, repeatingEnd) + duration;
+    }
+
+    private long meanIntervalLength()
+    {
+        if (intervalLength > 0)
+        {
+            return intervalLength;
+        }
+        return monthly ? DateTools.MILLISECONDS_PER_WEEK * 4 : DateTools.MILLISECONDS_PER_DAY * 365;
+    }
+
+    private static int weekday(long dayStart)
+    {
+        long days = floorDiv(dayStart, DateTools.MILLISECONDS_PER_DAY);
+        return (int) (days - floorDiv(days, 7) * 7);
+    }
+
+    // Math.floorDiv is not available in gwt
+    private static long floorDiv(long a, long b)
+    {
+        long result = a / b;
+        if ((a % b != 0) && ((a < 0) != (b < 0)))
+        {
+            result--;
+        }
+        return result;
+    }
+
+    private static long ceilDiv(long a, long b)
+    {
+        return -floorDiv(-a, b);
+    }
+}
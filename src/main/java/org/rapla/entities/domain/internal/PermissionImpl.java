@@ -32,6 +32,7 @@ import org.rapla.entities.storage.internal.ReferenceHandler;
 public final class PermissionImpl extends ReferenceHandler implements Permission,EntityReferencer
 {
     transient boolean readOnly = false;
+    private transient int hash;
     Date pEnd = null;
     Date pStart = null;
     Integer maxAdvance = null;
@@ -282,6 +283,11 @@ public final class PermissionImpl extends ReferenceHandler implements Permission
  	}
  	
  	public int hashCode() {
+ 	    // read-only permissions don't change, so their hash is computed once
+ 	    if ( readOnly && hash != 0)
+ 	    {
+ 	        return hash;
+ 	    }
  		StringBuilder buf = new StringBuilder();
  		append( buf,getReferenceHandler().getId("user"));
 		append( buf,getReferenceHandler().getId("group"));
@@ -290,7 +296,12 @@ public final class PermissionImpl extends ReferenceHandler implements Permission
 		append( buf,getMaxAdvance());
 		append( buf,getMinAdvance());
         append( buf,getAccessLevel());
- 		return buf.toString().hashCode();
+ 		final int result = buf.toString().hashCode();
+ 		if ( readOnly)
+ 		{
+ 		    hash = result;
+ 		}
+ 		return result;
  	}
 
  	private void append(StringBuilder buf, Object obj) {
@@ -37,8 +37,8 @@ final class RepeatingImpl implements Repeating,java.io.Serializable {
     private Date end;
     private RepeatingType repeatingType;
     private Set<Date> exceptions;
-    transient private Date[] exceptionArray;
-    transient private boolean arrayUpToDate = false;
+    // sorted copy of the exceptions, null if it needs to be recreated. Can be read from multiple threads
+    transient private volatile Date[] exceptionArray;
     transient private Appointment appointment;
     private int frequency;
     boolean monthly;
@@ -230,21 +230,7 @@ final class RepeatingImpl implements Repeating,java.io.Serializable {
     public boolean isException(long time) {
         if (!hasExceptions())
             return false;
-
-        Date[] exceptions = getExceptions();
-        if (exceptions.length == 0) {
-            //          System.out.println("no exceptions");
-            return false;
-        }
-        for (int i=0;i<exceptions.length;i++) {
-            //System.out.println("Comparing exception " + exceptions[i] + " with " + new Date(time));
-            if (exceptions[i].getTime()<=time
-                && time<exceptions[i].getTime() + DateTools.MILLISECONDS_PER_DAY) {
-                //System.out.println("Exception matched " + exceptions[i]);
-                return true;
-            }
-        }
-        return false;
+        return AppointmentOverlap.isException(getExceptions(), time);
     }
 
     public int getNumber() {
@@ -297,7 +283,7 @@ final class RepeatingImpl implements Repeating,java.io.Serializable {
         if (exceptions == null)
             exceptions = new TreeSet<Date>();
         exceptions.add(DateTools.cutDate(date));
-        arrayUpToDate = false;
+        exceptionArray = null;
     }
 
     public void removeException(Date date) {
@@ -311,7 +297,7 @@ final class RepeatingImpl implements Repeating,java.io.Serializable {
         exceptions.remove(DateTools.cutDate(date));
         if (exceptions.size()==0)
             exceptions = null;
-        arrayUpToDate = false;
+        exceptionArray = null;
     }
 
     public void clearExceptions() {
@@ -319,7 +305,7 @@ final class RepeatingImpl implements Repeating,java.io.Serializable {
             return;
         exceptions.clear();
         exceptions = null;
-        arrayUpToDate = false;
+        exceptionArray = null;
     }
 
     public String toString() {
@@ -385,7 +371,7 @@ final class RepeatingImpl implements Repeating,java.io.Serializable {
         {
         	dest.exceptions = null;
         }
-        
+        dest.exceptionArray = null;
 	}
     
     public void setFrom(Repeating repeating)
@@ -399,16 +385,17 @@ final class RepeatingImpl implements Repeating,java.io.Serializable {
 
     private static Date[] DATE_ARRAY = new Date[0];
     public Date[] getExceptions() {
-        if (!arrayUpToDate) {
+        Date[] result = exceptionArray;
+        if (result == null) {
             if (exceptions != null) {
-                exceptionArray = exceptions.toArray(DATE_ARRAY);
-                Arrays.sort(exceptionArray);
+                result = exceptions.toArray(DATE_ARRAY);
+                Arrays.sort(result);
             }
             else
-                exceptionArray = DATE_ARRAY;
-            arrayUpToDate = true;
+                result = DATE_ARRAY;
+            exceptionArray = result;
         }
-        return exceptionArray;
+        return result;
     }
     public boolean hasExceptions() {
         return exceptions != null && exceptions.size()>0;
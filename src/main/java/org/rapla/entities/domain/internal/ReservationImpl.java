@@ -69,6 +69,8 @@ public final class ReservationImpl extends SimpleEntity implements Reservation,
     private Date createDate;
     
     transient HashMap<String,AppointmentImpl> appointmentIndex;
+    /** the formatted texts of this version, that are the same for all appointments and blocks */
+    private transient Map<String,FormattedText> formattedTexts;
         
     ReservationImpl() {
         this (null, null);
@@ -148,6 +150,9 @@ public final class ReservationImpl extends SimpleEntity implements Reservation,
     public void setReadOnly() {
         super.setReadOnly(  );
         classification.setReadOnly( );
+        for (PermissionImpl permission : permissions) {
+            permission.setReadOnly();
+        }
     }
 
     public Class<Reservation> getTypeClass()
@@ -203,18 +208,27 @@ public final class ReservationImpl extends SimpleEntity implements Reservation,
 
     public String format(Locale locale, String annotationName, Appointment appointment)
     {
-        DynamicTypeImpl type = (DynamicTypeImpl)getClassification().getType();
-        ParsedText parsedAnnotation = type.getParsedAnnotation( annotationName );
-        if (parsedAnnotation == null)
+        return formatObject(locale, annotationName, appointment != null ? appointment : this);
+    }
+
+    public String format(Locale locale, String annotationName, AppointmentBlock block)
+    {
+        return formatObject(locale, annotationName, block != null ? block : this);
+    }
+
+    private static final class FormattedText
+    {
+        final ParsedText parsedAnnotation;
+        final String text;
+
+        FormattedText(ParsedText parsedAnnotation, String text)
         {
-            return "";
+            this.parsedAnnotation = parsedAnnotation;
+            this.text = text;
         }
-        EvalContext evalContext = appointment != null ? createEvalContext(locale, annotationName, appointment ) : createEvalContext(locale, annotationName, this);
-        String nameString = parsedAnnotation.formatName(evalContext).trim();
-        return nameString;
     }
 
-    public String format(Locale locale, String annotationName, AppointmentBlock block)
+    private String formatObject(Locale locale, String annotationName, Object object)
     {
         DynamicTypeImpl type = (DynamicTypeImpl)getClassification().getType();
         ParsedText parsedAnnotation = type.getParsedAnnotation( annotationName );
@@ -222,8 +236,32 @@ public final class ReservationImpl extends SimpleEntity implements Reservation,
         {
             return "";
         }
-        EvalContext evalContext = block != null ? createEvalContext(locale,  annotationName, block ) : createEvalContext(locale,  annotationName, this);
+        if ( !isReadOnly() || !parsedAnnotation.isCacheable())
+        {
+            EvalContext evalContext = createEvalContext(locale, annotationName, object);
+            String nameString = parsedAnnotation.formatName(evalContext).trim();
+            return nameString;
+        }
+        // the text doesn't depend on the appointment or the block, so the reservation is formatted once for each locale
+        final String key = annotationName + "|" + locale;
+        synchronized (this)
+        {
+            FormattedText formattedText = formattedTexts != null ? formattedTexts.get(key) : null;
+            if (formattedText != null && formattedText.parsedAnnotation == parsedAnnotation)
+            {
+                return formattedText.text;
+            }
+        }
+        EvalContext evalContext = createEvalContext(locale, annotationName, this);
         String nameString = parsedAnnotation.formatName(evalContext).trim();
+        synchronized (this)
+        {
+            if (formattedTexts == null)
+            {
+                formattedTexts = new HashMap<String,FormattedText>(2);
+            }
+            formattedTexts.put(key, new FormattedText(parsedAnnotation, nameString));
+        }
         return nameString;
     }
     
@@ -296,6 +334,21 @@ public final class ReservationImpl extends SimpleEntity implements Reservation,
         return result;
     }
     
+    /** the restriction and annotation maps are only kept if they are not empty */
+    @Override
+    public void compactReferences()
+    {
+        super.compactReferences();
+        if ( restrictions != null && restrictions.isEmpty())
+        {
+            restrictions = null;
+        }
+        if ( annotations != null && annotations.isEmpty())
+        {
+            annotations = null;
+        }
+    }
+
     public void removeAllSubentities() {
     	appointments.clear();
     }
@@ -16,4 +16,14 @@ public interface PermissionExtension
     boolean hasAccess(Entity entity, User user, AccessLevel accessLevel, Date start, Date end, Date today, boolean checkOnlyToday);
 
     boolean hasAccess(Classification classification, Attribute attribute, User user, AccessLevel edit);
+
+    /**
+     * returns true if {@link #hasAccess(Entity, User, AccessLevel, Date, Date, Date, boolean)} without a time range only depends on the access level,
+     * the permission list of the entity and the user and its groups, for users that are neither admin nor owner of the entity.
+     * If all extensions return true the decisions are cached by the PermissionController.
+     */
+    default boolean isPermissionListBased()
+    {
+        return false;
+    }
 }
\ No newline at end of file
@@ -125,6 +125,12 @@ public class RaplaDefaultPermissionImpl implements PermissionExtension
         return granted;
     }
 
+    @Override
+    public boolean isPermissionListBased()
+    {
+        return true;
+    }
+
     @Override
     public boolean hasAccess(Classification classification, Attribute attribute, User user, AccessLevel edit)
     {
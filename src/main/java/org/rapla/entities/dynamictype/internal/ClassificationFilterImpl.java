@@ -50,6 +50,10 @@ public final class ClassificationFilterImpl
     transient boolean arrayUpToDate = false;
     transient ClassificationFilterRuleImpl[] rulesArray;
     transient EntityResolver resolver;
+    /** increased with each change of the rules, so the compiled filter is created again */
+    transient volatile int version;
+    /** read-only filters are shared between threads, so the compiled filter is published with its version and type */
+    transient volatile CompiledClassificationFilter compiled;
     ClassificationFilterImpl() {
 	}
     
@@ -63,6 +67,7 @@ public final class ClassificationFilterImpl
         {
              it.next().setResolver( resolver );
         }
+        version++;
     }
 
     public DynamicType getType() {
@@ -134,6 +139,7 @@ public final class ClassificationFilterImpl
         else
             list.add(index, rule);
         arrayUpToDate = false;
+        version++;
     }
 
     
@@ -183,12 +189,14 @@ public final class ClassificationFilterImpl
         checkWritable();
         list.clear();
         arrayUpToDate = false;
+        version++;
     }
 
     public void removeRule(int index) {
         checkWritable();
         list.remove(index);
         arrayUpToDate = false;
+        version++;
         //System.out.println("Rule " + index + " for '" + dynamicType + "' removed.");
     }
 
@@ -200,6 +208,14 @@ public final class ClassificationFilterImpl
     }
 
     public boolean matches(Classification classification) {
+        // the compiled filter reads the values of a ClassificationImpl, other implementations are matched by the rules
+        if (!(classification instanceof ClassificationImpl))
+            return matchesRules(classification);
+        return getCompiled().matches((ClassificationImpl) classification);
+    }
+
+    /** matches the classification by interpreting the rules, the compiled filter must return the same result */
+    boolean matchesRules(Classification classification) {
         if (!getType().equals(classification.getType()))
             return false;
         ClassificationFilterRuleImpl[] rules = getRules();
@@ -235,6 +251,23 @@ public final class ClassificationFilterImpl
         return true;
     }
 
+    /** returns the rules compiled for the current version of the filter and its type */
+    CompiledClassificationFilter getCompiled() {
+        DynamicType type = getType();
+        CompiledClassificationFilter compiled = this.compiled;
+        if (compiled != null && compiled.version == version && compiled.type == type)
+        {
+            return compiled;
+        }
+        compiled = CompiledClassificationFilter.compile(version, type, getRules());
+        // the attributes of a type that is edited can change without a new version of the filter
+        if (((DynamicTypeImpl) type).isReadOnly())
+        {
+            this.compiled = compiled;
+        }
+        return compiled;
+    }
+
     boolean hasType(DynamicType type) {
         return getType().equals( type);
     }
@@ -292,6 +325,7 @@ public final class ClassificationFilterImpl
             }
         }
         arrayUpToDate = false;
+        version++;
     }
 
     public void commitRemove(DynamicType type) throws CannotExistWithoutTypeException 
@@ -343,6 +377,7 @@ public final class ClassificationFilterImpl
         {
             classificationFilterRuleImpl.replace(origId, newId);
         }
+        version++;
     }
     
 }
@@ -59,6 +59,7 @@ public class ClassificationImpl implements Classification,DynamicTypeDependant,
 
 	private transient TextCache name;
 	private transient EntityResolver resolver;
+	private transient ParsedValues parsedValues;
     
     /** stores the nonreference values like integers,boolean and string.*/
     //HashMap<String,Object> attributeValueMap = new HashMap<String,Object>(1);
@@ -87,6 +88,27 @@ public class ClassificationImpl implements Classification,DynamicTypeDependant,
     	}
     }
     
+    /**
+     * The values of the attributes without references are parsed once for a read-only classification.
+     * The parsed values are stored for each position of the attributes of the type. References are resolved with each read, so a new version of the referenced entity is returned.
+     * <p>
+     * The values are read from several threads without a lock. This is safe, because the slot writes are idempotent: every thread parses the same
+     * unparsed strings of the read-only classification to equal values, and the slots only hold unmodifiable lists, that are safely published by their final fields
+     * and never changed, because the dates are copied before they are returned.
+     * A thread, that doesn't see the write of another thread, parses the values again. A lost ParsedValues only costs a second parse.
+     */
+    static final class ParsedValues
+    {
+        final DynamicTypeImpl type;
+        final Object[] values;
+
+        ParsedValues(DynamicTypeImpl type)
+        {
+            this.type = type;
+            this.values = new Object[type.attributes.size()];
+        }
+    }
+
     public ClassificationImpl()
     {
     	
@@ -148,6 +170,11 @@ public class ClassificationImpl implements Classification,DynamicTypeDependant,
 
     
     
+	/** returns the id of the type without resolving the type */
+	public String getTypeId() {
+		return getParentId();
+	}
+
 	private String getParentId() {
 		if  (typeId != null)
 			return typeId;
@@ -314,6 +341,7 @@ public class ClassificationImpl implements Classification,DynamicTypeDependant,
         }
         this.type = type.getKey();
         name = null;
+        parsedValues = null;
     }
 
     /** find the attribute of the given type that matches the id */
@@ -363,6 +391,7 @@ public class ClassificationImpl implements Classification,DynamicTypeDependant,
         {
 			data.remove(attributeKey);
 			name = null;
+			parsedValues = null;
         	return;
         }
 		ArrayList<String> newValues = new ArrayList<String>();
@@ -377,6 +406,7 @@ public class ClassificationImpl implements Classification,DynamicTypeDependant,
 		data.put(attributeKey,newValues);
         //isNameUpToDate = false;
         name = null;
+        parsedValues = null;
     }
 
     public void addRefValue(Attribute attribute, ReferenceInfo info) throws RaplaException
@@ -414,6 +444,7 @@ public class ClassificationImpl implements Classification,DynamicTypeDependant,
             data.put(attributeKey, l);
         }
         l.add(stringValue);
+        parsedValues = null;
     }
 
     public Collection<String> getValuesUnresolvedStrings(Attribute attribute) {
@@ -434,6 +465,21 @@ public class ClassificationImpl implements Classification,DynamicTypeDependant,
     	if ( attribute == null ) {
     		throw new NullPointerException("Attribute can't be null");
     	}
+    	List<Object> parsed = getParsedValues( attribute );
+    	if ( parsed != null)
+    	{
+    	    // dates are mutable, so the parsed dates are not handed out
+    	    if ( attribute.getType() == AttributeType.DATE && !parsed.isEmpty())
+    	    {
+    	        List<Object> result = new ArrayList<Object>( parsed.size());
+    	        for (Object value:parsed)
+    	        {
+    	            result.add( copy( value ));
+    	        }
+    	        return result;
+    	    }
+    	    return parsed;
+    	}
     	String attributeKey = attribute.getKey();
     	// first lookupDeprecated in attribute map
         List<String> list = data.get(attributeKey);
@@ -454,6 +500,70 @@ public class ClassificationImpl implements Classification,DynamicTypeDependant,
         return result;
     }
 
+    /** same as {@link #getValues(Attribute)} without copying the parsed dates, so the returned values must not be changed */
+    Collection<Object> getValuesForReading(Attribute attribute) {
+        List<Object> parsed = getParsedValues( attribute );
+        return parsed != null ? parsed : getValues( attribute );
+    }
+
+    private static Object copy(Object value) {
+        return value instanceof Date ? new Date( ((Date) value).getTime()) : value;
+    }
+
+    /** returns the values of an attribute without references, that were parsed once, or null if the values must be parsed with each read */
+    @SuppressWarnings("unchecked")
+    private List<Object> getParsedValues(Attribute attribute) {
+        if ( !readOnly || attribute.getRefType() != null)
+        {
+            return null;
+        }
+        DynamicTypeImpl type = getType();
+        ParsedValues parsed = parsedValues;
+        if ( parsed == null || parsed.type != type)
+        {
+            parsed = new ParsedValues( type);
+            parsedValues = parsed;
+        }
+        String attributeKey = attribute.getKey();
+        int position = type.getAttributePosition( attributeKey);
+        // the values are parsed with the type of the passed attribute, so an attribute of another version of the type is parsed with each read
+        if ( position < 0 || type.attributes.get( position ).getType() != attribute.getType())
+        {
+            return null;
+        }
+        List<Object> values = (List<Object>) parsed.values[position];
+        if ( values != null)
+        {
+            return values;
+        }
+        List<String> list = data.get(attributeKey);
+        if ( list == null || list.size() == 0)
+        {
+            values = Collections.emptyList();
+        }
+        else if ( list.size() == 1)
+        {
+            values = Collections.singletonList( fromString( attribute, list.get( 0 )));
+        }
+        else
+        {
+            List<Object> result = new ArrayList<Object>( list.size());
+            for (String value:list)
+            {
+                result.add( fromString( attribute, value));
+            }
+            values = Collections.unmodifiableList( result);
+        }
+        // an idempotent write, see ParsedValues
+        parsed.values[position] = values;
+        return values;
+    }
+
+    /** resolves a reference value or returns null, if it can't be resolved like {@link #getValues(Attribute)} */
+    <T extends Entity> T tryResolve(String id, Class<T> refType) {
+        return resolver.tryResolve(id, refType);
+    }
+
     /** returns the string representation of the given value. if attribute is a reference then the id of the referenced object is returned.*/
     private String toStringValue( Attribute attribute,Object value) {
         String stringValue = null;
@@ -487,6 +597,10 @@ public class ClassificationImpl implements Classification,DynamicTypeDependant,
             Entity resolved = resolver.resolve( value, refType );
             return resolved;
         }
+        return fromString( attribute, value);
+    }
+
+    private Object fromString(Attribute attribute, String value) throws IllegalStateException {
         try
         {
             Object result = AttributeImpl.parseAttributeValueWithoutRef(attribute, value);
@@ -517,6 +631,11 @@ public class ClassificationImpl implements Classification,DynamicTypeDependant,
     	if ( attribute == null ) {
     		throw new NullPointerException("Attribute can't be null");
     	}
+    	List<Object> parsed = getParsedValues( attribute );
+    	if ( parsed != null)
+    	{
+    	    return parsed.isEmpty() ? null : copy( parsed.get( 0 ));
+    	}
     	String attributeKey = attribute.getKey();
         // first lookupDeprecated in attribute map
         List<String> o = data.get(attributeKey);
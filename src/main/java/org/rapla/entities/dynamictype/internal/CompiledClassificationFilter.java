@@ -0,0 +1,293 @@
+package org.rapla.entities.dynamictype.internal;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Date;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import org.rapla.entities.Category;
+import org.rapla.entities.Entity;
+import org.rapla.entities.dynamictype.Attribute;
+import org.rapla.entities.dynamictype.AttributeType;
+import org.rapla.entities.dynamictype.DynamicType;
+
+/**
+ * A {@link ClassificationFilterImpl} compiled for one version of the filter and one version of its type.
+ * The attributes of the rules are looked up and the rule values are parsed and resolved once, so matching a classification
+ * only compares the values of the classification. The result is the same as matching the rules of the filter.
+ */
+final class CompiledClassificationFilter
+{
+    interface Condition
+    {
+        boolean matches(Object value);
+    }
+
+    static final class CompiledRule
+    {
+        final Attribute attribute;
+        final Class<? extends Entity> refType;
+        final Condition[] conditions;
+
+        CompiledRule(Attribute attribute, Condition[] conditions)
+        {
+            this.attribute = attribute;
+            this.refType = attribute.getRefType();
+            this.conditions = conditions;
+        }
+
+        boolean matches(ClassificationImpl classification)
+        {
+            if (refType == null)
+            {
+                // the values of a read-only classification are parsed only once
+                final Collection<Object> values = classification.getValuesForReading(attribute);
+                if (values.isEmpty())
+                {
+                    return matchesOne(null);
+                }
+                for (Object value : values)
+                {
+                    if (matchesOne(value))
+                    {
+                        return true;
+                    }
+                }
+                return false;
+            }
+            boolean hasValue = false;
+            for (String string : classification.getValuesUnresolvedStrings(attribute))
+            {
+                // values that can't be resolved are ignored, as in Classification.getValues
+                final Object value = classification.tryResolve(string, refType);
+                if (value == null)
+                {
+                    continue;
+                }
+                hasValue = true;
+                if (matchesOne(value))
+                {
+                    return true;
+                }
+            }
+            return !hasValue && matchesOne(null);
+        }
+
+        private boolean matchesOne(Object value)
+        {
+            for (Condition condition : conditions)
+            {
+                if (condition.matches(value))
+                {
+                    return true;
+                }
+            }
+            return false;
+        }
+    }
+
+    final int version;
+    final DynamicType type;
+    private final String typeId;
+    private final CompiledRule[] rules;
+
+    private CompiledClassificationFilter(int version, DynamicType type, CompiledRule[] rules)
+    {
+        this.version = version;
+        this.type = type;
+        this.typeId = type.getId();
+        this.rules = rules;
+    }
+
+    boolean matches(ClassificationImpl classification)
+    {
+        if (!typeId.equals(classification.getTypeId()))
+        {
+            return false;
+        }
+        for (CompiledRule rule : rules)
+        {
+            if (!rule.matches(classification))
+            {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    static CompiledClassificationFilter compile(int version, DynamicType type, ClassificationFilterRuleImpl[] rules)
+    {
+        List<CompiledRule> compiledRules = new ArrayList<CompiledRule>();
+        for (ClassificationFilterRuleImpl rule : rules)
+        {
+            final Attribute attribute = rule.getAttribute();
+            if (attribute == null)
+            {
+                continue;
+            }
+            final AttributeType attributeType = attribute.getType();
+            final String[] operators = rule.getOperators();
+            final Object[] values = rule.getValues();
+            final Condition[] conditions;
+            if (attributeType == AttributeType.CATEGORY)
+            {
+                conditions = new Condition[] { compileCategoryCondition(operators, values) };
+            }
+            else
+            {
+                conditions = new Condition[operators.length];
+                for (int i = 0; i < operators.length; i++)
+                {
+                    conditions[i] = compileCondition(attributeType, operators[i], values[i]);
+                }
+            }
+            compiledRules.add(new CompiledRule(attribute, conditions));
+        }
+        return new CompiledClassificationFilter(version, type, compiledRules.toArray(new CompiledRule[compiledRules.size()]));
+    }
+
+    /** all category conditions of a rule are checked with one walk up the parents of the value */
+    private static Condition compileCategoryCondition(String[] operators, Object[] values)
+    {
+        final Set<String> identicalIds = new HashSet<String>();
+        final Set<String> ancestorIds = new HashSet<String>();
+        boolean matchesNull = false;
+        for (int i = 0; i < operators.length; i++)
+        {
+            final Category category = (Category) values[i];
+            final String operator = operators[i];
+            if (category == null)
+            {
+                matchesNull = true;
+            }
+            else if (operator.equals("="))
+            {
+                identicalIds.add(category.getId());
+            }
+            else if (operator.equals("is"))
+            {
+                identicalIds.add(category.getId());
+                ancestorIds.add(category.getId());
+            }
+        }
+        final boolean nullMatches = matchesNull;
+        if (ancestorIds.isEmpty())
+        {
+            return (value) -> value == null ? nullMatches : identicalIds.contains(((Category) value).getId());
+        }
+        return (value) -> {
+            if (value == null)
+            {
+                return nullMatches;
+            }
+            Category category = (Category) value;
+            if (identicalIds.contains(category.getId()))
+            {
+                return true;
+            }
+            int depth = 0;
+            for (Category parent = category.getParent(); parent != null; parent = parent.getParent())
+            {
+                if (depth++ > 20)
+                {
+                    throw new IllegalStateException("Categorycyle detected in isAncestorOf " + category.toString());
+                }
+                if (ancestorIds.contains(parent.getId()))
+                {
+                    return true;
+                }
+            }
+            return false;
+        };
+    }
+
+    private static Condition compileCondition(AttributeType attributeType, String operator, Object ruleValue)
+    {
+        if (attributeType == AttributeType.ALLOCATABLE)
+        {
+            if (ruleValue == null)
+            {
+                return (value) -> value == null;
+            }
+            if (operator.equals("=") || operator.equals("is"))
+            {
+                final String id = ((Entity) ruleValue).getId();
+                return (value) -> value != null && id.equals(((Entity) value).getId());
+            }
+        }
+        else if (attributeType == AttributeType.STRING)
+        {
+            if (ruleValue == null)
+            {
+                return (value) -> value == null;
+            }
+            if (operator.equals("is") || operator.equals("="))
+            {
+                return (value) -> value != null && value.equals(ruleValue);
+            }
+            final String string = ((String) ruleValue).toLowerCase().trim();
+            if (operator.equals("contains"))
+            {
+                return (value) -> value == null ? string.length() == 0 : ((String) value).toLowerCase().indexOf(string) >= 0;
+            }
+            else if (operator.equals("starts"))
+            {
+                return (value) -> value == null ? string.length() == 0 : ((String) value).toLowerCase().startsWith(string);
+            }
+        }
+        else if (attributeType == AttributeType.BOOLEAN)
+        {
+            final Boolean boolean1 = (Boolean) ruleValue;
+            if (boolean1 == null)
+            {
+                return (value) -> value == null || ((Boolean) value).booleanValue();
+            }
+            return (value) -> value == null ? !boolean1.booleanValue() : boolean1.equals(value);
+        }
+        else if (attributeType == AttributeType.INT || attributeType == AttributeType.DATE)
+        {
+            if (ruleValue == null)
+            {
+                if (operator.equals("<>"))
+                {
+                    return (value) -> value != null;
+                }
+                else if (operator.equals("="))
+                {
+                    return (value) -> value == null;
+                }
+                return (value) -> false;
+            }
+            final long long2 = toLong(ruleValue);
+            if (operator.equals("<"))
+            {
+                return (value) -> value != null && toLong(value) < long2;
+            }
+            else if (operator.equals("="))
+            {
+                return (value) -> value != null && toLong(value) == long2;
+            }
+            else if (operator.equals(">"))
+            {
+                return (value) -> value != null && toLong(value) > long2;
+            }
+            else if (operator.equals(">=") || operator.equals("<="))
+            {
+                // ClassificationFilterRuleImpl evaluates <= as >=, so the compiled filter returns the same results
+                return (value) -> value != null && toLong(value) >= long2;
+            }
+            else if (operator.equals("<>"))
+            {
+                return (value) -> value != null && toLong(value) != long2;
+            }
+        }
+        return (value) -> false;
+    }
+
+    private static long toLong(Object value)
+    {
+        return value instanceof Date ? ((Date) value).getTime() : ((Long) value).longValue();
+    }
+}
@@ -74,6 +74,8 @@ final public class DynamicTypeImpl extends SimpleEntity implements DynamicType,
     Map<String,ParsedText> annotations = new HashMap<String,ParsedText>();
     transient DynamicTypeParseContext parseContext = new DynamicTypeParseContext(this);
     transient Map<String,AttributeImpl> attributeIndex;
+    /** the positions of the attributes of a read-only type. The map is unmodifiable and published with a volatile field, because read-only types are shared between threads */
+    transient volatile Map<String,Integer> attributePositions;
     public DynamicTypeImpl() {
     	this( new Date(),new Date());
     }
@@ -274,6 +276,9 @@ final public class DynamicTypeImpl extends SimpleEntity implements DynamicType,
     public void setReadOnly() {
         super.setReadOnly();
         name.setReadOnly( );
+        for (PermissionImpl permission : permissions) {
+            permission.setReadOnly();
+        }
     }
 
     public String getName(Locale locale) {
@@ -506,6 +511,34 @@ final public class DynamicTypeImpl extends SimpleEntity implements DynamicType,
 		return attributeImpl;
     }
 
+    /** returns the position of the attribute with the key in the attributes of this type or -1 if there is none */
+    int getAttributePosition(String key) {
+        if ( !isReadOnly())
+        {
+            for ( int i=0;i<attributes.size();i++)
+            {
+                if ( attributes.get( i ).getKey().equals( key ))
+                {
+                    return i;
+                }
+            }
+            return -1;
+        }
+        Map<String,Integer> positions = attributePositions;
+        if ( positions == null)
+        {
+            positions = new HashMap<String, Integer>();
+            for ( int i=0;i<attributes.size();i++)
+            {
+                positions.put( attributes.get( i ).getKey(), i);
+            }
+            positions = Collections.unmodifiableMap( positions);
+            attributePositions = positions;
+        }
+        Integer position = positions.get( key );
+        return position != null ? position : -1;
+    }
+
     public ParsedText getParsedAnnotation(String key) {
         return  annotations.get( key );
     }
@@ -840,6 +873,12 @@ final public class DynamicTypeImpl extends SimpleEntity implements DynamicType,
 	            }
 				return null;
             }
+
+            /** the text of referenced entities can change without a change of the classification */
+            boolean isReference() {
+                Attribute attribute = findAttribute( type);
+                return attribute == null || attribute.getRefType() != null;
+            }
 			
 			@Override
 			public String getRepresentation( ParseContext context)
@@ -52,6 +52,10 @@ public class ParsedText implements Serializable
     transient List<Function> variablesList;
     // used for fast storage of text without variables
     transient private String first = "";
+    /** the compiled format. Each text is followed by the result of the function with the same index. Constant parts are merged into the texts*/
+    transient private String[] compiledTexts;
+    transient private Function[] compiledFunctions;
+    transient private boolean cacheable;
 
     String formatString;
 
@@ -105,6 +109,55 @@ public class ParsedText implements Serializable
             variablesList = null;
             nonVariablesList = null;
         }
+        compile();
+    }
+
+    private void compile()
+    {
+        if (variablesList == null)
+        {
+            compiledTexts = null;
+            compiledFunctions = null;
+            cacheable = true;
+            return;
+        }
+        List<String> texts = new ArrayList<String>();
+        List<Function> functions = new ArrayList<Function>();
+        boolean cacheable = true;
+        StringBuilder text = new StringBuilder();
+        for (int i = 0; i < nonVariablesList.size(); i++)
+        {
+            text.append(nonVariablesList.get(i));
+            if (i < variablesList.size())
+            {
+                Function function = variablesList.get(i);
+                cacheable = cacheable && isCacheable(function);
+                String constantText = getConstantText(function);
+                if (constantText != null)
+                {
+                    text.append(constantText);
+                }
+                else
+                {
+                    texts.add(text.toString());
+                    text = new StringBuilder();
+                    functions.add(function);
+                }
+            }
+        }
+        texts.add(text.toString());
+        compiledTexts = texts.toArray(new String[texts.size()]);
+        compiledFunctions = functions.toArray(new Function[functions.size()]);
+        this.cacheable = cacheable;
+    }
+
+    /**
+     * returns true if the formatted text only depends on constants and on the attribute values of the formatted classification, that don't reference other entities.
+     * The text of a reservation is then the same for all of its appointments and blocks and it doesn't change until the reservation is changed.
+     */
+    public boolean isCacheable()
+    {
+        return cacheable;
     }
 
     public void updateFormatString(ParseContext context)
@@ -144,38 +197,26 @@ public class ParsedText implements Serializable
 
     public String formatName(EvalContext context)
     {
-        if (nonVariablesList == null && variablesList == null)
+        if (compiledFunctions == null)
         {
             return first;
         }
-        StringBuffer buf = new StringBuffer();
-        if (variablesList != null && (nonVariablesList == null || nonVariablesList.size() == 0))
-        {
-            for (int i = 0; i < variablesList.size(); i++)
-            {
-                Function function = variablesList.get(i);
-                Object result = function.eval(context);
-                String stringResult = evalToString(result, context);
-                buf.append(stringResult);
-            }
-        }
-        else if (nonVariablesList != null)
+        StringBuilder buf = new StringBuilder();
+        for (int i = 0; i < compiledFunctions.length; i++)
         {
-            for (int i = 0; i < nonVariablesList.size(); i++)
-            {
-                buf.append(nonVariablesList.get(i));
-                if (i < variablesList.size())
-                {
-                    Function function = variablesList.get(i);
-                    Object result = function.eval(context);
-                    String stringResult = evalToString(result, context);
-                    buf.append(stringResult);
-                }
-            }
+            buf.append(compiledTexts[i]);
+            Object result = compiledFunctions[i].eval(context);
+            String stringResult = evalToString(result, context);
+            buf.append(stringResult);
         }
+        buf.append(compiledTexts[compiledFunctions.length]);
 
         String string = buf.toString();
-        string = string.replaceAll("\\\\n", "\n");
+        // no regular expression is compiled for texts without escaped line breaks
+        if (string.indexOf("\\n") >= 0)
+        {
+            string = string.replace("\\n", "\n");
+        }
         return string;
     }
 
@@ -527,7 +568,8 @@ public class ParsedText implements Serializable
         final FunctionFactory functionFactory = context.getFunctionFactory(namespace);
         if (functionFactory != null)
         {
-            return functionFactory.createFunction(name, args);
+            final Function function = functionFactory.createFunction(name, args);
+            return fold(function);
         }
         else
         {
@@ -535,6 +577,162 @@ public class ParsedText implements Serializable
         }
     }
 
+    /** evaluates the standard functions, that only get constant arguments, when the format is parsed. An if with a constant condition is replaced by the branch it chooses.*/
+    private Function fold(Function function)
+    {
+        if (function == null)
+        {
+            return null;
+        }
+        final List<Function> args = function.getArgs();
+        if (function instanceof StandardFunctions.IfFunction && isConstant(args.get(0)))
+        {
+            final boolean isTrue = evalBoolean(args.get(0), null);
+            final Function branch = isTrue ? args.get(1) : args.get(2);
+            if (isConstant(branch))
+            {
+                return new FoldedFunction(function, null, branch.eval(null));
+            }
+            return new FoldedFunction(function, branch, null);
+        }
+        if (!isPure(function))
+        {
+            return function;
+        }
+        for (Function arg : args)
+        {
+            if (!isConstant(arg))
+            {
+                return function;
+            }
+            // booleans are converted to the translation of the locale, that is passed when the text is formatted
+            if (isStringConversion(function) && arg.eval(null) instanceof Boolean)
+            {
+                return function;
+            }
+        }
+        final Object value;
+        try
+        {
+            value = function.eval(new EvalContext(null, null, null, null, Collections.emptyList()));
+        }
+        catch (RuntimeException ex)
+        {
+            // the function fails with the constant arguments, so it will fail when the text is formatted
+            return function;
+        }
+        if (value != null && !(value instanceof String || value instanceof Number || value instanceof Boolean))
+        {
+            return function;
+        }
+        return new FoldedFunction(function, null, value);
+    }
+
+    /** functions, that only depend on the results of their arguments */
+    private static boolean isPure(Function function)
+    {
+        return function instanceof StandardFunctions.NotFunction || function instanceof StandardFunctions.AndFunction
+                || function instanceof StandardFunctions.OrFunction || function instanceof StandardFunctions.EqualsFunction
+                || function instanceof StandardFunctions.IfFunction || function instanceof StandardFunctions.IndexFunction || isStringConversion(function);
+    }
+
+    private static boolean isStringConversion(Function function)
+    {
+        return function instanceof StandardFunctions.ConcatFunction || function instanceof StandardFunctions.SubstringFunction
+                || function instanceof StandardFunctions.ReverseFunction || function instanceof StandardFunctions.StringComparatorFunction;
+    }
+
+    private static boolean isConstant(Function function)
+    {
+        if (function instanceof FoldedFunction)
+        {
+            return ((FoldedFunction) function).branch == null;
+        }
+        return function instanceof StringVariable || function instanceof IntVariable || function instanceof BooleanVariable;
+    }
+
+    /** returns the text of a constant function, that is not locale dependent, or null */
+    private static String getConstantText(Function function)
+    {
+        if (!isConstant(function))
+        {
+            return null;
+        }
+        final Object value = function.eval(null);
+        if (value == null)
+        {
+            return "";
+        }
+        if (value instanceof String || value instanceof Number)
+        {
+            return value.toString();
+        }
+        return null;
+    }
+
+    private static boolean isCacheable(Function function)
+    {
+        if (isConstant(function))
+        {
+            return true;
+        }
+        if (function instanceof FoldedFunction)
+        {
+            return isCacheable(((FoldedFunction) function).branch);
+        }
+        if (function instanceof DynamicTypeImpl.DynamicTypeParseContext.AttributeFunction)
+        {
+            return !((DynamicTypeImpl.DynamicTypeParseContext.AttributeFunction) function).isReference();
+        }
+        if (!isPure(function))
+        {
+            return false;
+        }
+        for (Function arg : function.getArgs())
+        {
+            if (!isCacheable(arg))
+            {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /** a function, that was replaced by its result or by the branch of an if, when the format was parsed. The representation is the one of the parsed function*/
+    private static final class FoldedFunction extends Function
+    {
+        private final Function parsedFunction;
+        private final Function branch;
+        private final Object value;
+
+        private FoldedFunction(Function parsedFunction, Function branch, Object value)
+        {
+            super("folded", emptyList());
+            this.parsedFunction = parsedFunction;
+            this.branch = branch;
+            this.value = value;
+        }
+
+        @Override public Object eval(EvalContext context)
+        {
+            if (branch != null)
+            {
+                return branch.eval(context);
+            }
+            return value;
+        }
+
+        @Override public String getRepresentation(ParseContext context)
+        {
+            return parsedFunction.getRepresentation(context);
+        }
+
+        @Override public String toString()
+        {
+            return parsedFunction.toString();
+        }
+    }
+
     static List<Function> emptyList()
     {
         return Collections.emptyList();
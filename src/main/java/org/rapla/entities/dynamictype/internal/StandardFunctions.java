@@ -212,6 +212,53 @@ public class StandardFunctions implements FunctionFactory
     {
         public static final String ID = "number";
         private Function subFunction;
+        /** the blocks of the last numbered reservation, so they are not created again for each of its blocks */
+        private volatile ReservationBlocks lastBlocks;
+
+        private static final class ReservationBlocks
+        {
+            final Reservation reservation;
+            final long end;
+            final List<AppointmentBlock> blocks;
+
+            ReservationBlocks(Reservation reservation, long minEnd)
+            {
+                this.reservation = reservation;
+                final Date start = reservation.getFirstDate();
+                final Date maxEnd = reservation.getMaxEnd();
+                if (maxEnd != null)
+                {
+                    end = Math.max(maxEnd.getTime(), minEnd);
+                }
+                else
+                {
+                    // the blocks of repeatings without end are created ahead, so the following blocks can be numbered with the same list
+                    end = minEnd + Math.max(minEnd - start.getTime(), DateTools.MILLISECONDS_PER_WEEK);
+                }
+                SortedSet<AppointmentBlock> sortedBlocks = new TreeSet<AppointmentBlock>();
+                for (Appointment app : reservation.getAppointments())
+                {
+                    app.createBlocks(start, new Date(end), sortedBlocks);
+                }
+                blocks = new ArrayList<AppointmentBlock>(sortedBlocks);
+            }
+
+            int getNumber(AppointmentBlock appointmentBlock)
+            {
+                int index = Collections.binarySearch(blocks, appointmentBlock);
+                if (index < 0)
+                {
+                    index = -index - 1;
+                }
+                // blocks, that start after the end of the numbered block, were not created when the blocks were created up to its end
+                final long blockEnd = appointmentBlock.getEnd();
+                while (index > 0 && blocks.get(index - 1).getStart() >= blockEnd)
+                {
+                    index--;
+                }
+                return index + 1;
+            }
+        }
 
         AppointmentBlockFunction(List<Function> args) throws IllegalAnnotationException
         {
@@ -237,24 +284,20 @@ public class StandardFunctions implements FunctionFactory
 
         private int getAppointmentNumber(AppointmentBlock appointmentBlock)
         {
-            final long blockStart = appointmentBlock.getEnd();
-            final Date end = new Date(blockStart);
+            final long blockEnd = appointmentBlock.getEnd();
             final Appointment appointment = appointmentBlock.getAppointment();
             final Reservation reservation = appointment.getReservation();
-            final Date start = reservation.getFirstDate();
-            SortedSet<AppointmentBlock> blocks = new TreeSet<AppointmentBlock>();
-            for (Appointment app : reservation.getAppointments())
+            ReservationBlocks reservationBlocks = lastBlocks;
+            if (reservationBlocks == null || reservationBlocks.reservation != reservation || reservationBlocks.end < blockEnd)
             {
-                app.createBlocks(start, end, blocks);
+                reservationBlocks = new ReservationBlocks(reservation, blockEnd);
+                // a reservation, that is edited, can change its appointments
+                if (reservation.isReadOnly())
+                {
+                    lastBlocks = reservationBlocks;
+                }
             }
-            final SortedSet<AppointmentBlock> headSet = blocks.headSet(appointmentBlock);
-            final int size = headSet.size();
-            //            final long appoimtmentStart = reservation.getFirstDate().getTime();
-            //            if (appoimtmentStart ==  start)
-            //            {
-            //                return 1;
-            //            }
-            return size + 1;
+            return reservationBlocks.getNumber(appointmentBlock);
         }
     }
 
@@ -264,6 +307,34 @@ public class StandardFunctions implements FunctionFactory
         private Function subFunction;
         private Function startFunction;
         private Function endFunction;
+        /** the blocks of the last reservation, so they are not created again for each part of a text and for each column of a table */
+        private volatile ReservationBlocks lastBlocks;
+
+        private static final class ReservationBlocks
+        {
+            final Reservation reservation;
+            final Date start;
+            final Date end;
+            final List<AppointmentBlock> blocks;
+
+            ReservationBlocks(Reservation reservation, Date start, Date end, List<AppointmentBlock> blocks)
+            {
+                this.reservation = reservation;
+                this.start = start;
+                this.end = end;
+                this.blocks = blocks;
+            }
+
+            boolean matches(Reservation reservation, Date start, Date end)
+            {
+                return this.reservation == reservation && equals(this.start, start) && equals(this.end, end);
+            }
+
+            private static boolean equals(Date date1, Date date2)
+            {
+                return date1 == null ? date2 == null : date1.equals(date2);
+            }
+        }
 
         AppointmentBlocksFunction(List<Function> args) throws IllegalAnnotationException
         {
@@ -309,18 +380,28 @@ public class StandardFunctions implements FunctionFactory
                 Object value = endFunction.eval(context);
                 if (value instanceof Date)
                 {
-                    start = (Date) value;
+                    end = (Date) value;
                 }
             }
             if (object instanceof Reservation)
             {
                 Reservation reservation = ((Reservation) object);
+                final ReservationBlocks reservationBlocks = lastBlocks;
+                // each evaluation gets its own list, so the caller can't change the kept blocks
+                if (reservationBlocks != null && reservationBlocks.matches(reservation, start, end))
+                {
+                    return new ArrayList<AppointmentBlock>(reservationBlocks.blocks);
+                }
                 List<AppointmentBlock> blocks = new ArrayList<AppointmentBlock>();
                 for (Appointment appointment : reservation.getSortedAppointments())
                 {
                     appointment.createBlocks(start, end, blocks);
                 }
                 Collections.sort(blocks);
+                if (reservation.isReadOnly())
+                {
+                    lastBlocks = new ReservationBlocks(reservation, start, end, new ArrayList<AppointmentBlock>(blocks));
+                }
                 return blocks;
             }
             if (object instanceof Appointment)
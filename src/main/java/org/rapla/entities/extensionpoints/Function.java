@@ -54,6 +54,11 @@ public abstract class Function
         return name;
     }
 
+    public List<Function> getArgs()
+    {
+        return args;
+    }
+
     public abstract Object eval(EvalContext context);
 
     public String getRepresentation(ParseContext context)
@@ -156,11 +156,17 @@ abstract public class ReferenceHandler /*extends HashMap<String,List<String>>*/
 	        if ( idEntries == null )
 	        {
 	        	idEntries = new ArrayList<String>();
-	        	links.put(key, idEntries);
+	        	writableLinks().put(key, idEntries);
 	        }
 	        if ( idEntries.contains( id))
 	        {
 	            return;
+	        }
+	        // compacted lists are copied before the first change
+	        if ( !(idEntries instanceof ArrayList))
+	        {
+	            idEntries = new ArrayList<String>(idEntries);
+	            writableLinks().put(key, idEntries);
 	        }
 			idEntries.add(id);
         }
@@ -177,10 +183,10 @@ abstract public class ReferenceHandler /*extends HashMap<String,List<String>>*/
         synchronized (this)
         {
             if (entity == null) {
-                links.remove(key);
+                removeWithKey(key);
                 return;
             }
-            links.put(key, Collections.singletonList(entity.getId()) );
+            writableLinks().put(key, Collections.singletonList(entity.getId()) );
         }
     }
 
@@ -188,13 +194,13 @@ abstract public class ReferenceHandler /*extends HashMap<String,List<String>>*/
         synchronized (this) 
         {
 	        if (ids == null || ids.size() == 0) {
-	            links.remove(key);
+	            removeWithKey(key);
 	            return;
 	        }
 	
 	        List<String> entries = new ArrayList<String>();
 			entries.addAll( ids);
-	        links.put(key, entries);
+	        writableLinks().put(key, entries);
         }
     }
 
@@ -245,7 +251,7 @@ abstract public class ReferenceHandler /*extends HashMap<String,List<String>>*/
         {
             if (entities == null || entities.size() == 0) 
 	        {
-	            links.remove(key);
+	            removeWithKey(key);
 	            return;
 	        }
 	        List<String> idEntries = new ArrayList<String>();
@@ -254,7 +260,7 @@ abstract public class ReferenceHandler /*extends HashMap<String,List<String>>*/
 	        	String id = ent.getId();
 				idEntries.add( id);
 	        }
-	        links.put(key, idEntries);
+	        writableLinks().put(key, idEntries);
         }
     }
     
@@ -315,7 +321,11 @@ abstract public class ReferenceHandler /*extends HashMap<String,List<String>>*/
 	public boolean removeWithKey(String key) {
     	synchronized (this) 
         {
-			return links.remove(key) != null;
+			if ( !links.containsKey( key))
+			{
+			    return false;
+			}
+			return writableLinks().remove(key) != null;
 	    }
     }
 
@@ -323,12 +333,14 @@ abstract public class ReferenceHandler /*extends HashMap<String,List<String>>*/
         boolean removed = false;
     	synchronized (this) 
         {
-        	for (String key: links.keySet())
+        	for (String key: new ArrayList<String>(links.keySet()))
         	{
 				List<String> entries = links.get(key);
 				if ( entries.contains( id))
 				{
-					entries.remove( id);
+				    final List<String> copy = new ArrayList<String>(entries);
+				    copy.remove( id);
+				    writableLinks().put(key, copy);
 					removed = true;
 				}
         	}
@@ -351,18 +363,64 @@ abstract public class ReferenceHandler /*extends HashMap<String,List<String>>*/
     }
     
     public void clearReferences() {
-    	links.clear();
+    	links = new LinkedHashMap<String,List<String>>();
     }
 
-//    @SuppressWarnings("unchecked")
-//	public ReferenceHandler clone() {
-//        ReferenceHandler clone;
-//    }
+    private Map<String,List<String>> writableLinks()
+    {
+        if ( !(links instanceof LinkedHashMap))
+        {
+            links = new LinkedHashMap<String,List<String>>(links);
+        }
+        return links;
+    }
+
+    /** Replaces the link map and the id lists with compact versions, that are copied before the next change.
+     * The ids are interned like the entity ids in {@link SimpleEntity#setId(String)}, so all entities that reference the same entity share one id string.
+     * The serialized links don't change.*/
+    public void compactReferences()
+    {
+        synchronized (this)
+        {
+            if ( links.isEmpty())
+            {
+                links = Collections.emptyMap();
+                return;
+            }
+            if ( links.size() == 1)
+            {
+                final Entry<String, List<String>> entry = links.entrySet().iterator().next();
+                links = Collections.singletonMap( entry.getKey().intern(), compactIds( entry.getValue()));
+                return;
+            }
+            Map<String,List<String>> compact = new LinkedHashMap<String,List<String>>(links.size() * 4 / 3 + 1);
+            for (Entry<String, List<String>> entry : links.entrySet())
+            {
+                compact.put( entry.getKey().intern(), compactIds( entry.getValue()));
+            }
+            links = compact;
+        }
+    }
+
+    private static List<String> compactIds(List<String> ids)
+    {
+        if ( ids.size() == 1)
+        {
+            final String id = ids.get(0);
+            return Collections.singletonList( id != null ? id.intern() : null);
+        }
+        List<String> compact = new ArrayList<String>( ids.size());
+        for (String id : ids)
+        {
+            compact.add( id != null ? id.intern() : null);
+        }
+        return compact;
+    }
 
     @Override
     public void replace(ReferenceInfo origId, ReferenceInfo newId)
     {
-        final Collection<Entry<String, List<String>>> entries = links.entrySet();
+        final Collection<Entry<String, List<String>>> entries = new ArrayList<Entry<String, List<String>>>(links.entrySet());
         for (Entry<String, List<String>> entry : entries)
         {
             final List<String> list = entry.getValue();
@@ -375,7 +433,7 @@ abstract public class ReferenceHandler /*extends HashMap<String,List<String>>*/
                 {
                     copy.add(indexOf, newId.getId());
                 }
-                links.put(entry.getKey(), copy);
+                writableLinks().put(entry.getKey(), copy);
             }
         }
     }
@@ -207,6 +207,17 @@ public abstract class SimpleEntity extends ReferenceHandler implements RefEntity
         this.id= id;
     }
 
+    /** also interns the id, which is not interned if the entity was deserialized without {@link #setId(String)} */
+    @Override
+    public void compactReferences()
+    {
+        super.compactReferences();
+        if ( id != null)
+        {
+            id = id.intern();
+        }
+    }
+
     public void setId(ReferenceInfo ref)
     {
         if ( ref == null)
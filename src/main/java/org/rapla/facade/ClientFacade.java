@@ -45,6 +45,8 @@ public interface ClientFacade
 
 
     TypedComponentRole<Integer> REFRESH_INTERVAL_ENTRY = new TypedComponentRole<Integer>("org.rapla.refreshInterval");
+    /** if set, the client waits on the server for changes instead of polling in the refresh interval */
+    TypedComponentRole<Boolean> REFRESH_LONG_POLL_ENTRY = new TypedComponentRole<Boolean>("org.rapla.refreshLongPoll");
     TypedComponentRole<Integer> ARCHIVE_AGE = new TypedComponentRole<Integer>("org.rapla.archiveAge");
     int REFRESH_INTERVAL_DEFAULT = 30000;
 
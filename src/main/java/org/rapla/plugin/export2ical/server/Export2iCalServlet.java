@@ -1,12 +1,10 @@
 package org.rapla.plugin.export2ical.server;
 
 import java.io.IOException;
-import java.io.PrintWriter;
-import java.text.SimpleDateFormat;
+import java.io.OutputStream;
+import java.io.StringWriter;
 import java.util.Collection;
 import java.util.Date;
-import java.util.Locale;
-import java.util.SimpleTimeZone;
 
 import javax.inject.Inject;
 import javax.inject.Singleton;
@@ -28,11 +26,11 @@ import org.rapla.entities.User;
 import org.rapla.entities.configuration.Preferences;
 import org.rapla.entities.configuration.RaplaConfiguration;
 import org.rapla.entities.domain.Appointment;
-import org.rapla.entities.domain.Reservation;
 import org.rapla.facade.CalendarModel;
 import org.rapla.facade.CalendarNotFoundExeption;
 import org.rapla.facade.CalendarSelectionModel;
 import org.rapla.facade.RaplaFacade;
+import org.rapla.facade.internal.CalendarModelImpl;
 import org.rapla.framework.RaplaException;
 import org.rapla.framework.RaplaInitializationException;
 import org.rapla.framework.RaplaLocale;
@@ -41,6 +39,8 @@ import org.rapla.plugin.export2ical.Export2iCalPlugin;
 import org.rapla.scheduler.Promise;
 import org.rapla.server.PromiseSynchroniser;
 import org.rapla.server.TimeZoneConverter;
+import org.rapla.server.internal.rest.GzipResponseFilter;
+import org.rapla.storage.CachableStorageOperator;
 
 import net.fortuna.ical4j.data.CalendarOutputter;
 import net.fortuna.ical4j.model.Calendar;
@@ -59,15 +59,14 @@ public class Export2iCalServlet
 	private boolean global_interval;
 	//private HttpServletResponse response;
 	
-	private SimpleDateFormat rfc1123DateFormat;
-
 //  private SimpleTimeZone gmt = new SimpleTimeZone(0, "GMT");
 
 	//private java.util.Calendar calendar;
     //private Preferences preferences;
-	private Date firstPluginStartDate = new Date(0);
 	//private TimeZone pluginTimeZone;
-	private int lastModifiedIntervall;
+	// the rendered calendars of the most recently requested subscriptions are kept
+	private static final int MAX_CACHED_CALENDARS = 1000;
+	private ICalExportCache cache;
 	@Inject
 	Export2iCalConverter converter;
 	RaplaFacade facade;
@@ -100,10 +99,9 @@ public class Export2iCalServlet
         global_daysBefore = config.getChild(Export2iCalPlugin.DAYS_BEFORE).getValueAsInteger(Export2iCalPlugin.DEFAULT_daysBefore);
         global_daysAfter = config.getChild(Export2iCalPlugin.DAYS_AFTER).getValueAsInteger(Export2iCalPlugin.DEFAULT_daysAfter);
 
-        rfc1123DateFormat = new SimpleDateFormat("EEE, d MMM yyyy HH:mm:ss z", Locale.US);
-        rfc1123DateFormat.setTimeZone(new SimpleTimeZone(0, "GMT"));
-
-        lastModifiedIntervall = config.getChild(Export2iCalPlugin.LAST_MODIFIED_INTERVALL).getValueAsInteger(10);
+        // the calendars are rendered again after the last modified intervall, even if nothing changed
+        final int lastModifiedIntervall = config.getChild(Export2iCalPlugin.LAST_MODIFIED_INTERVALL).getValueAsInteger(10);
+        cache = new ICalExportCache((CachableStorageOperator) facade.getOperator(), lastModifiedIntervall, MAX_CACHED_CALENDARS);
     }
 
     @Inject
@@ -143,36 +141,49 @@ public class Export2iCalServlet
                 response.setStatus( 404);
                 return;
             }
-            final Preferences preferences = facade.getPreferences(user);
-
-			final CalendarModel calModel = getCalendarModel(preferences, user, filename);
-
-            if (calModel == null) {
-                response.getWriter().println(message);
-				response.getWriter().close();
-    		    response.setStatus( 404);
-    			getLogger().getChildLogger("404").warn(message);
-                return;
+            // the polls of subscribed calendars are answered with the rendered calendar, until it is affected by a change
+            ICalExportCache.RenderedCalendar calendar = cache.get(user, filename);
+            if (calendar == null)
+            {
+                final long changeVersion = cache.getChangeVersion();
+                final Preferences preferences = facade.getPreferences(user);
+
+                final CalendarModel calModel = getCalendarModel(preferences, user, filename);
+
+                if (calModel == null) {
+                    response.getWriter().println(message);
+                    response.getWriter().close();
+                    response.setStatus( 404);
+                    getLogger().getChildLogger("404").warn(message);
+                    return;
+                }
+
+                final Object isSet = calModel.getOption(Export2iCalPlugin.ICAL_EXPORT);
+
+                if((isSet == null || isSet.equals("false")))
+                {
+                    response.getWriter().println(message);
+                    response.getWriter().close();
+                    getLogger().getChildLogger("404").warn(message);
+                    response.setStatus( 404);
+                    return;
+                }
+
+                Promise<Collection<Appointment>> appointments = calModel.queryAppointments(new TimeInterval(null, null));
+                final byte[] body = render(PromiseSynchroniser.waitForWithRaplaException(appointments, 10000), filename, user, null);
+                calendar = cache.put(user, filename, (CalendarModelImpl) calModel, body, changeVersion);
             }
 
-			response.setHeader("Last-Modified", rfc1123DateFormat.format(getLastModified(calModel)));
-			final Object isSet = calModel.getOption(Export2iCalPlugin.ICAL_EXPORT);
-            
-			if((isSet == null || isSet.equals("false")))
+			final boolean gzip = GzipResponseFilter.acceptsGzip(request.getHeader("Accept-Encoding"));
+			response.setHeader("ETag", gzip ? calendar.gzipEtag : calendar.etag);
+			response.setDateHeader("Last-Modified", calendar.lastModified);
+			response.setHeader("Vary", "Accept-Encoding");
+			if (isNotModified(request, calendar))
 			{
-				response.getWriter().println(message);
-				response.getWriter().close();
-    			getLogger().getChildLogger("404").warn(message);
-                response.setStatus( 404);
-				return;
-			}
-			
-			if (request.getMethod().equals("HEAD")) {
+				response.setStatus(HttpServletResponse.SC_NOT_MODIFIED);
 				return;
 			}
-
-			Promise<Collection<Appointment>> appointments = calModel.queryAppointments(new TimeInterval(null, null));
-			write(response, PromiseSynchroniser.waitForWithRaplaException(appointments, 10000), filename,user, null);
+			write(request, response, calendar, filename, gzip);
 		} catch (Exception e) {
 			response.getWriter().println(("An error occured giving you the Calendarview for user " + username + " named " + filename));
 			response.getWriter().println();
@@ -182,6 +193,40 @@ public class Export2iCalServlet
 		}
 	}
 
+	/**
+	 * If-None-Match is checked against the etags of the content in both encodings and takes precedence over If-Modified-Since
+	 */
+	private boolean isNotModified(HttpServletRequest request, ICalExportCache.RenderedCalendar calendar)
+	{
+		final String ifNoneMatch = request.getHeader("If-None-Match");
+		if (ifNoneMatch != null)
+		{
+			for (String etag : ifNoneMatch.split(","))
+			{
+				etag = etag.trim();
+				// weak etags match, too, because the content is compared and not its encoding
+				if (etag.startsWith("W/"))
+				{
+					etag = etag.substring(2);
+				}
+				if (etag.equals("*") || etag.equals(calendar.etag) || etag.equals(calendar.gzipEtag))
+				{
+					return true;
+				}
+			}
+			return false;
+		}
+		final long ifModifiedSince;
+		try
+		{
+			ifModifiedSince = request.getDateHeader("If-Modified-Since");
+		}
+		catch (IllegalArgumentException ex)
+		{
+			return false;
+		}
+		return ifModifiedSince != -1 && calendar.lastModified <= ifModifiedSince;
+	}
 
 	/**
 	 * Retrieves CalendarModel by username && filename, sets appropriate before
@@ -232,79 +277,53 @@ public class Export2iCalServlet
 		}
 	}
 
-	private void write(final HttpServletResponse response, final Collection<Appointment> appointments, String filename, User user,final Preferences preferences) throws RaplaException, IOException {
-
-	    if (filename == null )
-	    {
-	        filename = i18n.getString("default");
-	    }
-		response.setContentType("text/calendar; charset=" + raplaLocale.getCharsetNonUtf());
-		response.setHeader("Content-Disposition", "attachment; filename=" + filename + ".ics");
+	private byte[] render(final Collection<Appointment> appointments, String filename, User user,final Preferences preferences) throws RaplaException, IOException {
 
 		if (appointments == null) {
 			throw new RaplaException("Error with returning '" + filename);
 		}
 		final Calendar iCal = converter.createiCalender(appointments,preferences, user);
 		final CalendarOutputter calOutputter = new CalendarOutputter();
-		final PrintWriter responseWriter = response.getWriter();
+		final StringWriter writer = new StringWriter();
 		try {
-			calOutputter.output(iCal, responseWriter);
+			calOutputter.output(iCal, writer);
 		} catch (ValidationException e) {
 			getLogger().error("The calendar file is invalid!\n" + e);
-		} finally
-		{
-		    responseWriter.close();
-		}
-	}
-	
-	/**
-	 * Calculates Global-Lastmod By modulo operations, this returns a fresh
-	 * last-mod every n days n can be set for all users in the last-modified
-	 * intervall settings
-	 * 
-	 * @return
-	 */
-	private Date getGlobalLastModified() 
-	{
-		if (lastModifiedIntervall == -1) 
-		{
-			return firstPluginStartDate;
 		}
-		long nowInMillis = DateTools.cutDate(new Date()).getTime();
-		long daysSinceStart = (nowInMillis - firstPluginStartDate.getTime()) / DateTools.MILLISECONDS_PER_DAY;
-		return new Date(nowInMillis - (daysSinceStart % lastModifiedIntervall) * DateTools.MILLISECONDS_PER_DAY);
+		return writer.toString().getBytes(raplaLocale.getCharsetNonUtf());
 	}
 
-	/**
-	 * Get last modified if a list of allocatables
-	 * 
-	 */
-	private Date getLastModified(CalendarModel calModel) throws RaplaException {
+	private void write(final HttpServletRequest request, final HttpServletResponse response, final ICalExportCache.RenderedCalendar calendar, String filename, boolean gzip) throws IOException {
 
-		Date endDate = null;
-        Date startDate = facade.today();
-        final Promise<Collection<Reservation>> reservationsPromise = calModel.queryReservations(new TimeInterval(startDate, endDate));
-		final Collection<Reservation> reservations = PromiseSynchroniser.waitForWithRaplaException(reservationsPromise, 10000);
-		// set to minvalue
-		Date maxDate = new Date();
-		maxDate.setTime(0);
+	    if (filename == null )
+	    {
+	        filename = i18n.getString("default");
+	    }
+		response.setContentType("text/calendar; charset=" + raplaLocale.getCharsetNonUtf());
+		response.setHeader("Content-Disposition", "attachment; filename=" + filename + ".ics");
 
-		for (Reservation r:reservations) 
+		// the compressed bytes are cached with the calendar, so the response is not compressed again
+		final byte[] bytes;
+		if (gzip)
 		{
-			Date lastMod = r.getLastChanged();
-
-			if (lastMod != null && maxDate.before(lastMod)) {
-				maxDate = lastMod;
-			}
+			bytes = calendar.getGzippedBody();
+			response.setHeader("Content-Encoding", "gzip");
 		}
-
-		if (lastModifiedIntervall != -1 && DateTools.countDays(maxDate, new Date()) < lastModifiedIntervall) {
-			return maxDate;
-		} else {
-			return getGlobalLastModified();
+		else
+		{
+			bytes = calendar.body;
+		}
+		response.setContentLength(bytes.length);
+		if (request.getMethod().equals("HEAD")) {
+			return;
+		}
+		final OutputStream out = response.getOutputStream();
+		try {
+			out.write(bytes);
+		} finally
+		{
+		    out.close();
 		}
-
 	}
 
-
 }
@@ -0,0 +1,262 @@
+package org.rapla.plugin.export2ical.server;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Date;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.zip.GZIPOutputStream;
+
+import org.rapla.components.util.DateTools;
+import org.rapla.components.util.Tools;
+import org.rapla.entities.Entity;
+import org.rapla.entities.User;
+import org.rapla.entities.configuration.Preferences;
+import org.rapla.entities.configuration.internal.PreferencesImpl;
+import org.rapla.entities.domain.Reservation;
+import org.rapla.entities.storage.ReferenceInfo;
+import org.rapla.facade.Conflict;
+import org.rapla.facade.internal.CalendarModelImpl;
+import org.rapla.framework.RaplaException;
+import org.rapla.storage.CachableStorageOperator;
+import org.rapla.storage.UpdateOperation;
+import org.rapla.storage.UpdateResult;
+import org.rapla.storage.impl.server.CalendarModelCache;
+
+/**
+ * Keeps the rendered ics files of the exported calendars per user and calendar, so the frequent polls of subscribed calendars
+ * are answered without querying and converting the appointments again.
+ * A calendar is rendered again, if one of its events or a resource, a type, a category, a user or the preferences of its user changed,
+ * on the next day, because the exported interval moves with the current date, and after the configured maximum age.
+ * The etag of a calendar is the hash of its content, so a calendar that is rendered again with the same content keeps its etag and its last modified date.
+ * Only a limited number of calendars is kept, the calendars that were not requested for the longest time are removed first.
+ */
+class ICalExportCache
+{
+    /** a rendered ics file */
+    static final class RenderedCalendar
+    {
+        final CalendarModelCache.Subscription subscription;
+        final byte[] body;
+        final String etag;
+        /** the etag of the gzipped body, a strong etag must differ for each content encoding */
+        final String gzipEtag;
+        /** the time the content changed, in seconds precision as in the http header */
+        final long lastModified;
+        final long renderedAt;
+        final Date day;
+        private byte[] gzippedBody;
+        private volatile boolean outdated;
+
+        RenderedCalendar(CalendarModelCache.Subscription subscription, byte[] body, String etag, long lastModified, long renderedAt, Date day)
+        {
+            this.subscription = subscription;
+            this.body = body;
+            this.etag = etag;
+            this.gzipEtag = etag.substring(0, etag.length() - 1) + "-gzip\"";
+            this.lastModified = lastModified;
+            this.renderedAt = renderedAt;
+            this.day = day;
+        }
+
+        /** the body is compressed with the first request that accepts gzip */
+        synchronized byte[] getGzippedBody() throws IOException
+        {
+            if (gzippedBody == null)
+            {
+                final ByteArrayOutputStream out = new ByteArrayOutputStream(body.length / 4 + 64);
+                final GZIPOutputStream gzip = new GZIPOutputStream(out);
+                try
+                {
+                    gzip.write(body);
+                }
+                finally
+                {
+                    gzip.close();
+                }
+                gzippedBody = out.toByteArray();
+            }
+            return gzippedBody;
+        }
+    }
+
+    private final CachableStorageOperator operator;
+    private final long maxAge;
+    private final int maxCalendars;
+    /** access order, so the calendar that was not requested for the longest time is removed first */
+    private final Map<String, RenderedCalendar> calendars = new LinkedHashMap<String, RenderedCalendar>(16, 0.75f, true)
+    {
+        @Override protected boolean removeEldestEntry(Map.Entry<String, RenderedCalendar> eldest)
+        {
+            return size() > maxCalendars;
+        }
+    };
+    /** the change version of the operator and the time until the changes are checked against the rendered calendars */
+    private long checkedVersion = -1;
+    private Date checkedUntil;
+
+    /**
+     * @param maxAgeInDays the number of days after that a calendar is rendered again, even if nothing changed. -1 if calendars are only rendered again after changes
+     * @param maxCalendars the number of rendered calendars that are kept
+     */
+    ICalExportCache(CachableStorageOperator operator, int maxAgeInDays, int maxCalendars)
+    {
+        this.operator = operator;
+        this.maxAge = maxAgeInDays > 0 ? maxAgeInDays * DateTools.MILLISECONDS_PER_DAY : -1;
+        this.maxCalendars = maxCalendars;
+    }
+
+    private static String getKey(User user, String filename)
+    {
+        return user.getId() + "/" + filename;
+    }
+
+    /** returns the change version, that must be read before the calendar model is loaded and passed to {@link #put} */
+    long getChangeVersion()
+    {
+        return operator.getChangeVersion();
+    }
+
+    /** returns the rendered calendar or null, if the calendar must be rendered */
+    RenderedCalendar get(User user, String filename) throws RaplaException
+    {
+        checkChanges();
+        final RenderedCalendar calendar;
+        synchronized (this)
+        {
+            calendar = calendars.get(getKey(user, filename));
+        }
+        if (calendar == null || calendar.outdated)
+        {
+            return null;
+        }
+        if (!calendar.day.equals(operator.today()) || (maxAge > 0 && System.currentTimeMillis() - calendar.renderedAt > maxAge))
+        {
+            calendar.outdated = true;
+            return null;
+        }
+        return calendar;
+    }
+
+    /**
+     * creates the rendered calendar with the etag of its content and keeps it, if nothing changed since the passed change version.
+     * The last modified date of the previous rendering is kept, if the content is the same.
+     */
+    RenderedCalendar put(User user, String filename, CalendarModelImpl model, byte[] body, long changeVersion) throws RaplaException
+    {
+        final CalendarModelCache.Subscription subscription = new CalendarModelCache.Subscription(user.getReference(), model);
+        final String etag = "\"" + hash(body) + "\"";
+        final long now = System.currentTimeMillis();
+        final String key = getKey(user, filename);
+        final Date today = operator.today();
+        synchronized (this)
+        {
+            final RenderedCalendar previous = calendars.get(key);
+            final long lastModified = previous != null && previous.etag.equals(etag) ? previous.lastModified : now / 1000 * 1000;
+            final RenderedCalendar calendar = new RenderedCalendar(subscription, body, etag, lastModified, now, today);
+            // a change after the version was read could be missing in the rendered calendar
+            if (changeVersion == checkedVersion && changeVersion == operator.getChangeVersion())
+            {
+                calendars.put(key, calendar);
+            }
+            return calendar;
+        }
+    }
+
+    /** marks the calendars outdated, that are affected by the changes since the last call */
+    private void checkChanges() throws RaplaException
+    {
+        final long version = operator.getChangeVersion();
+        synchronized (this)
+        {
+            if (version == checkedVersion)
+            {
+                return;
+            }
+            if (checkedUntil == null || checkedUntil.before(operator.getHistoryValidStart()))
+            {
+                for (RenderedCalendar calendar : calendars.values())
+                {
+                    calendar.outdated = true;
+                }
+                checkedUntil = operator.getCurrentTimestamp();
+            }
+            else
+            {
+                final UpdateResult result = operator.getUpdateResult(checkedUntil);
+                for (RenderedCalendar calendar : calendars.values())
+                {
+                    if (!calendar.outdated && isAffected(calendar, result))
+                    {
+                        calendar.outdated = true;
+                    }
+                }
+                checkedUntil = result.getUntil();
+            }
+            checkedVersion = version;
+        }
+    }
+
+    private boolean isAffected(RenderedCalendar calendar, UpdateResult result)
+    {
+        final ReferenceInfo<User> userId = calendar.subscription.getUserId();
+        for (UpdateOperation operation : result.getOperations())
+        {
+            final Class<? extends Entity> type = operation.getType();
+            final ReferenceInfo reference = operation.getReference();
+            if (type == Reservation.class)
+            {
+                if (isMatching(calendar, result.<Reservation>getLastKnown(reference)) || isMatching(calendar,
+                        result.<Reservation>getLastEntryBeforeUpdate(reference)))
+                {
+                    return true;
+                }
+            }
+            else if (type == Preferences.class)
+            {
+                // the preferences of the user contain the calendar and the system preferences the export settings
+                if (reference.equals(PreferencesImpl.getPreferenceIdFromUser(userId.getId())) || reference.equals(PreferencesImpl.getPreferenceIdFromUser(null)))
+                {
+                    return true;
+                }
+            }
+            else if (type != Conflict.class)
+            {
+                // resources, types, categories and users change the selection of the calendar or the rendering of its events
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private boolean isMatching(RenderedCalendar calendar, Reservation reservation)
+    {
+        if (reservation == null)
+        {
+            return false;
+        }
+        try
+        {
+            return calendar.subscription.isMatching(reservation);
+        }
+        catch (RuntimeException ex)
+        {
+            // the calendar is rendered again, if a version from the history can't be checked
+            return true;
+        }
+    }
+
+    private static String hash(byte[] body) throws RaplaException
+    {
+        try
+        {
+            return Tools.convert(MessageDigest.getInstance("MD5").digest(body));
+        }
+        catch (NoSuchAlgorithmException e)
+        {
+            throw new RaplaException(e.getMessage(), e);
+        }
+    }
+}
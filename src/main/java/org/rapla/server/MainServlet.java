@@ -139,6 +139,33 @@ public class MainServlet extends HttpServlet
                 }
             }
         }
+        {
+            Integer parallelism = lookupEnvInt(logger, jndi, "rapla_conflict_parallelism");
+            if (parallelism != null)
+            {
+                backendContext.setConflictParallelism(parallelism);
+            }
+            Integer groupCommitSize = lookupEnvInt(logger, jndi, "rapla_db_group_commit_size");
+            if (groupCommitSize != null)
+            {
+                backendContext.setDbGroupCommitSize(groupCommitSize);
+            }
+            String changeFeed = jndi.lookupEnvString("rapla_db_change_feed", false);
+            if (changeFeed != null)
+            {
+                backendContext.setDbChangeFeed(changeFeed.trim());
+            }
+            String fileJournal = jndi.lookupEnvString("rapla_file_journal", false);
+            if (fileJournal != null)
+            {
+                backendContext.setFileJournal(Boolean.parseBoolean(fileJournal.trim()));
+            }
+            String fileSnapshot = jndi.lookupEnvString("rapla_file_snapshot", false);
+            if (fileSnapshot != null)
+            {
+                backendContext.setFileSnapshot(Boolean.parseBoolean(fileSnapshot.trim()));
+            }
+        }
         env_raplamail = jndi.lookupResource("mail/Session", false);
         if (env_raplamail != null)
         {
@@ -150,6 +177,27 @@ public class MainServlet extends HttpServlet
         return backendContext;
     }
 
+    private static Integer lookupEnvInt(Logger logger, RaplaJNDIContext jndi, String key)
+    {
+        Object value = jndi.lookupEnvVariable(key, false);
+        if (value instanceof Number)
+        {
+            return ((Number) value).intValue();
+        }
+        else if (value != null)
+        {
+            try
+            {
+                return Integer.parseInt(value.toString().trim());
+            }
+            catch (NumberFormatException ex)
+            {
+                logger.warn("Ignoring invalid " + key + " " + value);
+            }
+        }
+        return null;
+    }
+
     synchronized public void init() throws ServletException
     {
         logger = RaplaBootstrapLogger.createRaplaLogger();
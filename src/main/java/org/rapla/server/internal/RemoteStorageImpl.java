@@ -64,6 +64,8 @@ import org.rapla.storage.impl.EntityStore;
 
 @DefaultImplementation(context = InjectionContext.server, of = RemoteStorage.class) public class RemoteStorageImpl implements RemoteStorage
 {
+    /** longest time in milliseconds a refresh request waits for changes */
+    static final int MAX_REFRESH_WAIT = 60000;
     @Inject RemoteSession session;
     @Inject CachableStorageOperator operator;
     @Inject SecurityManager security;
@@ -181,7 +183,7 @@ import org.rapla.storage.impl.EntityStore;
         final Promise<Map<Allocatable, Collection<Appointment>>> mapFutureResult = operator
                 .queryAppointments(user, allocatables, start, end, classificationFilters, annotationQuery);
         Map<Allocatable, Collection<Appointment>> reservations = PromiseSynchroniser.waitForWithRaplaException(mapFutureResult, 50000);
-        AppointmentMap list = new AppointmentMap(reservations);
+        AppointmentMap list = new AppointmentMap(reservations, job.getFormat());
         getLogger().debug("Get reservations " + start + " " + end + ": " + reservations.size() + "," + list.toString());
         return list;
     }
@@ -392,6 +394,23 @@ import org.rapla.storage.impl.EntityStore;
         }
     }
 
+    public UpdateEvent waitForRefresh(String lastSyncedTime, int timeout) throws RaplaException
+    {
+        checkAuthentified();
+        try
+        {
+            Date clientRepoVersion = SerializableDateTimeFormat.INSTANCE.parseTimestamp(lastSyncedTime);
+            // the request thread is blocked while waiting, so the wait is limited regardless of what the client requests
+            final long waitMillis = Math.max(0, Math.min(timeout, MAX_REFRESH_WAIT));
+            UpdateEvent event = updateDataManager.waitForUpdateEvent(getSessionUser(), clientRepoVersion, waitMillis);
+            return event;
+        }
+        catch (ParseDateException e)
+        {
+            throw new RaplaException("Illegal last synced date " + lastSyncedTime + " caused " + e.getMessage(), e);
+        }
+    }
+
     public Logger getLogger()
     {
         return session.getLogger();
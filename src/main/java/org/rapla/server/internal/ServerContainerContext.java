@@ -11,6 +11,11 @@ public class ServerContainerContext
     private Map<String,String> fileDatasources = new LinkedHashMap<String,String>();
     private Map<String,Boolean> services = new LinkedHashMap<>(); 
     private Object mailSession;
+    private int conflictParallelism = Runtime.getRuntime().availableProcessors();
+    private int dbGroupCommitSize = 50;
+    private String dbChangeFeed = "sequence";
+    private boolean fileJournal = false;
+    private boolean fileSnapshot = false;
     Runnable shutdownCommand;
 
     private ShutdownService shutdownService = new ShutdownService()
@@ -97,6 +102,59 @@ public class ServerContainerContext
         this.mailSession = mailSession;
     }
 
+    public int getConflictParallelism()
+    {
+        return conflictParallelism;
+    }
+
+    public void setConflictParallelism(int conflictParallelism)
+    {
+        this.conflictParallelism = conflictParallelism;
+    }
+
+    public int getDbGroupCommitSize()
+    {
+        return dbGroupCommitSize;
+    }
+
+    public void setDbGroupCommitSize(int dbGroupCommitSize)
+    {
+        this.dbGroupCommitSize = dbGroupCommitSize;
+    }
+
+    /** "sequence" polls the change counter of the database, "notify" pushes changes with PostgreSQL LISTEN/NOTIFY */
+    public String getDbChangeFeed()
+    {
+        return dbChangeFeed;
+    }
+
+    public void setDbChangeFeed(String dbChangeFeed)
+    {
+        this.dbChangeFeed = dbChangeFeed;
+    }
+
+    /** if true, the file storage appends changes to a journal instead of rewriting the data file on every save */
+    public boolean isFileJournal()
+    {
+        return fileJournal;
+    }
+
+    public void setFileJournal(boolean fileJournal)
+    {
+        this.fileJournal = fileJournal;
+    }
+
+    /** if true, the file storage writes a binary snapshot on shutdown, that is loaded instead of the data file on the next start */
+    public boolean isFileSnapshot()
+    {
+        return fileSnapshot;
+    }
+
+    public void setFileSnapshot(boolean fileSnapshot)
+    {
+        this.fileSnapshot = fileSnapshot;
+    }
+
     public void setShutdownService(ShutdownService shutdownService)
     {
         this.shutdownService = shutdownService;
@@ -19,6 +19,7 @@ import org.rapla.storage.CachableStorageOperator;
 import org.rapla.storage.ImportExportManager;
 import org.rapla.storage.dbfile.FileOperator;
 import org.rapla.storage.dbsql.DBOperator;
+import org.rapla.storage.dbsql.PostgresChangeFeed;
 import org.rapla.storage.impl.server.ImportExportManagerImpl;
 
 
@@ -55,7 +56,11 @@ public class ServerStorageSelector implements Provider<CachableStorageOperator>
     {
         final String raplafile = containerContext.getMainFilesource();
         final String fileDatasource = raplafile != null ? raplafile : "data/data.xml";
-        return new FileOperator(logger, i18n, raplaLocale, scheduler, functionFactoryMap, fileDatasource, permissionExtensions);
+        final FileOperator fileOperator = new FileOperator(logger, i18n, raplaLocale, scheduler, functionFactoryMap, fileDatasource, permissionExtensions);
+        fileOperator.setConflictParallelism(containerContext.getConflictParallelism());
+        fileOperator.setJournalEnabled(containerContext.isFileJournal());
+        fileOperator.setSnapshotEnabled(containerContext.isFileSnapshot());
+        return fileOperator;
     }
 
     synchronized private ImportExportManager getImportExport()
@@ -82,7 +87,19 @@ public class ServerStorageSelector implements Provider<CachableStorageOperator>
     {
         Provider<ImportExportManager> importExportMananger = getImportExportManager();
         final DataSource dbDatasource = containerContext.getMainDbDatasource();
-        return new DBOperator(logger, i18n, raplaLocale, scheduler, functionFactoryMap, importExportMananger, dbDatasource, permissionExtensions);
+        final DBOperator dbOperator = new DBOperator(logger, i18n, raplaLocale, scheduler, functionFactoryMap, importExportMananger, dbDatasource, permissionExtensions);
+        dbOperator.setConflictParallelism(containerContext.getConflictParallelism());
+        dbOperator.setGroupCommitSize(containerContext.getDbGroupCommitSize());
+        final String changeFeed = containerContext.getDbChangeFeed();
+        if ("notify".equals(changeFeed))
+        {
+            dbOperator.setChangeFeed(new PostgresChangeFeed(logger, dbDatasource));
+        }
+        else if (!"sequence".equals(changeFeed))
+        {
+            logger.warn("Unknown rapla_db_change_feed " + changeFeed + ". Polling the change sequence instead.");
+        }
+        return dbOperator;
     }
 
 
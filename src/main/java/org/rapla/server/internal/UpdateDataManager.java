@@ -12,4 +12,7 @@ import org.rapla.storage.UpdateEvent;
 public interface UpdateDataManager
 {
     UpdateEvent createUpdateEvent(User user, Date lastSynced) throws RaplaException;
+
+    /** like {@link #createUpdateEvent(User, Date)}, but waits up to timeoutMillis until there are changes for the user. Returns an empty event if there are none */
+    UpdateEvent waitForUpdateEvent(User user, Date lastSynced, long timeoutMillis) throws RaplaException;
 }
@@ -12,9 +12,12 @@
  *--------------------------------------------------------------------------*/
 package org.rapla.server.internal;
 
+import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Date;
 import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.List;
 import java.util.Set;
 import java.util.TimeZone;
 
@@ -116,6 +119,67 @@ public class UpdateDataManagerImpl implements  UpdateDataManager
         return currentInterval;
     }
 
+    private void addAllocatableIds(Entity obj, Set<String> allocatableIds)
+    {
+        final ReservationImpl reservation = (ReservationImpl) obj;
+        for (Appointment app : reservation.getAppointmentList())
+        {
+            for (ReferenceInfo<Allocatable> allocatableId : reservation.getAllocatableIdsFor(app))
+            {
+                allocatableIds.add(allocatableId.getId());
+            }
+        }
+    }
+
+    /**
+     * adds the allocatables that depend on the passed allocatables, e.g. the packages and the parents of a changed member.
+     * A client caches the appointments of a query for an allocatable, which include the appointments of all its dependent allocatables.
+     * The dependency is symmetric, so an allocatable whose cached appointments contain a changed reservation is dependent on one of its allocatables.
+     */
+    private Set<String> addDependentIds(Set<String> allocatableIds)
+    {
+        List<Allocatable> allocatables = new ArrayList<Allocatable>();
+        for (String allocatableId : allocatableIds)
+        {
+            final Allocatable allocatable = operator.tryResolve(allocatableId, Allocatable.class);
+            if (allocatable != null)
+            {
+                allocatables.add(allocatable);
+            }
+        }
+        Set<String> result = new LinkedHashSet<String>(allocatableIds);
+        for (Allocatable dependent : operator.getDependent(allocatables))
+        {
+            result.add(dependent.getId());
+        }
+        return result;
+    }
+
+    public UpdateEvent waitForUpdateEvent(User user, Date lastSynced, long timeoutMillis) throws RaplaException
+    {
+        final long end = System.currentTimeMillis() + timeoutMillis;
+        // the version is read first, so a change during the creation of the event ends the wait immediately
+        long version = operator.getChangeVersion();
+        UpdateEvent event = createUpdateEvent(user, lastSynced);
+        // changes the user can't see don't end the wait
+        while (event.isEmpty() && !event.isNeedResourcesRefresh())
+        {
+            final long remaining = end - System.currentTimeMillis();
+            if (remaining <= 0)
+            {
+                break;
+            }
+            final long newVersion = operator.waitForChanges(version, remaining);
+            if (newVersion == version)
+            {
+                break;
+            }
+            version = newVersion;
+            event = createUpdateEvent(user, lastSynced);
+        }
+        return event;
+    }
+
     public UpdateEvent createUpdateEvent(User user, Date lastSynced) throws RaplaException
     {
         Date currentTimestamp = operator.getCurrentTimestamp();
@@ -132,6 +196,8 @@ public class UpdateDataManagerImpl implements  UpdateDataManager
         int timezoneOffset = TimeZoneConverterImpl.getOffset(DateTools.getTimeZone(), systemTimeZone, currentTimestamp.getTime());
         safeResultEvent.setTimezoneOffset(timezoneOffset);
         TimeInterval timeInterval= null;
+        Set<String> invalidateAllocatableIds = new LinkedHashSet<String>();
+        boolean invalidateAllAllocatables = false;
         final UpdateResult updateResult = operator.getUpdateResult(lastSynced, user);
         safeResultEvent.setLastValidated(updateResult.getUntil());
         if(updateResult.getSince() == null)
@@ -327,6 +393,7 @@ public class UpdateDataManagerImpl implements  UpdateDataManager
         {
             //Collection<Entity> updatedEntities = operator.getUpdatedEntities(user, lastSynced);
 
+            final Collection<ReferenceInfo> addedIds = updateResult.getIds(UpdateResult.Add.class);
             for (ReferenceInfo id : updateResult.getAddedAndChangedIds())
             {
                 final Entity obj = updateResult.getLastKnown(id);
@@ -334,14 +401,18 @@ public class UpdateDataManagerImpl implements  UpdateDataManager
                 if ( raplaType == Reservation.class)
                 {
                     timeInterval = expandInterval(obj, timeInterval);
+                    addAllocatableIds(obj, invalidateAllocatableIds);
                     final Entity entity  = updateResult.getLastEntryBeforeUpdate(id);
                     if ( entity != null)
                     {
                         timeInterval = expandInterval(entity, timeInterval);
+                        addAllocatableIds(entity, invalidateAllocatableIds);
                     }
-                    else
+                    // a new reservation has no previous version
+                    else if (!addedIds.contains(id))
                     {
                         timeInterval = new TimeInterval( null, null);
+                        invalidateAllAllocatables = true;
                     }
                 }
                     // Add entity to result
@@ -362,10 +433,12 @@ public class UpdateDataManagerImpl implements  UpdateDataManager
                     if ( entity != null)
                     {
                         timeInterval = expandInterval(entity, timeInterval);
+                        addAllocatableIds(entity, invalidateAllocatableIds);
                     }
                     else
                     {
                         timeInterval = new TimeInterval( null, null);
+                        invalidateAllAllocatables = true;
                     }
                 }
             }
@@ -374,8 +447,13 @@ public class UpdateDataManagerImpl implements  UpdateDataManager
             if (conflictRefresh || resourceRefresh)
             {
                 timeInterval = new TimeInterval(null, null);
+                invalidateAllAllocatables = true;
             }
             safeResultEvent.setInvalidateInterval(timeInterval);
+            if (timeInterval != null && !invalidateAllAllocatables)
+            {
+                safeResultEvent.setInvalidateAllocatableIds(addDependentIds(invalidateAllocatableIds));
+            }
         }
         return safeResultEvent;
     }
@@ -0,0 +1,65 @@
+package org.rapla.server.internal.rest;
+
+import javax.ws.rs.container.ContainerRequestContext;
+import javax.ws.rs.container.ContainerResponseContext;
+import javax.ws.rs.container.ContainerResponseFilter;
+import javax.ws.rs.core.HttpHeaders;
+import javax.ws.rs.core.MediaType;
+import javax.ws.rs.ext.Provider;
+import java.io.IOException;
+
+/**
+ * Compresses json responses, if the client accepts gzip. Setting the content encoding header is sufficient,
+ * as the gzip encoding interceptor of resteasy then compresses the response while it is written.
+ * Responses that already have a content encoding are left untouched.
+ */
+@Provider
+public class GzipResponseFilter implements ContainerResponseFilter
+{
+    static final String GZIP = "gzip";
+
+    @Override
+    public void filter(ContainerRequestContext requestContext, ContainerResponseContext responseContext) throws IOException
+    {
+        if (!responseContext.hasEntity() || responseContext.getHeaders().containsKey(HttpHeaders.CONTENT_ENCODING))
+        {
+            return;
+        }
+        final MediaType mediaType = responseContext.getMediaType();
+        if (mediaType == null || !mediaType.isCompatible(MediaType.APPLICATION_JSON_TYPE))
+        {
+            return;
+        }
+        responseContext.getHeaders().add(HttpHeaders.VARY, HttpHeaders.ACCEPT_ENCODING);
+        if (acceptsGzip(requestContext.getHeaderString(HttpHeaders.ACCEPT_ENCODING)))
+        {
+            responseContext.getHeaders().putSingle(HttpHeaders.CONTENT_ENCODING, GZIP);
+        }
+    }
+
+    public static boolean acceptsGzip(String acceptEncoding)
+    {
+        if (acceptEncoding == null)
+        {
+            return false;
+        }
+        for (String encoding : acceptEncoding.split(","))
+        {
+            final String[] parts = encoding.trim().split(";");
+            if (!parts[0].trim().equalsIgnoreCase(GZIP))
+            {
+                continue;
+            }
+            for (int i = 1; i < parts.length; i++)
+            {
+                final String param = parts[i].trim().replace(" ", "");
+                if (param.equals("q=0") || param.matches("q=0\\.0*"))
+                {
+                    return false;
+                }
+            }
+            return true;
+        }
+        return false;
+    }
+}
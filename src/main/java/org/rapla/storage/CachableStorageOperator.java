@@ -48,6 +48,15 @@ public interface CachableStorageOperator extends StorageOperator {
     UpdateResult getUpdateResult(Date since) throws RaplaException;
     UpdateResult getUpdateResult(Date since,User user) throws RaplaException;
 
+    /** returns a number that changes with every change of the stored entities */
+    long getChangeVersion();
+
+    /**
+     * blocks until the change version differs from the passed one, the timeout has passed or the operator is disconnected.
+     * @return the current change version
+     */
+    long waitForChanges(long changeVersion, long timeoutMillis) throws RaplaException;
+
     Date getHistoryValidStart();
     Date getConnectStart();
 
@@ -46,6 +46,7 @@ import org.rapla.entities.internal.UserImpl;
 import org.rapla.entities.storage.EntityResolver;
 import org.rapla.entities.storage.ParentEntity;
 import org.rapla.entities.storage.ReferenceInfo;
+import org.rapla.entities.storage.internal.ReferenceHandler;
 import org.rapla.entities.storage.internal.SimpleEntity;
 import org.rapla.facade.Conflict;
 import org.rapla.facade.internal.ConflictImpl;
@@ -114,6 +115,7 @@ public class LocalCache implements EntityResolver
         Class<? extends Entity> typeClass = info.getType();
         boolean bResult = true;
         bResult = entities.remove(entityId) != null;
+        invalidatePermissions(typeClass);
         Map<String, ? extends Entity> entitySet = getMap(typeClass);
         if (entitySet != null)
         {
@@ -207,6 +209,12 @@ public class LocalCache implements EntityResolver
             }
         }
 
+        // the cache holds most entities of the server, so the references are stored with the smallest collections
+        if (entity instanceof ReferenceHandler)
+        {
+            ((ReferenceHandler) entity).compactReferences();
+        }
+        invalidatePermissions(typeClass);
         entities.put(entityId, entity);
         Map<String, Entity> entitySet = getMap(typeClass);
         if (entitySet != null)
@@ -254,6 +262,15 @@ public class LocalCache implements EntityResolver
         }
     }
 
+    /** the permissions of the users depend on their groups and the parents of the groups */
+    private void invalidatePermissions(Class<? extends Entity> typeClass)
+    {
+        if (permissionController != null && (typeClass == User.class || typeClass == Category.class))
+        {
+            permissionController.invalidateGroups();
+        }
+    }
+
     public Entity get(Comparable id)
     {
         if (id == null)
@@ -292,6 +309,7 @@ public class LocalCache implements EntityResolver
         disabledConflictApp2.clear();
         conflictLastChanged.clear();
         graph.clear();
+        invalidatePermissions(User.class);
     }
 
     public CategoryImpl getSuperCategory()
@@ -337,12 +355,12 @@ public class LocalCache implements EntityResolver
         final CategoryImpl superCategory = getSuperCategory();
         result.addAll(CategoryImpl.getRecursive(superCategory));
         result.addAll(getDynamicTypes());
+        final Collection<Category> adminGroups = forUser != null && !forUser.isAdmin() ? PermissionController.getGroupsToAdmin(forUser) : null;
         for (User user : getUsers())
         {
             boolean add = forUser == null || forUser.isAdmin() || forUser.getId().equals(user.getId());
             if (!add)
             {
-                final Collection<Category> adminGroups = PermissionController.getGroupsToAdmin(forUser);
                 if (adminGroups.size() > 0)
                 {
                     for (Category adminGroup : adminGroups)
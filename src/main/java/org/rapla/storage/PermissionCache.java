@@ -0,0 +1,189 @@
+package org.rapla.storage;
+
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+
+import org.rapla.entities.User;
+import org.rapla.entities.domain.Permission;
+import org.rapla.entities.domain.internal.PermissionImpl;
+import org.rapla.entities.internal.UserImpl;
+
+/**
+ * Caches the transitive group closure of each user and the access decisions of the {@link PermissionController}.
+ * A decision is stored for the group closure of the user, the permission list of the entity and the requested access level or levels,
+ * so entities with equal permission lists share their decisions. The user id is only part of the key if a permission of the list is for a single user.
+ * Only read-only users and entities are cached, so a new version of a user or an entity is evaluated again.
+ * The closures and decisions are dropped when a user or a category changes.
+ */
+final class PermissionCache
+{
+    static final int MAX_DECISIONS = 10000;
+
+    static final class GroupClosure
+    {
+        final User user;
+        final int version;
+        final Set<String> groups;
+        final int hash;
+
+        GroupClosure(User user, int version, Collection<String> groups)
+        {
+            this.user = user;
+            this.version = version;
+            this.groups = Collections.unmodifiableSet(new HashSet<String>(groups));
+            this.hash = groups.hashCode();
+        }
+    }
+
+    static final class DecisionKey
+    {
+        final GroupClosure closure;
+        final String userId;
+        final Collection<Permission> permissions;
+        /** an access level or a constant array of access levels, compared by identity */
+        final Object accessLevels;
+        final int hash;
+
+        DecisionKey(GroupClosure closure, String userId, Collection<Permission> permissions, Object accessLevels)
+        {
+            this.closure = closure;
+            this.userId = userId;
+            this.permissions = permissions;
+            this.accessLevels = accessLevels;
+            this.hash = (closure.hash * 31 + (userId != null ? userId.hashCode() : 0)) * 31 + permissions.hashCode() * 7 + accessLevels.hashCode();
+        }
+
+        @Override
+        public int hashCode()
+        {
+            return hash;
+        }
+
+        @Override
+        public boolean equals(Object obj)
+        {
+            if (!(obj instanceof DecisionKey))
+            {
+                return false;
+            }
+            DecisionKey other = (DecisionKey) obj;
+            if (hash != other.hash || accessLevels != other.accessLevels)
+            {
+                return false;
+            }
+            if (userId == null ? other.userId != null : !userId.equals(other.userId))
+            {
+                return false;
+            }
+            if (closure != other.closure && !closure.groups.equals(other.closure.groups))
+            {
+                return false;
+            }
+            return permissions == other.permissions || permissions.equals(other.permissions);
+        }
+    }
+
+    private final Map<String, GroupClosure> groupClosures = new HashMap<String, GroupClosure>();
+    /** access order, so the decision that was not used for the longest time is removed first */
+    private final Map<DecisionKey, Boolean> decisions = new LinkedHashMap<DecisionKey, Boolean>(16, 0.75f, true)
+    {
+        @Override protected boolean removeEldestEntry(Map.Entry<DecisionKey, Boolean> eldest)
+        {
+            return size() > MAX_DECISIONS;
+        }
+    };
+    private int version;
+
+    /** called when a user or a category is stored or removed */
+    synchronized void invalidateGroups()
+    {
+        version++;
+        groupClosures.clear();
+        decisions.clear();
+    }
+
+    /** returns the ids of the groups of the user and of all their parent groups
+     * @see UserImpl#getGroupsIncludingParents(User) */
+    Collection<String> getGroupsIncludingParents(User user)
+    {
+        final GroupClosure closure = getClosure(user);
+        if (closure == null)
+        {
+            return UserImpl.getGroupsIncludingParents(user);
+        }
+        return closure.groups;
+    }
+
+    private GroupClosure getClosure(User user)
+    {
+        if (!user.isReadOnly())
+        {
+            return null;
+        }
+        final int currentVersion;
+        synchronized (this)
+        {
+            final GroupClosure closure = groupClosures.get(user.getId());
+            if (closure != null && closure.user == user && closure.version == version)
+            {
+                return closure;
+            }
+            currentVersion = version;
+        }
+        // the categories are resolved outside of the lock
+        final GroupClosure closure = new GroupClosure(user, currentVersion, UserImpl.getGroupsIncludingParents(user));
+        synchronized (this)
+        {
+            if (currentVersion == version)
+            {
+                groupClosures.put(user.getId(), closure);
+            }
+        }
+        return closure;
+    }
+
+    /** returns null if the decision for the user can't be cached.
+     * @param permissions the permission list of a read-only entity
+     * @param accessLevels an access level or a constant array of access levels */
+    DecisionKey createKey(User user, Collection<Permission> permissions, Object accessLevels)
+    {
+        final GroupClosure closure = getClosure(user);
+        if (closure == null)
+        {
+            return null;
+        }
+        String userId = null;
+        for (Permission permission : permissions)
+        {
+            if (((PermissionImpl) permission).getUserId() != null)
+            {
+                userId = user.getId();
+                break;
+            }
+        }
+        return new DecisionKey(closure, userId, permissions, accessLevels);
+    }
+
+    synchronized Boolean getDecision(DecisionKey key)
+    {
+        if (key.closure.version != version)
+        {
+            return null;
+        }
+        return decisions.get(key);
+    }
+
+    synchronized void putDecision(DecisionKey key, boolean granted)
+    {
+        if (key.closure.version != version)
+        {
+            return;
+        }
+        decisions.put(key, granted);
+    }
+}
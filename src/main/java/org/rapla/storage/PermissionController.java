@@ -37,12 +37,35 @@ public class PermissionController
 {
     private final Set<PermissionExtension> permissionExtensions;
     StorageOperator operator;
+    private final PermissionCache permissionCache = new PermissionCache();
+    private final boolean decisionsCacheable;
+    private static final AccessLevel[] READ_TYPE_LEVELS = { Permission.READ_TYPE, Permission.CREATE, Permission.ADMIN };
+    private static final AccessLevel[] CREATE_LEVELS = { Permission.CREATE, Permission.ADMIN };
 
     public PermissionController(Set<PermissionExtension> permissionExtensions, StorageOperator operator)
     {
         super();
         this.permissionExtensions = permissionExtensions;
         this.operator = operator;
+        boolean cacheable = true;
+        for (PermissionExtension permissionExtension : permissionExtensions)
+        {
+            cacheable &= permissionExtension.isPermissionListBased();
+        }
+        this.decisionsCacheable = cacheable;
+    }
+
+    /** drops the cached group closures and decisions. Called by the {@link LocalCache} when a user or a category changes.*/
+    void invalidateGroups()
+    {
+        permissionCache.invalidateGroups();
+    }
+
+    /** returns the ids of the groups of the user and of all their parent groups. The result is cached for read-only users.
+     * @see UserImpl#getGroupsIncludingParents(User)*/
+    public Collection<String> getGroupsIncludingParents(User user)
+    {
+        return permissionCache.getGroupsIncludingParents(user);
     }
 
     public static boolean isOwner(Ownable classifiable, User user)
@@ -108,6 +131,43 @@ public class PermissionController
      * Access method
      */
     private boolean hasAccess(Entity entity, User user, Permission.AccessLevel accessLevel)
+    {
+        final PermissionCache.DecisionKey key = createDecisionKey(entity, user, accessLevel);
+        if (key == null)
+        {
+            return hasAccessUncached(entity, user, accessLevel);
+        }
+        final Boolean cached = permissionCache.getDecision(key);
+        if (cached != null)
+        {
+            return cached.booleanValue();
+        }
+        final boolean granted = hasAccessUncached(entity, user, accessLevel);
+        permissionCache.putDecision(key, granted);
+        return granted;
+    }
+
+    /** returns null if the decision can depend on more than the permission list of the entity and the user with its groups */
+    private PermissionCache.DecisionKey createDecisionKey(Entity entity, User user, Permission.AccessLevel accessLevel)
+    {
+        if (!decisionsCacheable || user == null || user.isAdmin() || !entity.isReadOnly() || !(entity instanceof PermissionContainer))
+        {
+            return null;
+        }
+        final Class<? extends Entity> type = entity.getTypeClass();
+        if (type == DynamicType.class || type == User.class || type == Category.class)
+        {
+            return null;
+        }
+        final PermissionContainer container = (PermissionContainer) entity;
+        if (isOwner(container, user))
+        {
+            return null;
+        }
+        return permissionCache.createKey(user, container.getPermissionList(), accessLevel);
+    }
+
+    private boolean hasAccessUncached(Entity entity, User user, Permission.AccessLevel accessLevel)
     {
         for (PermissionExtension permissionExtension : permissionExtensions)
         {
@@ -125,6 +185,10 @@ public class PermissionController
     private boolean hasAccess(Entity entity, User user, final AccessLevel permission, final Date start, final Date end, final Date today,
             final boolean checkOnlyToday)
     {
+        if (start == null && end == null && today == null && !checkOnlyToday)
+        {
+            return hasAccess(entity, user, permission);
+        }
         for (PermissionExtension permissionExtension : permissionExtensions)
         {
             if (!permissionExtension.hasAccess(entity, user, permission, start, end, today, checkOnlyToday))
@@ -254,8 +318,7 @@ public class PermissionController
         }
         if (container instanceof DynamicType)
         {
-            Collection<Permission> permissionList = ((DynamicType)container).getPermissionList();
-            boolean result = matchesAccessLevel(permissionList, user, Permission.READ_TYPE, Permission.CREATE, Permission.ADMIN);
+            boolean result = matchesAccessLevel((DynamicType) container, user, READ_TYPE_LEVELS);
             return result;
         }
         else
@@ -272,8 +335,7 @@ public class PermissionController
 
     public boolean canCreate(DynamicType type, User user)
     {
-        Collection<Permission> permissionList = type.getPermissionList();
-        boolean result = matchesAccessLevel(permissionList, user, Permission.CREATE, Permission.ADMIN);
+        boolean result = matchesAccessLevel(type, user, CREATE_LEVELS);
         return result;
     }
 
@@ -298,7 +360,7 @@ public class PermissionController
 
     public boolean hasPermissionToAllocate(User user, Allocatable a)
     {
-        Collection<String> groups = UserImpl.getGroupsIncludingParents(user);
+        Collection<String> groups = getGroupsIncludingParents(user);
         final ReferenceInfo<User> ownerRef = a.getOwnerRef();
         if ( user != null && ownerRef != null && user.getReference().equals(ownerRef))
         {
@@ -364,7 +426,7 @@ public class PermissionController
         {
             return true;
         }
-        Collection<String> groups = UserImpl.getGroupsIncludingParents(user);
+        Collection<String> groups = getGroupsIncludingParents(user);
 
         Date start = appointment.getStart();
         Date end = appointment.getMaxEnd();
@@ -459,12 +521,33 @@ public class PermissionController
         return true;
     }
 
+    /** the type permissions are checked for every classifiable, so the decisions for read-only types are cached */
+    private boolean matchesAccessLevel(DynamicType type, User user, AccessLevel[] accessLevels)
+    {
+        if (user == null || user.isAdmin())
+            return true;
+        final Collection<Permission> permissions = type.getPermissionList();
+        final PermissionCache.DecisionKey key = type.isReadOnly() ? permissionCache.createKey(user, permissions, accessLevels) : null;
+        if (key == null)
+        {
+            return matchesAccessLevel(permissions, user, accessLevels);
+        }
+        final Boolean cached = permissionCache.getDecision(key);
+        if (cached != null)
+        {
+            return cached.booleanValue();
+        }
+        final boolean granted = matchesAccessLevel(permissions, user, accessLevels);
+        permissionCache.putDecision(key, granted);
+        return granted;
+    }
+
     private boolean matchesAccessLevel(Iterable<? extends Permission> permissions, User user, AccessLevel... accessLevels)
     {
         if (user == null || user.isAdmin())
             return true;
 
-        Collection<String> groups = UserImpl.getGroupsIncludingParents(user);
+        Collection<String> groups = getGroupsIncludingParents(user);
         for (Permission p : permissions)
         {
             for (AccessLevel accessLevel : accessLevels)
@@ -76,6 +76,8 @@ public class UpdateEvent
     private boolean needResourcesRefresh = false;
 
     private TimeInterval invalidateInterval;
+    /** the allocatables of the reservations that were changed in the invalidate interval or null if the interval is invalid for all allocatables */
+    private Set<String> invalidateAllocatableIds;
     private String lastValidated;
     private int timezoneOffset;
 
@@ -159,6 +161,7 @@ public class UpdateEvent
             put(Preferences.class, preferences);
             put(Reservation.class, reservations);
             put(Conflict.class, conflicts);
+            put(ImportExportEntity.class, importExports);
         }
         return listMap;
     }
@@ -377,6 +380,16 @@ public class UpdateEvent
         return invalidateInterval;
     }
 
+    public void setInvalidateAllocatableIds(Set<String> invalidateAllocatableIds)
+    {
+        this.invalidateAllocatableIds = invalidateAllocatableIds;
+    }
+
+    public Set<String> getInvalidateAllocatableIds()
+    {
+        return invalidateAllocatableIds;
+    }
+
     public boolean isNeedResourcesRefresh()
     {
         return needResourcesRefresh;
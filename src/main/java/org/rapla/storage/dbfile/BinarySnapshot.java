@@ -0,0 +1,313 @@
+package org.rapla.storage.dbfile;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.lang.reflect.Field;
+import java.lang.reflect.Modifier;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.rapla.entities.Category;
+import org.rapla.entities.Entity;
+import org.rapla.entities.User;
+import org.rapla.entities.configuration.Preferences;
+import org.rapla.entities.configuration.internal.PreferencesImpl;
+import org.rapla.entities.domain.Allocatable;
+import org.rapla.entities.domain.Reservation;
+import org.rapla.entities.domain.internal.AllocatableImpl;
+import org.rapla.entities.domain.internal.ReservationImpl;
+import org.rapla.entities.dynamictype.DynamicType;
+import org.rapla.entities.dynamictype.internal.DynamicTypeImpl;
+import org.rapla.entities.internal.CategoryImpl;
+import org.rapla.entities.internal.UserImpl;
+import org.rapla.entities.storage.ImportExportEntity;
+import org.rapla.entities.storage.internal.ImportExportEntityImpl;
+import org.rapla.facade.Conflict;
+import org.rapla.facade.internal.ConflictImpl;
+import org.rapla.logger.Logger;
+import org.rapla.rest.JsonParserWrapper;
+
+/**
+ * Binary copy of the data file, that is written on disconnect and loaded instead of parsing the xml on the next connect.
+ * The snapshot stores the length and the modification time of the data file it was written for and is ignored if the data file has changed since.
+ * Layout: magic, format version, schema hash, data file length and modification time, the passwords and then one length prefixed record per entity.
+ * The records contain the json of the entity, the same encoding that is used for the entity history. They are decoded in parallel from a memory mapped file.
+ */
+class BinarySnapshot
+{
+    static final int FORMAT_VERSION = 1;
+    private static final byte[] MAGIC = "RAPLASNP".getBytes(StandardCharsets.US_ASCII);
+    private static final Class[] TYPES = { Category.class, DynamicType.class, User.class, Preferences.class, Allocatable.class, Reservation.class,
+            Conflict.class, ImportExportEntity.class };
+    private static final Class[] IMPLEMENTATIONS = { CategoryImpl.class, DynamicTypeImpl.class, UserImpl.class, PreferencesImpl.class,
+            AllocatableImpl.class, ReservationImpl.class, ConflictImpl.class, ImportExportEntityImpl.class };
+    /** records are only decoded in parallel, if there are more than this */
+    private static final int PARALLEL_THRESHOLD = 1000;
+
+    static class Content
+    {
+        final List<Entity> entities;
+        final Map<String, String> passwords;
+
+        Content(List<Entity> entities, Map<String, String> passwords)
+        {
+            this.entities = entities;
+            this.passwords = passwords;
+        }
+    }
+
+    private final Logger logger;
+    private final File file;
+    private int parallelism = Runtime.getRuntime().availableProcessors();
+
+    BinarySnapshot(Logger logger, File file)
+    {
+        this.logger = logger;
+        this.file = file;
+    }
+
+    File getFile()
+    {
+        return file;
+    }
+
+    void setParallelism(int parallelism)
+    {
+        this.parallelism = parallelism;
+    }
+
+    /** writes the snapshot for the passed data file. The entities must not change while they are written */
+    void write(File dataFile, Collection<? extends Entity> entities, Map<String, String> passwords) throws IOException
+    {
+        final JsonParserWrapper.JsonParser gson = JsonParserWrapper.defaultJson().get();
+        final File newFile = new File(file.getPath() + ".new");
+        try (FileOutputStream fileOut = new FileOutputStream(newFile))
+        {
+            DataOutputStream out = new DataOutputStream(new BufferedOutputStream(fileOut, 1 << 16));
+            out.write(MAGIC);
+            out.writeInt(FORMAT_VERSION);
+            out.writeInt(schemaHash());
+            out.writeLong(dataFile.length());
+            out.writeLong(dataFile.lastModified());
+            out.writeInt(passwords.size());
+            for (Map.Entry<String, String> entry : passwords.entrySet())
+            {
+                writeString(out, entry.getKey());
+                writeString(out, entry.getValue());
+            }
+            out.writeInt(entities.size());
+            for (Entity entity : entities)
+            {
+                out.writeByte(getKind(entity.getTypeClass()));
+                writeString(out, gson.toJson(entity));
+            }
+            out.flush();
+            fileOut.getChannel().force(false);
+        }
+        if (file.exists() && !file.delete())
+        {
+            throw new IOException("Can't replace snapshot " + file);
+        }
+        if (!newFile.renameTo(file))
+        {
+            throw new IOException("Can't rename " + newFile + " to " + file);
+        }
+    }
+
+    /** returns the content of the snapshot or null if there is no snapshot for the current version of the data file */
+    Content read(File dataFile) throws IOException
+    {
+        if (!file.exists())
+        {
+            return null;
+        }
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ))
+        {
+            final ByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            final byte[] magic = new byte[MAGIC.length];
+            if (buffer.remaining() < MAGIC.length + 28)
+            {
+                logger.warn("Ignoring incomplete snapshot " + file);
+                return null;
+            }
+            buffer.get(magic);
+            if (!Arrays.equals(MAGIC, magic))
+            {
+                logger.warn("Ignoring snapshot " + file + ". Unknown file format.");
+                return null;
+            }
+            if (buffer.getInt() != FORMAT_VERSION || buffer.getInt() != schemaHash())
+            {
+                logger.info("Ignoring snapshot " + file + ". It was written by another version.");
+                return null;
+            }
+            if (buffer.getLong() != dataFile.length() || buffer.getLong() != dataFile.lastModified())
+            {
+                logger.info("Ignoring snapshot " + file + ". The data file has changed since it was written.");
+                return null;
+            }
+            final int passwordCount = buffer.getInt();
+            Map<String, String> passwords = new LinkedHashMap<String, String>();
+            for (int i = 0; i < passwordCount; i++)
+            {
+                final String id = readString(buffer);
+                passwords.put(id, readString(buffer));
+            }
+            // only the positions are read here, the records are decoded in parallel
+            final int count = buffer.getInt();
+            final byte[] kinds = new byte[count];
+            final int[] positions = new int[count];
+            for (int i = 0; i < count; i++)
+            {
+                kinds[i] = buffer.get();
+                positions[i] = buffer.position();
+                final int length = buffer.getInt();
+                buffer.position(buffer.position() + length);
+            }
+            final List<Entity> entities = decode(buffer, kinds, positions);
+            return new Content(entities, passwords);
+        }
+        catch (RuntimeException ex)
+        {
+            throw new IOException("Can't read snapshot " + file + ": " + ex.getMessage(), ex);
+        }
+    }
+
+    private List<Entity> decode(final ByteBuffer buffer, final byte[] kinds, final int[] positions) throws IOException
+    {
+        final int count = kinds.length;
+        final int threadCount = Math.min(parallelism, count / PARALLEL_THRESHOLD + 1);
+        if (threadCount <= 1)
+        {
+            return decode(buffer, kinds, positions, 0, count);
+        }
+        final int chunkSize = (count + threadCount - 1) / threadCount;
+        List<Callable<List<Entity>>> chunks = new ArrayList<Callable<List<Entity>>>();
+        for (int start = 0; start < count; start += chunkSize)
+        {
+            final int from = start;
+            final int to = Math.min(count, start + chunkSize);
+            chunks.add(() -> decode(buffer.duplicate(), kinds, positions, from, to));
+        }
+        ExecutorService executor = Executors.newFixedThreadPool(threadCount, r -> {
+            Thread thread = new Thread(r, "rapla-snapshot");
+            thread.setDaemon(true);
+            return thread;
+        });
+        try
+        {
+            List<Entity> result = new ArrayList<Entity>(count);
+            for (Future<List<Entity>> future : executor.invokeAll(chunks))
+            {
+                result.addAll(future.get());
+            }
+            return result;
+        }
+        catch (InterruptedException e)
+        {
+            Thread.currentThread().interrupt();
+            throw new IOException("Reading snapshot interrupted", e);
+        }
+        catch (ExecutionException e)
+        {
+            final Throwable cause = e.getCause();
+            if (cause instanceof IOException)
+            {
+                throw (IOException) cause;
+            }
+            throw new IOException(cause.getMessage(), cause);
+        }
+        finally
+        {
+            executor.shutdownNow();
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    private List<Entity> decode(ByteBuffer buffer, byte[] kinds, int[] positions, int from, int to) throws IOException
+    {
+        final JsonParserWrapper.JsonParser gson = JsonParserWrapper.defaultJson().get();
+        List<Entity> result = new ArrayList<Entity>(to - from);
+        for (int i = from; i < to; i++)
+        {
+            final int kind = kinds[i];
+            if (kind < 0 || kind >= IMPLEMENTATIONS.length)
+            {
+                throw new IOException("Unknown record type " + kind + " in snapshot " + file);
+            }
+            buffer.position(positions[i]);
+            final String json = readString(buffer);
+            result.add((Entity) gson.fromJson(json, IMPLEMENTATIONS[kind]));
+        }
+        return result;
+    }
+
+    private static int getKind(Class<? extends Entity> typeClass)
+    {
+        for (int i = 0; i < TYPES.length; i++)
+        {
+            if (TYPES[i] == typeClass)
+            {
+                return i;
+            }
+        }
+        throw new IllegalArgumentException(typeClass + " can't be stored in a snapshot");
+    }
+
+    /** changes when a field of a stored class is added, removed or changes its type, so snapshots of other versions are ignored */
+    static int schemaHash()
+    {
+        StringBuilder schema = new StringBuilder();
+        for (Class implementation : IMPLEMENTATIONS)
+        {
+            for (Class c = implementation; c != null && c != Object.class; c = c.getSuperclass())
+            {
+                List<String> fields = new ArrayList<String>();
+                for (Field field : c.getDeclaredFields())
+                {
+                    final int modifiers = field.getModifiers();
+                    if (!Modifier.isStatic(modifiers) && !Modifier.isTransient(modifiers))
+                    {
+                        fields.add(field.getGenericType().getTypeName() + " " + field.getName());
+                    }
+                }
+                // the order of the declared fields is not specified
+                Collections.sort(fields);
+                schema.append(c.getName()).append(fields);
+            }
+        }
+        return schema.toString().hashCode();
+    }
+
+    private static void writeString(DataOutputStream out, String value) throws IOException
+    {
+        final byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+
+    private static String readString(ByteBuffer buffer)
+    {
+        final int length = buffer.getInt();
+        final byte[] bytes = new byte[length];
+        buffer.get(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+}
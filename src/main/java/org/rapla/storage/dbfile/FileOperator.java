@@ -45,9 +45,11 @@ import org.rapla.components.util.xml.RaplaSAXHandler;
 import org.rapla.components.util.xml.XMLReaderAdapter;
 import org.rapla.entities.Category;
 import org.rapla.entities.Entity;
+import org.rapla.entities.LastChangedTimestamp;
 import org.rapla.entities.User;
 import org.rapla.entities.configuration.Preferences;
 import org.rapla.entities.configuration.RaplaConfiguration;
+import org.rapla.entities.configuration.internal.PreferencesImpl;
 import org.rapla.entities.domain.Permission;
 import org.rapla.entities.domain.PermissionContainer;
 import org.rapla.entities.domain.permission.PermissionExtension;
@@ -55,9 +57,12 @@ import org.rapla.entities.dynamictype.Attribute;
 import org.rapla.entities.dynamictype.AttributeType;
 import org.rapla.entities.dynamictype.Classifiable;
 import org.rapla.entities.dynamictype.Classification;
+import org.rapla.entities.dynamictype.DynamicType;
+import org.rapla.entities.dynamictype.internal.DynamicTypeImpl;
 import org.rapla.entities.extensionpoints.FunctionFactory;
 import org.rapla.entities.internal.CategoryImpl;
 import org.rapla.entities.internal.ModifiableTimestamp;
+import org.rapla.entities.storage.EntityReferencer;
 import org.rapla.entities.storage.ImportExportEntity;
 import org.rapla.entities.storage.RefEntity;
 import org.rapla.entities.storage.ReferenceInfo;
@@ -155,6 +160,13 @@ final public class FileOperator extends LocalAbstractCachableOperator
 
     private final Map<ImportExportMapKey, Collection<ImportExportEntity>> importExportEntities = new LinkedHashMap<>();
 
+    private boolean journalEnabled = false;
+    private int journalCompactSize = 1000;
+    private long journalSyncInterval = 1000;
+    private UpdateJournal journal;
+    private boolean snapshotEnabled = false;
+    private BinarySnapshot snapshot;
+
     public FileOperator(Logger logger, RaplaResources i18n, RaplaLocale raplaLocale, CommandScheduler scheduler,
             Map<String, FunctionFactory> functionFactoryMap, @Named(ServerService.ENV_RAPLAFILE_ID) String resolvedPath,
             Set<PermissionExtension> permissionExtensions) throws RaplaInitializationException
@@ -182,6 +194,59 @@ final public class FileOperator extends LocalAbstractCachableOperator
         return storageURL.toString();
     }
 
+    /** if enabled, a save only appends the change to a journal next to the data file. The data file is rewritten when the journal is compacted. Must be set before connect */
+    public void setJournalEnabled(boolean journalEnabled)
+    {
+        if (isConnected())
+        {
+            throw new IllegalStateException("Journal can only be changed before connect");
+        }
+        this.journalEnabled = journalEnabled;
+    }
+
+    public boolean isJournalEnabled()
+    {
+        return journalEnabled;
+    }
+
+    /** number of journal records, after which the data file is rewritten in the background */
+    public void setJournalCompactSize(int journalCompactSize)
+    {
+        this.journalCompactSize = journalCompactSize;
+    }
+
+    /** the appended records are forced to disk in this interval. With 0 each record is forced to disk when it is appended */
+    public void setJournalSyncInterval(long journalSyncInterval)
+    {
+        this.journalSyncInterval = journalSyncInterval;
+    }
+
+    File getJournalFile()
+    {
+        return new File(new File(storageURL).getPath() + ".journal");
+    }
+
+    /** if enabled, a binary snapshot of the data is written next to the data file on disconnect and loaded on the next connect, if the data file has not changed since.
+     * Only use it with a {@link FileIO} that writes to the data file. Must be set before connect */
+    public void setSnapshotEnabled(boolean snapshotEnabled)
+    {
+        if (isConnected())
+        {
+            throw new IllegalStateException("Snapshot can only be changed before connect");
+        }
+        this.snapshotEnabled = snapshotEnabled;
+    }
+
+    public boolean isSnapshotEnabled()
+    {
+        return snapshotEnabled;
+    }
+
+    File getSnapshotFile()
+    {
+        return new File(new File(storageURL).getPath() + ".snapshot");
+    }
+
     public boolean supportsActiveMonitoring()
     {
         return false;
@@ -203,11 +268,18 @@ final public class FileOperator extends LocalAbstractCachableOperator
             getLogger().info("Connecting: " + getURL());
             cache.clearAll();
             importExportEntities.clear();
+            journal = journalEnabled ? new UpdateJournal(getLogger(), getJournalFile()) : null;
+            snapshot = snapshotEnabled ? new BinarySnapshot(getLogger(), getSnapshotFile()) : null;
             addInternalTypes(cache);
             loadData(cache);
             changeStatus(InitStatus.Loaded);
             initIndizes();
             changeStatus(InitStatus.Connected);
+            if (journal != null)
+            {
+                final long period = journalSyncInterval > 0 ? journalSyncInterval : 1000;
+                scheduleConnectedTasks(() -> maintainJournal(), period, period);
+            }
 
         }
         /*
@@ -230,7 +302,35 @@ final public class FileOperator extends LocalAbstractCachableOperator
     @Override
     final public void disconnect() throws RaplaException
     {
+        if (journal != null && isConnected())
+        {
+            try
+            {
+                compactJournal();
+            }
+            catch (RaplaException ex)
+            {
+                getLogger().error("Can't write data file on disconnect. Changes remain in the journal " + journal.getFile() + ": " + ex.getMessage(), ex);
+            }
+        }
+        if (snapshot != null && isConnected())
+        {
+            try
+            {
+                writeSnapshot();
+            }
+            catch (RaplaException ex)
+            {
+                getLogger().error(ex.getMessage(), ex);
+            }
+        }
         super.disconnect();
+        snapshot = null;
+        if (journal != null)
+        {
+            journal.close();
+            journal = null;
+        }
         importExportEntities.clear();
     }
 
@@ -265,16 +365,21 @@ final public class FileOperator extends LocalAbstractCachableOperator
         RaplaDefaultXMLContext inputContext = new IOContext().createInputContext(logger, raplaLocale, i18n, entityStore, this, superCategory);
         RaplaMainReader contentHandler = new RaplaMainReader(inputContext);
         boolean isLowerThen1_2 = false;
+        boolean isDefaultSystem = false;
         try
         {
-            parseData(contentHandler);
-            isLowerThen1_2 = inputContext.lookup(RaplaMainReader.VERSION) < 1.2;
+            if (!readSnapshot(entityStore))
+            {
+                parseData(contentHandler);
+                isLowerThen1_2 = inputContext.lookup(RaplaMainReader.VERSION) < 1.2;
+            }
         }
         catch (FileNotFoundException ex)
         {
             getLogger().warn("Data file not found " + getURL() + " creating default system.");
             createDefaultSystem(entityStore);
             isLowerThen1_2 = false;
+            isDefaultSystem = true;
         }
         catch (IOException ex)
         {
@@ -340,14 +445,39 @@ final public class FileOperator extends LocalAbstractCachableOperator
             // contextualize all Entities
             if (getLogger().isDebugEnabled())
                 getLogger().debug("Entities contextualized");
-            // init history
+            Map<ReferenceInfo, Entity> loaded = new LinkedHashMap<>();
             for (Entity entity : new IterableChain<>(list, migratedTemplates))
+            {
+                loaded.put(entity.getReference(), entity);
+            }
+            if (journal != null && !isDefaultSystem)
+            {
+                replayJournal(loaded, lastUpdated);
+            }
+            // init history
+            for (Entity entity : loaded.values())
             {
                 if(EntityHistory.isSupportedEntity(entity.getTypeClass()))
                 {
                     history.addHistoryEntry(entity, lastUpdated, false);
                 }
             }
+            if (journal != null)
+            {
+                if (isDefaultSystem)
+                {
+                    // the journal needs a data file with the same ids
+                    saveData(cache, null, includeIds);
+                }
+                try
+                {
+                    journal.open();
+                }
+                catch (IOException ex)
+                {
+                    throw new RaplaException("Can't open journal " + journal.getFile() + ": " + ex.getMessage(), ex);
+                }
+            }
         }
         catch (RaplaException ex)
         {
@@ -355,6 +485,103 @@ final public class FileOperator extends LocalAbstractCachableOperator
         }
     }
 
+    /** puts the entities of the snapshot into the store. Returns false if there is no snapshot for the current data file */
+    private boolean readSnapshot(EntityStore entityStore)
+    {
+        final File dataFile = new File(storageURL);
+        if (snapshot == null || !dataFile.exists())
+        {
+            return false;
+        }
+        final long start = System.currentTimeMillis();
+        final BinarySnapshot.Content content;
+        try
+        {
+            content = snapshot.read(dataFile);
+        }
+        catch (IOException ex)
+        {
+            getLogger().warn(ex.getMessage() + " Reading data file instead.");
+            return false;
+        }
+        if (content == null)
+        {
+            return false;
+        }
+        for (Entity entity : content.entities)
+        {
+            entityStore.put(entity);
+        }
+        // the xml readers resolve against the store while parsing, so the following steps expect resolved entities
+        for (Entity entity : content.entities)
+        {
+            ((EntityReferencer) entity).setResolver(entityStore);
+        }
+        for (Map.Entry<String, String> entry : content.passwords.entrySet())
+        {
+            entityStore.putPassword(new ReferenceInfo<User>(entry.getKey(), User.class), entry.getValue());
+        }
+        getLogger().info("Loaded " + content.entities.size() + " entities from snapshot " + snapshot.getFile() + " in " + (System.currentTimeMillis() - start) + " ms");
+        return true;
+    }
+
+    /** writes the snapshot for the current data file. Changes that are only in the journal are not written */
+    private void writeSnapshot() throws RaplaException
+    {
+        final Lock commitLock = commitLock();
+        try
+        {
+            if (journal != null && journal.size() > 0)
+            {
+                return;
+            }
+            List<Entity> entities = new ArrayList<>(CategoryImpl.getRecursive(cache.getSuperCategory()));
+            for (DynamicType type : cache.getDynamicTypes())
+            {
+                if (!((DynamicTypeImpl) type).isInternal())
+                {
+                    entities.add(type);
+                }
+            }
+            final PreferencesImpl systemPreferences = cache.getPreferencesForUserId(null);
+            if (systemPreferences != null)
+            {
+                entities.add(systemPreferences);
+            }
+            Map<String, String> passwords = new LinkedHashMap<>();
+            for (User user : cache.getUsers())
+            {
+                entities.add(user);
+                final PreferencesImpl preferences = cache.getPreferencesForUserId(user.getId());
+                if (preferences != null)
+                {
+                    entities.add(preferences);
+                }
+                final String password = cache.getPassword(user.getReference());
+                if (password != null)
+                {
+                    passwords.put(user.getId(), password);
+                }
+            }
+            entities.addAll(cache.getAllocatables());
+            entities.addAll(cache.getReservations());
+            entities.addAll(cache.getDisabledConflicts());
+            for (Collection<ImportExportEntity> importExports : importExportEntities.values())
+            {
+                entities.addAll(importExports);
+            }
+            snapshot.write(new File(storageURL), entities, passwords);
+        }
+        catch (IOException ex)
+        {
+            throw new RaplaException("Can't write snapshot " + snapshot.getFile() + ": " + ex.getMessage(), ex);
+        }
+        finally
+        {
+            unlock(commitLock);
+        }
+    }
+
     private void migrateSpecialAttributes(Collection<Entity> list)
     {
         for (Entity entity : list)
@@ -439,53 +666,236 @@ final public class FileOperator extends LocalAbstractCachableOperator
 
     public void dispatch(final UpdateEvent evt) throws RaplaException
     {
+        final Lock commitLock = commitLock();
+        try
+        {
+            final Lock writeLock = writeLock();
+            try
+            {
+                updateCache(evt);
+            }
+            finally
+            {
+                unlock(writeLock);
+            }
+            // writing the file only needs the commit lock, so readers can access the cache in the meantime
+            if (journal != null)
+            {
+                appendToJournal(evt);
+            }
+            else
+            {
+                saveData(cache, null, includeIds);
+            }
+        }
+        finally
+        {
+            unlock(commitLock);
+        }
+    }
+
+    private void updateCache(final UpdateEvent evt) throws RaplaException
+    {
+        preprocessEventStorage(evt);
+        Date since = getCurrentTimestamp();//evt.getLastValidated();
+        updateHistory(evt);
+        Date until = getCurrentTimestamp();
+        // this since is for the server and used to check if an entity is new created in this write transaction so set it to the current timestamp
+        // the since for the client will be used later when requesting the update event
+        // call of update must be first to update the cache.
+        // then saveData() saves all the data in the cache
+        final Collection<ReferenceInfo> removeIds = evt.getRemoveIds();
+        final List<PreferencePatch> preferencePatches = evt.getPreferencePatches();
+        final Collection<Entity> storeObjects = new ArrayList<>(evt.getStoreObjects());
+        updateImportExportCache(storeObjects, removeIds);
+        refresh(since, until, storeObjects, preferencePatches, removeIds);
+    }
+
+    /** removes the import export entities from the passed collections and updates the import export cache with them */
+    private void updateImportExportCache(Collection<Entity> storeObjects, Collection<ReferenceInfo> removeIds)
+    {
+        for (Iterator<Entity> iterator = storeObjects.iterator(); iterator.hasNext();)
+        {
+            Entity entity = iterator.next();
+            if(entity instanceof ImportExportEntity)
+            {
+                iterator.remove();
+                ImportExportEntity cast = (ImportExportEntity) entity;
+                insertIntoImportExportCache(cast);
+            }
+        }
+        Set<ReferenceInfo<ImportExportEntity>> removedImports = new HashSet<ReferenceInfo<ImportExportEntity>>();
+        for (Iterator<ReferenceInfo> iterator = removeIds.iterator(); iterator.hasNext();)
+        {
+            ReferenceInfo referenceInfo = iterator.next();
+            if(referenceInfo.getType() == ImportExportEntity.class)
+            {
+                iterator.remove();
+                removedImports.add( referenceInfo);
+            }
+        }
+        removeFromImportExportCache(removedImports);
+    }
 
-        final Lock writeLock = writeLock();
+    private void appendToJournal(UpdateEvent evt) throws RaplaException
+    {
+        UpdateJournal.Record record = new UpdateJournal.Record();
+        record.event = evt;
+        // passwords are not part of the user entity
+        record.passwords = new LinkedHashMap<>();
+        for (Entity entity : evt.getStoreObjects())
+        {
+            if (entity.getTypeClass() == User.class)
+            {
+                final ReferenceInfo<User> id = ((User) entity).getReference();
+                final String password = cache.getPassword(id);
+                if (password != null)
+                {
+                    record.passwords.put(id.getId(), password);
+                }
+            }
+        }
         try
         {
-            preprocessEventStorage(evt);
-            Date since = getCurrentTimestamp();//evt.getLastValidated();
-            updateHistory(evt);
-            Date until = getCurrentTimestamp();
-            // this since is for the server and used to check if an entity is new created in this write transaction so set it to the current timestamp
-            // the since for the client will be used later when requesting the update event
-            // call of update must be first to update the cache.
-            // then saveData() saves all the data in the cache
-            final Collection<ReferenceInfo> removeIds = evt.getRemoveIds();
-            final List<PreferencePatch> preferencePatches = evt.getPreferencePatches();
-            final Collection<Entity> storeObjects = new ArrayList<>(evt.getStoreObjects());
-            for (Iterator<Entity> iterator = storeObjects.iterator(); iterator.hasNext();)
+            journal.append(record);
+            if (journalSyncInterval <= 0)
             {
-                Entity entity = iterator.next();
-                if(entity instanceof ImportExportEntity)
+                journal.sync();
+            }
+        }
+        catch (IOException ex)
+        {
+            throw new RaplaException("Can't write journal " + journal.getFile() + ": " + ex.getMessage(), ex);
+        }
+    }
+
+    /** periodically forces the journal to disk and compacts it in the background, when it has reached the compact size */
+    private void maintainJournal() throws RaplaException
+    {
+        final UpdateJournal journal = this.journal;
+        if (journal == null)
+        {
+            return;
+        }
+        try
+        {
+            journal.sync();
+        }
+        catch (IOException ex)
+        {
+            throw new RaplaException("Can't write journal " + journal.getFile() + ": " + ex.getMessage(), ex);
+        }
+        if (journal.size() >= journalCompactSize)
+        {
+            compactJournal();
+        }
+    }
+
+    /** writes the data file and removes the records from the journal */
+    private void compactJournal() throws RaplaException
+    {
+        final Lock commitLock = commitLock();
+        try
+        {
+            if (journal != null && journal.size() > 0)
+            {
+                getLogger().info("Compacting " + journal.size() + " journal records into " + getURL());
+                saveData(cache, null, includeIds);
+            }
+        }
+        finally
+        {
+            unlock(commitLock);
+        }
+    }
+
+    /**
+     * applies the journal records to the loaded entities. Called before the indizes are initialized.
+     * The replay is idempotent, because the records are replayed again if the server stopped after the data file was written but before the journal was cleared.
+     * So removes of missing entities and changes, that are not newer than the loaded version, are skipped.
+     */
+    private void replayJournal(Map<ReferenceInfo, Entity> loaded, Date lastUpdated) throws RaplaException
+    {
+        final List<UpdateJournal.Record> records;
+        try
+        {
+            records = journal.read();
+        }
+        catch (IOException ex)
+        {
+            throw new RaplaException("Can't read journal " + journal.getFile() + ": " + ex.getMessage(), ex);
+        }
+        for (UpdateJournal.Record record : records)
+        {
+            final UpdateEvent evt = record.event;
+            final Collection<Entity> storeObjects = new ArrayList<>();
+            for (Entity entity : evt.getStoreObjects())
+            {
+                if (!(entity instanceof LastChangedTimestamp) || !isApplied(loaded.get(entity.getReference()), ((LastChangedTimestamp) entity).getLastChanged()))
                 {
-                    iterator.remove();
-                    ImportExportEntity cast = (ImportExportEntity) entity;
-                    insertIntoImportExportCache(cast);
+                    storeObjects.add(entity);
                 }
             }
-            Set<ReferenceInfo<ImportExportEntity>> removedImports = new HashSet<ReferenceInfo<ImportExportEntity>>();
-            for (Iterator<ReferenceInfo> iterator = removeIds.iterator(); iterator.hasNext();)
+            final Collection<ReferenceInfo> removeIds = new ArrayList<>();
+            for (ReferenceInfo id : evt.getRemoveIds())
             {
-                ReferenceInfo referenceInfo = iterator.next();
-                if(referenceInfo.getType() == ImportExportEntity.class)
+                if (loaded.containsKey(id))
                 {
-                    iterator.remove();
-                    removedImports.add( referenceInfo);
+                    removeIds.add(id);
+                }
+            }
+            final List<PreferencePatch> patches = new ArrayList<>();
+            for (PreferencePatch patch : evt.getPreferencePatches())
+            {
+                if (!isApplied(loaded.get(patch.getReference()), patch.getLastChanged()))
+                {
+                    patches.add(patch);
+                }
+            }
+            EntityStore store = new EntityStore(this);
+            store.addAll(evt.getStoreObjects());
+            for (EntityReferencer references : evt.getEntityReferences())
+            {
+                references.setResolver(store);
+            }
+            updateImportExportCache(storeObjects, removeIds);
+            update(lastUpdated, lastUpdated, storeObjects, patches, removeIds);
+            for (Entity entity : storeObjects)
+            {
+                ((RefEntity) entity).setReadOnly();
+                loaded.put(entity.getReference(), entity);
+            }
+            for (ReferenceInfo id : removeIds)
+            {
+                loaded.remove(id);
+            }
+            if (record.passwords != null)
+            {
+                for (Map.Entry<String, String> entry : record.passwords.entrySet())
+                {
+                    cache.putPassword(new ReferenceInfo<User>(entry.getKey(), User.class), entry.getValue());
                 }
             }
-            removeFromImportExportCache(removedImports);
-            refresh(since, until, storeObjects, preferencePatches, removeIds);
-            saveData(cache, null, includeIds);
         }
-        finally
+        if (!records.isEmpty())
         {
-            unlock(writeLock);
+            getLogger().info("Replayed " + records.size() + " changes from journal " + journal.getFile());
         }
     }
 
 
 
+    /** returns true, if the loaded entity contains the change, because it is not older */
+    private static boolean isApplied(Entity loaded, Date changed)
+    {
+        if (!(loaded instanceof LastChangedTimestamp))
+        {
+            return false;
+        }
+        final Date loadedChanged = ((LastChangedTimestamp) loaded).getLastChanged();
+        return loadedChanged != null && changed != null && !loadedChanged.before(changed);
+    }
+
     static class ImportExportMapKey
     {
         private final String system;
@@ -602,14 +1012,14 @@ final public class FileOperator extends LocalAbstractCachableOperator
 
     synchronized final public void saveData() throws RaplaException
     {
-        final Lock writeLock = writeLock();
+        final Lock commitLock = commitLock();
         try
         {
             saveData(cache, null, includeIds);
         }
         finally
         {
-            unlock(writeLock);
+            unlock(commitLock);
         }
     }
 
@@ -638,6 +1048,7 @@ final public class FileOperator extends LocalAbstractCachableOperator
                     }
                 }
             }, storageURL);
+            clearJournal();
         }
         catch (IOException e)
         {
@@ -645,6 +1056,22 @@ final public class FileOperator extends LocalAbstractCachableOperator
         }
     }
 
+    /** the data file now contains all changes of the journal */
+    private void clearJournal() throws IOException
+    {
+        if (journal != null)
+        {
+            journal.clear();
+            return;
+        }
+        // a journal of a previous session must not be replayed on the new data
+        final File journalFile = getJournalFile();
+        if (journalFile.exists() && !journalFile.delete())
+        {
+            throw new IOException("Can't delete journal " + journalFile);
+        }
+    }
+
     /**
      * Override for custom read
      */
@@ -0,0 +1,184 @@
+package org.rapla.storage.dbfile;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+import org.rapla.logger.Logger;
+import org.rapla.rest.JsonParserWrapper;
+import org.rapla.storage.UpdateEvent;
+
+/**
+ * Write ahead journal of the {@link FileOperator}. Each dispatched {@link UpdateEvent} is appended as one json line,
+ * so a save only writes the changed entities. The records are replayed after the data file is loaded and removed when
+ * the data file is rewritten.
+ * Appended records are passed to the operating system immediately, but only forced to the disk when {@link #sync()} is called.
+ */
+class UpdateJournal
+{
+    static class Record
+    {
+        UpdateEvent event;
+        Map<String, String> passwords;
+    }
+
+    private final Logger logger;
+    private final File file;
+    private final JsonParserWrapper.JsonParser gson;
+    private FileOutputStream out;
+    private long validLength;
+    private int size;
+    private boolean unsynced;
+
+    UpdateJournal(Logger logger, File file)
+    {
+        this.logger = logger;
+        this.file = file;
+        this.gson = JsonParserWrapper.defaultJson().get();
+    }
+
+    File getFile()
+    {
+        return file;
+    }
+
+    /** reads all records. A last record, that was not completely written, is ignored and removed when the journal is opened */
+    synchronized List<Record> read() throws IOException
+    {
+        List<Record> records = new ArrayList<Record>();
+        validLength = 0;
+        if (!file.exists())
+        {
+            return records;
+        }
+        try (InputStream in = new BufferedInputStream(new FileInputStream(file)))
+        {
+            ByteArrayOutputStream line = new ByteArrayOutputStream();
+            long position = 0;
+            int lineNumber = 0;
+            int b;
+            while ((b = in.read()) != -1)
+            {
+                position++;
+                if (b != '\n')
+                {
+                    line.write(b);
+                    continue;
+                }
+                lineNumber++;
+                final String json = new String(line.toByteArray(), StandardCharsets.UTF_8);
+                line.reset();
+                try
+                {
+                    records.add(gson.fromJson(json, Record.class));
+                }
+                catch (RuntimeException ex)
+                {
+                    throw new IOException("Journal " + file + " is corrupt at line " + lineNumber + ": " + ex.getMessage(), ex);
+                }
+                validLength = position;
+            }
+            if (line.size() > 0)
+            {
+                logger.warn("Ignoring incomplete last record in journal " + file);
+            }
+        }
+        size = records.size();
+        return records;
+    }
+
+    /** opens the journal for appending. Call {@link #read()} before, so an incomplete last record is removed */
+    synchronized void open() throws IOException
+    {
+        if (out != null)
+        {
+            return;
+        }
+        File parentFile = file.getParentFile();
+        if (parentFile != null && !parentFile.exists())
+        {
+            parentFile.mkdirs();
+        }
+        if (file.exists() && file.length() > validLength)
+        {
+            try (RandomAccessFile raf = new RandomAccessFile(file, "rw"))
+            {
+                raf.setLength(validLength);
+            }
+        }
+        out = new FileOutputStream(file, true);
+    }
+
+    synchronized void append(Record record) throws IOException
+    {
+        if (out == null)
+        {
+            throw new IOException("Journal " + file + " is not open");
+        }
+        final byte[] bytes = (gson.toJson(record) + "\n").getBytes(StandardCharsets.UTF_8);
+        out.write(bytes);
+        validLength += bytes.length;
+        size++;
+        unsynced = true;
+    }
+
+    /** forces the appended records to the disk */
+    synchronized void sync() throws IOException
+    {
+        if (out != null && unsynced)
+        {
+            out.getChannel().force(false);
+            unsynced = false;
+        }
+    }
+
+    /** number of records since the data file was written */
+    synchronized int size()
+    {
+        return size;
+    }
+
+    /** removes all records, because the data file contains them */
+    synchronized void clear() throws IOException
+    {
+        if (out != null)
+        {
+            out.getChannel().truncate(0);
+            out.getChannel().force(true);
+        }
+        else if (file.exists() && !file.delete())
+        {
+            throw new IOException("Can't delete journal " + file);
+        }
+        validLength = 0;
+        size = 0;
+        unsynced = false;
+    }
+
+    synchronized void close()
+    {
+        if (out == null)
+        {
+            return;
+        }
+        try
+        {
+            sync();
+            out.close();
+        }
+        catch (IOException ex)
+        {
+            logger.error("Can't close journal " + file + ": " + ex.getMessage(), ex);
+        }
+        out = null;
+    }
+}
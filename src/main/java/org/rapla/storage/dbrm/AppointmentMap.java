@@ -1,24 +1,43 @@
 package org.rapla.storage.dbrm;
 
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collection;
+import java.util.HashMap;
 import java.util.LinkedHashMap;
 import java.util.LinkedHashSet;
+import java.util.List;
 import java.util.Map;
 import java.util.Set;
 
 import org.rapla.components.util.Assert;
 import org.rapla.entities.domain.Allocatable;
 import org.rapla.entities.domain.Appointment;
-import org.rapla.entities.domain.Reservation;
 import org.rapla.entities.domain.internal.ReservationImpl;
 import org.rapla.entities.dynamictype.ClassificationFilter;
 import org.rapla.entities.storage.EntityResolver;
 import org.rapla.entities.storage.ReferenceInfo;
 
+/**
+ * Result of a remote appointment query. The appointments of each allocatable are not transferred as id strings but as indexes into
+ * the appointments of the transferred reservations, counted in the order of the reservations and their appointments.
+ * So each allocatable id is transferred only once and the result can be rebuilt without a map of all appointment ids.
+ * Clients request the format with {@link RemoteStorage.QueryAppointments#getFormat()}, so older clients still get the map of appointment ids
+ * and the result of older servers, that only send the map, can be read.
+ */
 public class AppointmentMap
 {
-    private Set<ReservationImpl> reservations;
+    /** the map of allocatable ids to appointment ids */
+    public static final int FORMAT_APPOINTMENT_IDS = 0;
+    /** the allocatable ids with the indexes of their appointments */
+    public static final int FORMAT_APPOINTMENT_INDEXES = 1;
+
+    private List<ReservationImpl> reservations;
     private Map<String, Set<String>> allocatableIdToAppointmentIds;
+    private String[] allocatableIds;
+    /** number of appointments of each allocatable in {@link #appointmentIndexes} */
+    private int[] appointmentCounts;
+    private int[] appointmentIndexes;
     private transient EntityResolver resolver;
 
     public AppointmentMap()
@@ -37,9 +56,26 @@ public class AppointmentMap
     }
 
     public AppointmentMap(Map<Allocatable, Collection<Appointment>> map)
+    {
+        this(map, FORMAT_APPOINTMENT_INDEXES);
+    }
+
+    public AppointmentMap(Map<Allocatable, Collection<Appointment>> map, int format)
+    {
+        if (format == FORMAT_APPOINTMENT_IDS)
+        {
+            initAppointmentIds(map);
+        }
+        else
+        {
+            initAppointmentIndexes(map);
+        }
+    }
+
+    private void initAppointmentIds(Map<Allocatable, Collection<Appointment>> map)
     {
         this.allocatableIdToAppointmentIds = new LinkedHashMap<>();
-        this.reservations = new LinkedHashSet<>();
+        final Set<ReservationImpl> reservations = new LinkedHashSet<>();
         for (Map.Entry<Allocatable, Collection<Appointment>> entry : map.entrySet())
         {
             final Allocatable key = entry.getKey();
@@ -51,62 +87,148 @@ public class AppointmentMap
                 ids = new LinkedHashSet<>();
                 allocatableIdToAppointmentIds.put(allocatableId, ids);
             }
-            final Collection<Appointment> value = entry.getValue();
-            for (Appointment app : value)
+            for (Appointment app : entry.getValue())
             {
                 reservations.add((ReservationImpl) app.getReservation());
                 ids.add(app.getId());
             }
         }
+        this.reservations = new ArrayList<>(reservations);
+    }
+
+    private void initAppointmentIndexes(Map<Allocatable, Collection<Appointment>> map)
+    {
+        this.reservations = new ArrayList<>();
+        this.allocatableIds = new String[map.size()];
+        this.appointmentCounts = new int[map.size()];
+        Map<String, Integer> appointmentIdToIndex = new HashMap<>();
+        List<Integer> indexes = new ArrayList<>();
+        int allocatableIndex = 0;
+        for (Map.Entry<Allocatable, Collection<Appointment>> entry : map.entrySet())
+        {
+            final Allocatable key = entry.getKey();
+            Assert.notNull( key);
+            allocatableIds[allocatableIndex] = key.getId();
+            final Collection<Appointment> value = entry.getValue();
+            final int start = indexes.size();
+            for (Appointment app : value)
+            {
+                Integer index = appointmentIdToIndex.get(app.getId());
+                if (index == null)
+                {
+                    final ReservationImpl reservation = (ReservationImpl) app.getReservation();
+                    reservations.add(reservation);
+                    for (Appointment reservationApp : reservation.getAppointments())
+                    {
+                        appointmentIdToIndex.put(reservationApp.getId(), appointmentIdToIndex.size());
+                    }
+                    index = appointmentIdToIndex.get(app.getId());
+                    Assert.notNull(index);
+                }
+                indexes.add(index);
+            }
+            appointmentCounts[allocatableIndex] = indexes.size() - start;
+            allocatableIndex++;
+        }
+        this.appointmentIndexes = new int[indexes.size()];
+        for (int i = 0; i < appointmentIndexes.length; i++)
+        {
+            appointmentIndexes[i] = indexes.get(i);
+        }
     }
 
     public Map<Allocatable, Collection<Appointment>> getResult(ClassificationFilter[] filters)
     {
-        Map<String, Appointment> appointmentIdToAppointment = new LinkedHashMap<>();
+        if (allocatableIdToAppointmentIds != null)
+        {
+            return getResultFromAppointmentIds(filters);
+        }
+        List<Appointment> appointments = new ArrayList<>();
+        // the filters are only checked once per reservation
+        List<Boolean> matches = new ArrayList<>();
         for (ReservationImpl reservation : reservations)
         {
-            final Appointment[] appointments = reservation.getAppointments();
-            for (Appointment app : appointments)
+            final Boolean match = filters == null || ClassificationFilter.Util.matches(filters, reservation);
+            for (Appointment app : reservation.getAppointments())
             {
-                appointmentIdToAppointment.put(app.getId(), app);
+                appointments.add(app);
+                matches.add(match);
             }
         }
         final LinkedHashMap<Allocatable, Collection<Appointment>> result = new LinkedHashMap<>();
-        for (Map.Entry<String, Set<String>> entry : allocatableIdToAppointmentIds.entrySet())
+        int position = 0;
+        for (int i = 0; i < allocatableIds.length; i++)
         {
-            final String key = entry.getKey();
-            final Set<String> value = entry.getValue();
-            final Allocatable allocatable = resolver.tryResolve(new ReferenceInfo<Allocatable>(key, Allocatable.class));
+            final int count = appointmentCounts[i];
+            final Allocatable allocatable = resolver.tryResolve(new ReferenceInfo<Allocatable>(allocatableIds[i], Allocatable.class));
             if (allocatable != null)
             {
-                Collection<Appointment> appointments = result.get(allocatable);
-                if (appointments == null)
+                Collection<Appointment> allocatableAppointments = result.get(allocatable);
+                if (allocatableAppointments == null)
                 {
-                    appointments = new LinkedHashSet<>();
-                    result.put(allocatable, appointments);
+                    allocatableAppointments = new LinkedHashSet<>();
+                    result.put(allocatable, allocatableAppointments);
                 }
-                for (String appointmentId : value)
+                for (int j = position; j < position + count; j++)
                 {
-                    Appointment app = appointmentIdToAppointment.get(appointmentId);
-                    Assert.notNull(app);
-                    Reservation reservation = app.getReservation();
-                    Assert.notNull( reservation);
-                    if (filters != null && !ClassificationFilter.Util.matches(filters, reservation))
+                    final int index = appointmentIndexes[j];
+                    if (matches.get(index))
                     {
-                        continue;
+                        allocatableAppointments.add(appointments.get(index));
                     }
-                    appointments.add(app);
                 }
             }
-        }return result;
+            position += count;
+        }
+        return result;
+
+    }
 
+    private Map<Allocatable, Collection<Appointment>> getResultFromAppointmentIds(ClassificationFilter[] filters)
+    {
+        Map<String, Appointment> appointmentIdToAppointment = new HashMap<>();
+        for (ReservationImpl reservation : reservations)
+        {
+            if (filters != null && !ClassificationFilter.Util.matches(filters, reservation))
+            {
+                continue;
+            }
+            for (Appointment app : reservation.getAppointments())
+            {
+                appointmentIdToAppointment.put(app.getId(), app);
+            }
+        }
+        final LinkedHashMap<Allocatable, Collection<Appointment>> result = new LinkedHashMap<>();
+        for (Map.Entry<String, Set<String>> entry : allocatableIdToAppointmentIds.entrySet())
+        {
+            final Allocatable allocatable = resolver.tryResolve(new ReferenceInfo<Allocatable>(entry.getKey(), Allocatable.class));
+            if (allocatable == null)
+            {
+                continue;
+            }
+            Collection<Appointment> allocatableAppointments = result.get(allocatable);
+            if (allocatableAppointments == null)
+            {
+                allocatableAppointments = new LinkedHashSet<>();
+                result.put(allocatable, allocatableAppointments);
+            }
+            for (String appointmentId : entry.getValue())
+            {
+                final Appointment appointment = appointmentIdToAppointment.get(appointmentId);
+                if (appointment != null)
+                {
+                    allocatableAppointments.add(appointment);
+                }
+            }
+        }
+        return result;
     }
 
     @Override public String toString()
     {
         return "AppointmentMap{" +
                 "reservations=" + reservations +
-                ", allocatableIdToAppointmentIds=" + allocatableIdToAppointmentIds +
+                ", allocatableIds=" + (allocatableIdToAppointmentIds != null ? allocatableIdToAppointmentIds.keySet().toString() : Arrays.toString(allocatableIds)) +
                 '}';
     }
     
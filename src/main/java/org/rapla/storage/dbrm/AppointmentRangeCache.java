@@ -0,0 +1,326 @@
+package org.rapla.storage.dbrm;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Date;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+
+import org.rapla.components.util.TimeInterval;
+import org.rapla.entities.Category;
+import org.rapla.entities.Entity;
+import org.rapla.entities.User;
+import org.rapla.entities.domain.Allocatable;
+import org.rapla.entities.domain.Appointment;
+import org.rapla.entities.domain.AppointmentStartComparator;
+import org.rapla.entities.dynamictype.DynamicType;
+import org.rapla.storage.UpdateOperation;
+import org.rapla.storage.UpdateResult;
+
+/**
+ * Client side cache of the appointments of each allocatable for the time ranges that were already queried from the server.
+ * A query only needs to fetch the slices of its range that are not covered yet, so paging through a calendar loads each
+ * appointment once. Reservations are not transferred with a refresh, so the cache is invalidated with the interval and the allocatables of the
+ * changed reservations, that are sent with the {@link org.rapla.storage.UpdateEvent}. Only these slices are fetched again.
+ */
+class AppointmentRangeCache
+{
+    static class Entry
+    {
+        /** sorted and disjoint start and end pairs of the ranges that are cached */
+        final List<long[]> covered = new ArrayList<long[]>();
+        final Set<Appointment> appointments = new LinkedHashSet<Appointment>();
+
+        boolean isCovered(long start, long end)
+        {
+            for (long[] range : covered)
+            {
+                if (range[0] <= start && end <= range[1])
+                {
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        /** returns the smallest range that contains all parts of start and end that are not covered */
+        long[] getMissing(long start, long end)
+        {
+            long missingStart = start;
+            long missingEnd = end;
+            for (long[] range : covered)
+            {
+                if (range[0] <= missingStart && missingStart < range[1])
+                {
+                    missingStart = range[1];
+                }
+            }
+            for (int i = covered.size() - 1; i >= 0; i--)
+            {
+                final long[] range = covered.get(i);
+                if (range[0] < missingEnd && missingEnd <= range[1])
+                {
+                    missingEnd = range[0];
+                }
+            }
+            if (missingStart >= missingEnd)
+            {
+                return null;
+            }
+            return new long[] { missingStart, missingEnd };
+        }
+
+        void cover(long start, long end)
+        {
+            long newStart = start;
+            long newEnd = end;
+            int index = 0;
+            for (Iterator<long[]> it = covered.iterator(); it.hasNext(); )
+            {
+                final long[] range = it.next();
+                if (range[1] < newStart)
+                {
+                    index++;
+                }
+                else if (range[0] <= newEnd)
+                {
+                    // overlapping or adjacent ranges are merged
+                    newStart = Math.min(newStart, range[0]);
+                    newEnd = Math.max(newEnd, range[1]);
+                    it.remove();
+                }
+            }
+            covered.add(index, new long[] { newStart, newEnd });
+        }
+
+        void uncover(long start, long end)
+        {
+            List<long[]> result = new ArrayList<long[]>();
+            for (long[] range : covered)
+            {
+                if (range[1] <= start || end <= range[0])
+                {
+                    result.add(range);
+                    continue;
+                }
+                if (range[0] < start)
+                {
+                    result.add(new long[] { range[0], start });
+                }
+                if (end < range[1])
+                {
+                    result.add(new long[] { end, range[1] });
+                }
+            }
+            covered.clear();
+            covered.addAll(result);
+        }
+    }
+
+    /** what must be fetched from the server to answer a query */
+    static class Missing
+    {
+        final Collection<String> allocatableIds;
+        final TimeInterval interval;
+        final long generation;
+
+        Missing(Collection<String> allocatableIds, TimeInterval interval, long generation)
+        {
+            this.allocatableIds = allocatableIds;
+            this.interval = interval;
+            this.generation = generation;
+        }
+    }
+
+    private final int maxEntries;
+    /** increased with each invalidation, so results that were fetched before are not added */
+    private long generation;
+    /** access order, so the allocatable that was not queried for the longest time is removed first */
+    private final Map<String, Entry> entries = new LinkedHashMap<String, Entry>(16, 0.75f, true)
+    {
+        @Override protected boolean removeEldestEntry(Map.Entry<String, Entry> eldest)
+        {
+            return size() > maxEntries;
+        }
+    };
+
+    AppointmentRangeCache(int maxEntries)
+    {
+        this.maxEntries = maxEntries;
+    }
+
+    /** returns the cached appointments that overlap start and end for each allocatable or null if a range is not cached for one of them.
+     * As with a server query, allocatables without appointments are not contained. */
+    synchronized Map<String, Collection<Appointment>> get(Collection<String> allocatableIds, Date start, Date end)
+    {
+        final long startTime = toStart(start);
+        final long endTime = toEnd(end);
+        Map<String, Collection<Appointment>> result = new LinkedHashMap<String, Collection<Appointment>>();
+        for (String allocatableId : allocatableIds)
+        {
+            final Entry entry = entries.get(allocatableId);
+            if (entry == null || !entry.isCovered(startTime, endTime))
+            {
+                return null;
+            }
+            Collection<Appointment> appointments = new TreeSet<Appointment>(new AppointmentStartComparator());
+            for (Appointment appointment : entry.appointments)
+            {
+                if (appointment.overlaps(start, end, false))
+                {
+                    appointments.add(appointment);
+                }
+            }
+            if (!appointments.isEmpty())
+            {
+                result.put(allocatableId, new LinkedHashSet<Appointment>(appointments));
+            }
+        }
+        return result;
+    }
+
+    /** returns the allocatables and the range that must be fetched, so the query can be answered from the cache */
+    synchronized Missing getMissing(Collection<String> allocatableIds, Date start, Date end)
+    {
+        final long startTime = toStart(start);
+        final long endTime = toEnd(end);
+        long missingStart = Long.MAX_VALUE;
+        long missingEnd = Long.MIN_VALUE;
+        List<String> missingIds = new ArrayList<String>();
+        for (String allocatableId : allocatableIds)
+        {
+            final Entry entry = entries.get(allocatableId);
+            final long[] missing = entry != null ? entry.getMissing(startTime, endTime) : new long[] { startTime, endTime };
+            if (missing != null)
+            {
+                missingIds.add(allocatableId);
+                missingStart = Math.min(missingStart, missing[0]);
+                missingEnd = Math.max(missingEnd, missing[1]);
+            }
+        }
+        final TimeInterval interval = new TimeInterval(toDate(missingStart), toDate(missingEnd));
+        return new Missing(missingIds, interval, generation);
+    }
+
+    /** adds the result of a server query for the missing range. The result is ignored if the cache was invalidated since. */
+    synchronized void put(Missing missing, Map<Allocatable, Collection<Appointment>> result)
+    {
+        if (missing.generation != generation)
+        {
+            return;
+        }
+        final long startTime = toStart(missing.interval.getStart());
+        final long endTime = toEnd(missing.interval.getEnd());
+        for (String allocatableId : missing.allocatableIds)
+        {
+            Entry entry = entries.get(allocatableId);
+            if (entry == null)
+            {
+                entry = new Entry();
+                entries.put(allocatableId, entry);
+            }
+            entry.cover(startTime, endTime);
+        }
+        for (Map.Entry<Allocatable, Collection<Appointment>> resultEntry : result.entrySet())
+        {
+            final Entry entry = entries.get(resultEntry.getKey().getId());
+            if (entry != null)
+            {
+                entry.appointments.addAll(resultEntry.getValue());
+            }
+        }
+    }
+
+    /** removes the entries of changed or removed allocatables and clears the cache, if a change can affect the visibility or the classification of all reservations */
+    synchronized void invalidate(UpdateResult result)
+    {
+        generation++;
+        for (UpdateOperation operation : result.getOperations())
+        {
+            final Class<? extends Entity> type = operation.getType();
+            if (type == Allocatable.class)
+            {
+                entries.remove(operation.getReference().getId());
+            }
+            else if (type == DynamicType.class || type == User.class || type == Category.class)
+            {
+                clear();
+                return;
+            }
+        }
+    }
+
+    /**
+     * invalidates the interval, in which reservations were changed, for the passed allocatables or for all allocatables if null is passed.
+     * Appointments that overlap the interval can belong to a changed reservation, so they are removed and their whole time span must be fetched again.
+     * All other appointments are not changed and stay in the cache.
+     */
+    synchronized void invalidate(TimeInterval interval, Collection<String> allocatableIds)
+    {
+        generation++;
+        final Date start = interval.getStart();
+        final Date end = interval.getEnd();
+        final Collection<Entry> invalidated;
+        if (allocatableIds == null)
+        {
+            invalidated = entries.values();
+        }
+        else
+        {
+            invalidated = new ArrayList<Entry>();
+            for (String allocatableId : allocatableIds)
+            {
+                final Entry entry = entries.get(allocatableId);
+                if (entry != null)
+                {
+                    invalidated.add(entry);
+                }
+            }
+        }
+        for (Entry entry : invalidated)
+        {
+            entry.uncover(toStart(start), toEnd(end));
+            for (Iterator<Appointment> it = entry.appointments.iterator(); it.hasNext(); )
+            {
+                final Appointment appointment = it.next();
+                if (appointment.overlaps(start, end, false))
+                {
+                    it.remove();
+                    final Date maxEnd = appointment.getMaxEnd();
+                    entry.uncover(toStart(appointment.getStart()), maxEnd != null ? maxEnd.getTime() + 1 : Long.MAX_VALUE);
+                }
+            }
+        }
+    }
+
+    synchronized void clear()
+    {
+        generation++;
+        entries.clear();
+    }
+
+    synchronized int size()
+    {
+        return entries.size();
+    }
+
+    private static long toStart(Date date)
+    {
+        return date != null ? date.getTime() : Long.MIN_VALUE;
+    }
+
+    private static long toEnd(Date date)
+    {
+        return date != null ? date.getTime() : Long.MAX_VALUE;
+    }
+
+    private static Date toDate(long time)
+    {
+        return time == Long.MIN_VALUE || time == Long.MAX_VALUE ? null : new Date(time);
+    }
+}
@@ -23,6 +23,7 @@ import org.rapla.entities.Entity;
 import org.rapla.entities.EntityNotFoundException;
 import org.rapla.entities.RaplaType;
 import org.rapla.entities.User;
+import org.rapla.entities.configuration.Preferences;
 import org.rapla.entities.domain.Allocatable;
 import org.rapla.entities.domain.Appointment;
 import org.rapla.entities.domain.AppointmentStartComparator;
@@ -80,6 +81,7 @@ import java.util.Date;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Locale;
@@ -88,6 +90,7 @@ import java.util.Set;
 import java.util.SortedSet;
 import java.util.TreeSet;
 import java.util.Vector;
+import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.concurrent.locks.Lock;
 
 /** This operator can be used to modify and access data over the
@@ -284,18 +287,22 @@ import java.util.concurrent.locks.Lock;
                 {
                     writeLock.unlock();
                 }
-                if (isConnected() && tryLock)
+                // the long poll refreshes as soon as there are changes, so polling is only needed if it fails
+                if (isConnected() && tryLock && !longPollActive.get())
                 {
                     refreshAsync();
                 }
             }
         };
         intervalLength = ClientFacade.REFRESH_INTERVAL_DEFAULT;
+        longPollEnabled = false;
         if (isConnected())
         {
             try
             {
-                intervalLength = getPreferences(null, true).getEntryAsInteger(ClientFacade.REFRESH_INTERVAL_ENTRY, ClientFacade.REFRESH_INTERVAL_DEFAULT);
+                final Preferences systemPreferences = getPreferences(null, true);
+                intervalLength = systemPreferences.getEntryAsInteger(ClientFacade.REFRESH_INTERVAL_ENTRY, ClientFacade.REFRESH_INTERVAL_DEFAULT);
+                longPollEnabled = systemPreferences.getEntryAsBoolean(ClientFacade.REFRESH_LONG_POLL_ENTRY, false);
             }
             catch (RaplaException e)
             {
@@ -307,6 +314,61 @@ import java.util.concurrent.locks.Lock;
             timerTask.cancel();
         }
         timerTask = commandQueue.schedule(refreshTask, 0, intervalLength);
+        if (longPollEnabled)
+        {
+            startLongPoll();
+        }
+    }
+
+    /** appointments of the last queried allocatables and time ranges */
+    final AppointmentRangeCache appointmentCache = new AppointmentRangeCache(1000);
+    boolean appointmentCacheEnabled = true;
+
+    /** time in milliseconds the server waits for changes before it answers a long poll */
+    static final int LONG_POLL_TIMEOUT = 30000;
+    volatile boolean longPollEnabled;
+    /** set while a long poll is waiting for the server, so only one long poll is started */
+    final AtomicBoolean longPollActive = new AtomicBoolean();
+    volatile Cancelable longPollRetry;
+
+    /**
+     * asks the server for the next changes. The request returns as soon as there are changes for the user or after {@link #LONG_POLL_TIMEOUT}
+     * and is then issued again. If it fails, the client polls in the refresh interval and tries again after one interval.
+     */
+    private void startLongPoll()
+    {
+        if (!longPollEnabled || !isConnected())
+        {
+            return;
+        }
+        if (!longPollActive.compareAndSet(false, true))
+        {
+            return;
+        }
+        String clientRepoVersion = getLastSyncedTime();
+        RemoteStorage serv = getRemoteStorage();
+        final Promise<UpdateEvent> updateEventPromise = getScheduler().supplyProxy(() -> serv.waitForRefresh(clientRepoVersion, LONG_POLL_TIMEOUT));
+        updateEventPromise.thenAccept((evt) -> {
+            try
+            {
+                refresh(evt);
+            }
+            catch (EntityNotFoundException ex)
+            {
+                getLogger().error("Refreshing all resources due to " + ex.getMessage(), ex);
+                refreshAll();
+            }
+            longPollActive.set(false);
+            startLongPoll();
+        }).exceptionally((caught) -> {
+            longPollActive.set(false);
+            if (isConnected())
+            {
+                getLogger().warn("Waiting for changes failed. Polling every " + intervalLength + " ms instead: " + caught.getMessage());
+                longPollRetry = commandQueue.schedule(() -> startLongPoll(), intervalLength);
+            }
+            return null;
+        });
     }
 
     public void dispose()
@@ -315,6 +377,11 @@ import java.util.concurrent.locks.Lock;
         {
             timerTask.cancel();
         }
+        longPollEnabled = false;
+        if (longPollRetry != null)
+        {
+            longPollRetry.cancel();
+        }
     }
 
     //    public String getConnectionName() {
@@ -460,6 +527,7 @@ import java.util.concurrent.locks.Lock;
         {
             bSessionActive = false;
             cache.clearAll();
+            appointmentCache.clear();
         }
         catch (Exception e)
         {
@@ -604,6 +672,7 @@ import java.util.concurrent.locks.Lock;
 
     private User loadData(UpdateEvent evt) throws RaplaException
     {
+        appointmentCache.clear();
         Date lastUpdated = evt.getLastValidated();
         setLastRefreshed(lastUpdated);
         {
@@ -932,12 +1001,13 @@ import java.util.concurrent.locks.Lock;
     public Promise<Map<Allocatable, Collection<Appointment>>> queryAppointments(User user, Collection<Allocatable> allocatables, Date start, Date end,
             final ClassificationFilter[] filters, Map<String, String> annotationQuery)
     {
-        final RemoteStorage serv = getRemoteStorage();
         final CommandScheduler scheduler = getScheduler();
         Promise<Map<Allocatable, Collection<Appointment>>> result = scheduler.supply(() -> {
             // if a refresh is due, we assume the system went to sleep so we refresh before we continue
             // TODO we should make a refresh async as well
-            if (intervalLength > 0 && lastSyncedTime != null && (lastSyncedTime.getTime() + intervalLength * 2) < getCurrentTimestamp().getTime())
+            // a long poll in progress answers within LONG_POLL_TIMEOUT, so the cache is only outdated if it hasn't returned for longer
+            final long maxAge = longPollActive.get() ? Math.max(intervalLength, LONG_POLL_TIMEOUT) : intervalLength;
+            if (intervalLength > 0 && lastSyncedTime != null && (lastSyncedTime.getTime() + maxAge * 2) < getCurrentTimestamp().getTime())
             {
                 getLogger().info("cache not uptodate. Refreshing first.");
                 refresh();
@@ -948,25 +1018,120 @@ import java.util.concurrent.locks.Lock;
                 return false;
             }
         }).thenCompose((refreshed) -> {
-            String[] allocatableId = getIdList(allocatables);
-            return scheduler.supplyProxy(() -> serv.queryAppointments(new QueryAppointments(allocatableId, start, end, annotationQuery))).thenApply(list -> {
-                Map<Allocatable, Collection<Appointment>> filtered;
+            if (appointmentCacheEnabled && isCacheable(allocatables, annotationQuery))
+            {
+                return queryCachedAppointments(allocatables, start, end, filters);
+            }
+            return queryServerAppointments(allocatables, start, end, filters, annotationQuery);
+        });
+        return result;
+    }
+
+    private Promise<Map<Allocatable, Collection<Appointment>>> queryServerAppointments(Collection<Allocatable> allocatables, Date start, Date end,
+            final ClassificationFilter[] filters, Map<String, String> annotationQuery)
+    {
+        final RemoteStorage serv = getRemoteStorage();
+        String[] allocatableId = getIdList(allocatables);
+        final QueryAppointments query = new QueryAppointments(allocatableId, start, end, annotationQuery, AppointmentMap.FORMAT_APPOINTMENT_INDEXES);
+        return getScheduler().supplyProxy(() -> serv.queryAppointments(query)).thenApply(list -> {
+            Map<Allocatable, Collection<Appointment>> filtered;
+            {
+                long time = System.currentTimeMillis();
+                logger.debug("event server call took  " + (System.currentTimeMillis() - time) + " ms");
+            }
+            {
+                long time = System.currentTimeMillis();
+                filtered = processReservationResult(list, filters);
+                logger.debug("event post processing took  " + (System.currentTimeMillis() - time) + " ms");
+            }
+
+            return filtered;
+        });
+    }
+
+    /** fetches only the ranges that are not in the appointment cache and answers the query from the cache */
+    private Promise<Map<Allocatable, Collection<Appointment>>> queryCachedAppointments(Collection<Allocatable> allocatables, Date start, Date end,
+            final ClassificationFilter[] filters)
+    {
+        final List<String> allocatableIds = Arrays.asList(getIdList(allocatables));
+        final Map<String, Collection<Appointment>> cached = appointmentCache.get(allocatableIds, start, end);
+        if (cached != null)
+        {
+            return getScheduler().supply(() -> filterCachedAppointments(cached, filters));
+        }
+        final RemoteStorage serv = getRemoteStorage();
+        final AppointmentRangeCache.Missing missing = appointmentCache.getMissing(allocatableIds, start, end);
+        final String[] missingIds = missing.allocatableIds.toArray(new String[] {});
+        final TimeInterval interval = missing.interval;
+        final QueryAppointments query = new QueryAppointments(missingIds, interval.getStart(), interval.getEnd(), null, AppointmentMap.FORMAT_APPOINTMENT_INDEXES);
+        return getScheduler().supplyProxy(() -> serv.queryAppointments(query))
+                .thenCompose(list -> {
+                    appointmentCache.put(missing, processReservationResult(list, null));
+                    final Map<String, Collection<Appointment>> result = appointmentCache.get(allocatableIds, start, end);
+                    if (result == null)
+                    {
+                        // the cache was invalidated by a refresh while the missing range was fetched
+                        return queryServerAppointments(allocatables, start, end, filters, null);
+                    }
+                    return getScheduler().supply(() -> filterCachedAppointments(result, filters));
+                });
+    }
+
+    private Map<Allocatable, Collection<Appointment>> filterCachedAppointments(Map<String, Collection<Appointment>> cached, ClassificationFilter[] filters)
+            throws RaplaException
+    {
+        Map<Allocatable, Collection<Appointment>> result = new LinkedHashMap<Allocatable, Collection<Appointment>>();
+        Lock lock = readLock();
+        try
+        {
+            for (Map.Entry<String, Collection<Appointment>> entry : cached.entrySet())
+            {
+                final Allocatable allocatable = tryResolve(new ReferenceInfo<Allocatable>(entry.getKey(), Allocatable.class));
+                if (allocatable == null)
                 {
-                    long time = System.currentTimeMillis();
-                    logger.debug("event server call took  " + (System.currentTimeMillis() - time) + " ms");
+                    continue;
                 }
+                Collection<Appointment> appointments = new LinkedHashSet<Appointment>();
+                for (Appointment appointment : entry.getValue())
                 {
-                    long time = System.currentTimeMillis();
-                    filtered = processReservationResult(list, filters);
-                    logger.debug("event post processing took  " + (System.currentTimeMillis() - time) + " ms");
+                    if (filters == null || ClassificationFilter.Util.matches(filters, appointment.getReservation()))
+                    {
+                        appointments.add(appointment);
+                    }
                 }
-
-                return filtered;
-            });
-        });
+                result.put(allocatable, appointments);
+            }
+        }
+        finally
+        {
+            unlock(lock);
+        }
         return result;
     }
 
+    /** queries with annotations, for all allocatables or for a template are not cached, because the server treats them differently */
+    private boolean isCacheable(Collection<Allocatable> allocatables, Map<String, String> annotationQuery)
+    {
+        if (allocatables == null || allocatables.isEmpty() || (annotationQuery != null && !annotationQuery.isEmpty()))
+        {
+            return false;
+        }
+        for (Allocatable allocatable : allocatables)
+        {
+            if (allocatable == null || allocatable.getClassification().getType().getKey().equals(RAPLA_TEMPLATE))
+            {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    public void setAppointmentCacheEnabled(boolean appointmentCacheEnabled)
+    {
+        this.appointmentCacheEnabled = appointmentCacheEnabled;
+        appointmentCache.clear();
+    }
+
     private Map<Allocatable, Collection<Appointment>> processReservationResult(AppointmentMap appointmentMap, ClassificationFilter[] filters)
             throws RaplaException
     {
@@ -1049,9 +1214,15 @@ import java.util.concurrent.locks.Lock;
             }
         }
 
+        final TimeInterval invalidateInterval = evt.getInvalidateInterval();
+        if (invalidateInterval != null)
+        {
+            appointmentCache.invalidate(invalidateInterval, evt.getInvalidateAllocatableIds());
+        }
         if (result != null)
         {
-            fireStorageUpdated(result, evt.getInvalidateInterval());
+            appointmentCache.invalidate(result);
+            fireStorageUpdated(result, invalidateInterval);
         }
     }
 
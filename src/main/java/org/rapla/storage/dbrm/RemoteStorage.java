@@ -113,14 +113,22 @@ public interface RemoteStorage
         private Date start;
         private Date end;
         private Map<String, String> annotations;
+        /** the format of the {@link AppointmentMap}, that the client can read. Older clients don't send it and get {@link AppointmentMap#FORMAT_APPOINTMENT_IDS} */
+        private int format;
 
         public QueryAppointments(String[] resources, Date start, Date end, Map<String, String> annotations)
+        {
+            this(resources, start, end, annotations, AppointmentMap.FORMAT_APPOINTMENT_IDS);
+        }
+
+        public QueryAppointments(String[] resources, Date start, Date end, Map<String, String> annotations, int format)
         {
             super();
             this.resources = resources;
             this.start = start;
             this.end = end;
             this.annotations = annotations;
+            this.format = format;
         }
 
         public QueryAppointments()
@@ -146,6 +154,11 @@ public interface RemoteStorage
         {
             return annotations;
         }
+
+        public int getFormat()
+        {
+            return format;
+        }
     }
 
     @POST
@@ -159,6 +172,12 @@ public interface RemoteStorage
     @Produces({ MediaType.APPLICATION_JSON, MediaType.APPLICATION_XML })
     UpdateEvent refresh(@QueryParam("lastSynched") String lastSyncedTime) throws RaplaException;
 
+    /** long poll version of {@link #refresh(String)}. The server answers as soon as there are changes for the user, or with an empty event after timeout milliseconds */
+    @GET
+    @Path("refresh/wait")
+    @Produces({ MediaType.APPLICATION_JSON, MediaType.APPLICATION_XML })
+    UpdateEvent waitForRefresh(@QueryParam("lastSynched") String lastSyncedTime, @QueryParam("timeout") int timeout) throws RaplaException;
+
     @POST
     @Path("restart")
     void restartServer() throws RaplaException;
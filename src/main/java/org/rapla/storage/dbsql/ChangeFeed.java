@@ -0,0 +1,36 @@
+package org.rapla.storage.dbsql;
+
+import java.sql.Connection;
+import java.sql.SQLException;
+
+import org.rapla.framework.RaplaException;
+
+/**
+ * Tells a {@link DBOperator} if other servers, that share the database, have written changes.
+ * The refresh only reads the lock timestamp and the CHANGES table, if the feed reports a change.
+ */
+public interface ChangeFeed
+{
+    interface Listener
+    {
+        /** called from a thread of the feed, when another server has committed changes */
+        void changesAvailable();
+    }
+
+    /** called after the data is loaded. Feeds that don't push changes ignore the listener */
+    void start(Listener listener) throws RaplaException;
+
+    /** called within the transaction that writes changes and releases the locks, before it is committed */
+    void publish(Connection connection) throws SQLException;
+
+    /** returns true if the database may have changed since the last completed refresh. Called with the commit lock before each refresh */
+    boolean hasChanges(Connection connection) throws SQLException;
+
+    /** called after a refresh, that loaded all changes committed before the last call of hasChanges */
+    void refreshed();
+
+    /** the next call of hasChanges returns true, e.g. because the last refresh failed */
+    void invalidate();
+
+    void stop();
+}
@@ -25,11 +25,13 @@ import java.util.Date;
 import java.util.HashSet;
 import java.util.LinkedHashMap;
 import java.util.LinkedHashSet;
+import java.util.LinkedList;
 import java.util.List;
 import java.util.Locale;
 import java.util.Map;
 import java.util.Properties;
 import java.util.Set;
+import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.concurrent.locks.Lock;
 
 import javax.inject.Provider;
@@ -42,6 +44,7 @@ import org.rapla.components.util.xml.RaplaNonValidatedInput;
 import org.rapla.entities.Category;
 import org.rapla.entities.Entity;
 import org.rapla.entities.User;
+import org.rapla.entities.domain.Reservation;
 import org.rapla.entities.domain.permission.PermissionExtension;
 import org.rapla.entities.dynamictype.DynamicType;
 import org.rapla.entities.extensionpoints.FunctionFactory;
@@ -87,6 +90,18 @@ import org.rapla.storage.xml.RaplaDefaultXMLContext;
 
     private String connectionName;
     Provider<ImportExportManager> importExportManager;
+    private final LinkedList<QueuedEvent> queuedEvents = new LinkedList<QueuedEvent>();
+    private int groupCommitSize = 50;
+    // a store gives up waiting for a later database timestamp after this many reads
+    private static final int MAX_TIMESTAMP_READS = 12;
+    private final StatementStatistics statementStatistics = new StatementStatistics();
+    // the following are only accessed with the commit lock, because the table storages keep the connection while they are used
+    private Connection refreshConnection;
+    private RaplaSQL raplaSQLRefresh;
+    private RaplaSQL raplaSQLOutput;
+    private ChangeFeed changeFeed;
+    private final AtomicBoolean changeRefreshScheduled = new AtomicBoolean();
+    private final CommandScheduler scheduler;
 
     public DBOperator(Logger logger, RaplaResources i18n, RaplaLocale locale, final CommandScheduler scheduler, Map<String, FunctionFactory> functionFactoryMap,
             Provider<ImportExportManager> importExportManager, DataSource dataSource, Set<PermissionExtension> permissionExtensions)
@@ -94,6 +109,8 @@ import org.rapla.storage.xml.RaplaDefaultXMLContext;
         super(logger, i18n, locale, scheduler, functionFactoryMap, permissionExtensions);
         lookup = dataSource;
         this.importExportManager = importExportManager;
+        this.scheduler = scheduler;
+        this.changeFeed = new SequenceChangeFeed(logger);
         //        String backupFile = config.getChild("backup").getValue("");
         //        if (backupFile != null)
         //        	backupFileName = ContextTools.resolveContext( backupFile, context);
@@ -294,6 +311,7 @@ import org.rapla.storage.xml.RaplaDefaultXMLContext;
             initIndizes();
             changeStatus(InitStatus.Connected);
             scheduleCleanupAndRefresh();
+            changeFeed.start(this::scheduleChangeRefresh);
         }
         /*
         if (connectInfo != null)
@@ -318,28 +336,129 @@ import org.rapla.storage.xml.RaplaDefaultXMLContext;
         {
             return;
         }
-        try (Connection c = createConnection())
+        try
         {
-            refreshWithoutLock(c);
+            // the refresh connection is kept open, so the prepared statements of the poll are reused
+            if (refreshConnection == null)
+            {
+                refreshConnection = StatementCache.wrap(createConnection(), statementStatistics);
+            }
+            if (!changeFeed.hasChanges(refreshConnection))
+            {
+                if (!refreshConnection.getAutoCommit())
+                {
+                    refreshConnection.commit();
+                }
+                return;
+            }
+            final boolean refreshed;
+            final Lock writeLock = writeLock();
+            try
+            {
+                refreshed = refreshWithoutLock(refreshConnection);
+            }
+            finally
+            {
+                unlock(writeLock);
+            }
+            if (!refreshConnection.getAutoCommit())
+            {
+                // end the read transaction, so the next refresh sees the latest changes
+                refreshConnection.commit();
+            }
+            // the changes, that the feed reported, are only skipped if they are loaded
+            if (refreshed)
+            {
+                changeFeed.refreshed();
+            }
+            else
+            {
+                changeFeed.invalidate();
+            }
         }
         catch (Throwable e)
         {
+            closeRefreshConnection();
+            changeFeed.invalidate();
             Date lastUpdated = getLastRefreshed();
             logger.error("Error updating model from DB. Last success was at " + lastUpdated, e);
         }
     }
 
-    private void refreshWithoutLock(Connection c) throws SQLException, RaplaException
+    /** refreshes as soon as possible, when the change feed reports changes of other servers */
+    private void scheduleChangeRefresh()
+    {
+        if (!changeRefreshScheduled.compareAndSet(false, true))
+        {
+            return;
+        }
+        scheduler.schedule(() -> {
+            changeRefreshScheduled.set(false);
+            if (isConnected())
+            {
+                refresh();
+            }
+        }, 0);
+    }
+
+    /** the feed that tells this operator when other servers changed the database. The default polls the change sequence */
+    public void setChangeFeed(ChangeFeed changeFeed)
+    {
+        if (isConnected())
+        {
+            throw new IllegalStateException("The change feed must be set before connecting");
+        }
+        this.changeFeed = changeFeed;
+    }
+
+    public ChangeFeed getChangeFeed()
+    {
+        return changeFeed;
+    }
+
+    private void closeRefreshConnection()
+    {
+        final Connection connection = refreshConnection;
+        refreshConnection = null;
+        close(connection);
+    }
+
+    /** returns the statistics of the statements that are executed on the refresh and store connections */
+    public StatementStatistics getStatementStatistics()
+    {
+        return statementStatistics;
+    }
+
+    private RaplaSQL getRaplaSQLRefresh() throws RaplaException
+    {
+        if (raplaSQLRefresh == null)
+        {
+            final EntityStore entityStore = new EntityStore(cache);
+            final Category superCategory = cache.getSuperCategory();
+            raplaSQLRefresh = new RaplaSQL(createInputContext(entityStore, DBOperator.this, superCategory));
+        }
+        return raplaSQLRefresh;
+    }
+
+    private RaplaSQL getRaplaSQLOutput() throws RaplaException
+    {
+        if (raplaSQLOutput == null)
+        {
+            raplaSQLOutput = new RaplaSQL(createOutputContext(cache));
+        }
+        return raplaSQLOutput;
+    }
+
+    /** returns false if the changes could not be loaded, because the locks of other servers are older than the last refresh */
+    private boolean refreshWithoutLock(Connection c) throws SQLException, RaplaException
     {
-        final EntityStore entityStore = new EntityStore(cache);
-        final Category superCategory = cache.getSuperCategory();
-        final RaplaSQL raplaSQLInput = new RaplaSQL(createInputContext(entityStore, DBOperator.this, superCategory));
+        final RaplaSQL raplaSQLInput = getRaplaSQLRefresh();
         Date lastUpdated = getLastRefreshed();
         Date connectionTime = raplaSQLInput.getLastUpdated(c);
 
         if (connectionTime.before(lastUpdated))
         {
-            return;
+            return false;
         }
         final Collection<ReferenceInfo> allIds = raplaSQLInput.update(c, lastUpdated, connectionTime);
         Collection<Entity> toStore = new LinkedHashSet<Entity>();
@@ -360,13 +479,26 @@ import org.rapla.storage.xml.RaplaDefaultXMLContext;
             }
         }
         refresh(lastUpdated, connectionTime, toStore, patches, toRemove);
-        return;
+        return true;
     }
 
     @Override
     synchronized public void disconnect() throws RaplaException
     {
         super.disconnect();
+        changeFeed.stop();
+        final Lock commitLock = commitLock();
+        try
+        {
+            closeRefreshConnection();
+            raplaSQLRefresh = null;
+            raplaSQLOutput = null;
+        }
+        finally
+        {
+            unlock(commitLock);
+        }
+        getLogger().info("Statements " + statementStatistics);
 
         // HSQLDB Special
         if (hsqldb)
@@ -391,9 +523,15 @@ import org.rapla.storage.xml.RaplaDefaultXMLContext;
     {
 
         Connection c = null;
-        final Lock writeLock = RaplaComponent.lock(this.lock.writeLock(), 10);
+        final Lock commitLock = commitLock();
+        Lock writeLock = null;
         try
         {
+            writeLock = RaplaComponent.lock(this.lock.writeLock(), 10);
+            // the super category and the types are loaded again
+            closeRefreshConnection();
+            raplaSQLRefresh = null;
+            raplaSQLOutput = null;
             c = createConnection();
             connectionName = c.getMetaData().getURL();
             getLogger().info("Using datasource " + c.getMetaData().getDatabaseProductName() + ": " + connectionName);
@@ -424,6 +562,7 @@ import org.rapla.storage.xml.RaplaDefaultXMLContext;
         finally
         {
             unlock(writeLock);
+            unlock(commitLock);
             close(c);
             c = null;
         }
@@ -658,24 +797,183 @@ import org.rapla.storage.xml.RaplaDefaultXMLContext;
         return tableMap;
     }
 
+    /**
+     * Stores the event in the database. Concurrent dispatches are queued and the first dispatch that gets the commit lock
+     * stores the queued events together with its own in one transaction (group commit).
+     * So the locks are requested, the transaction is committed and the changes are refreshed only once for the whole group.
+     * Only events that store or remove reservations are grouped, they don't depend on each other as long as they change different reservations.
+     * If a group can't be stored, each event of the group is stored in its own transaction, so a failing event doesn't affect the others.
+     */
     public void dispatch(UpdateEvent evt) throws RaplaException
     {
-        Lock writeLock = writeLock();
+        final QueuedEvent queued = new QueuedEvent(evt);
+        synchronized (queuedEvents)
+        {
+            queuedEvents.add(queued);
+        }
+        Lock commitLock;
+        try
+        {
+            commitLock = commitLock();
+        }
+        catch (RaplaException ex)
+        {
+            synchronized (queuedEvents)
+            {
+                if (queuedEvents.remove(queued))
+                {
+                    throw ex;
+                }
+            }
+            // the event is currently stored by another dispatch, so wait for the result
+            commitLock = commitLock();
+        }
+        try
+        {
+            while (!queued.done)
+            {
+                storeGroup(nextGroup());
+            }
+        }
+        finally
+        {
+            unlock(commitLock);
+        }
+        if (queued.exception != null)
+        {
+            throw queued.exception;
+        }
+        // TODO check if still needed
+        //fireStorageUpdated(result);
+    }
+
+    /** set the maximum number of events that are stored in one transaction. 1 disables the group commit */
+    public void setGroupCommitSize(int groupCommitSize)
+    {
+        this.groupCommitSize = Math.max(1, groupCommitSize);
+    }
+
+    public int getGroupCommitSize()
+    {
+        return groupCommitSize;
+    }
+
+    static class QueuedEvent
+    {
+        final UpdateEvent evt;
+        final Set<ReferenceInfo> ids = new HashSet<ReferenceInfo>();
+        final boolean groupable;
+        // the result is set and read while holding the commit lock
+        boolean done;
+        RaplaException exception;
+
+        QueuedEvent(UpdateEvent evt) throws RaplaException
+        {
+            this.evt = evt;
+            boolean onlyReservations = evt.getPreferencePatches().isEmpty();
+            for (Entity entity : evt.getStoreObjects())
+            {
+                ids.add(entity.getReference());
+                onlyReservations &= entity.getTypeClass() == Reservation.class;
+            }
+            for (ReferenceInfo id : evt.getRemoveIds())
+            {
+                ids.add(id);
+                onlyReservations &= id.getType() == Reservation.class;
+            }
+            groupable = onlyReservations;
+        }
+
+        void fail(RaplaException ex)
+        {
+            if (!done)
+            {
+                exception = ex;
+                done = true;
+            }
+        }
+    }
+
+    /** takes the next events from the queue that can be stored in one transaction. Must be called with the commit lock */
+    private List<QueuedEvent> nextGroup()
+    {
+        final List<QueuedEvent> group = new ArrayList<QueuedEvent>();
+        final Set<ReferenceInfo> groupIds = new HashSet<ReferenceInfo>();
+        final int maxSize = bSupportsTransactions ? groupCommitSize : 1;
+        synchronized (queuedEvents)
+        {
+            while (!queuedEvents.isEmpty() && group.size() < maxSize)
+            {
+                final QueuedEvent next = queuedEvents.getFirst();
+                if (!group.isEmpty() && (!next.groupable || !group.get(0).groupable || !Collections.disjoint(groupIds, next.ids)))
+                {
+                    break;
+                }
+                queuedEvents.removeFirst();
+                group.add(next);
+                groupIds.addAll(next.ids);
+            }
+        }
+        return group;
+    }
+
+    private void storeGroup(List<QueuedEvent> group)
+    {
         try
         {
-            //Date since = lastUpdated;
-            preprocessEventStorage(evt);
-            Collection<Entity> storeObjects = evt.getStoreObjects();
-            List<PreferencePatch> preferencePatches = evt.getPreferencePatches();
-            Collection<ReferenceInfo> removeObjects = evt.getRemoveIds();
-            if (storeObjects.isEmpty() && preferencePatches.isEmpty() && removeObjects.isEmpty())
+            final List<QueuedEvent> toStore = new ArrayList<QueuedEvent>();
+            for (QueuedEvent queued : group)
+            {
+                try
+                {
+                    final UpdateEvent evt = queued.evt;
+                    preprocessEventStorage(evt);
+                    if (evt.getStoreObjects().isEmpty() && evt.getPreferencePatches().isEmpty() && evt.getRemoveIds().isEmpty())
+                    {
+                        queued.done = true;
+                    }
+                    else
+                    {
+                        toStore.add(queued);
+                    }
+                }
+                catch (RaplaException ex)
+                {
+                    queued.fail(ex);
+                }
+            }
+            if (toStore.isEmpty())
             {
                 return;
             }
-            Connection connection = createConnection();
+            Connection connection = StatementCache.wrap(createConnection(), statementStatistics);
             try
             {
-                dbStore(storeObjects, preferencePatches, removeObjects, connection, evt.getUserId());
+                // the database is written with the commit lock only, so readers can access the cache in the meantime
+                try
+                {
+                    dbStore(toStore, connection);
+                }
+                catch (RaplaException ex)
+                {
+                    if (toStore.size() == 1 || !isConnected())
+                    {
+                        throw ex;
+                    }
+                    getLogger().warn("Could not store " + toStore.size() + " events together. Storing each event separately: " + ex.getMessage());
+                    for (QueuedEvent queued : toStore)
+                    {
+                        try
+                        {
+                            dbStore(Collections.singletonList(queued), connection);
+                        }
+                        catch (RaplaException e)
+                        {
+                            queued.fail(e);
+                        }
+                    }
+                }
+                Lock writeLock = writeLock();
                 try
                 {
                     refreshWithoutLock(connection);
@@ -684,23 +982,50 @@ import org.rapla.storage.xml.RaplaDefaultXMLContext;
                 {
                     getLogger().error("Could not load update from db. Will be loaded afterwards", e);
                 }
+                finally
+                {
+                    unlock(writeLock);
+                }
             }
             finally
             {
                 close(connection);
             }
         }
+        catch (RaplaException ex)
+        {
+            for (QueuedEvent queued : group)
+            {
+                queued.fail(ex);
+            }
+        }
+        catch (RuntimeException ex)
+        {
+            for (QueuedEvent queued : group)
+            {
+                queued.fail(new RaplaException(ex));
+            }
+        }
         finally
         {
-            unlock(writeLock);
+            for (QueuedEvent queued : group)
+            {
+                queued.done = true;
+            }
         }
-        // TODO check if still needed
-        //fireStorageUpdated(result);
     }
 
-    private void dbStore(Collection<Entity> storeObjects, List<PreferencePatch> preferencePatches, Collection<ReferenceInfo> removeObjects,
-            Connection connection, String userId) throws RaplaException
+    private void dbStore(List<QueuedEvent> events, Connection connection) throws RaplaException
     {
+        final Collection<Entity> storeObjects = new ArrayList<Entity>();
+        final List<PreferencePatch> preferencePatches = new ArrayList<PreferencePatch>();
+        final Collection<ReferenceInfo> removeObjects = new ArrayList<ReferenceInfo>();
+        for (QueuedEvent queued : events)
+        {
+            storeObjects.addAll(queued.evt.getStoreObjects());
+            preferencePatches.addAll(queued.evt.getPreferencePatches());
+            removeObjects.addAll(queued.evt.getRemoveIds());
+        }
         final LinkedHashSet<ReferenceInfo> ids = new LinkedHashSet<ReferenceInfo>();
         for (Entity entity : storeObjects)
         {
@@ -717,29 +1042,34 @@ import org.rapla.storage.xml.RaplaDefaultXMLContext;
         final boolean needsGlobalLock = containsDynamicType(ids);
         Date connectionTimestamp = null;
         final Collection<String> lockIds = needsGlobalLock ? Collections.singletonList(LockStorage.GLOBAL_LOCK) : getLockIds(ids);
-        RaplaSQL raplaSQLOutput = new RaplaSQL(createOutputContext(cache));
+        final RaplaSQL raplaSQLOutput = getRaplaSQLOutput();
         try
         {
-            connectionTimestamp = raplaSQLOutput.getDatabaseTimestamp(connection);
-            User lastChangedBy = (userId != null) ? resolve(userId, User.class) : null;
-            for (Entity e : storeObjects)
+            final Date lockTimestamp = raplaSQLOutput.getDatabaseTimestamp(connection);
+            raplaSQLOutput.requestLocks(connection, lockTimestamp, lockIds, null, !needsGlobalLock);
+            connectionTimestamp = getTimestampAfterLocks(connection, raplaSQLOutput);
+            for (QueuedEvent queued : events)
             {
-                if (e instanceof ModifiableTimestamp)
+                final String userId = queued.evt.getUserId();
+                User lastChangedBy = (userId != null) ? resolve(userId, User.class) : null;
+                for (Entity e : queued.evt.getStoreObjects())
                 {
-                    ModifiableTimestamp modifiableTimestamp = (ModifiableTimestamp) e;
-                    if ( lastChangedBy != null)
-                    {
-                        modifiableTimestamp.setLastChangedBy(lastChangedBy);
-                    }
-                    final Entity entity = tryResolve(e.getReference());
-                    if ( entity == null)
+                    if (e instanceof ModifiableTimestamp)
                     {
-                        modifiableTimestamp.setCreateDate( connectionTimestamp );
+                        ModifiableTimestamp modifiableTimestamp = (ModifiableTimestamp) e;
+                        if ( lastChangedBy != null)
+                        {
+                            modifiableTimestamp.setLastChangedBy(lastChangedBy);
+                        }
+                        final Entity entity = tryResolve(e.getReference());
+                        if ( entity == null)
+                        {
+                            modifiableTimestamp.setCreateDate( connectionTimestamp );
+                        }
                     }
                 }
             }
 
-            raplaSQLOutput.requestLocks(connection, connectionTimestamp, lockIds, null, !needsGlobalLock);
             for (ReferenceInfo id : removeObjects)
             {
                 raplaSQLOutput.remove(connection, id, connectionTimestamp);
@@ -784,6 +1114,8 @@ import org.rapla.storage.xml.RaplaDefaultXMLContext;
             try
             {
                 raplaSQLOutput.removeLocks(connection, lockIds, connectionTimestamp, !needsGlobalLock);
+                // other servers read the changes after the locks are released
+                changeFeed.publish(connection);
                 if (bSupportsTransactions)
                 {
                     connection.commit();
@@ -796,6 +1128,34 @@ import org.rapla.storage.xml.RaplaDefaultXMLContext;
         }
     }
 
+    /**
+     * returns the timestamp of the changes, that is later than the time the locks were committed. A refresh, that started before, has read an
+     * earlier time and loads the changes with its next refresh, and a refresh, that starts later, doesn't read after the locks until they are released.
+     */
+    private Date getTimestampAfterLocks(Connection connection, RaplaSQL raplaSQLOutput) throws RaplaException, SQLException, InterruptedException
+    {
+        final Date locked = raplaSQLOutput.getDatabaseTimestamp(connection);
+        // the wait is doubled with every read, so a database clock with a resolution of a second is passed after about ten reads
+        long wait = 1;
+        for (int i = 0; i < MAX_TIMESTAMP_READS; i++)
+        {
+            Thread.sleep(wait);
+            if (bSupportsTransactions)
+            {
+                // some databases return the start of the transaction as current timestamp
+                connection.commit();
+            }
+            final Date timestamp = raplaSQLOutput.getDatabaseTimestamp(connection);
+            if (timestamp.after(locked))
+            {
+                return timestamp;
+            }
+            wait *= 2;
+        }
+        getLogger().warn("Database timestamp did not pass " + locked + " after " + MAX_TIMESTAMP_READS + " reads. Using the next millisecond.");
+        return new Date(locked.getTime() + 1);
+    }
+
     private Collection<String> getLockIds(Collection<ReferenceInfo> ids)
     {
         List<String> result = new ArrayList<String>();
@@ -826,16 +1186,14 @@ import org.rapla.storage.xml.RaplaDefaultXMLContext;
         {
             return;
         }
-        Collection<Entity> storeObjects = Collections.emptyList();
-        List<PreferencePatch> preferencePatches = Collections.emptyList();
-        Collection<ReferenceInfo> removeObjects = new ArrayList<ReferenceInfo>();
+        UpdateEvent evt = new UpdateEvent();
         for (ReferenceInfo<Conflict> id : disabledConflicts)
         {
-            removeObjects.add(id);
+            evt.putRemoveId(id);
         }
         try (Connection connection = createConnection())
         {
-            dbStore(storeObjects, preferencePatches, removeObjects, connection, null);
+            dbStore(Collections.singletonList(new QueuedEvent(evt)), connection);
         }
         catch (Exception ex)
         {
@@ -986,9 +1344,16 @@ import org.rapla.storage.xml.RaplaDefaultXMLContext;
         removeInconsistentEntities(cache, list);
         Collection<Entity> migratedTemplates = migrateTemplates();
         cache.putAll(migratedTemplates);
-        List<PreferencePatch> preferencePatches = Collections.emptyList();
-        Collection<ReferenceInfo> removeObjects = (Collection)entitiesToRemove;
-        dbStore(migratedTemplates, preferencePatches, removeObjects, connection, null);
+        UpdateEvent evt = new UpdateEvent();
+        for (Entity entity : migratedTemplates)
+        {
+            evt.putStore(entity);
+        }
+        for (ReferenceInfo id : entitiesToRemove)
+        {
+            evt.putRemoveId(id);
+        }
+        dbStore(Collections.singletonList(new QueuedEvent(evt)), connection);
         // It is important to do the read only later because some resolve might involve write to referenced objects
         for (Entity entity : list)
         {
@@ -0,0 +1,219 @@
+package org.rapla.storage.dbsql;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.Locale;
+import java.util.UUID;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import javax.sql.DataSource;
+
+import org.postgresql.PGConnection;
+import org.postgresql.PGNotification;
+import org.rapla.framework.RaplaException;
+import org.rapla.logger.Logger;
+
+/**
+ * Pushes changes to the other servers with PostgreSQL LISTEN/NOTIFY. The notification is sent with the transaction that releases the locks,
+ * so the listeners are notified when the changes are committed. A listener thread keeps its own connection to the database.
+ * While the listener is connected the sequence is only polled every {@link #FULL_REFRESH_POLLS}th time, otherwise on every poll.
+ * On other databases only the sequence is polled.
+ */
+public class PostgresChangeFeed extends SequenceChangeFeed
+{
+    static final String CHANNEL = "rapla_changes";
+    private final DataSource dataSource;
+    private final String serverId = UUID.randomUUID().toString();
+    private final AtomicBoolean pending = new AtomicBoolean();
+    private volatile boolean listening;
+    private volatile boolean stopped = true;
+    private volatile boolean notify;
+    private int quietPolls;
+    private long listenInterval = 1000;
+    private long reconnectDelay = 10000;
+    private Thread thread;
+
+    public PostgresChangeFeed(Logger logger, DataSource dataSource)
+    {
+        super(logger);
+        this.dataSource = dataSource;
+    }
+
+    /**
+     * the time the listener waits between two reads of the notifications. The driver only receives notifications when a statement is executed,
+     * so every read costs a round trip to the database. A shorter interval delivers the changes of the other servers sooner,
+     * but sends more queries to the database. The default of one second costs one trivial query per second and server.
+     */
+    public void setListenInterval(long listenInterval)
+    {
+        this.listenInterval = listenInterval;
+    }
+
+    public void setReconnectDelay(long reconnectDelay)
+    {
+        this.reconnectDelay = reconnectDelay;
+    }
+
+    @Override synchronized public void start(final Listener listener) throws RaplaException
+    {
+        try (Connection connection = dataSource.getConnection())
+        {
+            final String productName = connection.getMetaData().getDatabaseProductName();
+            notify = productName != null && productName.toLowerCase(Locale.ENGLISH).contains("postgres");
+        }
+        catch (SQLException ex)
+        {
+            throw new RaplaException("Could not start change notification: " + ex.getMessage(), ex);
+        }
+        if (!notify)
+        {
+            logger.warn("Change notification is only supported by PostgreSQL. Polling changes instead.");
+            return;
+        }
+        stopped = false;
+        thread = new Thread(new Runnable()
+        {
+            @Override public void run()
+            {
+                listen(listener);
+            }
+        }, "Rapla change listener");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    @Override public void publish(Connection connection) throws SQLException
+    {
+        super.publish(connection);
+        if (!notify)
+        {
+            return;
+        }
+        try (PreparedStatement stmt = connection.prepareStatement("SELECT pg_notify(?, ?)"))
+        {
+            stmt.setString(1, CHANNEL);
+            stmt.setString(2, serverId);
+            stmt.executeQuery().close();
+        }
+    }
+
+    @Override public boolean hasChanges(Connection connection) throws SQLException
+    {
+        if (listening)
+        {
+            if (pending.getAndSet(false))
+            {
+                quietPolls = 0;
+                return true;
+            }
+            if (++quietPolls < FULL_REFRESH_POLLS)
+            {
+                return false;
+            }
+            quietPolls = 0;
+        }
+        return super.hasChanges(connection);
+    }
+
+    @Override public void invalidate()
+    {
+        pending.set(true);
+        super.invalidate();
+    }
+
+    boolean isListening()
+    {
+        return listening;
+    }
+
+    @Override synchronized public void stop()
+    {
+        stopped = true;
+        if (thread != null)
+        {
+            thread.interrupt();
+            thread = null;
+        }
+    }
+
+    private void listen(Listener listener)
+    {
+        while (!stopped)
+        {
+            try (Connection connection = dataSource.getConnection())
+            {
+                connection.setAutoCommit(true);
+                final PGConnection pgConnection = connection instanceof PGConnection ? (PGConnection) connection : connection.unwrap(PGConnection.class);
+                try (Statement stmt = connection.createStatement())
+                {
+                    stmt.execute("LISTEN " + CHANNEL);
+                }
+                listening = true;
+                // changes could have been written while the listener was not connected
+                changed(listener);
+                while (!stopped)
+                {
+                    // the driver only receives notifications when a statement is executed
+                    try (Statement stmt = connection.createStatement())
+                    {
+                        stmt.executeQuery("SELECT 1").close();
+                    }
+                    final PGNotification[] notifications = pgConnection.getNotifications();
+                    if (notifications != null)
+                    {
+                        for (PGNotification notification : notifications)
+                        {
+                            // our own changes are already in the cache
+                            if (!serverId.equals(notification.getParameter()))
+                            {
+                                changed(listener);
+                                break;
+                            }
+                        }
+                    }
+                    Thread.sleep(listenInterval);
+                }
+            }
+            catch (InterruptedException ex)
+            {
+                break;
+            }
+            catch (Exception ex)
+            {
+                listening = false;
+                if (stopped)
+                {
+                    break;
+                }
+                logger.warn("Listening for changes failed. Polling changes until the listener is reconnected: " + ex.getMessage());
+                try
+                {
+                    Thread.sleep(reconnectDelay);
+                }
+                catch (InterruptedException e)
+                {
+                    break;
+                }
+            }
+            finally
+            {
+                listening = false;
+            }
+        }
+    }
+
+    private void changed(Listener listener)
+    {
+        pending.set(true);
+        try
+        {
+            listener.changesAvailable();
+        }
+        catch (RuntimeException ex)
+        {
+            logger.error("Could not process change notification", ex);
+        }
+    }
+}
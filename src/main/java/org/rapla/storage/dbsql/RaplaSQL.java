@@ -331,6 +331,7 @@ class RaplaSQL {
         final List<TableStorage> storesWithChildren = new ArrayList<>();
         storesWithChildren.addAll(getStoresWithChildren());
         storesWithChildren.add( lockStorage);
+        storesWithChildren.add( new ChangeSequenceStorage(logger));
         return storesWithChildren;
     }
 
@@ -821,6 +822,71 @@ class LockStorage extends AbstractTableStorage
         throw new RaplaException("Could not read Timestamp from DB. No timestamp found.");
     }
 }
+/** a counter that is increased by every transaction that writes changes, so other servers can detect changes without reading the CHANGES table */
+class ChangeSequenceStorage extends AbstractTableStorage
+{
+    static final String CHANGES = "CHANGES";
+    private final String readSql = "SELECT SEQ FROM CHANGE_SEQUENCE WHERE SEQID = ?";
+    private final String incrementSql = "UPDATE CHANGE_SEQUENCE SET SEQ = SEQ + 1 WHERE SEQID = ?";
+
+    public ChangeSequenceStorage(Logger logger)
+    {
+        super("CHANGE_SEQUENCE", logger, new String[] { "SEQID VARCHAR(255) NOT NULL PRIMARY KEY", "SEQ BIGINT NOT NULL" }, false);
+        insertSql = "insert into CHANGE_SEQUENCE (SEQID, SEQ) values (?, 1)";
+        deleteSql = null;
+    }
+
+    @Override
+    public void createOrUpdateIfNecessary(Map<String, TableDef> schema) throws SQLException, RaplaException
+    {
+        final boolean created = schema.get(tableName) == null;
+        super.createOrUpdateIfNecessary(schema);
+        if (created)
+        {
+            // the row is inserted once, so servers that write at the same time only update it
+            insertSequence();
+            con.commit();
+        }
+    }
+
+    long readSequence() throws SQLException
+    {
+        try (final PreparedStatement stmt = con.prepareStatement(readSql))
+        {
+            stmt.setString(1, CHANGES);
+            final ResultSet result = stmt.executeQuery();
+            if (result.next())
+            {
+                return result.getLong(1);
+            }
+            return 0;
+        }
+    }
+
+    void increment() throws SQLException
+    {
+        final int updated;
+        try (final PreparedStatement stmt = con.prepareStatement(incrementSql))
+        {
+            stmt.setString(1, CHANGES);
+            updated = stmt.executeUpdate();
+        }
+        if (updated == 0)
+        {
+            insertSequence();
+        }
+    }
+
+    private void insertSequence() throws SQLException
+    {
+        try (final PreparedStatement stmt = con.prepareStatement(insertSql))
+        {
+            stmt.setString(1, CHANGES);
+            stmt.executeUpdate();
+        }
+    }
+}
+
 abstract class RaplaTypeStorage<T extends Entity<T>> extends EntityStorage<T> {
 	Class<? extends Entity> raplaType;
 
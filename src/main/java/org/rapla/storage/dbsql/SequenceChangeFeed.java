@@ -0,0 +1,82 @@
+package org.rapla.storage.dbsql;
+
+import java.sql.Connection;
+import java.sql.SQLException;
+
+import org.rapla.framework.RaplaException;
+import org.rapla.logger.Logger;
+
+/**
+ * Polls the CHANGE_SEQUENCE table, that is increased by every server that writes changes.
+ * Reading the single row is much cheaper than reading the CHANGES table with a timestamp.
+ * Every {@link #FULL_REFRESH_POLLS}th poll reports a change anyway, so changes of servers that don't increase the sequence are still found.
+ */
+public class SequenceChangeFeed implements ChangeFeed
+{
+    static final int FULL_REFRESH_POLLS = 20;
+    private final ChangeSequenceStorage storage;
+    protected final Logger logger;
+    /** the sequence that was read before the last completed refresh */
+    private long lastSequence = -1;
+    private long readSequence = -1;
+    private int unchangedPolls;
+
+    public SequenceChangeFeed(Logger logger)
+    {
+        this.logger = logger;
+        this.storage = new ChangeSequenceStorage(logger);
+    }
+
+    @Override public void start(Listener listener) throws RaplaException
+    {
+    }
+
+    @Override public void publish(Connection connection) throws SQLException
+    {
+        storage.setConnection(connection, null);
+        try
+        {
+            storage.increment();
+        }
+        finally
+        {
+            storage.removeConnection();
+        }
+    }
+
+    @Override public boolean hasChanges(Connection connection) throws SQLException
+    {
+        final long sequence;
+        storage.setConnection(connection, null);
+        try
+        {
+            sequence = storage.readSequence();
+        }
+        finally
+        {
+            storage.removeConnection();
+        }
+        readSequence = sequence;
+        unchangedPolls++;
+        if (sequence != lastSequence || unchangedPolls >= FULL_REFRESH_POLLS)
+        {
+            unchangedPolls = 0;
+            return true;
+        }
+        return false;
+    }
+
+    @Override public void refreshed()
+    {
+        lastSequence = readSequence;
+    }
+
+    @Override public void invalidate()
+    {
+        lastSequence = -1;
+    }
+
+    @Override public void stop()
+    {
+    }
+}
@@ -0,0 +1,203 @@
+package org.rapla.storage.dbsql;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Wraps a connection, so that prepared statements are reused as long as the connection is open.
+ * When the caller closes a prepared statement it stays open and is returned again by the next prepareStatement call with the same sql.
+ * If the statement for the sql is still in use, a new statement is prepared that isn't cached.
+ * All statements are closed together with the connection. Prepare and execute calls are counted in the {@link StatementStatistics}.
+ */
+final class StatementCache implements InvocationHandler
+{
+    /** more statements are not cached */
+    static final int MAX_CACHED_STATEMENTS = 100;
+
+    private final Connection connection;
+    private final StatementStatistics statistics;
+    private final Map<String, StatementHandler> cachedStatements = new HashMap<String, StatementHandler>();
+    private Connection proxy;
+
+    private StatementCache(Connection connection, StatementStatistics statistics)
+    {
+        this.connection = connection;
+        this.statistics = statistics;
+    }
+
+    static Connection wrap(Connection connection, StatementStatistics statistics)
+    {
+        final StatementCache cache = new StatementCache(connection, statistics);
+        cache.proxy = (Connection) Proxy.newProxyInstance(StatementCache.class.getClassLoader(), new Class[] { Connection.class }, cache);
+        return cache.proxy;
+    }
+
+    @Override public Object invoke(Object proxy, Method method, Object[] args) throws Throwable
+    {
+        final String name = method.getName();
+        if (name.equals("equals"))
+        {
+            return proxy == args[0];
+        }
+        if (name.equals("hashCode"))
+        {
+            return System.identityHashCode(proxy);
+        }
+        if (name.equals("prepareStatement") && args.length == 1)
+        {
+            return prepare((String) args[0]);
+        }
+        if (name.equals("close"))
+        {
+            closeStatements();
+        }
+        final Object result = invokeTarget(connection, method, args);
+        if (result instanceof Statement)
+        {
+            // statements with other parameters and plain statements are only counted
+            statistics.prepared();
+            return new StatementHandler((Statement) result, method.getReturnType(), false).proxy;
+        }
+        return result;
+    }
+
+    synchronized private Statement prepare(String sql) throws SQLException
+    {
+        StatementHandler cached = cachedStatements.get(sql);
+        if (cached != null && !cached.inUse)
+        {
+            statistics.reused();
+            cached.inUse = true;
+            return cached.proxy;
+        }
+        final PreparedStatement statement = connection.prepareStatement(sql);
+        statistics.prepared();
+        final boolean cache = cached == null && cachedStatements.size() < MAX_CACHED_STATEMENTS;
+        final StatementHandler handler = new StatementHandler(statement, PreparedStatement.class, cache);
+        if (cache)
+        {
+            handler.inUse = true;
+            cachedStatements.put(sql, handler);
+        }
+        return handler.proxy;
+    }
+
+    synchronized private void closeStatements()
+    {
+        for (StatementHandler handler : new ArrayList<StatementHandler>(cachedStatements.values()))
+        {
+            handler.close();
+        }
+        cachedStatements.clear();
+    }
+
+    synchronized private void release(StatementHandler handler)
+    {
+        try
+        {
+            handler.closeResultSet();
+            final PreparedStatement statement = (PreparedStatement) handler.statement;
+            statement.clearParameters();
+            statement.clearBatch();
+            handler.inUse = false;
+        }
+        catch (SQLException ex)
+        {
+            cachedStatements.values().remove(handler);
+            handler.close();
+        }
+    }
+
+    private static Object invokeTarget(Object target, Method method, Object[] args) throws Throwable
+    {
+        try
+        {
+            return method.invoke(target, args);
+        }
+        catch (InvocationTargetException ex)
+        {
+            throw ex.getCause();
+        }
+    }
+
+    private final class StatementHandler implements InvocationHandler
+    {
+        final Statement statement;
+        final Statement proxy;
+        final boolean cached;
+        boolean inUse;
+        ResultSet resultSet;
+
+        StatementHandler(Statement statement, Class<?> type, boolean cached)
+        {
+            this.statement = statement;
+            this.cached = cached;
+            this.proxy = (Statement) Proxy.newProxyInstance(StatementCache.class.getClassLoader(), new Class[] { type }, this);
+        }
+
+        @Override public Object invoke(Object proxy, Method method, Object[] args) throws Throwable
+        {
+            final String name = method.getName();
+            if (name.equals("equals"))
+            {
+                return proxy == args[0];
+            }
+            if (name.equals("hashCode"))
+            {
+                return System.identityHashCode(proxy);
+            }
+            if (name.equals("close") && cached)
+            {
+                release(this);
+                return null;
+            }
+            if (name.equals("getConnection"))
+            {
+                return StatementCache.this.proxy;
+            }
+            if (name.startsWith("execute"))
+            {
+                statistics.executed();
+            }
+            final Object result = invokeTarget(statement, method, args);
+            if (cached && name.equals("executeQuery"))
+            {
+                // the result set of a reused statement would otherwise stay open until the statement is executed again
+                resultSet = (ResultSet) result;
+            }
+            return result;
+        }
+
+        void closeResultSet() throws SQLException
+        {
+            if (resultSet != null)
+            {
+                final ResultSet toClose = resultSet;
+                resultSet = null;
+                toClose.close();
+            }
+        }
+
+        void close()
+        {
+            try
+            {
+                statement.close();
+            }
+            catch (SQLException ex)
+            {
+                // the connection is closed anyway
+            }
+        }
+    }
+}
@@ -0,0 +1,48 @@
+package org.rapla.storage.dbsql;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/** Counts the statements that are prepared, reused from a {@link StatementCache} and executed by a {@link DBOperator}. */
+public class StatementStatistics
+{
+    private final AtomicLong prepared = new AtomicLong();
+    private final AtomicLong reused = new AtomicLong();
+    private final AtomicLong executed = new AtomicLong();
+
+    void prepared()
+    {
+        prepared.incrementAndGet();
+    }
+
+    void reused()
+    {
+        reused.incrementAndGet();
+    }
+
+    void executed()
+    {
+        executed.incrementAndGet();
+    }
+
+    /** the number of statements that were created or prepared by the database */
+    public long getPrepareCount()
+    {
+        return prepared.get();
+    }
+
+    /** the number of prepared statements that were taken from the cache instead of being prepared again */
+    public long getReuseCount()
+    {
+        return reused.get();
+    }
+
+    public long getExecuteCount()
+    {
+        return executed.get();
+    }
+
+    @Override public String toString()
+    {
+        return "prepared " + getPrepareCount() + ", reused " + getReuseCount() + ", executed " + getExecuteCount();
+    }
+}
@@ -1,12 +1,14 @@
 package org.rapla.storage.impl.server;
 
 import java.util.Collection;
+import java.util.Date;
 import java.util.SortedSet;
 
 import org.rapla.entities.domain.Allocatable;
 import org.rapla.entities.domain.Appointment;
 
 public interface AllocationMap {
-	SortedSet<Appointment> getAppointments(Allocatable allocatable);
+	/** returns the appointments of the allocatable that could overlap the interval. Pass null for an open start or end*/
+	SortedSet<Appointment> getAppointments(Allocatable allocatable, Date start, Date end);
 	Collection<Allocatable> getAllocatables();
 }
@@ -0,0 +1,338 @@
+package org.rapla.storage.impl.server;
+
+import java.util.AbstractCollection;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.Date;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Random;
+
+import org.rapla.entities.domain.Appointment;
+import org.rapla.entities.domain.AppointmentStartComparator;
+
+/**
+ *  The <tt>AppointmentIntervalTree</tt> stores the appointments of one allocatable in
+ *  a randomized binary search tree, ordered by the {@link AppointmentStartComparator}.
+ *  Every node is augmented with the largest {@link Appointment#getMaxEnd()} of its subtree,
+ *  appointments that repeat forever count as infinite.
+ *  <p>
+ *  A query for all appointments that can overlap an interval only descends into subtrees that
+ *  can contain a candidate, so appointments that end before the interval are not visited at all.
+ *  The exact overlap test (exceptions, repeating gaps) is left to the caller.
+ *  <p>
+ *  Start and max end are cached in the nodes, so only immutable appointments must be added.
+ *  <p>
+ *  Based on the IntervalST from <i>Algorithms, 4th Edition</i> by Robert Sedgewick and Kevin Wayne.
+ */
+class AppointmentIntervalTree extends AbstractCollection<Appointment>
+{
+    private final Comparator<Appointment> comparator = new AppointmentStartComparator();
+    private final Random random = new Random();
+    private Node root;
+
+    private static final class Node
+    {
+        final Appointment appointment;
+        final long start;
+        final long maxEnd;
+        long subtreeMaxEnd;
+        int size = 1;
+        Node left;
+        Node right;
+
+        Node(Appointment appointment)
+        {
+            this.appointment = appointment;
+            this.start = appointment.getStart().getTime();
+            final Date maxEnd = appointment.getMaxEnd();
+            this.maxEnd = maxEnd != null ? maxEnd.getTime() : Long.MAX_VALUE;
+            this.subtreeMaxEnd = this.maxEnd;
+        }
+    }
+
+    @Override public int size()
+    {
+        return size(root);
+    }
+
+    @Override public boolean isEmpty()
+    {
+        return root == null;
+    }
+
+    @Override public boolean contains(Object o)
+    {
+        return find(o) != null;
+    }
+
+    private Node find(Object o)
+    {
+        if (!(o instanceof Appointment))
+        {
+            return null;
+        }
+        final Appointment appointment = (Appointment) o;
+        final long start = appointment.getStart().getTime();
+        Node x = root;
+        while (x != null)
+        {
+            int cmp = compare(start, appointment, x);
+            if (cmp == 0)
+            {
+                return x;
+            }
+            x = cmp < 0 ? x.left : x.right;
+        }
+        return null;
+    }
+
+    @Override public boolean add(Appointment appointment)
+    {
+        if (contains(appointment))
+        {
+            return false;
+        }
+        root = add(root, new Node(appointment));
+        return true;
+    }
+
+    /** removes the appointment, if it is found with its current start. Use the iterator to remove an appointment that changed since it was added. */
+    @Override public boolean remove(Object o)
+    {
+        final Node node = find(o);
+        if (node == null)
+        {
+            return false;
+        }
+        root = remove(root, node);
+        return true;
+    }
+
+    @Override public void clear()
+    {
+        root = null;
+    }
+
+    /** iterates over a snapshot of the appointments in start order. Removing via the iterator removes the returned node, even if its appointment changed. */
+    @Override public Iterator<Appointment> iterator()
+    {
+        final List<Node> snapshot = new ArrayList<Node>(size());
+        collectNodes(root, snapshot);
+        final Iterator<Node> it = snapshot.iterator();
+        return new Iterator<Appointment>()
+        {
+            Node last;
+
+            @Override public boolean hasNext()
+            {
+                return it.hasNext();
+            }
+
+            @Override public Appointment next()
+            {
+                last = it.next();
+                return last.appointment;
+            }
+
+            @Override public void remove()
+            {
+                if (last == null)
+                {
+                    throw new IllegalStateException();
+                }
+                root = AppointmentIntervalTree.this.remove(root, last);
+                last = null;
+            }
+        };
+    }
+
+    /** adds all appointments, that start not after end and whose max end is not before start, in start order to the result.
+     * Pass null for an open start or end. */
+    public void query(Date start, Date end, Collection<Appointment> result)
+    {
+        final long s = start != null ? start.getTime() : Long.MIN_VALUE;
+        final long e = end != null ? end.getTime() : Long.MAX_VALUE;
+        query(root, s, e, result);
+    }
+
+    private void query(Node x, long start, long end, Collection<Appointment> result)
+    {
+        if (x == null || x.subtreeMaxEnd < start)
+        {
+            return;
+        }
+        query(x.left, start, end, result);
+        // all appointments in the right subtree start at least as late as this one
+        if (x.start > end)
+        {
+            return;
+        }
+        if (x.maxEnd >= start)
+        {
+            result.add(x.appointment);
+        }
+        query(x.right, start, end, result);
+    }
+
+    private void collectNodes(Node x, Collection<Node> result)
+    {
+        if (x == null)
+        {
+            return;
+        }
+        collectNodes(x.left, result);
+        result.add(x);
+        collectNodes(x.right, result);
+    }
+
+    // the cached start of the nodes orders the tree, so a changed appointment doesn't break the order of the other nodes
+    private int compare(long start, Appointment appointment, Node x)
+    {
+        if (start != x.start)
+        {
+            return start < x.start ? -1 : 1;
+        }
+        return comparator.compare(appointment, x.appointment);
+    }
+
+    // make the new node the root with probability 1/(N+1)
+    private Node add(Node x, Node node)
+    {
+        if (x == null)
+        {
+            return node;
+        }
+        if (random.nextInt(x.size + 1) == 0)
+        {
+            return rootInsert(x, node);
+        }
+        int cmp = compare(node.start, node.appointment, x);
+        if (cmp < 0)
+        {
+            x.left = add(x.left, node);
+        }
+        else
+        {
+            x.right = add(x.right, node);
+        }
+        fix(x);
+        return x;
+    }
+
+    private Node rootInsert(Node x, Node node)
+    {
+        if (x == null)
+        {
+            return node;
+        }
+        int cmp = compare(node.start, node.appointment, x);
+        if (cmp < 0)
+        {
+            x.left = rootInsert(x.left, node);
+            x = rotR(x);
+        }
+        else
+        {
+            x.right = rootInsert(x.right, node);
+            x = rotL(x);
+        }
+        return x;
+    }
+
+    // removes the node by identity. Nodes with the same start can be in both subtrees
+    private Node remove(Node x, Node node)
+    {
+        if (x == null)
+        {
+            return null;
+        }
+        if (x == node)
+        {
+            x = joinLR(x.left, x.right);
+        }
+        else if (node.start < x.start)
+        {
+            x.left = remove(x.left, node);
+        }
+        else if (node.start > x.start)
+        {
+            x.right = remove(x.right, node);
+        }
+        else
+        {
+            x.left = remove(x.left, node);
+            x.right = remove(x.right, node);
+        }
+        fix(x);
+        return x;
+    }
+
+    // join the two subtrees a and b, all keys of a are smaller than the keys of b
+    private Node joinLR(Node a, Node b)
+    {
+        if (a == null)
+        {
+            return b;
+        }
+        if (b == null)
+        {
+            return a;
+        }
+        if (random.nextInt(size(a) + size(b)) < size(a))
+        {
+            a.right = joinLR(a.right, b);
+            fix(a);
+            return a;
+        }
+        else
+        {
+            b.left = joinLR(a, b.left);
+            fix(b);
+            return b;
+        }
+    }
+
+    private static int size(Node x)
+    {
+        return x == null ? 0 : x.size;
+    }
+
+    private static long subtreeMaxEnd(Node x)
+    {
+        return x == null ? Long.MIN_VALUE : x.subtreeMaxEnd;
+    }
+
+    // recompute size and max end of the subtree from the children
+    private static void fix(Node x)
+    {
+        if (x == null)
+        {
+            return;
+        }
+        x.size = 1 + size(x.left) + size(x.right);
+        x.subtreeMaxEnd = Math.max(x.maxEnd, Math.max(subtreeMaxEnd(x.left), subtreeMaxEnd(x.right)));
+    }
+
+    private static Node rotR(Node h)
+    {
+        Node x = h.left;
+        h.left = x.right;
+        x.right = h;
+        fix(h);
+        fix(x);
+        return x;
+    }
+
+    private static Node rotL(Node h)
+    {
+        Node x = h.right;
+        h.right = x.left;
+        x.left = h;
+        fix(h);
+        fix(x);
+        return x;
+    }
+
+}
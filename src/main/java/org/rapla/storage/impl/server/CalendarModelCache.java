@@ -16,12 +16,18 @@ import java.util.concurrent.locks.ReentrantReadWriteLock;
 
 import org.rapla.RaplaResources;
 import org.rapla.components.util.TimeInterval;
+import org.rapla.entities.Category;
 import org.rapla.entities.Entity;
 import org.rapla.entities.User;
 import org.rapla.entities.configuration.CalendarModelConfiguration;
 import org.rapla.entities.configuration.Preferences;
 import org.rapla.entities.domain.Allocatable;
 import org.rapla.entities.domain.Appointment;
+import org.rapla.entities.domain.Reservation;
+import org.rapla.entities.domain.internal.ReservationImpl;
+import org.rapla.entities.dynamictype.Classification;
+import org.rapla.entities.dynamictype.ClassificationFilter;
+import org.rapla.entities.dynamictype.DynamicType;
 import org.rapla.entities.storage.ReferenceInfo;
 import org.rapla.facade.RaplaComponent;
 import org.rapla.facade.internal.CalendarModelImpl;
@@ -37,11 +43,93 @@ public class CalendarModelCache
 {
     private final ReadWriteLock lock = new ReentrantReadWriteLock();
 
-    private final Map<ReferenceInfo<User>, List<CalendarModelImpl>> calendarModels = new HashMap<ReferenceInfo<User>, List<CalendarModelImpl>>();
+    private final Map<ReferenceInfo<User>, List<Subscription>> calendarModels = new HashMap<ReferenceInfo<User>, List<Subscription>>();
+    /** maps the id of an allocatable to the exported calendars that show the allocatable */
+    private final Map<String, Set<Subscription>> allocatableIndex = new HashMap<String, Set<Subscription>>();
+    /** maps the id of an event type to the exported calendars without an allocatable that show events of the type */
+    private final Map<String, Set<Subscription>> eventTypeIndex = new HashMap<String, Set<Subscription>>();
+    /** the exported calendars without an allocatable that show events of all types */
+    private final Set<Subscription> allEventTypesIndex = new HashSet<Subscription>();
+    /** set if an allocatable, a dynamic type or a category changed, so the allocatables of the calendars must be collected again */
+    private boolean indexOutdated;
+    private int changeCount;
     final CachableStorageOperator operator;
     final RaplaResources i18n;
     final Logger logger;
 
+    /** an exported calendar of a user with the ids of the allocatables and the filters of the event types it shows */
+    public static final class Subscription
+    {
+        final ReferenceInfo<User> userId;
+        final CalendarModelImpl model;
+        final Set<String> allocatableIds = new HashSet<String>();
+        final boolean allEventTypes;
+        final Map<String, ClassificationFilter> eventFilters = new HashMap<String, ClassificationFilter>();
+
+        public Subscription(ReferenceInfo<User> userId, CalendarModelImpl model) throws RaplaException
+        {
+            this.userId = userId;
+            this.model = model;
+            for (Allocatable allocatable : model.getAllAllocatables())
+            {
+                allocatableIds.add(allocatable.getId());
+            }
+            allEventTypes = model.isDefaultEventTypes();
+            if (!allEventTypes)
+            {
+                for (ClassificationFilter filter : model.getReservationFilter())
+                {
+                    eventFilters.put(filter.getType().getId(), filter);
+                }
+            }
+        }
+
+        public ReferenceInfo<User> getUserId()
+        {
+            return userId;
+        }
+
+        public CalendarModelImpl getModel()
+        {
+            return model;
+        }
+
+        /** returns true if the calendar shows the events of an allocatable of the reservation and of its type.
+         * The allocatables of the reservation are compared by their ids, so the reservation can also be a version from the history. */
+        public boolean isMatching(Reservation reservation)
+        {
+            if (!allocatableIds.isEmpty() && !containsAny(allocatableIds, ((ReservationImpl) reservation).getIds("resources")))
+            {
+                return false;
+            }
+            return isMatchingFilter(reservation);
+        }
+
+        private static boolean containsAny(Set<String> ids, Collection<String> otherIds)
+        {
+            for (String id : otherIds)
+            {
+                if (ids.contains(id))
+                {
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        /** same as the event filter check in {@link CalendarModelImpl#isMatchingSelectionAndFilter(Reservation, Appointment)} */
+        boolean isMatchingFilter(Reservation reservation)
+        {
+            if (allEventTypes)
+            {
+                return true;
+            }
+            final Classification classification = reservation.getClassification();
+            final ClassificationFilter filter = eventFilters.get(classification.getType().getId());
+            return filter != null && filter.matches(classification);
+        }
+    }
+
     public CalendarModelCache(CachableStorageOperator operator, RaplaResources i18n, Logger logger)
     {
         this.operator = operator;
@@ -54,7 +142,140 @@ public class CalendarModelCache
         Lock lock = writeLock();
         try
         {
-            this.calendarModels.remove(userId);
+            putSubscriptions(userId, Collections.<Subscription>emptyList());
+        }
+        finally
+        {
+            RaplaComponent.unlock(lock);
+        }
+    }
+
+    /** replaces the exported calendars of the user in the index. Must be called with the write lock */
+    private void putSubscriptions(ReferenceInfo<User> userId, List<Subscription> subscriptions)
+    {
+        final List<Subscription> oldSubscriptions = subscriptions.isEmpty() ? calendarModels.remove(userId) : calendarModels.put(userId, subscriptions);
+        if (oldSubscriptions != null)
+        {
+            for (Subscription subscription : oldSubscriptions)
+            {
+                removeFromIndex(subscription);
+            }
+        }
+        for (Subscription subscription : subscriptions)
+        {
+            addToIndex(subscription);
+        }
+    }
+
+    private void addToIndex(Subscription subscription)
+    {
+        if (!subscription.allocatableIds.isEmpty())
+        {
+            for (String allocatableId : subscription.allocatableIds)
+            {
+                Set<Subscription> set = allocatableIndex.get(allocatableId);
+                if (set == null)
+                {
+                    set = new HashSet<Subscription>();
+                    allocatableIndex.put(allocatableId, set);
+                }
+                set.add(subscription);
+            }
+        }
+        // a calendar without allocatables shows the events of all allocatables
+        else if (subscription.allEventTypes)
+        {
+            allEventTypesIndex.add(subscription);
+        }
+        else
+        {
+            for (String eventTypeId : subscription.eventFilters.keySet())
+            {
+                Set<Subscription> set = eventTypeIndex.get(eventTypeId);
+                if (set == null)
+                {
+                    set = new HashSet<Subscription>();
+                    eventTypeIndex.put(eventTypeId, set);
+                }
+                set.add(subscription);
+            }
+        }
+    }
+
+    private void removeFromIndex(Subscription subscription)
+    {
+        if (!subscription.allocatableIds.isEmpty())
+        {
+            removeFromIndex(allocatableIndex, subscription.allocatableIds, subscription);
+        }
+        else if (subscription.allEventTypes)
+        {
+            allEventTypesIndex.remove(subscription);
+        }
+        else
+        {
+            removeFromIndex(eventTypeIndex, subscription.eventFilters.keySet(), subscription);
+        }
+    }
+
+    private static void removeFromIndex(Map<String, Set<Subscription>> index, Collection<String> ids, Subscription subscription)
+    {
+        for (String id : ids)
+        {
+            final Set<Subscription> set = index.get(id);
+            if (set != null && set.remove(subscription) && set.isEmpty())
+            {
+                index.remove(id);
+            }
+        }
+    }
+
+    /** collects the allocatables of the exported calendars again, if an allocatable, a dynamic type or a category changed since the last call */
+    private void validateIndex() throws RaplaException
+    {
+        final Map<ReferenceInfo<User>, List<Subscription>> outdated;
+        final int count;
+        Lock lock = readLock();
+        try
+        {
+            if (!indexOutdated)
+            {
+                return;
+            }
+            outdated = new HashMap<ReferenceInfo<User>, List<Subscription>>(calendarModels);
+            count = changeCount;
+        }
+        finally
+        {
+            RaplaComponent.unlock(lock);
+        }
+        // the allocatables are collected outside of the lock, because the calendar models need the lock of the operator
+        final Map<ReferenceInfo<User>, List<Subscription>> updated = new HashMap<ReferenceInfo<User>, List<Subscription>>();
+        for (Map.Entry<ReferenceInfo<User>, List<Subscription>> entry : outdated.entrySet())
+        {
+            final List<Subscription> subscriptions = new ArrayList<Subscription>();
+            for (Subscription subscription : entry.getValue())
+            {
+                subscriptions.add(new Subscription(subscription.userId, subscription.model));
+            }
+            updated.put(entry.getKey(), subscriptions);
+        }
+        lock = writeLock();
+        try
+        {
+            for (Map.Entry<ReferenceInfo<User>, List<Subscription>> entry : updated.entrySet())
+            {
+                final ReferenceInfo<User> userId = entry.getKey();
+                // the calendars of the user could have been replaced in the meantime
+                if (calendarModels.get(userId) == outdated.get(userId))
+                {
+                    putSubscriptions(userId, entry.getValue());
+                }
+            }
+            if (changeCount == count)
+            {
+                indexOutdated = false;
+            }
         }
         finally
         {
@@ -74,36 +295,20 @@ public class CalendarModelCache
      */
     private void updateCalendarMap(User user) throws RaplaException
     {
-        final List<CalendarModelImpl> calendarModelList = new ArrayList<CalendarModelImpl>();
+        final List<Subscription> calendarModelList = new ArrayList<Subscription>();
         final boolean createIfNotNull = false;
         final ReferenceInfo<User> userId = user.getReference();
         final Preferences preferences = operator.getPreferences(user, createIfNotNull);
         if (preferences == null)
         {
-            final Lock lock = writeLock();
-            try
-            {
-                this.calendarModels.remove(userId);
-            }
-            finally
-            {
-                RaplaComponent.unlock(lock);
-            }
+            removeCalendarModelFor(userId);
             return; //calendarModelList;
         }
         final CalendarModelConfiguration modelConfig = preferences.getEntry(CalendarModelConfiguration.CONFIG_ENTRY);
         final Map<String, CalendarModelConfiguration> exportMap = preferences.getEntry(CalendarModelConfiguration.EXPORT_ENTRY);
         if (modelConfig == null && exportMap == null)
         {
-            final Lock lock = writeLock();
-            try
-            {
-                this.calendarModels.remove(userId);
-            }
-            finally
-            {
-                RaplaComponent.unlock(lock);
-            }
+            removeCalendarModelFor(userId);
             return;// calendarModelList;
         }
         final List<CalendarModelConfiguration> configList = new ArrayList<CalendarModelConfiguration>();
@@ -128,7 +333,7 @@ public class CalendarModelCache
                     calendarModelImpl = new CalendarModelImpl(locale, user, operator,logger);
                     Map<String, String> alternativOptions = null;
                     calendarModelImpl.setConfiguration(config, alternativOptions);
-                    calendarModelList.add(calendarModelImpl);
+                    calendarModelList.add(new Subscription(userId, calendarModelImpl));
                 }
 
             }
@@ -137,14 +342,7 @@ public class CalendarModelCache
         final Lock lock = writeLock();
         try
         {
-            if (calendarModelList.size() > 0)
-            {
-                this.calendarModels.put(userId, calendarModelList);
-            }
-            else
-            {
-                this.calendarModels.remove(userId);
-            }
+            putSubscriptions(userId, calendarModelList);
         }
         finally
         {
@@ -157,24 +355,26 @@ public class CalendarModelCache
     public Collection<ReferenceInfo<User>> findMatchingUser(Appointment appointment) throws RaplaException
     {
         Set<ReferenceInfo<User>> result = new HashSet<ReferenceInfo<User>>();
+        final Reservation reservation = appointment.getReservation();
+        if (reservation == null)
+        {
+            return result;
+        }
+        final Allocatable[] allocatables = reservation.getAllocatablesFor(appointment);
+        final String eventTypeId = reservation.getClassification().getType().getId();
+        validateIndex();
         Lock lock = readLock();
         try
         {
-            for (ReferenceInfo<User> userId : calendarModels.keySet())
+            // TODO check wether the user can see the appointment or no
+            //
+            // only the calendars that show an allocatable of the appointment or that show all allocatables are checked
+            for (Allocatable allocatable : allocatables)
             {
-                // TODO check wether the user can see the appointment or no
-                //
-                List<CalendarModelImpl> list = calendarModels.get(userId);
-                for (CalendarModelImpl conf : list)
-                {
-                    if (conf.isMatchingSelectionAndFilter(appointment))
-                    {
-                        result.add(userId);
-                        break;
-                    }
-                }
+                addMatchingUsers(result, allocatableIndex.get(allocatable.getId()), reservation);
             }
-
+            addMatchingUsers(result, eventTypeIndex.get(eventTypeId), reservation);
+            addMatchingUsers(result, allEventTypesIndex, reservation);
         }
         finally
         {
@@ -183,26 +383,37 @@ public class CalendarModelCache
         return result;
     }
 
+    private void addMatchingUsers(Set<ReferenceInfo<User>> result, Collection<Subscription> subscriptions, Reservation reservation)
+    {
+        if (subscriptions == null)
+        {
+            return;
+        }
+        for (Subscription subscription : subscriptions)
+        {
+            if (!result.contains(subscription.userId) && subscription.isMatchingFilter(reservation))
+            {
+                result.add(subscription.userId);
+            }
+        }
+    }
+
     // checks all exports if appointment is still in on of the exported calendars (check eslected resources)
     public Collection<ReferenceInfo<User>> findMatchingUsers(Allocatable allocatable) throws RaplaException
     {
         Set<ReferenceInfo<User>> result = new HashSet<ReferenceInfo<User>>();
+        validateIndex();
         Lock lock = readLock();
         try
         {
-            for (ReferenceInfo<User> userId : calendarModels.keySet())
+            final Set<Subscription> subscriptions = allocatableIndex.get(allocatable.getId());
+            if (subscriptions != null)
             {
-                List<CalendarModelImpl> list = calendarModels.get(userId);
-                for (CalendarModelImpl model : list)
+                for (Subscription subscription : subscriptions)
                 {
-                    if (model.getAllAllocatables().contains(allocatable))
-                    {
-                        result.add(userId);
-                        break;
-                    }
+                    result.add(subscription.userId);
                 }
             }
-
         }
         finally
         {
@@ -215,7 +426,7 @@ public class CalendarModelCache
     public Collection<Appointment> getAppointments(ReferenceInfo<User> userId, TimeInterval syncRange) throws RaplaException
     {
         final Lock lock = readLock();
-        List<CalendarModelImpl> calendarModelList;
+        List<Subscription> calendarModelList;
         try
         {
             calendarModelList = calendarModels.get(userId);
@@ -229,8 +440,9 @@ public class CalendarModelCache
             return Collections.emptySet();
         }
         Collection<Appointment> appointments = new LinkedHashSet<Appointment>();
-        for (CalendarModelImpl calendarModelImpl : calendarModelList)
+        for (Subscription subscription : calendarModelList)
         {
+            final CalendarModelImpl calendarModelImpl = subscription.model;
             // check if filter or calendar selection changes so that we need to add or remove events from the exchange calendar
             appointments.addAll(PromiseSynchroniser.waitForWithRaplaException(calendarModelImpl.queryAppointments(syncRange), 10000));
         }
@@ -247,6 +459,8 @@ public class CalendarModelCache
 
     public  void synchronizeCalendars(UpdateResult evt) throws RaplaException
     {
+        final Set<ReferenceInfo<User>> changedUsers = new LinkedHashSet<ReferenceInfo<User>>();
+        boolean allocatablesChanged = false;
         for (UpdateOperation operation : evt.getOperations())
         {
             final Class<? extends Entity> raplaType = operation.getType();
@@ -273,8 +487,7 @@ public class CalendarModelCache
                     ReferenceInfo<User> ownerId = preferences.getOwnerRef();
                     if (ownerId != null)
                     {
-                        User owner = operator.resolve(ownerId);
-                        updateCalendarMap(owner);
+                        changedUsers.add(ownerId);
                     }
                     // FIXME if export is removed from a calendar we can remove calendar model from cache
                     // removeCalendarModelFor(ownerId);
@@ -282,11 +495,40 @@ public class CalendarModelCache
             }
             else if (raplaType == User.class)
             {
+                ReferenceInfo<User> userId = operation.getReference();
                 if (operation instanceof UpdateResult.Remove)
                 {
-                    ReferenceInfo<User> userId = operation.getReference();
+                    changedUsers.remove(userId);
                     removeCalendarModelFor(userId);
                 }
+                // the groups of the user decide which allocatables the calendars of the user show
+                else if (operation instanceof UpdateResult.Change)
+                {
+                    changedUsers.add(userId);
+                }
+            }
+            else if (raplaType == Allocatable.class || raplaType == DynamicType.class || raplaType == Category.class)
+            {
+                allocatablesChanged = true;
+            }
+        }
+        for (ReferenceInfo<User> userId : changedUsers)
+        {
+            User user = operator.resolve(userId);
+            updateCalendarMap(user);
+        }
+        if (allocatablesChanged)
+        {
+            // the allocatables of all calendars are collected with the next request
+            final Lock lock = writeLock();
+            try
+            {
+                indexOutdated = true;
+                changeCount++;
+            }
+            finally
+            {
+                RaplaComponent.unlock(lock);
             }
         }
     }
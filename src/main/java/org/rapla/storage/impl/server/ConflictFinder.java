@@ -21,9 +21,13 @@ import java.util.HashSet;
 import java.util.Iterator;
 import java.util.LinkedHashMap;
 import java.util.LinkedHashSet;
-import java.util.LinkedList;
+import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
 
 import org.rapla.components.util.DateTools;
 import org.rapla.entities.User;
@@ -53,22 +57,111 @@ class ConflictFinder {
     Logger logger;
     EntityResolver resolver;
     private final PermissionController permissionController;
+    /** minimal number of allocatables in a calculation, that is split among multiple threads */
+    static final int PARALLEL_THRESHOLD = 8;
+    private final ExecutorService executor;
+
     public ConflictFinder( AllocationMap  allocationMap, Date today, Logger logger, EntityResolver resolver,  PermissionController permissionController)  {
+        this( allocationMap, today, logger, resolver, permissionController, null);
+    }
+
+    /** @param executor the executor that calculates the conflicts of different allocatables in parallel. It is owned by the caller and not shut down by the finder.
+     * null calculates all conflicts in the calling thread */
+    public ConflictFinder( AllocationMap  allocationMap, Date today, Logger logger, EntityResolver resolver,  PermissionController permissionController, ExecutorService executor)  {
     	this.logger = logger;
     	this.allocationMap = allocationMap;
         this.permissionController = permissionController;
+        this.resolver = resolver;
+        this.executor = executor;
     	conflictMap = new HashMap<ReferenceInfo<Allocatable>, Map<ReferenceInfo<Conflict>,Conflict>>();
     	long startTime = System.currentTimeMillis();
     	int conflictSize = 0;
+        List<ConflictCalculation> calculations = new ArrayList<ConflictCalculation>();
         for (Allocatable allocatable:allocationMap.getAllocatables())
 		{
-        	Map<ReferenceInfo<Conflict>,Conflict> newConflicts = calculateConflicts(allocatable, today);
-        	conflictMap.put( allocatable.getReference(), newConflicts);
-        	conflictSize+= newConflicts.size();
+            calculations.add( new ConflictCalculation( allocatable, today, null, null));
 		}
+        List<Map<ReferenceInfo<Conflict>,Conflict>> results = calculate( calculations);
+        for (int i=0;i<calculations.size();i++)
+        {
+            Map<ReferenceInfo<Conflict>,Conflict> newConflicts = results.get( i);
+            conflictMap.put( calculations.get( i).allocatable.getReference(), newConflicts);
+            conflictSize+= newConflicts.size();
+        }
         logger.info("Conflict initialization found " + conflictSize + " conflicts and took " + (System.currentTimeMillis()- startTime) + "ms. " ); 
-        this.resolver = resolver;
 	}
+
+    /** calculation of the conflicts of one allocatable. If change is null all conflicts are calculated, otherwise only the ones of the changed appointments */
+    private final class ConflictCalculation implements Callable<Map<ReferenceInfo<Conflict>,Conflict>>
+    {
+        final Allocatable allocatable;
+        final AllocationChange change;
+        final Map<ReferenceInfo<Conflict>,Conflict> conflictsBefore;
+        final Date today;
+
+        ConflictCalculation(Allocatable allocatable, Date today, AllocationChange change, Map<ReferenceInfo<Conflict>, Conflict> conflictsBefore)
+        {
+            this.allocatable = allocatable;
+            this.today = today;
+            this.change = change;
+            this.conflictsBefore = conflictsBefore;
+        }
+
+        @Override public Map<ReferenceInfo<Conflict>, Conflict> call()
+        {
+            if ( allocatable == null)
+            {
+                return Collections.emptyMap();
+            }
+            if ( change == null)
+            {
+                return calculateConflicts( allocatable, today);
+            }
+            return calculateConflicts( allocatable, today, conflictsBefore, change);
+        }
+    }
+
+    /** calculates the conflicts of all allocatables and returns the results in the order of the calculations.
+     * The conflicts of an allocatable don't depend on other allocatables, so larger batches are split among the threads of the executor. This only reads from
+     * the allocation map, so the caller must ensure that the storage is not modified during the calculation. */
+    private List<Map<ReferenceInfo<Conflict>,Conflict>> calculate(List<ConflictCalculation> calculations)
+    {
+        List<Map<ReferenceInfo<Conflict>,Conflict>> results = new ArrayList<Map<ReferenceInfo<Conflict>,Conflict>>( calculations.size());
+        if ( executor == null || calculations.size() < PARALLEL_THRESHOLD)
+        {
+            for (ConflictCalculation calculation:calculations)
+            {
+                results.add( calculation.call());
+            }
+            return results;
+        }
+        try
+        {
+            for (Future<Map<ReferenceInfo<Conflict>,Conflict>> future:executor.invokeAll( calculations))
+            {
+                results.add( future.get());
+            }
+        }
+        catch (InterruptedException e)
+        {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Conflict calculation interrupted", e);
+        }
+        catch (ExecutionException e)
+        {
+            final Throwable cause = e.getCause();
+            if ( cause instanceof RuntimeException)
+            {
+                throw (RuntimeException) cause;
+            }
+            if ( cause instanceof Error)
+            {
+                throw (Error) cause;
+            }
+            throw new IllegalStateException( cause);
+        }
+        return results;
+    }
     
     public Conflict findConflict(ReferenceInfo<Conflict> ref)
     {
@@ -101,7 +194,8 @@ class ConflictFinder {
         {
             return Collections.emptyMap();
         }
-        Set<Appointment> allAppointments = allocationMap.getAppointments(allocatable);
+        // appointments that end before today can't produce new conflicts
+        Set<Appointment> allAppointments = allocationMap.getAppointments(allocatable, today, null);
 //        Set<Appointment> changedAppointments;
 //        Set<Appointment> removedAppointments;
 //        if ( change == null)
@@ -141,6 +235,73 @@ class ConflictFinder {
     }
 
 
+    /** patches the conflicts of the allocatable for the changed appointments only. All conflicts that contain a changed or removed appointment
+     * are dropped and then the blocks of the changed appointments are checked against the appointments of the allocatable that
+     * could overlap them. The other conflicts are kept, so the result is the same as in {@link #calculateConflicts(Allocatable, Date)}
+     * without expanding all appointments of the allocatable.*/
+    private Map<ReferenceInfo<Conflict>,Conflict> calculateConflicts(Allocatable allocatable,Date today, Map<ReferenceInfo<Conflict>,Conflict> conflictsBefore, AllocationChange change )
+    {
+        if ( isConflictIgnored(allocatable))
+        {
+            return Collections.emptyMap();
+        }
+        Set<ReferenceInfo<Appointment>> changedIds = new HashSet<ReferenceInfo<Appointment>>();
+        for (Appointment appointment:change.toRemove)
+        {
+            changedIds.add( appointment.getReference());
+        }
+        for (Appointment appointment:change.toChange)
+        {
+            changedIds.add( appointment.getReference());
+        }
+        Map<ReferenceInfo<Conflict>,Conflict> conflictList = new HashMap<ReferenceInfo<Conflict>,Conflict>();
+        for (Conflict conflict:conflictsBefore.values())
+        {
+            if ( changedIds.contains( conflict.getAppointment1()) || changedIds.contains( conflict.getAppointment2()))
+            {
+                continue;
+            }
+            conflictList.put( conflict.getReference(), conflict);
+        }
+        Collection<AppointmentBlock> changedBlocks = new ArrayList<AppointmentBlock>();
+        createBlocks(today, change.toChange, changedBlocks, null);
+        long maxCheck = getMaxCheck();
+        for (AppointmentBlock appBlock:changedBlocks)
+        {
+            final Appointment appointment1 = appBlock.getAppointment();
+            // only the part after today is checked in the full calculation
+            final Date start = new Date(Math.max( appBlock.getStart(), today.getTime()));
+            final Date end = new Date(appBlock.getEnd());
+            for (Appointment appointment2:allocationMap.getAppointments(allocatable, start, end))
+            {
+                if ( appointment1.equals( appointment2) || isIgnoredForConflicts( appointment2, today, maxCheck))
+                {
+                    continue;
+                }
+                if ( !appointment2.overlaps(start, end, true))
+                {
+                    continue;
+                }
+                String id = ConflictImpl.createId(allocatable.getReference(), appointment1.getReference(), appointment2.getReference());
+                final ReferenceInfo<Conflict> conflictRef = new ReferenceInfo<Conflict>(id, Conflict.class);
+                if ( conflictList.containsKey( conflictRef))
+                {
+                    continue;
+                }
+                if ( appointment2.overlaps(appointment1) && ConflictImpl.isConflictWithoutCheck(appointment1, appointment2, today))
+                {
+                    final ConflictImpl conflict = new ConflictImpl(allocatable,appointment1, appointment2, today, id);
+                    conflictList.put(conflict.getReference(), conflict);
+                }
+            }
+        }
+        if ( conflictList.isEmpty())
+        {
+            return Collections.emptyMap();
+        }
+        return conflictList;
+    }
+
 //    private void updateConflictsOld(Allocatable allocatable, Date today, Set<Appointment> allAppointments, Set<Appointment> changedAppointments, Set<Conflict> conflictList) {
 //        Set<String> foundConflictIds = new HashSet<String>();
 //        //SortedSet<AppointmentBlock> allAppointmentBlocksSortedByStartDescending = null;//new TreeSet<AppointmentBlock>(new InverseComparator<AppointmentBlock>(new AppointmentBlockStartComparator())); 
@@ -231,7 +392,7 @@ class ConflictFinder {
 //    }
     
     private  Map<ReferenceInfo<Conflict>,Conflict>  updateConflicts(Allocatable allocatable, Date today, Set<Appointment> allAppointments) {
-        Collection<AppointmentBlock> allAppointmentBlocks =new LinkedList<AppointmentBlock>(); 
+        Collection<AppointmentBlock> allAppointmentBlocks =new ArrayList<AppointmentBlock>();
         createBlocks(today,allAppointments,allAppointmentBlocks, null);
 //        Collection<AppointmentBlock> appointmentBlocks =  new LinkedList<AppointmentBlock>();
 //        createBlocks(today,changedAppointments,appointmentBlocks, null);
@@ -249,84 +410,9 @@ class ConflictFinder {
     }
 
 
- // helper class for events in sweep line algorithm
-    public static class Event implements Comparable<Event> {
-        long time;
-        AppointmentBlock interval;
-
-        public Event(long time, AppointmentBlock interval) {
-            this.time     = time;
-            this.interval = interval;
-        }
-
-        public int compareTo(Event b) {
-            Event a = this;
-            if      (a.time < b.time) return -1;
-            else if (a.time > b.time) return +1;
-            else                      return  0; 
-        }
-    }
-
-
     // the sweep-line algorithm
     public static Map<ReferenceInfo<Conflict>,Conflict> sweepLine(Allocatable allocatable, Date today, Collection<AppointmentBlock> intervals) {
-        Map<ReferenceInfo<Conflict>,Conflict> conflictList =  new HashMap<ReferenceInfo<Conflict>,Conflict>( );//conflictMap.get(allocatable);
-        Set<String> foundConflictIds = new HashSet<String>();
-        // generate N random intervals
-
-        // create events
-        MinPQ<Event> pq = new MinPQ<Event>();
-        for (AppointmentBlock block:intervals) {
-            Event e1 = new Event(block.getStart(),  block);
-            Event e2 = new Event(block.getEnd(), block);
-            pq.insert(e1);
-            pq.insert(e2);
-        }
-
-        // run sweep-line algorithm
-        HashSet<AppointmentBlock> st = new HashSet<AppointmentBlock>();
-        while (!pq.isEmpty()) {
-            Event e = pq.delMin();
-            long time = e.time;
-            AppointmentBlock appBlock = e.interval;
-            Appointment appointment1 = appBlock.getAppointment();
-
-            // next event is the right endpoint of interval i
-            if (time == appBlock.getEnd())
-                st.remove(appBlock);
-
-            // next event is the left endpoint of interval i
-            else {
-                for (AppointmentBlock appBlock2 : st) {
-                    final Appointment appointment2 = appBlock2.getAppointment();
-                    if ( appBlock == appBlock2 || appointment1.equals( appointment2) )
-                    {
-                        continue;
-                    }
-                    if ( appointment2.overlaps(appointment1))
-                    {
-                        String id = ConflictImpl.createId(allocatable.getReference(), appointment1.getReference(), appointment2.getReference());
-                        if ( foundConflictIds.contains(id ))
-                        {
-                            continue;
-                        }
-                        // Add appointments to conflict list
-                        if (ConflictImpl.isConflictWithoutCheck(appointment1, appointment2, today))
-                        {
-                            // create a new conflict
-                            final ConflictImpl conflict = new ConflictImpl(allocatable,appointment1, appointment2, today, id);
-                            conflictList.put(conflict.getReference(), conflict);
-                            foundConflictIds.add( id);
-//                            System.out.println("Conflict " + appointment1 + " and " + appointment2);
-                        }                       
-                    }
-
-                }
-                st.add(appBlock);
-            }
-        }
-        return conflictList;
-
+        return new ConflictSweepLine(intervals).findConflicts(allocatable, today);
     }
 
     
@@ -413,39 +499,58 @@ class ConflictFinder {
 //        return( idList.contains( appointment1) || idList.contains( appointment2));
 //	}
 	
+    // overlaps will be checked  260 weeks (5 years) from now on
+    private static long getMaxCheck()
+    {
+        return System.currentTimeMillis() + DateTools.MILLISECONDS_PER_WEEK * 260;
+    }
+
+    /** returns the end of the interval in which the appointment is checked for conflicts or null if the appointment can't cause conflicts */
+    private static Date getConflictCheckEnd(Appointment appointment, Date today, long maxCheck)
+    {
+        // Get the end date of the appointment (if repeating, end date of last occurence)
+        Date maxEnd = appointment.getMaxEnd();
+        // Check if the appointment is repeating forever
+        if ( maxEnd == null || maxEnd.getTime() > maxCheck)
+        {
+            // If the repeating has no end, set the end to the start of the last appointment in the set + 100 weeks (~2 years)
+            maxEnd = new Date(maxCheck);
+        }
+        if ( maxEnd.before( today))
+        {
+            return null;
+        }
+        if ( RaplaComponent.isTemplate(appointment.getReservation()))
+        {
+            return null;
+        }
+        Reservation r1 = appointment.getReservation();
+        DynamicType type1 = r1 != null ? r1.getClassification().getType() : null;
+        String annotation1 = ConflictImpl.getConflictAnnotation( type1);
+        if ( ConflictImpl.isNoConflicts( annotation1 ) )
+        {
+            return null;
+        }
+        return maxEnd;
+    }
+
+    private static boolean isIgnoredForConflicts(Appointment appointment, Date today, long maxCheck)
+    {
+        return getConflictCheckEnd(appointment, today, maxCheck) == null;
+    }
+
     private void createBlocks(Date today, Collection<Appointment> appointmentSet,  Collection<AppointmentBlock> allAppointmentBlocks, Set<AppointmentBlock> additionalSet) {
-        // overlaps will be checked  260 weeks (5 years) from now on
-		long maxCheck = System.currentTimeMillis() + DateTools.MILLISECONDS_PER_WEEK * 260;
+		long maxCheck = getMaxCheck();
 		//Appointment last = appointmentSet.last();
 		
 		// Get all time blocks of all appointments
 		for (Appointment appointment:appointmentSet)
 		{
-			// Get the end date of the appointment (if repeating, end date of last occurence)
-			Date maxEnd = appointment.getMaxEnd();
-		       // Check if the appointment is repeating forever
-            if ( maxEnd == null || maxEnd.getTime() > maxCheck)
-            {
-                // If the repeating has no end, set the end to the start of the last appointment in the set + 100 weeks (~2 years)
-                maxEnd = new Date(maxCheck); 
-            }
-            if ( maxEnd.before( today))
-            {
-                continue;
-            }
-   		
-			if ( RaplaComponent.isTemplate(appointment.getReservation()))
+			Date maxEnd = getConflictCheckEnd(appointment, today, maxCheck);
+			if ( maxEnd == null)
 			{
 			    continue;
 			}
-			
-			Reservation r1 = appointment.getReservation();
-	        DynamicType type1 = r1 != null ? r1.getClassification().getType() : null;
-	        String annotation1 = ConflictImpl.getConflictAnnotation( type1);
-	        if ( ConflictImpl.isNoConflicts( annotation1 ) )
-	        {
-	            continue;
-	        }
 			/*
 			 * If the appointment has a repeating, get all single time blocks of it. If it is no
 			 * repeating, this will just create one block, which is equal to the appointment
@@ -595,7 +700,9 @@ class ConflictFinder {
 		
 
     	Set<Conflict> added = new HashSet<Conflict>();
-    	// this will recalculate the conflicts for that resource and the chan;ged appointments
+    	// this will recalculate the conflicts for that resource and the changed appointments
+        List<ConflictCalculation> calculations = new ArrayList<ConflictCalculation>();
+        List<Map<ReferenceInfo<Conflict>,Conflict>> conflictListsBefore = new ArrayList<Map<ReferenceInfo<Conflict>,Conflict>>();
     	for ( Map.Entry<ReferenceInfo<Allocatable>, AllocationChange> entry:toUpdate.entrySet())
     	{
             ReferenceInfo<Allocatable> allocatableId = entry.getKey();
@@ -607,16 +714,23 @@ class ConflictFinder {
 			}
 			
     		Map<ReferenceInfo<Conflict>,Conflict> conflictListBefore =  conflictMap.get(allocatableId);
+            // recalculate all if there is no previous calculation
+            final AllocationChange change = conflictListBefore != null ? changedAppointments : null;
     		if ( conflictListBefore == null)
     		{
     			conflictListBefore = new LinkedHashMap<ReferenceInfo<Conflict>,Conflict>();
     		}
             Allocatable allocatable = resolver.tryResolve( allocatableId);
-			Map<ReferenceInfo<Conflict>,Conflict> conflictListAfter;
-            if  (allocatable != null)
-             conflictListAfter = calculateConflicts( allocatable , today);
-            else
-             conflictListAfter= Collections.emptyMap();
+            calculations.add( new ConflictCalculation( allocatable, today, change, conflictListBefore));
+            conflictListsBefore.add( conflictListBefore);
+        }
+        List<Map<ReferenceInfo<Conflict>,Conflict>> results = calculate( calculations);
+        int i = 0;
+        for ( ReferenceInfo<Allocatable> allocatableId:toUpdate.keySet())
+        {
+            Map<ReferenceInfo<Conflict>,Conflict> conflictListBefore = conflictListsBefore.get( i);
+            Map<ReferenceInfo<Conflict>,Conflict> conflictListAfter = results.get( i);
+            i++;
 			conflictMap.put( allocatableId, conflictListAfter);
 			//User user = evt.getUserFromRequest();
 		
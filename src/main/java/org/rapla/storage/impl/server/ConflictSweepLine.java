@@ -0,0 +1,277 @@
+package org.rapla.storage.impl.server;
+
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.rapla.entities.domain.Allocatable;
+import org.rapla.entities.domain.Appointment;
+import org.rapla.entities.domain.AppointmentBlock;
+import org.rapla.entities.storage.ReferenceInfo;
+import org.rapla.facade.Conflict;
+import org.rapla.facade.internal.ConflictImpl;
+
+/**
+ * Sweep line over the appointment blocks of one allocatable, that finds all pairs of appointments with overlapping blocks.
+ * <p>
+ * The blocks are copied into primitive start and end arrays and sorted by start as packed <code>long</code> keys
+ * (relative start in the upper bits, block index in the lower bits). The active blocks are kept in a binary heap
+ * of block indices ordered by end, so blocks that ended are removed before the next start is processed.
+ * Appointment pairs that have been tested once are stored as a primitive <code>long</code> key, so the overlap test
+ * runs only once per pair and conflict ids and objects are created only for real conflicts.
+ */
+final class ConflictSweepLine
+{
+    private final int size;
+    private final long[] starts;
+    private final long[] ends;
+    // index of the appointment in appointments for each block
+    private final int[] appointmentIndex;
+    private final Appointment[] appointments;
+    // active blocks ordered by end
+    private final int[] heap;
+    private int heapSize;
+
+    ConflictSweepLine(Collection<AppointmentBlock> blocks)
+    {
+        size = blocks.size();
+        starts = new long[size];
+        ends = new long[size];
+        appointmentIndex = new int[size];
+        heap = new int[size];
+        Map<Appointment, Integer> indexMap = new HashMap<Appointment, Integer>();
+        Appointment[] appointmentList = new Appointment[size];
+        Appointment last = null;
+        int lastIndex = -1;
+        int i = 0;
+        for (AppointmentBlock block : blocks)
+        {
+            starts[i] = block.getStart();
+            ends[i] = block.getEnd();
+            final Appointment appointment = block.getAppointment();
+            // blocks of the same appointment are usually created in a row
+            if (appointment != last)
+            {
+                Integer index = indexMap.get(appointment);
+                if (index == null)
+                {
+                    index = indexMap.size();
+                    indexMap.put(appointment, index);
+                    appointmentList[index] = appointment;
+                }
+                last = appointment;
+                lastIndex = index;
+            }
+            appointmentIndex[i] = lastIndex;
+            i++;
+        }
+        appointments = Arrays.copyOf(appointmentList, indexMap.size());
+    }
+
+    public Map<ReferenceInfo<Conflict>, Conflict> findConflicts(Allocatable allocatable, Date today)
+    {
+        Map<ReferenceInfo<Conflict>, Conflict> conflictList = new HashMap<ReferenceInfo<Conflict>, Conflict>();
+        if (size == 0)
+        {
+            return conflictList;
+        }
+        final int[] order = sortByStart();
+        final LongHashSet testedPairs = new LongHashSet();
+        heapSize = 0;
+        for (int k = 0; k < size; k++)
+        {
+            final int block = order[k];
+            final long start = starts[block];
+            // remove all blocks that end before the current block starts
+            while (heapSize > 0 && ends[heap[0]] <= start)
+            {
+                poll();
+            }
+            final int index1 = appointmentIndex[block];
+            for (int h = 0; h < heapSize; h++)
+            {
+                final int index2 = appointmentIndex[heap[h]];
+                if (index1 == index2)
+                {
+                    continue;
+                }
+                final long pair = index1 < index2 ? ((long) index1 << 32) | index2 : ((long) index2 << 32) | index1;
+                if (!testedPairs.add(pair))
+                {
+                    continue;
+                }
+                final Appointment appointment1 = appointments[index1];
+                final Appointment appointment2 = appointments[index2];
+                if (appointment2.overlaps(appointment1) && ConflictImpl.isConflictWithoutCheck(appointment1, appointment2, today))
+                {
+                    String id = ConflictImpl.createId(allocatable.getReference(), appointment1.getReference(), appointment2.getReference());
+                    final ConflictImpl conflict = new ConflictImpl(allocatable, appointment1, appointment2, today, id);
+                    conflictList.put(conflict.getReference(), conflict);
+                }
+            }
+            push(block);
+        }
+        return conflictList;
+    }
+
+    /** returns the block indices sorted by start. */
+    private int[] sortByStart()
+    {
+        final int[] order = new int[size];
+        long minStart = Long.MAX_VALUE;
+        long maxStart = Long.MIN_VALUE;
+        for (int i = 0; i < size; i++)
+        {
+            minStart = Math.min(minStart, starts[i]);
+            maxStart = Math.max(maxStart, starts[i]);
+        }
+        final int indexBits = 64 - Long.numberOfLeadingZeros(Math.max(1, size - 1));
+        final long range = maxStart - minStart;
+        if (range >= 0 && range < (1L << (63 - indexBits)))
+        {
+            final long mask = (1L << indexBits) - 1;
+            final long[] keys = new long[size];
+            for (int i = 0; i < size; i++)
+            {
+                keys[i] = ((starts[i] - minStart) << indexBits) | i;
+            }
+            Arrays.sort(keys);
+            for (int i = 0; i < size; i++)
+            {
+                order[i] = (int) (keys[i] & mask);
+            }
+        }
+        else
+        {
+            // the start range is too large to pack it with the index, so we sort boxed
+            Integer[] boxed = new Integer[size];
+            for (int i = 0; i < size; i++)
+            {
+                boxed[i] = i;
+            }
+            Arrays.sort(boxed, new Comparator<Integer>()
+            {
+                @Override public int compare(Integer o1, Integer o2)
+                {
+                    return Long.compare(starts[o1], starts[o2]);
+                }
+            });
+            for (int i = 0; i < size; i++)
+            {
+                order[i] = boxed[i];
+            }
+        }
+        return order;
+    }
+
+    private void push(int block)
+    {
+        int pos = heapSize++;
+        heap[pos] = block;
+        final long end = ends[block];
+        while (pos > 0)
+        {
+            int parent = (pos - 1) >>> 1;
+            if (ends[heap[parent]] <= end)
+            {
+                break;
+            }
+            heap[pos] = heap[parent];
+            pos = parent;
+        }
+        heap[pos] = block;
+    }
+
+    private void poll()
+    {
+        final int last = heap[--heapSize];
+        if (heapSize == 0)
+        {
+            return;
+        }
+        final long end = ends[last];
+        int pos = 0;
+        while (true)
+        {
+            int child = 2 * pos + 1;
+            if (child >= heapSize)
+            {
+                break;
+            }
+            if (child + 1 < heapSize && ends[heap[child + 1]] < ends[heap[child]])
+            {
+                child++;
+            }
+            if (end <= ends[heap[child]])
+            {
+                break;
+            }
+            heap[pos] = heap[child];
+            pos = child;
+        }
+        heap[pos] = last;
+    }
+
+    /** open addressing hash set for positive long keys. 0 is used as empty slot. */
+    static final class LongHashSet
+    {
+        private long[] table = new long[64];
+        private int count;
+
+        /** returns false if the key was already in the set */
+        boolean add(long key)
+        {
+            int mask = table.length - 1;
+            int pos = hash(key) & mask;
+            while (true)
+            {
+                final long current = table[pos];
+                if (current == 0)
+                {
+                    break;
+                }
+                if (current == key)
+                {
+                    return false;
+                }
+                pos = (pos + 1) & mask;
+            }
+            table[pos] = key;
+            count++;
+            if (count * 2 > table.length)
+            {
+                rehash();
+            }
+            return true;
+        }
+
+        private void rehash()
+        {
+            final long[] old = table;
+            table = new long[old.length * 2];
+            final int mask = table.length - 1;
+            for (long key : old)
+            {
+                if (key == 0)
+                {
+                    continue;
+                }
+                int pos = hash(key) & mask;
+                while (table[pos] != 0)
+                {
+                    pos = (pos + 1) & mask;
+                }
+                table[pos] = key;
+            }
+        }
+
+        private static int hash(long key)
+        {
+            long h = key * 0x9E3779B97F4A7C15L;
+            return (int) (h ^ (h >>> 32));
+        }
+    }
+}
@@ -1,5 +1,7 @@
 package org.rapla.storage.impl.server;
 
+import java.io.ByteArrayOutputStream;
+import java.nio.charset.StandardCharsets;
 import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Collections;
@@ -10,6 +12,9 @@ import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
 
 import org.rapla.entities.Category;
 import org.rapla.entities.Entity;
@@ -24,6 +29,7 @@ import org.rapla.entities.dynamictype.internal.DynamicTypeImpl;
 import org.rapla.entities.internal.CategoryImpl;
 import org.rapla.entities.internal.UserImpl;
 import org.rapla.entities.storage.ReferenceInfo;
+import org.rapla.entities.storage.internal.SimpleEntity;
 import org.rapla.facade.Conflict;
 import org.rapla.facade.internal.ConflictImpl;
 import org.rapla.framework.RaplaException;
@@ -32,8 +38,15 @@ import com.google.gson.Gson;
 import com.google.gson.GsonBuilder;
 import org.rapla.rest.JsonParserWrapper;
 
+/**
+ * Keeps the versions of the changed entities, so the changes since the last refresh of a client can be computed.
+ * The versions are stored as utf-8 encoded json, larger ones are deflated. Recently decoded versions are cached, because
+ * clients that refresh together request the same versions.
+ */
 public class EntityHistory
 {
+    /** json with more bytes than this is stored deflated */
+    static final int COMPRESS_THRESHOLD = 256;
     public Collection<ReferenceInfo> getAllIds()
     {
         return map.keySet();
@@ -49,7 +62,9 @@ public class EntityHistory
     {
         private long timestamp;
         ReferenceInfo ref;
-        private String json;
+        private byte[] data;
+        /** length of the decoded json or -1 if data is not deflated */
+        private int jsonLength = -1;
         private boolean isDelete;
 
         private HistoryEntry()
@@ -62,7 +77,19 @@ public class EntityHistory
             this.ref = id;
             this.isDelete = isDelete;
             this.timestamp = timestamp;
-            this.json = json;
+            if (json != null)
+            {
+                final byte[] bytes = json.getBytes(StandardCharsets.UTF_8);
+                if (bytes.length > COMPRESS_THRESHOLD)
+                {
+                    data = deflate(bytes);
+                    jsonLength = bytes.length;
+                }
+                else
+                {
+                    data = bytes;
+                }
+            }
         }
 
         public ReferenceInfo getId()
@@ -80,20 +107,100 @@ public class EntityHistory
             return isDelete;
         }
 
+        String getJson()
+        {
+            if (data == null)
+            {
+                return null;
+            }
+            final byte[] bytes = jsonLength >= 0 ? inflate(data, jsonLength) : data;
+            return new String(bytes, StandardCharsets.UTF_8);
+        }
+
+        /** number of bytes the entry uses for the json */
+        int getStoredSize()
+        {
+            return data != null ? data.length : 0;
+        }
+
         @Override public String toString()
         {
             return "HistoryEntry [timestamp=" + timestamp + ", id=" + ref + "]";
         }
     }
 
+    private static byte[] deflate(byte[] bytes)
+    {
+        final Deflater deflater = new Deflater(Deflater.BEST_SPEED);
+        try
+        {
+            deflater.setInput(bytes);
+            deflater.finish();
+            ByteArrayOutputStream out = new ByteArrayOutputStream(bytes.length / 4 + 16);
+            byte[] buffer = new byte[4096];
+            while (!deflater.finished())
+            {
+                final int count = deflater.deflate(buffer);
+                out.write(buffer, 0, count);
+            }
+            return out.toByteArray();
+        }
+        finally
+        {
+            deflater.end();
+        }
+    }
+
+    private static byte[] inflate(byte[] data, int length)
+    {
+        final Inflater inflater = new Inflater();
+        try
+        {
+            inflater.setInput(data);
+            byte[] result = new byte[length];
+            int offset = 0;
+            while (offset < length && !inflater.finished())
+            {
+                offset += inflater.inflate(result, offset, length - offset);
+            }
+            return result;
+        }
+        catch (DataFormatException ex)
+        {
+            throw new IllegalStateException("Corrupt history entry " + ex.getMessage(), ex);
+        }
+        finally
+        {
+            inflater.end();
+        }
+    }
+
     private final Map<ReferenceInfo, List<EntityHistory.HistoryEntry>> map = new LinkedHashMap<ReferenceInfo, List<EntityHistory.HistoryEntry>>();
     private final JsonParserWrapper.JsonParser gson;
+    private int decodedCacheSize = 500;
+    /** read only entities of the recently requested entries. Access order, so the least recently used entry is removed first */
+    private final Map<HistoryEntry, Entity> decodedEntities = new LinkedHashMap<HistoryEntry, Entity>(16, 0.75f, true)
+    {
+        @Override protected boolean removeEldestEntry(Map.Entry<HistoryEntry, Entity> eldest)
+        {
+            return size() > decodedCacheSize;
+        }
+    };
 
     public EntityHistory()
     {
         gson = JsonParserWrapper.defaultJson().get();
     }
 
+    public void setDecodedCacheSize(int decodedCacheSize)
+    {
+        synchronized (decodedEntities)
+        {
+            this.decodedCacheSize = decodedCacheSize;
+            decodedEntities.clear();
+        }
+    }
+
     public HistoryEntry getLatest(ReferenceInfo id) throws RaplaException
     {
         final List<HistoryEntry> historyEntries = map.get(id);
@@ -110,7 +217,7 @@ public class EntityHistory
         return result;
     }
 
-    /** returns the history entry with a timestamp<= since or null if no such entry exists*/
+    /** returns the entity of the history entry with a timestamp<= since or null if no such entry exists. The returned entity is shared and read only */
     public Entity get(ReferenceInfo id, Date since) throws RaplaException
     {
         final List<EntityHistory.HistoryEntry> historyEntries = map.get(id);
@@ -141,7 +248,7 @@ public class EntityHistory
             return null;
         }
         EntityHistory.HistoryEntry entry = historyEntries.get(index);
-        return getEntity(entry);
+        return getCachedEntity(entry);
     }
 
     Map<Class<? extends Entity>, Class<? extends Entity>> typeImpl = new HashMap<Class<? extends Entity>, Class<? extends Entity>>();
@@ -162,15 +269,48 @@ public class EntityHistory
         typeImpl.put(type, impl);
     }
 
+    /** returns a new instance of the entity stored in the entry, that can be modified by the caller */
     public Entity getEntity(HistoryEntry entry)
     {
-        String json = entry.json;
+        String json = entry.getJson();
         final Class typeClass = entry.getId().getType();
         final Class<? extends Entity> implementingClass = typeImpl.get(typeClass);
         final Entity entity = gson.fromJson(json, implementingClass);
         return entity;
     }
 
+    /** returns the entity stored in the entry. The instance is shared with other callers, so it is read only */
+    public Entity getCachedEntity(HistoryEntry entry)
+    {
+        synchronized (decodedEntities)
+        {
+            final Entity cached = decodedEntities.get(entry);
+            if (cached != null)
+            {
+                return cached;
+            }
+        }
+        // decoded outside of the lock, so readers of other entries are not blocked
+        final Entity entity = getEntity(entry);
+        if (entity instanceof SimpleEntity)
+        {
+            ((SimpleEntity) entity).setReadOnly();
+        }
+        synchronized (decodedEntities)
+        {
+            final Entity cached = decodedEntities.get(entry);
+            if (cached != null)
+            {
+                return cached;
+            }
+            if (decodedCacheSize > 0)
+            {
+                decodedEntities.put(entry, entity);
+            }
+        }
+        return entity;
+    }
+
     public EntityHistory.HistoryEntry addHistoryEntry(ReferenceInfo id, String json, Date timestamp, boolean isDelete)
     {
         List<EntityHistory.HistoryEntry> historyEntries = map.get(id);
@@ -226,6 +366,10 @@ public class EntityHistory
     public void clear()
     {
         map.clear();
+        synchronized (decodedEntities)
+        {
+            decodedEntities.clear();
+        }
     }
 
     List<HistoryEntry> getHistoryList(ReferenceInfo key)
@@ -242,7 +386,11 @@ public class EntityHistory
             final List<HistoryEntry> list = map.get(key);
             while (list.size() >= 2 && list.get(1).timestamp < time)
             {
-                list.remove(0);
+                final HistoryEntry removed = list.remove(0);
+                synchronized (decodedEntities)
+                {
+                    decodedEntities.remove(removed);
+                }
             }
         }
     }
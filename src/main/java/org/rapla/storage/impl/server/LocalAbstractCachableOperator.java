@@ -36,7 +36,13 @@ import java.util.TimeZone;
 import java.util.TreeSet;
 import java.util.UUID;
 import java.util.concurrent.CompletionStage;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.concurrent.locks.Lock;
+import java.util.function.Predicate;
+import java.util.concurrent.locks.ReentrantLock;
 import java.util.concurrent.locks.ReentrantReadWriteLock;
 
 import org.apache.commons.collections4.BidiMap;
@@ -179,12 +185,28 @@ public abstract class LocalAbstractCachableOperator extends AbstractCachableOper
     // we need a bidi to sort the values instead of the keys
     protected final EntityHistory history;
     private SortedBidiMap<String, DeleteUpdateEntry> deleteUpdateSet;
+    /** incremented on every change of the deleteUpdateSet, so cached update results can be invalidated */
+    private volatile long changeVersion;
+    private final UpdateResultCache updateResultCache = new UpdateResultCache(1000);
+    /** notified after changes, so clients waiting for changes can continue. Waiters must not acquire another lock while holding it */
+    private final Object changeMonitor = new Object();
 
     private TimeZone systemTimeZone = TimeZone.getDefault();
     private CommandScheduler scheduler;
     private List<Cancelable> scheduledTasks = new ArrayList<Cancelable>();
     private CalendarModelCache calendarModelCache;
     private Date connectStart;
+    private int conflictParallelism = Runtime.getRuntime().availableProcessors();
+    /** calculates the conflicts of different allocatables in parallel. Created on connect and shut down on disconnect */
+    private ExecutorService conflictExecutor;
+    private final Object conflictExecutorLock = new Object();
+    /**
+     * Serializes all changes to the cache. A writer holds the commit lock for the whole transaction, but the write lock only while
+     * the cache, the history and the indizes are changed, so readers are not blocked while the changes are written to the storage.
+     * Because every change is done under the commit lock, its holder can read the cache without the read lock.
+     * The commit lock must always be acquired before the write lock.
+     */
+    private final ReentrantLock commitLock = new ReentrantLock();
 
     public LocalAbstractCachableOperator(Logger logger, RaplaResources i18n, RaplaLocale raplaLocale, CommandScheduler scheduler,
             Map<String, FunctionFactory> functionFactoryMap, Set<PermissionExtension> permissionExtensions)
@@ -392,6 +414,11 @@ public abstract class LocalAbstractCachableOperator extends AbstractCachableOper
         };
     }*/
 
+    protected Lock commitLock() throws RaplaException
+    {
+        return RaplaComponent.lock(commitLock, 60);
+    }
+
     public void runWithReadLock(CachableStorageOperatorCommand cmd) throws RaplaException
     {
         Lock readLock = readLock();
@@ -414,18 +441,49 @@ public abstract class LocalAbstractCachableOperator extends AbstractCachableOper
 
 
         final Promise<Map<Allocatable, Collection<Appointment>>> promise = scheduler.supply(() -> {
+            final boolean allAllocatables = allocatables == null || allocatables.size() == 0;
+            final Collection<Allocatable> allocs = allAllocatables ? getAllocatables( null): allocatables;
+            boolean isResourceTemplate = allocs.size() == 1 && (allocs.iterator().next().getClassification().getType().getKey().equals(RAPLA_TEMPLATE));
+            // the conditions on the reservation are only checked once per reservation, even if it is allocated by more than one allocatable
+            final Map<Reservation, Boolean> matchedReservations = new HashMap<Reservation, Boolean>();
+            final Predicate<Reservation> matcher = (reservation) -> {
+                Boolean matches = matchedReservations.get(reservation);
+                if (matches == null)
+                {
+                    // Ignore Templates if not explicitly requested
+                    // FIXME this special case should be refactored, so one can get all reservations in one method
+                    matches = match(reservation, annotationQuery) && !(RaplaComponent.isTemplate(reservation) && !isResourceTemplate) && (filters == null
+                            || ClassificationFilter.Util.matches(filters, reservation));
+                    matchedReservations.put(reservation, matches);
+                }
+                return matches;
+            };
+            AppointmentQueryPlan plan = null;
+            Lock readLock = readLock();
+            try
+            {
+                if (queryPlannerEnabled)
+                {
+                    plan = createQueryPlan(user, allAllocatables ? null : allocs, filters, annotationQuery);
+                }
+            }
+            finally
+            {
+                unlock(readLock);
+            }
+            if (plan != null)
+            {
+                return queryAppointments(plan, allocs, allAllocatables, user, start, end, matcher);
+            }
             boolean excludeExceptions = false;
-            final HashSet<Reservation> reservationSet = new HashSet<Reservation>();
-            final Collection<Allocatable> allocs = (allocatables == null || allocatables.size() == 0) ? getAllocatables( null): allocatables;
             Map<Allocatable, Collection<Appointment>> result = new LinkedHashMap<Allocatable, Collection<Appointment>>();
-            boolean isResourceTemplate = allocs.size() == 1 && (allocs.iterator().next().getClassification().getType().getKey().equals(RAPLA_TEMPLATE));
             for (Allocatable allocatable : allocs)
             {
-                Lock readLock = readLock();
                 SortedSet<Appointment> appointments;
+                readLock = readLock();
                 try
                 {
-                    appointments = getAppointments(allocatable);
+                    appointments = getAppointments(allocatable, start, end);
                 }
                 finally
                 {
@@ -435,25 +493,10 @@ public abstract class LocalAbstractCachableOperator extends AbstractCachableOper
                 for (Appointment appointment : appointmentSet)
                 {
                     Reservation reservation = appointment.getReservation();
-                    if (!match(reservation, annotationQuery))
-                    {
-                        continue;
-                    }
-                    // Ignore Templates if not explicitly requested
-                    else if (RaplaComponent.isTemplate(reservation) && !isResourceTemplate)
-                    {
-                        // FIXME this special case should be refactored, so one can get all reservations in one method
-
-                        continue;
-                    }
-                    if (filters != null && !ClassificationFilter.Util.matches(filters, reservation))
+                    if (!matcher.test(reservation))
                     {
                         continue;
                     }
-                    if (!reservationSet.contains(reservation))
-                    {
-                        reservationSet.add(reservation);
-                    }
                     Collection<Appointment> appointmentCollection = result.get(allocatable);
                     if (appointmentCollection == null)
                     {
@@ -467,6 +510,218 @@ public abstract class LocalAbstractCachableOperator extends AbstractCachableOper
         });
         return promise;
     }
+
+    private boolean queryPlannerEnabled = true;
+
+    /** if disabled the appointments of each allocatable are queried, as before there were reservation indexes */
+    public void setQueryPlannerEnabled(boolean queryPlannerEnabled)
+    {
+        this.queryPlannerEnabled = queryPlannerEnabled;
+    }
+
+    /** an index of reservation appointments, that is used instead of the appointments of each allocatable */
+    static abstract class AppointmentQueryPlan
+    {
+        /** number of appointments in the index */
+        final int size;
+
+        AppointmentQueryPlan(int size)
+        {
+            this.size = size;
+        }
+
+        /** adds all appointments that could overlap the interval */
+        abstract void getAppointments(Date start, Date end, Collection<Appointment> result);
+    }
+
+    /**
+     * returns the index with the fewest appointments, that contains all appointments of reservations matching the query or null,
+     * if querying the appointments of each passed allocatable is more selective. Pass null for all allocatables. Must be called with the read lock.
+     */
+    AppointmentQueryPlan createQueryPlan(final User user, Collection<Allocatable> allocatables, final ClassificationFilter[] filters,
+            Map<String, String> annotationQuery)
+    {
+        int allocatableSize = 0;
+        if (allocatables == null)
+        {
+            allocatableSize = appointmentBindings.count(null);
+        }
+        else
+        {
+            for (ReferenceInfo<Allocatable> allocatableId : cache.getDependent(allocatables))
+            {
+                allocatableSize += appointmentBindings.count(allocatableId);
+            }
+        }
+        AppointmentQueryPlan plan = null;
+        if (allocatables == null)
+        {
+            // one query of all appointments is faster than a query for each allocatable
+            plan = new AppointmentQueryPlan(allocatableSize)
+            {
+                @Override void getAppointments(Date start, Date end, Collection<Appointment> result)
+                {
+                    appointmentBindings.getAppointments(null, start, end, result);
+                }
+            };
+        }
+        final String templateId = annotationQuery != null ? annotationQuery.get(RaplaObjectAnnotations.KEY_TEMPLATE) : null;
+        if (templateId != null)
+        {
+            final ReferenceInfo<Allocatable> templateRef = new ReferenceInfo<Allocatable>(templateId, Allocatable.class);
+            plan = choose(plan, new AppointmentQueryPlan(appointmentBindings.count(templateRef))
+            {
+                @Override void getAppointments(Date start, Date end, Collection<Appointment> result)
+                {
+                    appointmentBindings.getAppointments(templateRef, start, end, result);
+                }
+            });
+        }
+        if (user != null)
+        {
+            final ReferenceInfo<User> ownerRef = user.getReference();
+            plan = choose(plan, new AppointmentQueryPlan(appointmentBindings.countOwner(ownerRef))
+            {
+                @Override void getAppointments(Date start, Date end, Collection<Appointment> result)
+                {
+                    appointmentBindings.getOwnerAppointments(ownerRef, start, end, result);
+                }
+            });
+        }
+        if (filters != null)
+        {
+            // a reservation matches, if one of the filters matches, so it must have one of the filter types
+            final Set<String> typeIds = new LinkedHashSet<String>();
+            for (ClassificationFilter filter : filters)
+            {
+                typeIds.add(filter.getType().getId());
+            }
+            int typeSize = 0;
+            for (String typeId : typeIds)
+            {
+                typeSize += appointmentBindings.countType(typeId);
+            }
+            plan = choose(plan, new AppointmentQueryPlan(typeSize)
+            {
+                @Override void getAppointments(Date start, Date end, Collection<Appointment> result)
+                {
+                    for (String typeId : typeIds)
+                    {
+                        appointmentBindings.getTypeAppointments(typeId, start, end, result);
+                    }
+                }
+            });
+        }
+        if (plan == null || (allocatables != null && plan.size >= allocatableSize))
+        {
+            return null;
+        }
+        return plan;
+    }
+
+    private static AppointmentQueryPlan choose(AppointmentQueryPlan plan, AppointmentQueryPlan otherPlan)
+    {
+        return plan == null || otherPlan.size < plan.size ? otherPlan : plan;
+    }
+
+    /** queries the appointments from the index of the plan and assigns them to the allocatables that would return them in an allocatable query */
+    private Map<Allocatable, Collection<Appointment>> queryAppointments(AppointmentQueryPlan plan, Collection<Allocatable> allocs, boolean allAllocatables,
+            User user, Date start, Date end, Predicate<Reservation> matcher) throws RaplaException
+    {
+        SortedSet<Appointment> candidates = new TreeSet<Appointment>(new AppointmentStartComparator());
+        final Map<ReferenceInfo<Allocatable>, Collection<Allocatable>> dependentToAllocatables;
+        Lock readLock = readLock();
+        try
+        {
+            plan.getAppointments(start, end, candidates);
+            dependentToAllocatables = allAllocatables ? getAllDependentToAllocatables(allocs) : getDependentToAllocatables(allocs);
+        }
+        finally
+        {
+            unlock(readLock);
+        }
+        boolean excludeExceptions = false;
+        Map<Allocatable, Collection<Appointment>> appointmentsByAllocatable = new HashMap<Allocatable, Collection<Appointment>>();
+        for (Appointment appointment : AppointmentImpl.getAppointments(candidates, user, start, end, excludeExceptions))
+        {
+            final ReservationImpl reservation = (ReservationImpl) appointment.getReservation();
+            if (!matcher.test(reservation))
+            {
+                continue;
+            }
+            Set<ReferenceInfo<Allocatable>> bindings = new LinkedHashSet<ReferenceInfo<Allocatable>>(reservation.getAllocatableIdsFor(appointment));
+            final String templateId = reservation.getAnnotation(RaplaObjectAnnotations.KEY_TEMPLATE);
+            if (templateId != null)
+            {
+                bindings.add(new ReferenceInfo<Allocatable>(templateId, Allocatable.class));
+            }
+            for (ReferenceInfo<Allocatable> binding : bindings)
+            {
+                final Collection<Allocatable> allocatables = dependentToAllocatables.get(binding);
+                if (allocatables == null)
+                {
+                    continue;
+                }
+                for (Allocatable allocatable : allocatables)
+                {
+                    Collection<Appointment> appointmentCollection = appointmentsByAllocatable.get(allocatable);
+                    if (appointmentCollection == null)
+                    {
+                        appointmentCollection = new LinkedHashSet<>();
+                        appointmentsByAllocatable.put(allocatable, appointmentCollection);
+                    }
+                    appointmentCollection.add(appointment);
+                }
+            }
+        }
+        // same order as the allocatable query
+        Map<Allocatable, Collection<Appointment>> result = new LinkedHashMap<Allocatable, Collection<Appointment>>();
+        for (Allocatable allocatable : allocs)
+        {
+            final Collection<Appointment> appointments = appointmentsByAllocatable.get(allocatable);
+            if (appointments != null)
+            {
+                result.put(allocatable, appointments);
+            }
+        }
+        return result;
+    }
+
+    /** maps each allocatable, whose appointments are returned for the passed allocatables, to the passed allocatables */
+    private Map<ReferenceInfo<Allocatable>, Collection<Allocatable>> getDependentToAllocatables(Collection<Allocatable> allocatables)
+    {
+        Map<ReferenceInfo<Allocatable>, Collection<Allocatable>> result = new HashMap<ReferenceInfo<Allocatable>, Collection<Allocatable>>();
+        for (Allocatable allocatable : allocatables)
+        {
+            for (ReferenceInfo<Allocatable> dependent : cache.getDependentRef(allocatable.getReference()))
+            {
+                Collection<Allocatable> list = result.get(dependent);
+                if (list == null)
+                {
+                    list = new ArrayList<Allocatable>(1);
+                    result.put(dependent, list);
+                }
+                list.add(allocatable);
+            }
+        }
+        return result;
+    }
+
+    private Map<ReferenceInfo<Allocatable>, Collection<Allocatable>> allDependentToAllocatables;
+    private long allDependentToAllocatablesVersion = -1;
+
+    /** same as {@link #getDependentToAllocatables(Collection)} for all allocatables. The result is kept until the next change */
+    private synchronized Map<ReferenceInfo<Allocatable>, Collection<Allocatable>> getAllDependentToAllocatables(Collection<Allocatable> allocatables)
+    {
+        final long version = changeVersion;
+        if (allDependentToAllocatables == null || allDependentToAllocatablesVersion != version)
+        {
+            allDependentToAllocatables = getDependentToAllocatables(allocatables);
+            allDependentToAllocatablesVersion = version;
+        }
+        return allDependentToAllocatables;
+    }
+
     CompletionStage<Map<String,Integer>> filter(Map<String,Integer> map)
     {
         return null;
@@ -588,6 +843,44 @@ public abstract class LocalAbstractCachableOperator extends AbstractCachableOper
         return systemTimeZone;
     }
 
+    /** sets the maximum number of threads that calculate conflicts on connect and on large updates. 1 disables the parallel calculation. */
+    public void setConflictParallelism(int conflictParallelism)
+    {
+        this.conflictParallelism = conflictParallelism;
+    }
+
+    public int getConflictParallelism()
+    {
+        return conflictParallelism;
+    }
+
+    /** returns the executor that calculates the conflicts or null, if the conflicts are calculated in the calling thread */
+    private ExecutorService getConflictExecutor()
+    {
+        if (conflictParallelism <= 1)
+        {
+            return null;
+        }
+        synchronized (conflictExecutorLock)
+        {
+            if (conflictExecutor == null)
+            {
+                conflictExecutor = Executors.newFixedThreadPool(conflictParallelism, new ThreadFactory()
+                {
+                    final AtomicInteger count = new AtomicInteger();
+
+                    @Override public Thread newThread(Runnable r)
+                    {
+                        Thread thread = new Thread(r, "rapla-conflicts-" + count.incrementAndGet());
+                        thread.setDaemon(true);
+                        return thread;
+                    }
+                });
+            }
+            return conflictExecutor;
+        }
+    }
+
     public String authenticate(String username, String password) throws RaplaException
     {
         checkConnected();
@@ -625,14 +918,22 @@ public abstract class LocalAbstractCachableOperator extends AbstractCachableOper
         String password = new String(newPassword);
         if (encryption != null)
             password = encrypt(encryption, password);
-        Lock writeLock = writeLock();
+        Lock commitLock = commitLock();
         try
         {
-            cache.putPassword(userId, password);
+            Lock writeLock = writeLock();
+            try
+            {
+                cache.putPassword(userId, password);
+            }
+            finally
+            {
+                unlock(writeLock);
+            }
         }
         finally
         {
-            unlock(writeLock);
+            unlock(commitLock);
         }
         User editObject = editObject(user, null);
         List<Entity> editList = new ArrayList<>(1);
@@ -939,6 +1240,8 @@ public abstract class LocalAbstractCachableOperator extends AbstractCachableOper
     protected void initIndizes() throws RaplaException
     {
         deleteUpdateSet = new DualTreeBidiMap<String, DeleteUpdateEntry>();
+        changeVersion++;
+        updateResultCache.clear();
         externalIds = new DualHashBidiMap<String, ReferenceInfo>();
         // The appointment map
 
@@ -977,21 +1280,10 @@ public abstract class LocalAbstractCachableOperator extends AbstractCachableOper
         }
         appointmentBindings.initAppointmentBindings(events);
         Date today2 = today();
-        AllocationMap allocationMap = new AllocationMap()
-        {
-            public SortedSet<Appointment> getAppointments(Allocatable allocatable)
-            {
-                return LocalAbstractCachableOperator.this.getAppointments(allocatable);
-            }
-
-            @SuppressWarnings("unchecked") public Collection<Allocatable> getAllocatables()
-            {
-                return (Collection) cache.getAllocatables();
-            }
-        };
+        AllocationMap allocationMap = createAllocationMap();
         // The conflict map
         Logger logger = getLogger();
-        conflictFinder = new ConflictFinder(allocationMap, today2, logger, this, permissionController);
+        conflictFinder = new ConflictFinder(allocationMap, today2, logger, this, permissionController, getConflictExecutor());
 
         // if a client request changes before the start date return refresh conflict flag
         final long delay = 0;//DateTools.MILLISECONDS_PER_HOUR;
@@ -1042,10 +1334,8 @@ public abstract class LocalAbstractCachableOperator extends AbstractCachableOper
             {
                 try
                 {
-                    Lock writeLock = lock.writeLock();
-                    // dispatch also does an refresh without lock so we get the new data each time a store is called
-                    boolean tryLock = writeLock.tryLock();
                     // dispatch also does an refresh without lock so we get the new data each time a store is called
+                    boolean tryLock = commitLock.tryLock();
                     if (tryLock)
                     {
                         try
@@ -1054,7 +1344,7 @@ public abstract class LocalAbstractCachableOperator extends AbstractCachableOper
                         }
                         finally
                         {
-                            RaplaComponent.unlock(writeLock);
+                            RaplaComponent.unlock(commitLock);
                         }
                     }
                 }
@@ -1069,7 +1359,7 @@ public abstract class LocalAbstractCachableOperator extends AbstractCachableOper
 
     @Override public void refresh() throws RaplaException
     {
-        final Lock lock = writeLock();
+        final Lock lock = commitLock();
         try
         {
             refreshWithoutLock();
@@ -1080,15 +1370,18 @@ public abstract class LocalAbstractCachableOperator extends AbstractCachableOper
         }
     }
 
+    /** called with the commit lock. Implementations must acquire the write lock before they change the cache */
     abstract protected void refreshWithoutLock();
 
     @Override synchronized public void disconnect() throws RaplaException
     {
         if (!isConnected())
             return;
+        Lock commitLock = null;
         Lock writeLock = null;
         try
         {
+            commitLock = commitLock();
             writeLock = writeLock();
         }
         catch (Exception ex)
@@ -1109,12 +1402,14 @@ public abstract class LocalAbstractCachableOperator extends AbstractCachableOper
         try
         {
             changeStatus(LocalAbstractCachableOperator.InitStatus.Disconnected);
+            signalChanges();
             cache.clearAll();
             history.clear();
         }
         finally
         {
             RaplaComponent.unlock(writeLock);
+            RaplaComponent.unlock(commitLock);
         }
 
         try
@@ -1123,6 +1418,14 @@ public abstract class LocalAbstractCachableOperator extends AbstractCachableOper
             {
                 task.cancel();
             }
+            synchronized (conflictExecutorLock)
+            {
+                if (conflictExecutor != null)
+                {
+                    conflictExecutor.shutdownNow();
+                    conflictExecutor = null;
+                }
+            }
         }
         finally
         {
@@ -1481,6 +1784,7 @@ public abstract class LocalAbstractCachableOperator extends AbstractCachableOper
             }
         }
         deleteUpdateSet.put(entry.getId(), entry);
+        changeVersion++;
     }
 
     private void addPermissions(DeleteUpdateEntry entry, ReferenceInfo<Reservation> reservation1)
@@ -1730,20 +2034,20 @@ public abstract class LocalAbstractCachableOperator extends AbstractCachableOper
     */
 
     /**
-     * returns all entities with a timestamp > the passed timestamp
+     * adds all entities with a timestamp > the passed timestamp, that are visible for the user, to toUpdate or toRemove.
+     * The change index is sorted by timestamp, so only the changes after the timestamp are visited.
      */
-    private Collection<ReferenceInfo> getEntities(User user, final Date timestamp, boolean isDelete) throws RaplaException
+    private void collectChanges(User user, final Date timestamp, Collection<ReferenceInfo> toUpdate, Collection<ReferenceInfo> toRemove) throws RaplaException
     {
         Assert.notNull(timestamp);
         // we use an empty id here because the implmentation of the DeleteUpdateEntry compare compares idStrings if timestamps are equal
         // so tailMap returns all entities with a timestamp >= timestamp
         final String dummyId = "";
         // we need to add +1 so that we dont get entities with the passed (guaranteed timestamp)
-        DeleteUpdateEntry fromElement = new DeleteUpdateEntry(new ReferenceInfo(dummyId, Allocatable.class), new Date(timestamp.getTime() + 1), isDelete);
-        LinkedList<ReferenceInfo> result = new LinkedList<ReferenceInfo>();
+        DeleteUpdateEntry fromElement = new DeleteUpdateEntry(new ReferenceInfo(dummyId, Allocatable.class), new Date(timestamp.getTime() + 1), false);
 
         Lock lock = readLock();
-        final Collection<String> groupsIncludingParents = user != null ? UserImpl.getGroupsIncludingParents(user) : null;
+        final Collection<String> groupsIncludingParents = user != null ? getPermissionController().getGroupsIncludingParents(user) : null;
         String userId = user != null ? user.getId() : null;
         try
         {
@@ -1751,14 +2055,17 @@ public abstract class LocalAbstractCachableOperator extends AbstractCachableOper
             Set<DeleteUpdateEntry> tailSet = tailMap.keySet();
             for (DeleteUpdateEntry entry : tailSet)
             {
-                if (entry.isDelete != isDelete)
-                {
-                    continue;
-                }
                 if (user == null || user.isAdmin() || isAffected(entry, userId, groupsIncludingParents))
                 {
-                    ReferenceInfo deletedReference = entry.reference;
-                    result.add(deletedReference);
+                    ReferenceInfo reference = entry.reference;
+                    if (entry.isDelete)
+                    {
+                        toRemove.add(reference);
+                    }
+                    else
+                    {
+                        toUpdate.add(reference);
+                    }
                 }
             }
         }
@@ -1766,7 +2073,6 @@ public abstract class LocalAbstractCachableOperator extends AbstractCachableOper
         {
             unlock(lock);
         }
-        return result;
     }
 
     protected void updateBindings(Map<ReferenceInfo<Allocatable>, AllocationChange> toUpdate, Reservation reservation, Appointment app, boolean remove)
@@ -1848,41 +2154,53 @@ public abstract class LocalAbstractCachableOperator extends AbstractCachableOper
         }
     }
 
-    static final SortedSet<Appointment> EMPTY_SORTED_SET = Collections.unmodifiableSortedSet(new TreeSet<Appointment>());
+    AllocationMap createAllocationMap()
+    {
+        return new AllocationMap()
+        {
+            public SortedSet<Appointment> getAppointments(Allocatable allocatable, Date start, Date end)
+            {
+                return LocalAbstractCachableOperator.this.getAppointments(allocatable, start, end);
+            }
 
-    /** returs all appointments for the allocatable and all groupMembers and belongsTo*/
-    protected SortedSet<Appointment> getAppointments(Allocatable allocatable)
+            @SuppressWarnings("unchecked") public Collection<Allocatable> getAllocatables()
+            {
+                return (Collection) cache.getAllocatables();
+            }
+        };
+    }
+
+    /** returns all appointments for the allocatable and all groupMembers and belongsTo, that could overlap the interval from start to end.
+     * Pass null for an open start or end. The appointments are only preselected with the max end, so the caller must still check the overlapping.*/
+    protected SortedSet<Appointment> getAppointments(Allocatable allocatable, Date start, Date end)
     {
         final ReferenceInfo<Allocatable> reference = allocatable != null ? allocatable.getReference() : null;
         Set<ReferenceInfo<Allocatable>> allocatableIds = cache.getDependentRef(reference);
+        SortedSet<Appointment> result = new TreeSet<Appointment>(new AppointmentStartComparator());
         if (allocatableIds.size() == 0)
         {
-            SortedSet<Appointment> s = appointmentBindings.getAppointments(null);
-            if (s != null)
-            {
-                return s;
-            }
-            return EMPTY_SORTED_SET;
+            appointmentBindings.getAppointments(null, start, end, result);
         }
         else
         {
-            SortedSet<Appointment> transitive = new TreeSet<Appointment>(new AppointmentStartComparator());
             for (ReferenceInfo<Allocatable> allocatableId : allocatableIds)
             {
-                SortedSet<Appointment> s = appointmentBindings.getAppointments(allocatableId);
-                for (Appointment appointment : s)
-                {
-                    transitive.add(appointment);
-                }
+                appointmentBindings.getAppointments(allocatableId, start, end, result);
             }
-            return transitive;
         }
+        return result;
     }
 
     static final class AppointmentMapClass
     {
         final private Logger logger;
-        private Map<ReferenceInfo<Allocatable>, SortedSet<Appointment>> appointmentMap;
+        /** appointments by allocatable, by template and all appointments with the null key */
+        private Map<ReferenceInfo<Allocatable>, AppointmentIntervalTree> appointmentMap;
+        /** appointments by the id of the type of their reservation */
+        private Map<String, AppointmentIntervalTree> typeMap;
+        /** the type id each appointment was added with, so it is removed from the same index, even if the type can't be resolved anymore */
+        private Map<Appointment, String> appointmentTypeIds;
+        private Map<ReferenceInfo<User>, AppointmentIntervalTree> ownerMap;
 
         private AppointmentMapClass(Logger newLogger)
         {
@@ -1891,7 +2209,10 @@ public abstract class LocalAbstractCachableOperator extends AbstractCachableOper
 
         private void initAppointmentBindings(Collection<Reservation> reservations)
         {
-            appointmentMap = new HashMap<ReferenceInfo<Allocatable>, SortedSet<Appointment>>();
+            appointmentMap = new HashMap<ReferenceInfo<Allocatable>, AppointmentIntervalTree>();
+            typeMap = new HashMap<String, AppointmentIntervalTree>();
+            appointmentTypeIds = new HashMap<Appointment, String>();
+            ownerMap = new HashMap<ReferenceInfo<User>, AppointmentIntervalTree>();
             for (Reservation r : reservations)
             {
                 for (Appointment app : ((ReservationImpl) r).getAppointmentList())
@@ -1918,7 +2239,18 @@ public abstract class LocalAbstractCachableOperator extends AbstractCachableOper
 
         private void removeAppointmentBinding(Appointment app, ReferenceInfo<Allocatable> allocationId)
         {
-            Collection<Appointment> appointmentSet = appointmentMap.get(allocationId);
+            // the reservation indexes are updated with the binding that contains all appointments
+            if (allocationId == null)
+            {
+                remove(typeMap, appointmentTypeIds.remove(app), app);
+                remove(ownerMap, app.getOwnerRef(), app);
+            }
+            remove(appointmentMap, allocationId, app);
+        }
+
+        private <K> void remove(Map<K, AppointmentIntervalTree> map, K key, Appointment app)
+        {
+            Collection<Appointment> appointmentSet = map.get(key);
             if (appointmentSet == null)
             {
                 return;
@@ -1947,7 +2279,7 @@ public abstract class LocalAbstractCachableOperator extends AbstractCachableOper
         {
             for (ReferenceInfo<Allocatable> alloc : removedAllocatables)
             {
-                SortedSet<Appointment> sortedSet = appointmentMap.get(alloc);
+                AppointmentIntervalTree sortedSet = appointmentMap.get(alloc);
                 if (sortedSet != null && !sortedSet.isEmpty())
                 {
                     logger.error("Removing non empty appointment map for resource " + alloc + " Appointments:" + sortedSet);
@@ -1958,15 +2290,45 @@ public abstract class LocalAbstractCachableOperator extends AbstractCachableOper
 
         private void addAppointmentBinding(Appointment appRef, ReferenceInfo<Allocatable> allocationId)
         {
-            SortedSet<Appointment> set = appointmentMap.get(allocationId);
+            if (allocationId == null)
+            {
+                final String typeId = getTypeId(appRef);
+                appointmentTypeIds.put(appRef, typeId);
+                add(typeMap, typeId, appRef);
+                add(ownerMap, appRef.getOwnerRef(), appRef);
+            }
+            add(appointmentMap, allocationId, appRef);
+        }
+
+        private <K> void add(Map<K, AppointmentIntervalTree> map, K key, Appointment appRef)
+        {
+            AppointmentIntervalTree set = map.get(key);
             if (set == null)
             {
-                set = new TreeSet<Appointment>(new AppointmentStartComparator());
-                appointmentMap.put(allocationId, set);
+                set = new AppointmentIntervalTree();
+                map.put(key, set);
             }
             set.add(appRef);
         }
 
+        /** returns the id of the reservation type or null if it can't be resolved. Appointments of such reservations can't match a type filter */
+        private String getTypeId(Appointment app)
+        {
+            final Reservation reservation = app.getReservation();
+            if (reservation == null)
+            {
+                return null;
+            }
+            try
+            {
+                return ((ClassificationImpl) reservation.getClassification()).getTypeId();
+            }
+            catch (RuntimeException ex)
+            {
+                return null;
+            }
+        }
+
         // this check is only there to detect rapla bugs in the conflict api and can be removed if it causes performance issues
         private void checkAbandonedAppointments(LocalCache cache)
         {
@@ -1976,7 +2338,7 @@ public abstract class LocalAbstractCachableOperator extends AbstractCachableOper
             {
                 for (Allocatable allocatable : allocatables)
                 {
-                    SortedSet<Appointment> appointmentSet = this.appointmentMap.get(allocatable.getReference());
+                    AppointmentIntervalTree appointmentSet = this.appointmentMap.get(allocatable.getReference());
                     if (appointmentSet == null)
                     {
                         continue;
@@ -2038,16 +2400,55 @@ public abstract class LocalAbstractCachableOperator extends AbstractCachableOper
             }
         }
 
-        final SortedSet<Appointment> EMPTY_SORTED_REF_SET = Collections.unmodifiableSortedSet(new TreeSet<Appointment>());
+        /** adds all appointments of the allocatable that could overlap the interval from start to end to the result.
+         * The result can still contain appointments that don't overlap, e.g. because of exceptions. */
+        public void getAppointments(ReferenceInfo<Allocatable> allocatableId, Date start, Date end, Collection<Appointment> result)
+        {
+            final AppointmentIntervalTree tree = appointmentMap.get(allocatableId);
+            if (tree != null)
+            {
+                tree.query(start, end, result);
+            }
+        }
 
-        public SortedSet<Appointment> getAppointments(ReferenceInfo<Allocatable> allocatableId)
+        /** same as {@link #getAppointments(ReferenceInfo, Date, Date, Collection)} for the appointments of reservations with the type */
+        public void getTypeAppointments(String typeId, Date start, Date end, Collection<Appointment> result)
         {
-            final SortedSet<Appointment> referenceInfos = appointmentMap.get(allocatableId);
-            if (referenceInfos != null)
+            final AppointmentIntervalTree tree = typeMap.get(typeId);
+            if (tree != null)
             {
-                return referenceInfos;
+                tree.query(start, end, result);
             }
-            return EMPTY_SORTED_REF_SET;
+        }
+
+        /** same as {@link #getAppointments(ReferenceInfo, Date, Date, Collection)} for the appointments of the owner */
+        public void getOwnerAppointments(ReferenceInfo<User> ownerId, Date start, Date end, Collection<Appointment> result)
+        {
+            final AppointmentIntervalTree tree = ownerMap.get(ownerId);
+            if (tree != null)
+            {
+                tree.query(start, end, result);
+            }
+        }
+
+        int count(ReferenceInfo<Allocatable> allocatableId)
+        {
+            return size(appointmentMap.get(allocatableId));
+        }
+
+        int countType(String typeId)
+        {
+            return size(typeMap.get(typeId));
+        }
+
+        int countOwner(ReferenceInfo<User> ownerId)
+        {
+            return size(ownerMap.get(ownerId));
+        }
+
+        private static int size(AppointmentIntervalTree tree)
+        {
+            return tree != null ? tree.size() : 0;
         }
     }
 
@@ -2062,21 +2463,30 @@ public abstract class LocalAbstractCachableOperator extends AbstractCachableOper
             // conflicts
             update.addOperation(op.getNewConflict(), op.getOldConflict(), op.getOperation());
         }
+        signalChanges();
         return update;
     }
 
     private void removeOldHistory() throws RaplaException
     {
-        final Lock writeLock = writeLock();
+        final Lock commitLock = commitLock();
         try
         {
-            Date lastUpdated = getLastRefreshed();
-            Date date = new Date(lastUpdated.getTime() - HISTORY_DURATION);
-            history.removeUnneeded(date);
+            final Lock writeLock = writeLock();
+            try
+            {
+                Date lastUpdated = getLastRefreshed();
+                Date date = new Date(lastUpdated.getTime() - HISTORY_DURATION);
+                history.removeUnneeded(date);
+            }
+            finally
+            {
+                unlock(writeLock);
+            }
         }
         finally
         {
-            unlock(writeLock);
+            unlock(commitLock);
         }
     }
 
@@ -2110,16 +2520,24 @@ public abstract class LocalAbstractCachableOperator extends AbstractCachableOper
         if (conflictsToDelete.size() > 0)
         {
             getLogger().info("Removing old conflicts " + conflictsToDelete.size());
-            Lock writeLock = writeLock();
+            Lock commitLock = commitLock();
             try
             {
                 //Order is important they can't be removed from database if they are not in cache
                 removeConflictsFromDatabase(conflictsToDelete);
-                removeConflictsFromCache(conflictsToDelete);
+                Lock writeLock = writeLock();
+                try
+                {
+                    removeConflictsFromCache(conflictsToDelete);
+                }
+                finally
+                {
+                    unlock(writeLock);
+                }
             }
             finally
             {
-                unlock(writeLock);
+                unlock(commitLock);
             }
         }
     }
@@ -3333,14 +3751,10 @@ public abstract class LocalAbstractCachableOperator extends AbstractCachableOper
                     continue;
                 }
                 // TODO check also parents and children from allocatables
-                SortedSet<Appointment> appointmentSet = getAppointments(allocatable);
-                if (appointmentSet == null)
-                {
-                    continue;
-                }
                 map.put(allocatable, new HashMap<Appointment, Collection<Appointment>>());
                 for (Appointment appointment : appointments)
                 {
+                    SortedSet<Appointment> appointmentSet = getAppointments(allocatable, appointment.getStart(), appointment.getMaxEnd());
                     Set<Appointment> conflictingAppointments = AppointmentImpl
                             .getConflictingAppointments(appointmentSet, appointment, ignoreList, onlyFirstConflictingAppointment);
                     if (conflictingAppointments.size() > 0)
@@ -3694,8 +4108,18 @@ public abstract class LocalAbstractCachableOperator extends AbstractCachableOper
         {
             return new UpdateResult(null, historyValidStart, null, null);
         }
+        // clients of the same user, that refresh together, pass the same since and get the same result until the next change
+        final String userId = user != null ? user.getId() : null;
+        final long version = changeVersion;
         Date until = getLastRefreshed();
-        final Collection<ReferenceInfo> toUpdate = getEntities(user, since, false);
+        final UpdateResult cachedResult = updateResultCache.get(version, until, since, userId);
+        if (cachedResult != null)
+        {
+            return cachedResult;
+        }
+        final Collection<ReferenceInfo> toUpdate = new ArrayList<ReferenceInfo>();
+        final Collection<ReferenceInfo> toRemove = new ArrayList<ReferenceInfo>();
+        collectChanges(user, since, toUpdate, toRemove);
         Map<ReferenceInfo, Entity> oldEntities = new LinkedHashMap<ReferenceInfo, Entity>();
         Collection<Entity> updatedEntities = new ArrayList<Entity>();
         for (ReferenceInfo update : toUpdate)
@@ -3737,7 +4161,6 @@ public abstract class LocalAbstractCachableOperator extends AbstractCachableOper
                 }
             }
         }
-        Collection<ReferenceInfo> toRemove = getEntities(user, since, true);
         for (Iterator<ReferenceInfo> it = toRemove.iterator(); it.hasNext(); )
         {
             ReferenceInfo update = it.next();
@@ -3760,7 +4183,7 @@ public abstract class LocalAbstractCachableOperator extends AbstractCachableOper
                 final EntityHistory.HistoryEntry latest = history.getLatest(update);
                 if (latest != null)
                 {
-                    oldEntity = history.getEntity(latest);
+                    oldEntity = history.getCachedEntity(latest);
                 }
                 else
                 {
@@ -3773,9 +4196,50 @@ public abstract class LocalAbstractCachableOperator extends AbstractCachableOper
             }
         }
         UpdateResult updateResult = createUpdateResult(oldEntities, updatedEntities, toRemove, since, until);
+        updateResultCache.put(version, until, since, userId, updateResult);
         return updateResult;
     }
 
+    @Override public long getChangeVersion()
+    {
+        return changeVersion;
+    }
+
+    @Override public long waitForChanges(long changeVersion, long timeoutMillis) throws RaplaException
+    {
+        checkConnected();
+        final long end = System.currentTimeMillis() + timeoutMillis;
+        synchronized (changeMonitor)
+        {
+            while (this.changeVersion == changeVersion && isConnected())
+            {
+                final long remaining = end - System.currentTimeMillis();
+                if (remaining <= 0)
+                {
+                    break;
+                }
+                try
+                {
+                    changeMonitor.wait(remaining);
+                }
+                catch (InterruptedException ex)
+                {
+                    Thread.currentThread().interrupt();
+                    break;
+                }
+            }
+        }
+        return this.changeVersion;
+    }
+
+    private void signalChanges()
+    {
+        synchronized (changeMonitor)
+        {
+            changeMonitor.notifyAll();
+        }
+    }
+
     @Override public UpdateResult getUpdateResult(Date since) throws RaplaException
     {
         return getUpdateResult(since, null);
@@ -3805,7 +4269,8 @@ public abstract class LocalAbstractCachableOperator extends AbstractCachableOper
 
     @Override public void doMerge(Allocatable selectedObject, Set<ReferenceInfo<Allocatable>> allocatableIds, User user) throws RaplaException
     {
-        final Lock writeLock = writeLock();
+        // the references are collected and changed in one transaction, so no other writer can add a reference in between
+        final Lock commitLock = commitLock();
         try
         {
             // FIXME check write permissions
@@ -3848,7 +4313,7 @@ public abstract class LocalAbstractCachableOperator extends AbstractCachableOper
         }
         finally
         {
-            unlock(writeLock);
+            unlock(commitLock);
         }
     }
 
@@ -0,0 +1,84 @@
+package org.rapla.storage.impl.server;
+
+import java.util.Date;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import org.rapla.storage.UpdateResult;
+
+/**
+ * Shares the {@link UpdateResult} between clients of the same user that refresh with the same last synced timestamp.
+ * A result is only valid for the version of the change index and the refresh timestamp it was computed for, so all results are
+ * discarded as soon as a newer version is requested or stored.
+ */
+class UpdateResultCache
+{
+    private final int maxSize;
+    private long version = -1;
+    private long until = Long.MIN_VALUE;
+    /** access order, so the least recently used result is removed first */
+    private final Map<String, UpdateResult> results = new LinkedHashMap<String, UpdateResult>(16, 0.75f, true)
+    {
+        @Override protected boolean removeEldestEntry(Map.Entry<String, UpdateResult> eldest)
+        {
+            return size() > maxSize;
+        }
+    };
+
+    UpdateResultCache(int maxSize)
+    {
+        this.maxSize = maxSize;
+    }
+
+    /** returns the result computed for the same version, since and user or null */
+    synchronized UpdateResult get(long version, Date until, Date since, String userId)
+    {
+        if (!isCurrent(version, until))
+        {
+            return null;
+        }
+        return results.get(getKey(since, userId));
+    }
+
+    synchronized void put(long version, Date until, Date since, String userId, UpdateResult result)
+    {
+        if (!isCurrent(version, until))
+        {
+            return;
+        }
+        results.put(getKey(since, userId), result);
+    }
+
+    synchronized void clear()
+    {
+        results.clear();
+    }
+
+    synchronized int size()
+    {
+        return results.size();
+    }
+
+    /** switches to the passed version if it is newer. Returns false if the passed version is outdated */
+    private boolean isCurrent(long version, Date until)
+    {
+        final long untilTime = until != null ? until.getTime() : Long.MIN_VALUE;
+        if (version == this.version && untilTime == this.until)
+        {
+            return true;
+        }
+        if (version < this.version || (version == this.version && untilTime < this.until))
+        {
+            return false;
+        }
+        this.version = version;
+        this.until = untilTime;
+        results.clear();
+        return true;
+    }
+
+    private static String getKey(Date since, String userId)
+    {
+        return since.getTime() + "/" + userId;
+    }
+}
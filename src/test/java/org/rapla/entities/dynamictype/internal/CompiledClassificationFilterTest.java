@@ -0,0 +1,289 @@
+package org.rapla.entities.dynamictype.internal;
+
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Date;
+import java.util.List;
+import java.util.Random;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Ignore;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+import org.rapla.components.util.DateTools;
+import org.rapla.entities.Category;
+import org.rapla.entities.Entity;
+import org.rapla.entities.User;
+import org.rapla.entities.domain.Allocatable;
+import org.rapla.entities.dynamictype.Attribute;
+import org.rapla.entities.dynamictype.AttributeType;
+import org.rapla.entities.dynamictype.Classification;
+import org.rapla.entities.dynamictype.ClassificationFilter;
+import org.rapla.entities.dynamictype.ConstraintIds;
+import org.rapla.entities.dynamictype.DynamicType;
+import org.rapla.entities.dynamictype.DynamicTypeAnnotations;
+import org.rapla.entities.storage.ReferenceInfo;
+import org.rapla.facade.RaplaFacade;
+import org.rapla.server.PromiseSynchroniser;
+import org.rapla.test.util.RaplaTestCase;
+
+@RunWith(JUnit4.class)
+public class CompiledClassificationFilterTest
+{
+    RaplaFacade facade;
+    DynamicType type;
+    List<Classification> classifications = new ArrayList<Classification>();
+    List<Category> groups = new ArrayList<Category>();
+    final Date today = new Date(DateTools.cutDate(System.currentTimeMillis()));
+
+    @Before
+    public void setUp() throws Exception
+    {
+        facade = RaplaTestCase.createFacadeWithFile(RaplaTestCase.initLoger(), "testdefault.xml");
+        final User homer = facade.getUser("homer");
+        final Category userGroups = facade.getUserGroupsCategory();
+        addGroups(userGroups);
+        final DynamicType roomType = facade.getDynamicType("room");
+        {
+            DynamicType newType = facade.newDynamicType(DynamicTypeAnnotations.VALUE_CLASSIFICATION_TYPE_RESOURCE);
+            newType.setKey("filtertest");
+            newType.getName().setName("en", "Filtertest");
+            newType.addAttribute(newAttribute("seats", AttributeType.INT));
+            newType.addAttribute(newAttribute("since", AttributeType.DATE));
+            newType.addAttribute(newAttribute("active", AttributeType.BOOLEAN));
+            final Attribute group = newAttribute("group", AttributeType.CATEGORY);
+            group.setConstraint(ConstraintIds.KEY_ROOT_CATEGORY, userGroups);
+            newType.addAttribute(group);
+            final Attribute room = newAttribute("room", AttributeType.ALLOCATABLE);
+            room.setConstraint(ConstraintIds.KEY_DYNAMIC_TYPE, roomType);
+            newType.addAttribute(room);
+            PromiseSynchroniser.waitForWithRaplaException(facade.dispatch(Collections.singletonList(newType), Collections.<ReferenceInfo<Entity>>emptyList(), homer), 10000);
+        }
+        type = facade.getDynamicType("filtertest");
+        final Allocatable[] rooms = facade.getAllocatables(roomType.newClassificationFilter().toArray());
+        Random random = new Random(17);
+        List<Entity> resources = new ArrayList<Entity>();
+        for (int i = 0; i < 2000; i++)
+        {
+            Classification classification = type.newClassification();
+            classification.setValue("name", "resource " + i);
+            if (random.nextInt(5) > 0)
+            {
+                classification.setValue("seats", (long) random.nextInt(100));
+            }
+            if (random.nextInt(5) > 0)
+            {
+                classification.setValue("since", new Date(today.getTime() + (random.nextInt(100) - 50) * DateTools.MILLISECONDS_PER_DAY));
+            }
+            if (random.nextInt(3) > 0)
+            {
+                classification.setValue("active", random.nextBoolean());
+            }
+            if (random.nextInt(4) > 0)
+            {
+                classification.setValue("group", groups.get(random.nextInt(groups.size())));
+            }
+            if (random.nextInt(2) > 0)
+            {
+                classification.setValue("room", rooms[random.nextInt(rooms.length)]);
+            }
+            resources.add(facade.newAllocatable(classification, homer));
+        }
+        PromiseSynchroniser.waitForWithRaplaException(facade.dispatch(resources, Collections.<ReferenceInfo<Entity>>emptyList(), homer), 10000);
+        for (Allocatable allocatable : facade.getAllocatables(type.newClassificationFilter().toArray()))
+        {
+            classifications.add(allocatable.getClassification());
+        }
+        Assert.assertEquals(resources.size(), classifications.size());
+    }
+
+    @After
+    public void tearDown() throws Exception
+    {
+        RaplaTestCase.dispose(facade);
+    }
+
+    private void addGroups(Category category)
+    {
+        for (Category child : category.getCategories())
+        {
+            groups.add(child);
+            addGroups(child);
+        }
+    }
+
+    private Attribute newAttribute(String key, AttributeType attributeType) throws Exception
+    {
+        Attribute attribute = facade.newAttribute(attributeType);
+        attribute.setKey(key);
+        return attribute;
+    }
+
+    private Category getGroup(String key)
+    {
+        for (Category group : groups)
+        {
+            if (group.getKey().equals(key))
+            {
+                return group;
+            }
+        }
+        throw new IllegalArgumentException(key);
+    }
+
+    private ClassificationFilterImpl newFilter(String attributeName, Object[][] conditions)
+    {
+        ClassificationFilterImpl filter = (ClassificationFilterImpl) type.newClassificationFilter();
+        filter.addRule(attributeName, conditions);
+        return filter;
+    }
+
+    /** filters with the common operators for each attribute type */
+    private List<ClassificationFilterImpl> createFilters() throws Exception
+    {
+        final Date since = new Date(today.getTime() + 10 * DateTools.MILLISECONDS_PER_DAY);
+        List<ClassificationFilterImpl> filters = new ArrayList<ClassificationFilterImpl>();
+        filters.add(newFilter("name", new Object[][] { { "contains", "1" } }));
+        filters.add(newFilter("name", new Object[][] { { "starts", "Resource 2" }, { "=", "resource 42" } }));
+        filters.add(newFilter("seats", new Object[][] { { "<", 50L } }));
+        filters.add(newFilter("seats", new Object[][] { { ">", 80L }, { "=", 10L } }));
+        filters.add(newFilter("seats", new Object[][] { { ">=", 20L }, { "<=", 5L } }));
+        filters.add(newFilter("seats", new Object[][] { { "<>", 30L } }));
+        filters.add(newFilter("seats", new Object[][] { { "=", null } }));
+        filters.add(newFilter("since", new Object[][] { { "<", since } }));
+        filters.add(newFilter("since", new Object[][] { { "<>", null } }));
+        filters.add(newFilter("active", new Object[][] { { "=", Boolean.TRUE } }));
+        filters.add(newFilter("active", new Object[][] { { "=", null } }));
+        filters.add(newFilter("group", new Object[][] { { "is", getGroup("powerplant") } }));
+        filters.add(newFilter("group", new Object[][] { { "=", getGroup("powerplant-admins") }, { "=", getGroup("registerer") } }));
+        filters.add(newFilter("group", new Object[][] { { "=", null } }));
+        final Allocatable room = facade.getAllocatables(facade.getDynamicType("room").newClassificationFilter().toArray())[0];
+        filters.add(newFilter("room", new Object[][] { { "=", room } }));
+        ClassificationFilterImpl combined = newFilter("seats", new Object[][] { { ">", 10L } });
+        combined.addRule("active", new Object[][] { { "=", Boolean.TRUE } });
+        combined.addRule("group", new Object[][] { { "is", getGroup("powerplant") }, { "=", null } });
+        filters.add(combined);
+        filters.add((ClassificationFilterImpl) facade.getDynamicType("room").newClassificationFilter());
+        return filters;
+    }
+
+    @Test
+    public void compiledFilterMatchesTheSameClassifications() throws Exception
+    {
+        for (ClassificationFilterImpl filter : createFilters())
+        {
+            int matches = 0;
+            for (Classification classification : classifications)
+            {
+                final boolean expected = filter.matchesRules(classification);
+                Assert.assertEquals(filter.toString() + classification, expected, filter.matches(classification));
+                if (expected)
+                {
+                    matches++;
+                }
+            }
+            if (filter.getType().equals(type))
+            {
+                Assert.assertTrue(filter.toString(), matches > 0);
+            }
+        }
+    }
+
+    @Test
+    public void compiledFilterIsCachedPerVersion() throws Exception
+    {
+        ClassificationFilterImpl filter = newFilter("seats", new Object[][] { { "<", 50L } });
+        final CompiledClassificationFilter compiled = filter.getCompiled();
+        Assert.assertSame(compiled, filter.getCompiled());
+        filter.setRule(0, "seats", new Object[][] { { ">", 50L } });
+        Assert.assertNotSame(compiled, filter.getCompiled());
+        for (Classification classification : classifications)
+        {
+            Assert.assertEquals(filter.matchesRules(classification), filter.matches(classification));
+        }
+
+        // a new version of the type compiles the filter again
+        final CompiledClassificationFilter beforeTypeChange = filter.getCompiled();
+        DynamicType editType = facade.edit(type);
+        editType.getName().setName("en", "Changed");
+        facade.store(editType);
+        Assert.assertNotSame(beforeTypeChange, filter.getCompiled());
+    }
+
+    @Test
+    public void otherClassificationsAreMatchedByTheRules() throws Exception
+    {
+        final List<ClassificationFilterImpl> filters = createFilters();
+        for (Classification classification : classifications.subList(0, 200))
+        {
+            // a classification that is not a ClassificationImpl
+            final Classification delegate = (Classification) Proxy.newProxyInstance(getClass().getClassLoader(), new Class[] { Classification.class },
+                    (proxy, method, args) -> {
+                        try
+                        {
+                            return method.invoke(classification, args);
+                        }
+                        catch (InvocationTargetException ex)
+                        {
+                            throw ex.getCause();
+                        }
+                    });
+            for (ClassificationFilterImpl filter : filters)
+            {
+                Assert.assertEquals(filter.toString() + classification, filter.matches(classification), filter.matches(delegate));
+            }
+        }
+    }
+
+    @Ignore("benchmark, run manually")
+    @Test
+    public void benchmarkCompiledFilters() throws Exception
+    {
+        final List<ClassificationFilterImpl> filters = createFilters();
+        long interpretedTime = 0;
+        long compiledTime = 0;
+        for (int run = 0; run < 5; run++)
+        {
+            int interpretedMatches = 0;
+            int compiledMatches = 0;
+            long t1 = System.nanoTime();
+            for (ClassificationFilterImpl filter : filters)
+            {
+                for (Classification classification : classifications)
+                {
+                    if (filter.matchesRules(classification))
+                    {
+                        interpretedMatches++;
+                    }
+                }
+            }
+            long t2 = System.nanoTime();
+            for (ClassificationFilterImpl filter : filters)
+            {
+                for (Classification classification : classifications)
+                {
+                    if (filter.matches(classification))
+                    {
+                        compiledMatches++;
+                    }
+                }
+            }
+            long t3 = System.nanoTime();
+            Assert.assertEquals(interpretedMatches, compiledMatches);
+            // the first runs warm up the jit
+            if (run >= 2)
+            {
+                interpretedTime += t2 - t1;
+                compiledTime += t3 - t2;
+            }
+        }
+        System.out.println(
+                "Matching " + filters.size() + " filters with " + classifications.size() + " classifications. Interpreted: " + (interpretedTime / 1000000.0)
+                        + " ms, compiled: " + (compiledTime / 1000000.0) + " ms");
+    }
+}
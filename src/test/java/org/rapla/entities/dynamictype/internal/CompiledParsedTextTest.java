@@ -0,0 +1,238 @@
+package org.rapla.entities.dynamictype.internal;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Date;
+import java.util.List;
+import java.util.Locale;
+import java.util.SortedSet;
+import java.util.TreeSet;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+import org.rapla.components.util.DateTools;
+import org.rapla.entities.Entity;
+import org.rapla.entities.User;
+import org.rapla.entities.domain.Allocatable;
+import org.rapla.entities.domain.Appointment;
+import org.rapla.entities.domain.AppointmentBlock;
+import org.rapla.entities.domain.Permission;
+import org.rapla.entities.domain.RepeatingType;
+import org.rapla.entities.domain.Reservation;
+import org.rapla.entities.dynamictype.Attribute;
+import org.rapla.entities.dynamictype.AttributeType;
+import org.rapla.entities.dynamictype.DynamicType;
+import org.rapla.entities.dynamictype.DynamicTypeAnnotations;
+import org.rapla.entities.extensionpoints.Function;
+import org.rapla.entities.storage.ReferenceInfo;
+import org.rapla.facade.RaplaFacade;
+import org.rapla.server.PromiseSynchroniser;
+import org.rapla.test.util.RaplaTestCase;
+
+@RunWith(JUnit4.class)
+public class CompiledParsedTextTest
+{
+    static final String FOLDED = "{concat(\"Event\",\": \")}{name}{if(equals(1,2),\"none\",\"\\n\")}{size}";
+    static final String NUMBERED = "{p->concat(name(p),\" \",number(p))}";
+    static final String RESOURCES = "{name} {event:allocatables}";
+
+    RaplaFacade facade;
+    User homer;
+    DynamicType type;
+    Allocatable room;
+    final Locale locale = Locale.ENGLISH;
+    final Date start = new Date(DateTools.cutDate(System.currentTimeMillis()) + 10 * DateTools.MILLISECONDS_PER_HOUR);
+
+    @Before
+    public void setUp() throws Exception
+    {
+        facade = RaplaTestCase.createFacadeWithFile(RaplaTestCase.initLoger(), "testdefault.xml");
+        homer = facade.getUser("homer");
+        DynamicType newType = facade.newDynamicType(DynamicTypeAnnotations.VALUE_CLASSIFICATION_TYPE_RESERVATION);
+        newType.setKey("formattest");
+        newType.getName().setName("en", "Formattest");
+        Attribute size = facade.newAttribute(AttributeType.INT);
+        size.setKey("size");
+        newType.addAttribute(size);
+        newType.setAnnotation(DynamicTypeAnnotations.KEY_NAME_FORMAT, "{name}");
+        newType.setAnnotation("folded", FOLDED);
+        newType.setAnnotation("numbered", NUMBERED);
+        newType.setAnnotation("resources", RESOURCES);
+        Permission permission = newType.newPermission();
+        permission.setAccessLevel(Permission.CREATE);
+        newType.addPermission(permission);
+        PromiseSynchroniser.waitForWithRaplaException(facade.dispatch(Collections.singletonList(newType), Collections.<ReferenceInfo<Entity>>emptyList(), homer), 10000);
+        type = facade.getDynamicType("formattest");
+        room = facade.getAllocatables(facade.getDynamicType("room").newClassificationFilter().toArray())[0];
+    }
+
+    @After
+    public void tearDown() throws Exception
+    {
+        RaplaTestCase.dispose(facade);
+    }
+
+    private Reservation createReservation(String name, boolean infiniteRepeating) throws Exception
+    {
+        Reservation reservation = facade.newReservation(type.newClassification(), homer);
+        reservation.getClassification().setValue("name", name);
+        reservation.getClassification().setValue("size", 12L);
+        Appointment weekly = facade.newAppointment(start, new Date(start.getTime() + DateTools.MILLISECONDS_PER_HOUR), homer);
+        weekly.setRepeatingEnabled(true);
+        weekly.getRepeating().setNumber(5);
+        reservation.addAppointment(weekly);
+        final Date secondStart = new Date(start.getTime() + 2 * DateTools.MILLISECONDS_PER_DAY);
+        Appointment daily = facade.newAppointment(secondStart, new Date(secondStart.getTime() + DateTools.MILLISECONDS_PER_HOUR), homer);
+        daily.setRepeatingEnabled(true);
+        daily.getRepeating().setType(RepeatingType.DAILY);
+        if (infiniteRepeating)
+        {
+            daily.getRepeating().setEnd(null);
+        }
+        else
+        {
+            daily.getRepeating().setNumber(20);
+        }
+        reservation.addAppointment(daily);
+        reservation.addAllocatable(room);
+        return reservation;
+    }
+
+    private List<Reservation> store(List<Reservation> reservations) throws Exception
+    {
+        PromiseSynchroniser.waitForWithRaplaException(facade.dispatch(new ArrayList<Entity>(reservations), Collections.<ReferenceInfo<Entity>>emptyList(), homer), 10000);
+        List<Reservation> result = new ArrayList<Reservation>();
+        for (Reservation reservation : reservations)
+        {
+            result.add(facade.resolve(reservation.getReference()));
+        }
+        return result;
+    }
+
+    private List<AppointmentBlock> getBlocks(Reservation reservation, int days)
+    {
+        List<AppointmentBlock> blocks = new ArrayList<AppointmentBlock>();
+        for (Appointment appointment : reservation.getAppointments())
+        {
+            appointment.createBlocks(start, new Date(start.getTime() + days * DateTools.MILLISECONDS_PER_DAY), blocks);
+        }
+        Collections.sort(blocks);
+        return blocks;
+    }
+
+    /** the numbering of the number function, before the blocks of a reservation were reused */
+    private int getNumber(AppointmentBlock appointmentBlock)
+    {
+        final Reservation reservation = appointmentBlock.getAppointment().getReservation();
+        SortedSet<AppointmentBlock> blocks = new TreeSet<AppointmentBlock>();
+        for (Appointment app : reservation.getAppointments())
+        {
+            app.createBlocks(reservation.getFirstDate(), new Date(appointmentBlock.getEnd()), blocks);
+        }
+        return blocks.headSet(appointmentBlock).size() + 1;
+    }
+
+    @Test
+    public void constantsAreFoldedAndTheFormatIsKept() throws Exception
+    {
+        final Reservation reservation = store(Collections.singletonList(createReservation("Party", false))).get(0);
+        final ParsedText parsedText = ((DynamicTypeImpl) type).getParsedAnnotation("folded");
+        Assert.assertTrue(parsedText.isCacheable());
+        Assert.assertEquals(FOLDED, type.getAnnotation("folded"));
+        Assert.assertEquals("Event: Party\n12", reservation.format(locale, "folded"));
+        // the edited type is parsed from the representation of the folded functions
+        final DynamicType editType = facade.edit(type);
+        Assert.assertEquals(FOLDED, editType.getAnnotation("folded"));
+
+        Assert.assertFalse(((DynamicTypeImpl) type).getParsedAnnotation("numbered").isCacheable());
+        // the names of referenced resources can change without a change of the reservation
+        Assert.assertFalse(((DynamicTypeImpl) type).getParsedAnnotation("resources").isCacheable());
+        Assert.assertEquals("Party " + room.getName(locale), reservation.format(locale, "resources"));
+    }
+
+    @Test
+    public void cacheableTextIsFormattedOncePerReservation() throws Exception
+    {
+        final Reservation reservation = store(Collections.singletonList(createReservation("Party", false))).get(0);
+        final List<AppointmentBlock> blocks = getBlocks(reservation, 30);
+        final String name = reservation.format(locale, DynamicTypeAnnotations.KEY_NAME_FORMAT, blocks.get(0));
+        Assert.assertEquals("Party", name);
+        for (AppointmentBlock block : blocks)
+        {
+            Assert.assertSame(name, reservation.format(locale, DynamicTypeAnnotations.KEY_NAME_FORMAT, block));
+            Assert.assertSame(name, reservation.format(locale, DynamicTypeAnnotations.KEY_NAME_FORMAT, block.getAppointment()));
+        }
+
+        // an edited reservation is formatted each time
+        final Reservation edit = facade.edit(reservation);
+        Assert.assertEquals("Party", edit.getName(locale));
+        edit.getClassification().setValue("name", "Meeting");
+        Assert.assertEquals("Meeting", edit.getName(locale));
+        Assert.assertEquals("Party", reservation.getName(locale));
+    }
+
+    @Test
+    public void blocksAreNumberedAsBefore() throws Exception
+    {
+        final List<Reservation> reservations = store(createReservations(3));
+        for (Reservation reservation : reservations)
+        {
+            final List<AppointmentBlock> blocks = getBlocks(reservation, 60);
+            final String name = reservation.getName(locale);
+            for (AppointmentBlock block : blocks)
+            {
+                Assert.assertEquals(name + " " + getNumber(block), reservation.format(locale, "numbered", block));
+            }
+            Collections.reverse(blocks);
+            for (AppointmentBlock block : blocks)
+            {
+                Assert.assertEquals(name + " " + getNumber(block), reservation.format(locale, "numbered", block));
+            }
+        }
+    }
+
+    private List<Reservation> createReservations(int count) throws Exception
+    {
+        List<Reservation> reservations = new ArrayList<Reservation>();
+        for (int i = 0; i < count; i++)
+        {
+            reservations.add(createReservation("event " + i, i % 2 == 0));
+        }
+        return reservations;
+    }
+
+    @Test
+    public void appointmentBlocksAreANewListForEachEvaluation() throws Exception
+    {
+        final Reservation reservation = store(Collections.singletonList(createReservation("Party", false))).get(0);
+        final List<Function> args = new ArrayList<Function>();
+        args.add(constant(reservation));
+        args.add(constant(start));
+        args.add(constant(new Date(start.getTime() + 60 * DateTools.MILLISECONDS_PER_DAY)));
+        final StandardFunctions.AppointmentBlocksFunction function = new StandardFunctions.AppointmentBlocksFunction(args);
+        final EvalContext context = new EvalContext(locale, DynamicTypeAnnotations.KEY_NAME_FORMAT, null, null, Collections.emptyList());
+        final Collection<AppointmentBlock> blocks = function.eval(context);
+        Assert.assertEquals(25, blocks.size());
+        final Collection<AppointmentBlock> keptBlocks = function.eval(context);
+        Assert.assertNotSame(blocks, keptBlocks);
+        Assert.assertEquals(blocks, keptBlocks);
+        keptBlocks.clear();
+        Assert.assertEquals(blocks, function.eval(context));
+    }
+
+    private static Function constant(final Object value)
+    {
+        return new Function("constant", Collections.<Function>emptyList())
+        {
+            @Override public Object eval(EvalContext context)
+            {
+                return value;
+            }
+        };
+    }
+}
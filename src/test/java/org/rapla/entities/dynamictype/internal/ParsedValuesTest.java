@@ -0,0 +1,156 @@
+package org.rapla.entities.dynamictype.internal;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Date;
+import java.util.List;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+import org.rapla.components.util.DateTools;
+import org.rapla.entities.Entity;
+import org.rapla.entities.User;
+import org.rapla.entities.domain.Allocatable;
+import org.rapla.entities.dynamictype.Attribute;
+import org.rapla.entities.dynamictype.AttributeType;
+import org.rapla.entities.dynamictype.Classification;
+import org.rapla.entities.dynamictype.ConstraintIds;
+import org.rapla.entities.dynamictype.DynamicType;
+import org.rapla.entities.dynamictype.DynamicTypeAnnotations;
+import org.rapla.entities.storage.ReferenceInfo;
+import org.rapla.facade.RaplaFacade;
+import org.rapla.server.PromiseSynchroniser;
+import org.rapla.test.util.RaplaTestCase;
+
+@RunWith(JUnit4.class)
+public class ParsedValuesTest
+{
+    RaplaFacade facade;
+    User homer;
+    DynamicType type;
+    Allocatable room;
+    final Date today = new Date(DateTools.cutDate(System.currentTimeMillis()));
+
+    @Before
+    public void setUp() throws Exception
+    {
+        facade = RaplaTestCase.createFacadeWithFile(RaplaTestCase.initLoger(), "testdefault.xml");
+        homer = facade.getUser("homer");
+        final DynamicType roomType = facade.getDynamicType("room");
+        DynamicType newType = facade.newDynamicType(DynamicTypeAnnotations.VALUE_CLASSIFICATION_TYPE_RESOURCE);
+        newType.setKey("valuetest");
+        newType.getName().setName("en", "Valuetest");
+        newType.addAttribute(newAttribute("seats", AttributeType.INT));
+        newType.addAttribute(newAttribute("since", AttributeType.DATE));
+        newType.addAttribute(newAttribute("active", AttributeType.BOOLEAN));
+        final Attribute tags = newAttribute("tags", AttributeType.STRING);
+        tags.setConstraint(ConstraintIds.KEY_MULTI_SELECT, Boolean.TRUE);
+        newType.addAttribute(tags);
+        final Attribute roomAttribute = newAttribute("room", AttributeType.ALLOCATABLE);
+        roomAttribute.setConstraint(ConstraintIds.KEY_DYNAMIC_TYPE, roomType);
+        newType.addAttribute(roomAttribute);
+        PromiseSynchroniser.waitForWithRaplaException(facade.dispatch(Collections.singletonList(newType), Collections.<ReferenceInfo<Entity>>emptyList(), homer), 10000);
+        type = facade.getDynamicType("valuetest");
+        room = facade.getAllocatables(roomType.newClassificationFilter().toArray())[0];
+    }
+
+    @After
+    public void tearDown() throws Exception
+    {
+        RaplaTestCase.dispose(facade);
+    }
+
+    private Attribute newAttribute(String key, AttributeType attributeType) throws Exception
+    {
+        Attribute attribute = facade.newAttribute(attributeType);
+        attribute.setKey(key);
+        return attribute;
+    }
+
+    private List<Allocatable> createResources(int count) throws Exception
+    {
+        List<Entity> resources = new ArrayList<Entity>();
+        for (int i = 0; i < count; i++)
+        {
+            Classification classification = type.newClassification();
+            classification.setValue("name", "resource " + i);
+            classification.setValue("seats", (long) i);
+            if (i % 3 > 0)
+            {
+                classification.setValue("since", new Date(today.getTime() + i * DateTools.MILLISECONDS_PER_DAY));
+            }
+            classification.setValue("active", i % 2 == 0);
+            classification.setValues(type.getAttribute("tags"), Arrays.asList("tag" + i, "all"));
+            classification.setValue("room", room);
+            resources.add(facade.newAllocatable(classification, homer));
+        }
+        PromiseSynchroniser.waitForWithRaplaException(facade.dispatch(resources, Collections.<ReferenceInfo<Entity>>emptyList(), homer), 10000);
+        return Arrays.asList(facade.getAllocatables(type.newClassificationFilter().toArray()));
+    }
+
+    @Test
+    public void valuesAreParsedOnce() throws Exception
+    {
+        final List<Allocatable> resources = createResources(20);
+        Assert.assertEquals(20, resources.size());
+        for (Allocatable resource : resources)
+        {
+            final Classification classification = resource.getClassification();
+            Assert.assertTrue(((ClassificationImpl) classification).isReadOnly());
+            // the writable clone parses the values with each read
+            final Classification clone = ((ClassificationImpl) classification).clone();
+            for (Attribute attribute : type.getAttributes())
+            {
+                Assert.assertEquals(clone.getValues(attribute), classification.getValues(attribute));
+                Assert.assertEquals(clone.getValue(attribute), classification.getValue(attribute));
+                if (attribute.getRefType() == null && attribute.getType() != AttributeType.DATE)
+                {
+                    Assert.assertSame(classification.getValues(attribute), classification.getValues(attribute));
+                }
+            }
+        }
+        final Classification classification = resources.get(1).getClassification();
+        Assert.assertEquals(Arrays.asList("tag1", "all"), classification.getValues(type.getAttribute("tags")));
+        Assert.assertEquals(1L, classification.getValue("seats"));
+        Assert.assertEquals(Boolean.FALSE, classification.getValue("active"));
+        Assert.assertEquals(room, classification.getValue("room"));
+        Assert.assertNull(resources.get(0).getClassification().getValue("since"));
+    }
+
+    @Test
+    public void changedValuesAreParsedAgain() throws Exception
+    {
+        final Allocatable resource = createResources(1).get(0);
+        Assert.assertEquals(0L, resource.getClassification().getValue("seats"));
+        final Allocatable edit = facade.edit(resource);
+        edit.getClassification().setValue("seats", 42L);
+        Assert.assertEquals(42L, edit.getClassification().getValue("seats"));
+        facade.store(edit);
+        Assert.assertEquals(42L, facade.getPersistant(resource).getClassification().getValue("seats"));
+
+        // the values are parsed again for the positions of the new type version
+        final DynamicType editType = facade.edit(type);
+        editType.exchangeAttributes(1, 2);
+        facade.store(editType);
+        final Classification classification = facade.getPersistant(resource).getClassification();
+        Assert.assertEquals(42L, classification.getValue("seats"));
+        Assert.assertEquals(Boolean.TRUE, classification.getValue("active"));
+    }
+
+    @Test
+    public void parsedDatesAreCopied() throws Exception
+    {
+        final Classification classification = createResources(2).get(1).getClassification();
+        final Attribute since = type.getAttribute("since");
+        final Date expected = new Date(today.getTime() + DateTools.MILLISECONDS_PER_DAY);
+        ((Date) classification.getValue(since)).setTime(0);
+        Assert.assertEquals(expected, classification.getValue(since));
+        ((Date) classification.getValues(since).iterator().next()).setTime(0);
+        Assert.assertEquals(Collections.singletonList(expected), classification.getValues(since));
+    }
+}
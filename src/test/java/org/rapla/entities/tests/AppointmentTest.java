@@ -31,6 +31,7 @@ import java.util.Comparator;
 import java.util.Date;
 import java.util.List;
 import java.util.Locale;
+import java.util.Random;
 import java.util.TimeZone;
 
 import static org.junit.Assert.assertEquals;
@@ -496,9 +497,124 @@ public class AppointmentTest {
         assertEquals( 1, blocks.size());        
     }
 
-}
-
-
+    private Appointment createRandomRepeating(Random random, long startTime)
+    {
+        RepeatingType[] types = new RepeatingType[] { RepeatingType.DAILY, RepeatingType.WEEKLY, RepeatingType.MONTHLY, RepeatingType.YEARLY };
+        RepeatingType type = types[random.nextInt(types.length)];
+        long start = startTime + random.nextInt(60) * DateTools.MILLISECONDS_PER_DAY + random.nextInt(24) * DateTools.MILLISECONDS_PER_HOUR;
+        if (random.nextInt(4) == 0)
+        {
+            // whole day appointment
+            start = DateTools.cutDate(start);
+        }
+        long end = start + (1 + random.nextInt(30)) * DateTools.MILLISECONDS_PER_HOUR;
+        AppointmentImpl appointment = new AppointmentImpl(new Date(start), new Date(end), type, 1 + random.nextInt(type == RepeatingType.YEARLY ? 4 : 20));
+        Repeating repeating = appointment.getRepeating();
+        if (type != RepeatingType.YEARLY)
+        {
+            repeating.setInterval(1 + random.nextInt(3));
+        }
+        List<AppointmentBlock> blocks = new ArrayList<AppointmentBlock>();
+        appointment.createBlocks(new Date(start), DateTools.fillDate(appointment.getMaxEnd()), blocks);
+        for (AppointmentBlock block : blocks)
+        {
+            if (random.nextInt(3) == 0)
+            {
+                repeating.addException(new Date(block.getStart()));
+            }
+        }
+        return appointment;
+    }
 
+    private boolean overlapsByBlocks(Appointment a1, Appointment a2)
+    {
+        List<AppointmentBlock> blocks1 = new ArrayList<AppointmentBlock>();
+        a1.createBlocks(a1.getStart(), DateTools.fillDate(a1.getMaxEnd()), blocks1);
+        List<AppointmentBlock> blocks2 = new ArrayList<AppointmentBlock>();
+        a2.createBlocks(a2.getStart(), DateTools.fillDate(a2.getMaxEnd()), blocks2);
+        for (AppointmentBlock block1 : blocks1)
+        {
+            for (AppointmentBlock block2 : blocks2)
+            {
+                if (block1.getStart() < block2.getEnd() && block2.getStart() < block1.getEnd())
+                {
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
 
+    @Test
+    public void testRepeatingOverlapEqualsBlockOverlap()
+    {
+        Random random = new Random(7);
+        long startTime = new Day(2016, 1, 1).toGMTDate().getTime();
+        int overlapCount = 0;
+        for (int i = 0; i < 3000; i++)
+        {
+            Appointment a1 = createRandomRepeating(random, startTime);
+            Appointment a2 = createRandomRepeating(random, startTime);
+            boolean expected = overlapsByBlocks(a1, a2);
+            assertEquals(a1 + " " + a1.getRepeating() + " with " + a2 + " " + a2.getRepeating(), expected, a1.overlaps(a2));
+            assertEquals(expected, a2.overlaps(a1));
+            if (expected)
+            {
+                overlapCount++;
+            }
+        }
+        assertTrue(overlapCount > 0);
+
+        // weekly on thursday and monthly on the second thursday repeating forever
+        Appointment weekly = createAppointment(new Day(2016, 1, 7), new Time(10, 0), new Time(12, 0));
+        weekly.setRepeatingEnabled(true);
+        weekly.getRepeating().setType(RepeatingType.WEEKLY);
+        weekly.getRepeating().setNumber(-1);
+        Appointment monthly = createAppointment(new Day(2016, 1, 14), new Time(11, 0), new Time(13, 0));
+        monthly.setRepeatingEnabled(true);
+        monthly.getRepeating().setType(RepeatingType.MONTHLY);
+        monthly.getRepeating().setNumber(-1);
+        assertTrue(weekly.overlaps(monthly));
+        assertTrue(monthly.overlaps(weekly));
+        weekly.getRepeating().setInterval(2);
+        // every other thursday still hits the second thursday of some months
+        assertTrue(weekly.overlaps(monthly));
+    }
 
+    @Test
+    public void testCachedBlocksEqualExpandedBlocks()
+    {
+        Random random = new Random(11);
+        long startTime = new Day(2016, 1, 1).toGMTDate().getTime();
+        for (int i = 0; i < 300; i++)
+        {
+            AppointmentImpl cached = (AppointmentImpl) createRandomRepeating(random, startTime);
+            Repeating repeating = cached.getRepeating();
+            if (random.nextBoolean())
+            {
+                repeating.setNumber(-1);
+            }
+            AppointmentImpl writable = cached.clone();
+            cached.setReadOnly();
+            for (int j = 0; j < 20; j++)
+            {
+                // whole weeks like in the calendar views and arbitrary intervals
+                long start = startTime + random.nextInt(500) * DateTools.MILLISECONDS_PER_DAY;
+                long end = start + (random.nextBoolean() ? DateTools.MILLISECONDS_PER_WEEK : random.nextInt(100) * DateTools.MILLISECONDS_PER_HOUR);
+                boolean excludeExceptions = random.nextBoolean();
+                List<AppointmentBlock> expected = new ArrayList<AppointmentBlock>();
+                writable.createBlocks(new Date(start), new Date(end), expected, excludeExceptions);
+                List<AppointmentBlock> blocks = new ArrayList<AppointmentBlock>();
+                cached.createBlocks(new Date(start), new Date(end), blocks, excludeExceptions);
+                assertEquals(expected.size(), blocks.size());
+                for (int k = 0; k < expected.size(); k++)
+                {
+                    assertEquals(expected.get(k).getStart(), blocks.get(k).getStart());
+                    assertEquals(expected.get(k).getEnd(), blocks.get(k).getEnd());
+                    assertEquals(expected.get(k).isException(), blocks.get(k).isException());
+                }
+                assertEquals(writable.overlaps(new Date(start), new Date(end)), cached.overlaps(new Date(start), new Date(end)));
+            }
+        }
+    }
+}
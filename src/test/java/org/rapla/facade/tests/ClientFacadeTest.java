@@ -374,6 +374,50 @@ public class ClientFacadeTest  {
     }
 
 
+    @Test
+    public void testConflictsAfterChange() throws Exception {
+        Promise<Collection<Reservation>> all = facade.getReservationsForAllocatable(null, null, null, null);
+        facade.removeObjects( PromiseSynchroniser.waitForWithRaplaException(all, 10000).toArray(Reservation.RESERVATION_ARRAY) );
+        Collection<Conflict> conflicts= facade.getConflicts( );
+        Allocatable allocatable = facade.getAllocatables()[0];
+        Date start = DateTools.toDateTime(new Date(), new Date(DateTools.toTime(10, 0, 0)));
+        Date end = DateTools.toDateTime( start,new Date(DateTools.toTime(  12,0,0)));
+        Reservation first =  facade.newReservation();
+        first.getClassification().setValue("name","first");
+        first.addAppointment( facade.newAppointment( start, end));
+        first.addAllocatable( allocatable);
+        facade.store(first);
+
+        Reservation second =  facade.newReservation();
+        second.getClassification().setValue("name","second");
+        second.addAppointment( facade.newAppointment( new Date(start.getTime() + DateTools.MILLISECONDS_PER_HOUR), new Date(end.getTime() + DateTools.MILLISECONDS_PER_HOUR)));
+        second.addAllocatable( allocatable);
+        facade.store(second);
+        Assert.assertEquals(1, facade.getConflicts( ).size() - conflicts.size());
+
+        // moving the appointment behind the first removes the conflict
+        second = facade.edit( second);
+        second.getAppointments()[0].move( end, new Date(end.getTime() + DateTools.MILLISECONDS_PER_HOUR));
+        facade.store(second);
+        Assert.assertEquals(0, facade.getConflicts( ).size() - conflicts.size());
+
+        // a weekly repeating appointment that collides with the first and the second in the following week
+        Reservation weekly =  facade.newReservation();
+        weekly.getClassification().setValue("name","weekly");
+        Appointment repeating = facade.newAppointment( new Date(end.getTime() - DateTools.MILLISECONDS_PER_HOUR / 2), new Date(end.getTime() + DateTools.MILLISECONDS_PER_HOUR / 2));
+        repeating.setRepeatingEnabled( true);
+        repeating.getRepeating().setNumber( 10);
+        weekly.addAppointment( repeating);
+        weekly.addAllocatable( allocatable);
+        facade.store(weekly);
+        Assert.assertEquals(2, facade.getConflicts( ).size() - conflicts.size());
+
+        facade.remove( first);
+        Assert.assertEquals(1, facade.getConflicts( ).size() - conflicts.size());
+        facade.remove( weekly);
+        Assert.assertEquals(0, facade.getConflicts( ).size() - conflicts.size());
+    }
+
     @Test
     public void testClone() throws Exception {
         ClassificationFilter filter = facade.getDynamicType("event").newClassificationFilter();
@@ -0,0 +1,192 @@
+package org.rapla.plugin.export2ical.server;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.util.Collections;
+import java.util.Date;
+import java.util.List;
+import java.util.Locale;
+import java.util.zip.GZIPInputStream;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+import org.rapla.components.util.DateTools;
+import org.rapla.entities.Entity;
+import org.rapla.entities.User;
+import org.rapla.entities.domain.Allocatable;
+import org.rapla.entities.domain.Reservation;
+import org.rapla.entities.dynamictype.DynamicType;
+import org.rapla.entities.storage.ReferenceInfo;
+import org.rapla.facade.RaplaFacade;
+import org.rapla.facade.internal.CalendarModelImpl;
+import org.rapla.logger.Logger;
+import org.rapla.server.PromiseSynchroniser;
+import org.rapla.storage.CachableStorageOperator;
+import org.rapla.test.util.RaplaTestCase;
+
+@RunWith(JUnit4.class)
+public class ICalExportCacheTest
+{
+    RaplaFacade facade;
+    CachableStorageOperator operator;
+    Logger logger;
+    User homer;
+    User monty;
+    DynamicType roomType;
+    DynamicType eventType;
+    Allocatable erwin;
+    Allocatable roomA66;
+    ICalExportCache cache;
+    final Date today = new Date(DateTools.cutDate(System.currentTimeMillis()));
+
+    @Before
+    public void setUp() throws Exception
+    {
+        logger = RaplaTestCase.initLoger();
+        facade = RaplaTestCase.createFacadeWithFile(logger, "testdefault.xml");
+        operator = (CachableStorageOperator) facade.getOperator();
+        homer = facade.getUser("homer");
+        monty = facade.getUser("monty");
+        roomType = facade.getDynamicType("room");
+        eventType = facade.getDynamicType("event");
+        for (Allocatable room : facade.getAllocatables(roomType.newClassificationFilter().toArray()))
+        {
+            if (room.getName(Locale.ENGLISH).equals("erwin"))
+            {
+                erwin = room;
+            }
+            else if (room.getName(Locale.ENGLISH).equals("Room A66"))
+            {
+                roomA66 = room;
+            }
+        }
+        cache = new ICalExportCache(operator, -1, 3);
+    }
+
+    @After
+    public void tearDown() throws Exception
+    {
+        RaplaTestCase.dispose(facade);
+    }
+
+    private void store(List<Entity> entities) throws Exception
+    {
+        PromiseSynchroniser.waitForWithRaplaException(facade.dispatch(entities, Collections.<ReferenceInfo<Entity>>emptyList(), homer), 10000);
+    }
+
+    private Reservation newReservation(Allocatable allocatable, int day) throws Exception
+    {
+        Reservation reservation = facade.newReservation(eventType.newClassification(), homer);
+        reservation.getClassification().setValue("name", "event " + day);
+        final Date start = new Date(today.getTime() + day * DateTools.MILLISECONDS_PER_DAY + 10 * DateTools.MILLISECONDS_PER_HOUR);
+        reservation.addAppointment(facade.newAppointment(start, new Date(start.getTime() + DateTools.MILLISECONDS_PER_HOUR), homer));
+        reservation.addAllocatable(allocatable);
+        return reservation;
+    }
+
+    private CalendarModelImpl newCalendar(User user, Allocatable allocatable) throws Exception
+    {
+        CalendarModelImpl calendar = new CalendarModelImpl(Locale.ENGLISH, user, operator, logger);
+        calendar.setSelectedObjects(Collections.singleton(allocatable));
+        return calendar;
+    }
+
+    private ICalExportCache.RenderedCalendar put(User user, String filename, String body) throws Exception
+    {
+        final long changeVersion = cache.getChangeVersion();
+        return cache.put(user, filename, newCalendar(user, erwin), body.getBytes("UTF-8"), changeVersion);
+    }
+
+    @Test
+    public void leastRecentlyRequestedCalendarIsRemoved() throws Exception
+    {
+        Assert.assertNull(cache.get(homer, "first"));
+        final ICalExportCache.RenderedCalendar first = put(homer, "first", "first");
+        put(homer, "second", "second");
+        put(homer, "third", "third");
+        Assert.assertSame(first, cache.get(homer, "first"));
+        // the second calendar was not requested for the longest time
+        put(homer, "fourth", "fourth");
+        Assert.assertNull(cache.get(homer, "second"));
+        Assert.assertSame(first, cache.get(homer, "first"));
+        Assert.assertNotNull(cache.get(homer, "third"));
+        Assert.assertNotNull(cache.get(homer, "fourth"));
+    }
+
+    @Test
+    public void renderedCalendarIsKeptUntilAnEventOfTheCalendarChanges() throws Exception
+    {
+        Assert.assertNull(cache.get(homer, "export"));
+        final ICalExportCache.RenderedCalendar calendar = put(homer, "export", "first");
+        Assert.assertSame(calendar, cache.get(homer, "export"));
+        Assert.assertNull(cache.get(homer, "other"));
+        Assert.assertNull(cache.get(monty, "export"));
+
+        // events of other resources and the preferences of other users don't change the calendar
+        store(Collections.<Entity>singletonList(newReservation(roomA66, 1)));
+        Assert.assertSame(calendar, cache.get(homer, "export"));
+        store(Collections.<Entity>singletonList(facade.edit(facade.getPreferences(monty, true))));
+        Assert.assertSame(calendar, cache.get(homer, "export"));
+
+        final Reservation reservation = newReservation(erwin, 2);
+        store(Collections.<Entity>singletonList(reservation));
+        Assert.assertNull(cache.get(homer, "export"));
+
+        // the same content keeps the etag and the last modified date
+        Thread.sleep(1000);
+        final ICalExportCache.RenderedCalendar sameContent = put(homer, "export", "first");
+        Assert.assertEquals(calendar.etag, sameContent.etag);
+        Assert.assertEquals(calendar.lastModified, sameContent.lastModified);
+        Assert.assertSame(sameContent, cache.get(homer, "export"));
+
+        // the removed event changes the calendar, too
+        PromiseSynchroniser.waitForWithRaplaException(
+                facade.dispatch(Collections.<Entity>emptyList(), Collections.<ReferenceInfo<Entity>>singletonList(((Entity) reservation).getReference()), homer), 10000);
+        Assert.assertNull(cache.get(homer, "export"));
+        final ICalExportCache.RenderedCalendar changedContent = put(homer, "export", "second");
+        Assert.assertNotEquals(calendar.etag, changedContent.etag);
+        Assert.assertTrue(changedContent.lastModified > calendar.lastModified);
+
+        // resources can change the selection of all calendars
+        final Allocatable editRoom = facade.edit(roomA66);
+        editRoom.getClassification().setValue("name", "Room A67");
+        store(Collections.<Entity>singletonList(editRoom));
+        Assert.assertNull(cache.get(homer, "export"));
+    }
+
+    @Test
+    public void calendarIsNotKeptIfAChangeHappensWhileRendering() throws Exception
+    {
+        Assert.assertNull(cache.get(homer, "export"));
+        final long changeVersion = cache.getChangeVersion();
+        store(Collections.<Entity>singletonList(newReservation(erwin, 1)));
+        final ICalExportCache.RenderedCalendar calendar = cache.put(homer, "export", newCalendar(homer, erwin), "body".getBytes("UTF-8"), changeVersion);
+        Assert.assertNotNull(calendar.etag);
+        Assert.assertNull(cache.get(homer, "export"));
+        put(homer, "export", "body");
+        Assert.assertNotNull(cache.get(homer, "export"));
+    }
+
+    @Test
+    public void gzippedBodyIsCreatedOnce() throws Exception
+    {
+        final ICalExportCache.RenderedCalendar calendar = put(homer, "export", "BEGIN:VCALENDAR\r\nEND:VCALENDAR\r\n");
+        final byte[] gzipped = calendar.getGzippedBody();
+        Assert.assertSame(gzipped, calendar.getGzippedBody());
+        final GZIPInputStream in = new GZIPInputStream(new ByteArrayInputStream(gzipped));
+        final ByteArrayOutputStream out = new ByteArrayOutputStream();
+        final byte[] buffer = new byte[1024];
+        for (int read = in.read(buffer); read >= 0; read = in.read(buffer))
+        {
+            out.write(buffer, 0, read);
+        }
+        Assert.assertArrayEquals(calendar.body, out.toByteArray());
+        // the gzipped body has its own strong etag
+        Assert.assertNotEquals(calendar.etag, calendar.gzipEtag);
+        Assert.assertEquals(calendar.etag.substring(0, calendar.etag.length() - 1) + "-gzip\"", calendar.gzipEtag);
+    }
+}
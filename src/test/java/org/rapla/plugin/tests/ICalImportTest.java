@@ -99,7 +99,7 @@ public class ICalImportTest {
         List<Allocatable> allocatables = Collections.singletonList( newResource);
         User user = facade.getUser("homer");
         String eventTypeKey = facade.getDynamicTypes(DynamicTypeAnnotations.VALUE_CLASSIFICATION_TYPE_RESERVATION)[0].getKey();
-        importer.importCalendar(content, isUrl, allocatables, user, eventTypeKey, "name");
+        PromiseSynchroniser.waitForWithRaplaException(importer.importCalendar(content, isUrl, allocatables, user, eventTypeKey, "name"), 10000);
         Collection<Reservation> reservations;
         {
             Date start = null;
@@ -22,7 +22,11 @@ import org.rapla.entities.User;
 import org.rapla.entities.domain.Allocatable;
 import org.rapla.entities.domain.AppointmentFormater;
 import org.rapla.entities.domain.Reservation;
+import org.rapla.entities.dynamictype.Attribute;
+import org.rapla.entities.dynamictype.AttributeType;
 import org.rapla.entities.dynamictype.Classification;
+import org.rapla.entities.dynamictype.ConstraintIds;
+import org.rapla.entities.dynamictype.DynamicType;
 import org.rapla.entities.dynamictype.DynamicTypeAnnotations;
 import org.rapla.entities.storage.ReferenceInfo;
 import org.rapla.facade.RaplaFacade;
@@ -304,4 +308,102 @@ public class TestUpdateDataManager
         Assert.assertEquals(0, updateEventWithRemove.getStoreObjects().size());
         Assert.assertEquals(1, updateEventWithRemove.getRemoveIds().size());
     }
+
+    @Test
+    public void testUpdateResultIsSharedUntilNextChange() throws Exception
+    {
+        final User readUser = facade.getUser("monty");
+        final User writeUser = facade.getUser("homer");
+        final Date lastSynced = updateManager.createUpdateEvent(readUser, new Date()).getLastValidated();
+        Classification classification = facade.getDynamicTypes(DynamicTypeAnnotations.VALUE_CLASSIFICATION_TYPE_RESOURCE)[0].newClassification();
+        final Allocatable newResource = facade.newAllocatable(classification, writeUser);
+        facade.storeAndRemove(new Entity[]{newResource}, Entity.ENTITY_ARRAY, writeUser);
+
+        final UpdateResult first = operator.getUpdateResult(lastSynced, readUser);
+        Assert.assertSame(first, operator.getUpdateResult(new Date(lastSynced.getTime()), readUser));
+        // other users get their own result
+        Assert.assertNotSame(first, operator.getUpdateResult(lastSynced, writeUser));
+
+        facade.storeAndRemove(Entity.ENTITY_ARRAY, new Entity[]{newResource}, writeUser);
+        final UpdateResult afterRemove = operator.getUpdateResult(lastSynced, readUser);
+        Assert.assertNotSame(first, afterRemove);
+        Assert.assertTrue(afterRemove.getIds(UpdateResult.Remove.class).contains(newResource.getReference()));
+    }
+
+    @Test
+    public void testWaitForUpdateEvent() throws Exception
+    {
+        final User readUser = facade.getUser("monty");
+        final User writeUser = facade.getUser("homer");
+        final Date lastSynced = updateManager.createUpdateEvent(readUser, new Date()).getLastValidated();
+        // nothing changes, so the wait ends after the timeout
+        final long start = System.currentTimeMillis();
+        final UpdateEvent emptyEvent = updateManager.waitForUpdateEvent(readUser, lastSynced, 300);
+        Assert.assertTrue(System.currentTimeMillis() - start >= 300);
+        Assert.assertTrue(emptyEvent.isEmpty());
+
+        Classification classification = facade.getDynamicTypes(DynamicTypeAnnotations.VALUE_CLASSIFICATION_TYPE_RESOURCE)[0].newClassification();
+        final Allocatable newResource = facade.newAllocatable(classification, writeUser);
+        Thread writer = new Thread(() -> {
+            try
+            {
+                Thread.sleep(200);
+                facade.storeAndRemove(new Entity[] { newResource }, Entity.ENTITY_ARRAY, writeUser);
+            }
+            catch (Exception ex)
+            {
+                logger.error(ex.getMessage(), ex);
+            }
+        });
+        writer.start();
+        final long waitStart = System.currentTimeMillis();
+        final UpdateEvent event = updateManager.waitForUpdateEvent(readUser, lastSynced, 20000);
+        Assert.assertTrue(System.currentTimeMillis() - waitStart < 10000);
+        writer.join();
+        Assert.assertEquals(1, event.getStoreObjects().size());
+        Assert.assertEquals(newResource.getReference(), event.getStoreObjects().iterator().next().getReference());
+    }
+
+    @Test
+    public void testInvalidateParentOfChangedMember() throws Exception
+    {
+        final User readUser = facade.getUser("monty");
+        final User writeUser = facade.getUser("homer");
+        final DynamicType roomType = facade.getDynamicType("room");
+        final Allocatable parent = facade.getAllocatables(roomType.newClassificationFilter().toArray())[0];
+        final DynamicType roomPartType = facade.newDynamicType(DynamicTypeAnnotations.VALUE_CLASSIFICATION_TYPE_RESOURCE);
+        roomPartType.setKey("roompart");
+        roomPartType.getName().setName("en", "Roompart");
+        final Attribute attribute = facade.newAttribute(AttributeType.ALLOCATABLE);
+        attribute.setKey("belongsTo");
+        attribute.setConstraint(ConstraintIds.KEY_BELONGS_TO, "true");
+        attribute.setConstraint(ConstraintIds.KEY_DYNAMIC_TYPE, roomType);
+        roomPartType.addAttribute(attribute);
+        facade.storeAndRemove(new Entity[] { roomPartType }, Entity.ENTITY_ARRAY, writeUser);
+        final Classification childClassification = facade.getPersistant(roomPartType).newClassification();
+        childClassification.setValue("belongsTo", parent);
+        childClassification.setValue("name", "erwin_left");
+        final Allocatable child = facade.newAllocatable(childClassification, writeUser);
+        final Reservation reservation = facade.newReservation(facade.getDynamicType("event").newClassification(), writeUser);
+        Date start = new Date();
+        reservation.addAppointment(facade.newAppointment(start, new Date(start.getTime() + 3600000), writeUser));
+        reservation.addAllocatable(child);
+        facade.storeAndRemove(new Entity[] { child, reservation }, Entity.ENTITY_ARRAY, writeUser);
+
+        // a query for the parent contains the appointments of its members
+        final Collection<Reservation> parentReservations = PromiseSynchroniser
+                .waitForWithRaplaException(facade.getReservationsForAllocatable(new Allocatable[] { parent }, null, null, null), 10000);
+        Assert.assertTrue(parentReservations.contains(reservation));
+
+        final Date lastSynced = updateManager.createUpdateEvent(readUser, new Date()).getLastValidated();
+        final Reservation editableReservation = facade.edit(facade.getPersistant(reservation));
+        editableReservation.getAppointments()[0].move(new Date(start.getTime() + 7200000));
+        facade.storeAndRemove(new Entity[] { editableReservation }, Entity.ENTITY_ARRAY, writeUser);
+
+        final UpdateEvent updateEvent = updateManager.createUpdateEvent(readUser, lastSynced);
+        final Collection<String> invalidateAllocatableIds = updateEvent.getInvalidateAllocatableIds();
+        Assert.assertNotNull(invalidateAllocatableIds);
+        Assert.assertTrue(invalidateAllocatableIds.contains(child.getId()));
+        Assert.assertTrue(invalidateAllocatableIds.contains(parent.getId()));
+    }
 }
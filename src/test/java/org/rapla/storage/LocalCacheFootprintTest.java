@@ -0,0 +1,133 @@
+package org.rapla.storage;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Date;
+import java.util.List;
+
+import org.junit.Assert;
+import org.junit.Ignore;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+import org.rapla.components.util.DateTools;
+import org.rapla.entities.Entity;
+import org.rapla.entities.domain.Appointment;
+import org.rapla.entities.domain.internal.AppointmentImpl;
+import org.rapla.entities.domain.internal.ReservationImpl;
+
+@RunWith(JUnit4.class)
+public class LocalCacheFootprintTest
+{
+    static final int USERS = 10;
+    static final int RESOURCES = 500;
+    final Date start = new Date(DateTools.cutDate(System.currentTimeMillis()));
+
+    /** the ids are created for each reference, as they are when the entities are read from a file or a database */
+    private String getId(String prefix, int intId)
+    {
+        return prefix + "_" + intId;
+    }
+
+    private ReservationImpl createReservation(int intId)
+    {
+        ReservationImpl reservation = new ReservationImpl(start, start);
+        reservation.setId(getId("reservation", intId));
+        reservation.putId("owner", getId("user", intId % USERS));
+        reservation.putId("last_changed_by", getId("user", (intId + 1) % USERS));
+        for (int i = 0; i < 3; i++)
+        {
+            reservation.addId("resources", getId("resource", (intId * 7 + i * 13) % RESOURCES));
+        }
+        for (int i = 0; i < 2; i++)
+        {
+            final Date appStart = new Date(start.getTime() + (intId % 100 + i) * DateTools.MILLISECONDS_PER_DAY);
+            AppointmentImpl appointment = new AppointmentImpl(appStart, new Date(appStart.getTime() + DateTools.MILLISECONDS_PER_HOUR));
+            appointment.setId(getId("appointment", intId * 2 + i));
+            reservation.addAppointment(appointment);
+        }
+        return reservation;
+    }
+
+    private static long usedMemory() throws InterruptedException
+    {
+        final Runtime runtime = Runtime.getRuntime();
+        for (int i = 0; i < 4; i++)
+        {
+            System.gc();
+            Thread.sleep(50);
+        }
+        return runtime.totalMemory() - runtime.freeMemory();
+    }
+
+    @Test
+    public void referencesAreSharedAndCanBeChanged() throws Exception
+    {
+        LocalCache cache = new LocalCache(null);
+        final ReservationImpl reservation1 = createReservation(1);
+        final ReservationImpl reservation2 = createReservation(1 + USERS);
+        final Collection<String> resources = new ArrayList<String>(reservation1.getIds("resources"));
+        cache.put(reservation1);
+        cache.put(reservation2);
+        Assert.assertEquals(resources, new ArrayList<String>(reservation1.getIds("resources")));
+        Assert.assertSame(reservation1.getOwnerId(), reservation2.getOwnerId());
+        for (Appointment appointment : reservation1.getAppointments())
+        {
+            Assert.assertFalse(((AppointmentImpl) appointment).getReferenceKeys().iterator().hasNext());
+            Assert.assertSame(appointment, cache.tryResolve(appointment.getId(), Appointment.class));
+        }
+
+        // the compact collections are copied with the first change
+        final String newResource = getId("resource", RESOURCES);
+        reservation1.addId("resources", newResource);
+        Assert.assertTrue(reservation1.getIds("resources").contains(newResource));
+        final String firstResource = resources.iterator().next();
+        Assert.assertTrue(reservation1.removeId(firstResource));
+        Assert.assertFalse(reservation1.getIds("resources").contains(firstResource));
+        reservation1.putId("owner", getId("user", 2));
+        Assert.assertEquals(getId("user", 2), reservation1.getOwnerId());
+        Assert.assertTrue(reservation1.removeWithKey("last_changed_by"));
+        Assert.assertFalse(reservation1.removeWithKey("last_changed_by"));
+
+        final ReservationImpl single = new ReservationImpl(start, start);
+        single.setId(getId("reservation", 0));
+        single.putId("resources", getId("resource", 0));
+        single.compactReferences();
+        single.addId("resources", getId("resource", 1));
+        Assert.assertEquals(Arrays.asList(getId("resource", 0), getId("resource", 1)), single.getIds("resources"));
+    }
+
+    @Ignore("benchmark, run manually")
+    @Test
+    public void benchmarkHeapFootprint() throws Exception
+    {
+        final int count = 20000;
+        final long before = usedMemory();
+        List<ReservationImpl> reservations = new ArrayList<ReservationImpl>();
+        for (int i = 0; i < count; i++)
+        {
+            reservations.add(createReservation(i));
+        }
+        final long generated = usedMemory();
+        for (ReservationImpl reservation : reservations)
+        {
+            reservation.compactReferences();
+            for (Entity appointment : reservation.getSubEntities())
+            {
+                ((AppointmentImpl) appointment).compactReferences();
+            }
+        }
+        final long compacted = usedMemory();
+        LocalCache cache = new LocalCache(null);
+        for (ReservationImpl reservation : reservations)
+        {
+            cache.put(reservation);
+        }
+        final long cached = usedMemory();
+        Assert.assertEquals(count, cache.getReservations().size());
+        System.out.println(
+                "Heap for " + count + " reservations with " + count * 2 + " appointments. Generated: " + (generated - before) / 1024 + " KB, compacted: "
+                        + (compacted - before) / 1024 + " KB, in the cache: " + (cached - before) / 1024 + " KB");
+    }
+}
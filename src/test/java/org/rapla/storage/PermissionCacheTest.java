@@ -0,0 +1,247 @@
+package org.rapla.storage;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+import org.rapla.entities.Category;
+import org.rapla.entities.Entity;
+import org.rapla.entities.User;
+import org.rapla.entities.domain.Allocatable;
+import org.rapla.entities.domain.Permission;
+import org.rapla.entities.domain.permission.PermissionExtension;
+import org.rapla.entities.domain.permission.impl.RaplaDefaultPermissionImpl;
+import org.rapla.entities.dynamictype.DynamicType;
+import org.rapla.entities.dynamictype.DynamicTypeAnnotations;
+import org.rapla.entities.storage.ReferenceInfo;
+import org.rapla.facade.RaplaFacade;
+import org.rapla.server.PromiseSynchroniser;
+import org.rapla.storage.impl.AbstractCachableOperator;
+import org.rapla.test.util.RaplaTestCase;
+
+@RunWith(JUnit4.class)
+public class PermissionCacheTest
+{
+    RaplaFacade facade;
+    User homer;
+    PermissionController controller;
+    /** evaluates each decision, because its extension doesn't declare that it only depends on the permission list */
+    PermissionController uncachedController;
+    Category userGroups;
+    List<User> users = new ArrayList<User>();
+    List<Allocatable> resources = new ArrayList<Allocatable>();
+
+    @Before
+    public void setUp() throws Exception
+    {
+        facade = RaplaTestCase.createFacadeWithFile(RaplaTestCase.initLoger(), "testdefault.xml");
+        homer = facade.getUser("homer");
+        final AbstractCachableOperator operator = (AbstractCachableOperator) facade.getOperator();
+        controller = operator.getPermissionController();
+        final RaplaDefaultPermissionImpl uncachedExtension = new RaplaDefaultPermissionImpl()
+        {
+            @Override
+            public boolean isPermissionListBased()
+            {
+                return false;
+            }
+        };
+        uncachedController = new PermissionController(Collections.<PermissionExtension>singleton(uncachedExtension), operator);
+        userGroups = facade.getUserGroupsCategory();
+        List<Entity> newUsers = new ArrayList<Entity>();
+        newUsers.add(newUser("bart"));
+        newUsers.add(newUser("lisa", getGroup("powerplant-admins")));
+        newUsers.add(newUser("marge", getGroup("my-group")));
+        store(newUsers);
+        users.add(facade.getUser("monty"));
+        users.add(facade.getUser("bart"));
+        users.add(facade.getUser("lisa"));
+        users.add(facade.getUser("marge"));
+    }
+
+    @After
+    public void tearDown() throws Exception
+    {
+        RaplaTestCase.dispose(facade);
+    }
+
+    private void store(List<Entity> entities) throws Exception
+    {
+        PromiseSynchroniser.waitForWithRaplaException(facade.dispatch(entities, Collections.<ReferenceInfo<Entity>>emptyList(), homer), 10000);
+    }
+
+    private User newUser(String username, Category... groups) throws Exception
+    {
+        User user = facade.newUser();
+        user.setUsername(username);
+        for (Category group : groups)
+        {
+            user.addGroup(group);
+        }
+        return user;
+    }
+
+    private Category getGroup(String key)
+    {
+        return findGroup(userGroups, key);
+    }
+
+    private Category findGroup(Category category, String key)
+    {
+        for (Category child : category.getCategories())
+        {
+            if (child.getKey().equals(key))
+            {
+                return child;
+            }
+            final Category found = findGroup(child, key);
+            if (found != null)
+            {
+                return found;
+            }
+        }
+        return null;
+    }
+
+    /** resources with a few different permission lists, so the lists are shared by many resources */
+    private void createResources(int count) throws Exception
+    {
+        final DynamicType resourceType = facade.getDynamicTypes(DynamicTypeAnnotations.VALUE_CLASSIFICATION_TYPE_RESOURCE)[0];
+        final User bart = facade.getUser("bart");
+        List<Entity> newResources = new ArrayList<Entity>();
+        for (int i = 0; i < count; i++)
+        {
+            Allocatable resource = facade.newAllocatable(resourceType.newClassification(), homer);
+            resource.getClassification().setValue("name", "resource " + i);
+            for (Permission permission : new ArrayList<Permission>(resource.getPermissionList()))
+            {
+                resource.removePermission(permission);
+            }
+            switch (i % 5)
+            {
+                case 0:
+                    addPermission(resource, getGroup("powerplant"), null, Permission.READ);
+                    break;
+                case 1:
+                    addPermission(resource, getGroup("my-group"), null, Permission.EDIT);
+                    addPermission(resource, null, null, Permission.READ_NO_ALLOCATION);
+                    break;
+                case 2:
+                    addPermission(resource, null, bart, Permission.ADMIN);
+                    addPermission(resource, getGroup("powerplant-admins"), null, Permission.ALLOCATE_CONFLICTS);
+                    break;
+                case 3:
+                    addPermission(resource, null, null, Permission.READ);
+                    break;
+                default:
+                    break;
+            }
+            newResources.add(resource);
+        }
+        store(newResources);
+        for (Entity resource : newResources)
+        {
+            resources.add(facade.resolve(((Allocatable) resource).getReference()));
+        }
+    }
+
+    private void addPermission(Allocatable resource, Category group, User user, Permission.AccessLevel accessLevel)
+    {
+        Permission permission = resource.newPermission();
+        if (group != null)
+        {
+            permission.setGroup(group);
+        }
+        if (user != null)
+        {
+            permission.setUser(user);
+        }
+        permission.setAccessLevel(accessLevel);
+        resource.addPermission(permission);
+    }
+
+    private void assertSameDecisions(User user, Allocatable resource)
+    {
+        final String message = user.getUsername() + " " + resource.getPermissionList();
+        Assert.assertEquals(message, uncachedController.canRead(resource, user), controller.canRead(resource, user));
+        Assert.assertEquals(message, uncachedController.canModify(resource, user), controller.canModify(resource, user));
+        Assert.assertEquals(message, uncachedController.canAdmin(resource, user), controller.canAdmin(resource, user));
+        Assert.assertEquals(message, uncachedController.canReadOnlyInformation(resource, user), controller.canReadOnlyInformation(resource, user));
+        Assert.assertEquals(message, uncachedController.canCreateConflicts(resource, user), controller.canCreateConflicts(resource, user));
+    }
+
+    @Test
+    public void cachedDecisionsMatchTheEvaluatedDecisions() throws Exception
+    {
+        createResources(20);
+        // the second run returns the cached decisions
+        for (int run = 0; run < 2; run++)
+        {
+            for (User user : users)
+            {
+                for (Allocatable resource : resources)
+                {
+                    assertSameDecisions(user, resource);
+                }
+            }
+        }
+        final User lisa = facade.getUser("lisa");
+        final Collection<String> groups = controller.getGroupsIncludingParents(lisa);
+        Assert.assertTrue(groups.contains(getGroup("powerplant").getId()));
+        Assert.assertSame(groups, controller.getGroupsIncludingParents(lisa));
+    }
+
+    @Test
+    public void changedGroupsAreEvaluatedAgain() throws Exception
+    {
+        createResources(5);
+        final Allocatable myGroupResource = resources.get(1);
+        final User lisa = facade.getUser("lisa");
+        Assert.assertFalse(controller.canModify(myGroupResource, lisa));
+
+        final User editLisa = facade.edit(lisa);
+        editLisa.addGroup(getGroup("my-group"));
+        store(Collections.<Entity>singletonList(editLisa));
+        final User changedLisa = facade.getUser("lisa");
+        Assert.assertTrue(controller.canModify(myGroupResource, changedLisa));
+        assertSameDecisions(changedLisa, myGroupResource);
+
+        // a changed category drops the group closures
+        final Collection<String> groups = controller.getGroupsIncludingParents(changedLisa);
+        final Category editGroup = facade.edit(getGroup("my-group"));
+        editGroup.getName().setName("en", "My changed group");
+        store(Collections.<Entity>singletonList(editGroup));
+        final Collection<String> changedGroups = controller.getGroupsIncludingParents(facade.getUser("lisa"));
+        Assert.assertNotSame(groups, changedGroups);
+        Assert.assertEquals(groups, changedGroups);
+    }
+
+    @Test
+    public void leastRecentlyUsedDecisionsAreRemoved() throws Exception
+    {
+        createResources(1);
+        final PermissionCache cache = new PermissionCache();
+        final Collection<Permission> permissions = resources.get(0).getPermissionList();
+        List<PermissionCache.DecisionKey> keys = new ArrayList<PermissionCache.DecisionKey>();
+        for (int i = 0; i < PermissionCache.MAX_DECISIONS; i++)
+        {
+            // the access levels are compared by identity, so each key is a new decision
+            final PermissionCache.DecisionKey key = cache.createKey(homer, permissions, new Object());
+            cache.putDecision(key, true);
+            keys.add(key);
+        }
+        Assert.assertEquals(Boolean.TRUE, cache.getDecision(keys.get(0)));
+        // the first decision was used, so the second one is removed
+        cache.putDecision(cache.createKey(homer, permissions, new Object()), false);
+        Assert.assertEquals(Boolean.TRUE, cache.getDecision(keys.get(0)));
+        Assert.assertNull(cache.getDecision(keys.get(1)));
+        Assert.assertEquals(Boolean.TRUE, cache.getDecision(keys.get(2)));
+    }
+}
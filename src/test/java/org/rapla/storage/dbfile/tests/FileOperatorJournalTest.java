@@ -0,0 +1,214 @@
+package org.rapla.storage.dbfile.tests;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+import org.rapla.RaplaResources;
+import org.rapla.components.i18n.internal.DefaultBundleManager;
+import org.rapla.components.util.DateTools;
+import org.rapla.entities.Entity;
+import org.rapla.entities.User;
+import org.rapla.entities.domain.Allocatable;
+import org.rapla.entities.domain.Reservation;
+import org.rapla.entities.domain.permission.PermissionExtension;
+import org.rapla.entities.domain.permission.impl.RaplaDefaultPermissionImpl;
+import org.rapla.entities.dynamictype.DynamicTypeAnnotations;
+import org.rapla.entities.dynamictype.internal.StandardFunctions;
+import org.rapla.entities.extensionpoints.FunctionFactory;
+import org.rapla.entities.storage.ReferenceInfo;
+import org.rapla.facade.RaplaFacade;
+import org.rapla.facade.internal.FacadeImpl;
+import org.rapla.framework.RaplaException;
+import org.rapla.framework.RaplaLocale;
+import org.rapla.framework.internal.DefaultScheduler;
+import org.rapla.framework.internal.RaplaLocaleImpl;
+import org.rapla.logger.Logger;
+import org.rapla.server.PromiseSynchroniser;
+import org.rapla.storage.dbfile.FileOperator;
+import org.rapla.storage.tests.AbstractOperatorTest;
+import org.rapla.test.util.RaplaTestCase;
+
+@RunWith(JUnit4.class)
+public class FileOperatorJournalTest extends AbstractOperatorTest
+{
+    Logger logger;
+    File folder;
+    File dataFile;
+    RaplaFacade facade;
+    List<RaplaFacade> facades = new ArrayList<>();
+
+    @Before
+    public void setUp() throws Exception
+    {
+        logger = RaplaTestCase.initLoger();
+        folder = Files.createTempDirectory("rapla-journal").toFile();
+        dataFile = new File(folder, "data.xml");
+        Files.copy(new File(RaplaTestCase.getTestDataFile("testdefault.xml")).toPath(), dataFile.toPath(), StandardCopyOption.REPLACE_EXISTING);
+        facade = createFacade();
+    }
+
+    @After
+    public void tearDown() throws Exception
+    {
+        for (RaplaFacade facade : facades)
+        {
+            RaplaTestCase.dispose(facade);
+        }
+        for (File file : folder.listFiles())
+        {
+            file.delete();
+        }
+        folder.delete();
+    }
+
+    @Override protected RaplaFacade getFacade()
+    {
+        return facade;
+    }
+
+    private RaplaFacade createFacade() throws RaplaException
+    {
+        DefaultBundleManager bundleManager = new DefaultBundleManager();
+        RaplaResources i18n = new RaplaResources(bundleManager);
+        final DefaultScheduler scheduler = new DefaultScheduler(logger);
+        RaplaLocale raplaLocale = new RaplaLocaleImpl(bundleManager);
+        Map<String, FunctionFactory> functionFactoryMap = new HashMap<String, FunctionFactory>();
+        functionFactoryMap.put(StandardFunctions.NAMESPACE, new StandardFunctions(raplaLocale));
+        Set<PermissionExtension> permissionExtensions = new LinkedHashSet<>();
+        permissionExtensions.add(new RaplaDefaultPermissionImpl());
+        FileOperator operator = new FileOperator(logger, i18n, raplaLocale, scheduler, functionFactoryMap, dataFile.getPath(), permissionExtensions);
+        operator.setFileIO(new FileOperator.DefaultFileIO());
+        operator.setJournalEnabled(true);
+        FacadeImpl facade = new FacadeImpl(i18n, scheduler, logger);
+        facade.setOperator(operator);
+        operator.connect();
+        facades.add(facade);
+        return facade;
+    }
+
+    private File getJournalFile()
+    {
+        return new File(dataFile.getPath() + ".journal");
+    }
+
+    private int countJournalRecords() throws IOException
+    {
+        return Files.readAllLines(getJournalFile().toPath(), StandardCharsets.UTF_8).size();
+    }
+
+    @Test
+    public void changesAreReplayedFromJournal() throws Exception
+    {
+        final byte[] data = Files.readAllBytes(dataFile.toPath());
+        final User user = facade.getUser("homer");
+        Allocatable resource = facade.newAllocatable(facade.getDynamicTypes(DynamicTypeAnnotations.VALUE_CLASSIFICATION_TYPE_RESOURCE)[0].newClassification(), user);
+        resource.getClassification().setValue("name", "journal resource");
+        facade.store(resource);
+        final Reservation reservation = PromiseSynchroniser.waitForWithRaplaException(facade.getReservations(null, null, null, null), 10000).iterator().next();
+        final ReferenceInfo<Reservation> removedId = reservation.getReference();
+        facade.storeAndRemove(Entity.ENTITY_ARRAY, new Entity[] { reservation }, user);
+        ((FileOperator) facade.getOperator()).changePassword(user, new char[] {}, "journal".toCharArray());
+
+        // only the journal is written
+        Assert.assertArrayEquals(data, Files.readAllBytes(dataFile.toPath()));
+        Assert.assertEquals(3, countJournalRecords());
+
+        // the first operator is not disconnected, as if the server had crashed
+        final RaplaFacade restarted = createFacade();
+        final Allocatable replayed = restarted.getOperator().tryResolve(resource.getReference());
+        Assert.assertNotNull(replayed);
+        Assert.assertEquals("journal resource", replayed.getClassification().getValueAsString(replayed.getClassification().getAttribute("name"), null));
+        Assert.assertNull(restarted.getOperator().tryResolve(removedId));
+        Assert.assertEquals(user.getId(), ((FileOperator) restarted.getOperator()).authenticate("homer", "journal"));
+
+        // disconnect writes the data file and clears the journal
+        restarted.getOperator().disconnect();
+        Assert.assertEquals(0, getJournalFile().length());
+        final RaplaFacade compacted = createFacade();
+        Assert.assertNotNull(compacted.getOperator().tryResolve(resource.getReference()));
+        Assert.assertNull(compacted.getOperator().tryResolve(removedId));
+    }
+
+    @Test
+    public void journalOfWrittenDataFileIsReplayedAgain() throws Exception
+    {
+        final User user = facade.getUser("homer");
+        Allocatable resource = facade.newAllocatable(facade.getDynamicTypes(DynamicTypeAnnotations.VALUE_CLASSIFICATION_TYPE_RESOURCE)[0].newClassification(), user);
+        resource.getClassification().setValue("name", "journal resource");
+        facade.store(resource);
+        Allocatable removedResource = facade.newAllocatable(facade.getDynamicTypes(DynamicTypeAnnotations.VALUE_CLASSIFICATION_TYPE_RESOURCE)[0].newClassification(), user);
+        removedResource.getClassification().setValue("name", "removed resource");
+        facade.store(removedResource);
+        Reservation reservation = facade.newReservation(facade.getDynamicTypes(DynamicTypeAnnotations.VALUE_CLASSIFICATION_TYPE_RESERVATION)[0].newClassification(), user);
+        reservation.addAppointment(facade.newAppointment(new Date(), new Date(System.currentTimeMillis() + DateTools.MILLISECONDS_PER_HOUR), user));
+        reservation.addAllocatable(removedResource);
+        facade.store(reservation);
+        final ReferenceInfo<Reservation> removedId = reservation.getReference();
+        // the reservation and its resource are removed, so the stored reservation of the first record can't be resolved after the data file is written
+        facade.storeAndRemove(Entity.ENTITY_ARRAY, new Entity[] { facade.getPersistant(reservation), facade.getPersistant(removedResource) }, user);
+        final byte[] journal = Files.readAllBytes(getJournalFile().toPath());
+
+        // the server crashes after the data file is written, but before the journal is cleared
+        facade.getOperator().disconnect();
+        Files.write(getJournalFile().toPath(), journal);
+        final RaplaFacade restarted = createFacade();
+        Assert.assertNotNull(restarted.getOperator().tryResolve(resource.getReference()));
+        Assert.assertNull(restarted.getOperator().tryResolve(removedId));
+        Assert.assertNull(restarted.getOperator().tryResolve(removedResource.getReference()));
+    }
+
+    @Test
+    public void journalIsCompactedInBackground() throws Exception
+    {
+        final FileOperator operator = (FileOperator) facade.getOperator();
+        operator.setJournalCompactSize(2);
+        final byte[] data = Files.readAllBytes(dataFile.toPath());
+        final User user = facade.getUser("homer");
+        for (int i = 0; i < 2; i++)
+        {
+            Allocatable resource = facade.newAllocatable(facade.getDynamicTypes(DynamicTypeAnnotations.VALUE_CLASSIFICATION_TYPE_RESOURCE)[0].newClassification(), user);
+            resource.getClassification().setValue("name", "resource " + i);
+            facade.store(resource);
+        }
+        for (int i = 0; i < 100 && getJournalFile().length() > 0; i++)
+        {
+            Thread.sleep(50);
+        }
+        Assert.assertEquals(0, getJournalFile().length());
+        Assert.assertFalse(Arrays.equals(data, Files.readAllBytes(dataFile.toPath())));
+    }
+
+    @Test
+    public void incompleteRecordIsIgnored() throws Exception
+    {
+        final User user = facade.getUser("homer");
+        Allocatable resource = facade.newAllocatable(facade.getDynamicTypes(DynamicTypeAnnotations.VALUE_CLASSIFICATION_TYPE_RESOURCE)[0].newClassification(), user);
+        facade.store(resource);
+        try (OutputStream out = new FileOutputStream(getJournalFile(), true))
+        {
+            out.write("{\"event\":{\"resources\":[".getBytes(StandardCharsets.UTF_8));
+        }
+        final RaplaFacade restarted = createFacade();
+        Assert.assertNotNull(restarted.getOperator().tryResolve(resource.getReference()));
+        Assert.assertEquals(1, countJournalRecords());
+    }
+}
@@ -0,0 +1,195 @@
+package org.rapla.storage.dbfile.tests;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.URI;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+import org.rapla.RaplaResources;
+import org.rapla.components.i18n.internal.DefaultBundleManager;
+import org.rapla.entities.Entity;
+import org.rapla.entities.User;
+import org.rapla.entities.domain.Allocatable;
+import org.rapla.entities.domain.Reservation;
+import org.rapla.entities.domain.permission.PermissionExtension;
+import org.rapla.entities.domain.permission.impl.RaplaDefaultPermissionImpl;
+import org.rapla.entities.dynamictype.DynamicTypeAnnotations;
+import org.rapla.entities.dynamictype.internal.DynamicTypeImpl;
+import org.rapla.entities.dynamictype.internal.StandardFunctions;
+import org.rapla.entities.extensionpoints.FunctionFactory;
+import org.rapla.facade.RaplaFacade;
+import org.rapla.facade.internal.FacadeImpl;
+import org.rapla.framework.RaplaException;
+import org.rapla.framework.RaplaLocale;
+import org.rapla.framework.internal.DefaultScheduler;
+import org.rapla.framework.internal.RaplaLocaleImpl;
+import org.rapla.logger.Logger;
+import org.rapla.rest.JsonParserWrapper;
+import org.rapla.server.PromiseSynchroniser;
+import org.rapla.storage.dbfile.FileOperator;
+import org.rapla.test.util.RaplaTestCase;
+import org.xml.sax.InputSource;
+
+@RunWith(JUnit4.class)
+public class FileOperatorSnapshotTest
+{
+    Logger logger;
+    File folder;
+    File dataFile;
+    List<RaplaFacade> facades = new ArrayList<>();
+
+    @Before
+    public void setUp() throws Exception
+    {
+        logger = RaplaTestCase.initLoger();
+        folder = Files.createTempDirectory("rapla-snapshot").toFile();
+        dataFile = new File(folder, "data.xml");
+        Files.copy(new File(RaplaTestCase.getTestDataFile("testdefault.xml")).toPath(), dataFile.toPath(), StandardCopyOption.REPLACE_EXISTING);
+    }
+
+    @After
+    public void tearDown() throws Exception
+    {
+        for (RaplaFacade facade : facades)
+        {
+            RaplaTestCase.dispose(facade);
+        }
+        for (File file : folder.listFiles())
+        {
+            file.delete();
+        }
+        folder.delete();
+    }
+
+    /** fails if the data file is read */
+    static class NoReadFileIO extends FileOperator.DefaultFileIO
+    {
+        @Override public InputSource getInputSource(URI storageURL) throws IOException
+        {
+            throw new IOException("Data file should be loaded from snapshot");
+        }
+    }
+
+    private RaplaFacade createFacade(boolean snapshot, FileOperator.FileIO fileIO) throws RaplaException
+    {
+        DefaultBundleManager bundleManager = new DefaultBundleManager();
+        RaplaResources i18n = new RaplaResources(bundleManager);
+        final DefaultScheduler scheduler = new DefaultScheduler(logger);
+        RaplaLocale raplaLocale = new RaplaLocaleImpl(bundleManager);
+        Map<String, FunctionFactory> functionFactoryMap = new HashMap<String, FunctionFactory>();
+        functionFactoryMap.put(StandardFunctions.NAMESPACE, new StandardFunctions(raplaLocale));
+        Set<PermissionExtension> permissionExtensions = new LinkedHashSet<>();
+        permissionExtensions.add(new RaplaDefaultPermissionImpl());
+        FileOperator operator = new FileOperator(logger, i18n, raplaLocale, scheduler, functionFactoryMap, dataFile.getPath(), permissionExtensions);
+        operator.setFileIO(fileIO);
+        operator.setSnapshotEnabled(snapshot);
+        FacadeImpl facade = new FacadeImpl(i18n, scheduler, logger);
+        facade.setOperator(operator);
+        operator.connect();
+        facades.add(facade);
+        return facade;
+    }
+
+    private Map<String, String> toJson(RaplaFacade facade) throws Exception
+    {
+        final JsonParserWrapper.JsonParser gson = JsonParserWrapper.defaultJson().get();
+        final FileOperator operator = (FileOperator) facade.getOperator();
+        Map<String, String> result = new TreeMap<>();
+        for (Entity entity : operator.getVisibleEntities(null))
+        {
+            // internal types are created on each connect
+            if (!(entity instanceof DynamicTypeImpl && ((DynamicTypeImpl) entity).isInternal()))
+            {
+                result.put(entity.getId(), gson.toJson(entity));
+            }
+        }
+        final Collection<Reservation> reservations = PromiseSynchroniser.waitForWithRaplaException(facade.getReservations(null, null, null, null), 10000);
+        for (Reservation reservation : reservations)
+        {
+            result.put(reservation.getId(), gson.toJson(reservation));
+        }
+        return result;
+    }
+
+    @Test
+    public void snapshotLoadsTheSameData() throws Exception
+    {
+        final RaplaFacade fromXml = createFacade(true, new FileOperator.DefaultFileIO());
+        final Map<String, String> expected = toJson(fromXml);
+        fromXml.getOperator().disconnect();
+        Assert.assertTrue(new File(dataFile.getPath() + ".snapshot").exists());
+
+        final RaplaFacade fromSnapshot = createFacade(true, new NoReadFileIO());
+        final Map<String, String> actual = toJson(fromSnapshot);
+        Assert.assertEquals(expected.keySet(), actual.keySet());
+        for (String id : expected.keySet())
+        {
+            Assert.assertEquals(expected.get(id), actual.get(id));
+        }
+        final FileOperator operator = (FileOperator) fromSnapshot.getOperator();
+        final User homer = fromSnapshot.getUser("homer");
+        Assert.assertNotNull(homer);
+        Assert.assertEquals(homer.getId(), operator.authenticate("homer", "duffs"));
+    }
+
+    @Test
+    public void largeSnapshotIsDecodedInParallel() throws Exception
+    {
+        final RaplaFacade fromXml = createFacade(true, new FileOperator.DefaultFileIO());
+        final User user = fromXml.getUser("homer");
+        List<Entity> resources = new ArrayList<>();
+        for (int i = 0; i < 3000; i++)
+        {
+            Allocatable resource = fromXml.newAllocatable(fromXml.getDynamicTypes(DynamicTypeAnnotations.VALUE_CLASSIFICATION_TYPE_RESOURCE)[0].newClassification(),
+                    user);
+            resource.getClassification().setValue("name", "resource " + i);
+            resources.add(resource);
+        }
+        fromXml.storeAndRemove(resources.toArray(Entity.ENTITY_ARRAY), Entity.ENTITY_ARRAY, user);
+        final Map<String, String> expected = toJson(fromXml);
+        fromXml.getOperator().disconnect();
+
+        final Map<String, String> actual = toJson(createFacade(true, new NoReadFileIO()));
+        Assert.assertEquals(expected, actual);
+    }
+
+    @Test
+    public void staleSnapshotIsIgnored() throws Exception
+    {
+        createFacade(true, new FileOperator.DefaultFileIO()).getOperator().disconnect();
+
+        // changes the data file without snapshot
+        final RaplaFacade withoutSnapshot = createFacade(false, new FileOperator.DefaultFileIO());
+        final User user = withoutSnapshot.getUser("homer");
+        Allocatable resource = withoutSnapshot.newAllocatable(
+                withoutSnapshot.getDynamicTypes(DynamicTypeAnnotations.VALUE_CLASSIFICATION_TYPE_RESOURCE)[0].newClassification(), user);
+        withoutSnapshot.store(resource);
+        withoutSnapshot.getOperator().disconnect();
+
+        try
+        {
+            createFacade(true, new NoReadFileIO());
+            Assert.fail("Snapshot is stale, so the data file must be read");
+        }
+        catch (RaplaException ex)
+        {
+        }
+        final RaplaFacade fromXml = createFacade(true, new FileOperator.DefaultFileIO());
+        Assert.assertNotNull(fromXml.getOperator().tryResolve(resource.getReference()));
+    }
+}
@@ -0,0 +1,243 @@
+package org.rapla.storage.dbrm;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Date;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.zip.GZIPOutputStream;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Ignore;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+import org.rapla.components.util.DateTools;
+import org.rapla.entities.Entity;
+import org.rapla.entities.User;
+import org.rapla.entities.domain.Allocatable;
+import org.rapla.entities.domain.Appointment;
+import org.rapla.entities.domain.Reservation;
+import org.rapla.entities.domain.internal.ReservationImpl;
+import org.rapla.entities.dynamictype.DynamicTypeAnnotations;
+import org.rapla.entities.storage.EntityResolver;
+import org.rapla.entities.storage.ReferenceInfo;
+import org.rapla.facade.RaplaFacade;
+import org.rapla.rest.JsonParserWrapper;
+import org.rapla.test.util.RaplaTestCase;
+
+@RunWith(JUnit4.class)
+public class AppointmentMapTest
+{
+    RaplaFacade facade;
+    User user;
+
+    @Before
+    public void setUp() throws Exception
+    {
+        facade = RaplaTestCase.createFacadeWithFile(RaplaTestCase.initLoger(), "testdefault.xml");
+        user = facade.getUser("homer");
+    }
+
+    @After
+    public void tearDown() throws Exception
+    {
+        RaplaTestCase.dispose(facade);
+    }
+
+    /** the format with appointment id strings, that was used before the appointment indexes */
+    static class IdAppointmentMap
+    {
+        Set<ReservationImpl> reservations;
+        Map<String, Set<String>> allocatableIdToAppointmentIds;
+
+        IdAppointmentMap(Map<Allocatable, Collection<Appointment>> map)
+        {
+            allocatableIdToAppointmentIds = new LinkedHashMap<>();
+            reservations = new LinkedHashSet<>();
+            for (Map.Entry<Allocatable, Collection<Appointment>> entry : map.entrySet())
+            {
+                Set<String> ids = new LinkedHashSet<>();
+                allocatableIdToAppointmentIds.put(entry.getKey().getId(), ids);
+                for (Appointment app : entry.getValue())
+                {
+                    reservations.add((ReservationImpl) app.getReservation());
+                    ids.add(app.getId());
+                }
+            }
+        }
+
+        Map<Allocatable, Collection<Appointment>> getResult(EntityResolver resolver)
+        {
+            Map<String, Appointment> appointmentIdToAppointment = new LinkedHashMap<>();
+            for (ReservationImpl reservation : reservations)
+            {
+                reservation.setResolver(resolver);
+                reservation.setReadOnly();
+                for (Appointment app : reservation.getAppointments())
+                {
+                    appointmentIdToAppointment.put(app.getId(), app);
+                }
+            }
+            Map<Allocatable, Collection<Appointment>> result = new LinkedHashMap<>();
+            for (Map.Entry<String, Set<String>> entry : allocatableIdToAppointmentIds.entrySet())
+            {
+                final Allocatable allocatable = resolver.tryResolve(new ReferenceInfo<Allocatable>(entry.getKey(), Allocatable.class));
+                Collection<Appointment> appointments = new LinkedHashSet<>();
+                for (String appointmentId : entry.getValue())
+                {
+                    appointments.add(appointmentIdToAppointment.get(appointmentId));
+                }
+                result.put(allocatable, appointments);
+            }
+            return result;
+        }
+    }
+
+    /** month view of 200 rooms with events that use three rooms each */
+    private Map<Allocatable, Collection<Appointment>> createMonth() throws Exception
+    {
+        List<Allocatable> rooms = new ArrayList<>();
+        for (int i = 0; i < 200; i++)
+        {
+            Allocatable room = facade.newAllocatable(facade.getDynamicTypes(DynamicTypeAnnotations.VALUE_CLASSIFICATION_TYPE_RESOURCE)[0].newClassification(), user);
+            room.getClassification().setValue("name", "room " + i);
+            rooms.add(room);
+        }
+        facade.storeObjects(rooms.toArray(Entity.ENTITY_ARRAY));
+        Map<Allocatable, Collection<Appointment>> map = new LinkedHashMap<>();
+        for (Allocatable room : rooms)
+        {
+            map.put(room, new ArrayList<Appointment>());
+        }
+        final Date start = new Date(DateTools.cutDate(System.currentTimeMillis()));
+        for (int i = 0; i < 2000; i++)
+        {
+            Reservation reservation = facade.newReservation(
+                    facade.getDynamicTypes(DynamicTypeAnnotations.VALUE_CLASSIFICATION_TYPE_RESERVATION)[0].newClassification(), user);
+            reservation.getClassification().setValue("name", "event " + i);
+            for (int j = 0; j < 2; j++)
+            {
+                final Date appStart = new Date(start.getTime() + ((i + j * 7) % 30) * DateTools.MILLISECONDS_PER_DAY + DateTools.MILLISECONDS_PER_HOUR * 8);
+                reservation.addAppointment(facade.newAppointment(appStart, new Date(appStart.getTime() + DateTools.MILLISECONDS_PER_HOUR), user));
+            }
+            for (int k = 0; k < 3; k++)
+            {
+                final Allocatable room = rooms.get((i * 3 + k * 67) % rooms.size());
+                reservation.addAllocatable(room);
+                map.get(room).addAll(Arrays.asList(reservation.getAppointments()));
+            }
+        }
+        return map;
+    }
+
+    private static Map<String, List<String>> toIds(Map<Allocatable, Collection<Appointment>> result)
+    {
+        Map<String, List<String>> ids = new LinkedHashMap<>();
+        for (Map.Entry<Allocatable, Collection<Appointment>> entry : result.entrySet())
+        {
+            List<String> appointmentIds = new ArrayList<>();
+            for (Appointment appointment : entry.getValue())
+            {
+                appointmentIds.add(appointment.getId());
+            }
+            ids.put(entry.getKey().getId(), appointmentIds);
+        }
+        return ids;
+    }
+
+    private static int gzipSize(String json) throws IOException
+    {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try (GZIPOutputStream out = new GZIPOutputStream(bytes))
+        {
+            out.write(json.getBytes(StandardCharsets.UTF_8));
+        }
+        return bytes.size();
+    }
+
+    @Test
+    public void resultIsTheSameAsWithAppointmentIds() throws Exception
+    {
+        final Map<Allocatable, Collection<Appointment>> month = createMonth();
+        final JsonParserWrapper.JsonParser gson = JsonParserWrapper.defaultJson().get();
+        final EntityResolver resolver = (EntityResolver) facade.getOperator();
+        final String idJson = gson.toJson(new IdAppointmentMap(month));
+        final String indexJson = gson.toJson(new AppointmentMap(month));
+
+        final Map<String, List<String>> expected = toIds(month);
+        Assert.assertEquals(expected, toIds(gson.fromJson(idJson, IdAppointmentMap.class).getResult(resolver)));
+        final AppointmentMap appointmentMap = gson.fromJson(indexJson, AppointmentMap.class);
+        appointmentMap.init(resolver);
+        Assert.assertEquals(expected, toIds(appointmentMap.getResult(null)));
+        Assert.assertTrue(indexJson.length() < idJson.length());
+    }
+
+    @Test
+    public void oldFormatIsReadAndWritten() throws Exception
+    {
+        final Map<Allocatable, Collection<Appointment>> month = createMonth();
+        final JsonParserWrapper.JsonParser gson = JsonParserWrapper.defaultJson().get();
+        final EntityResolver resolver = (EntityResolver) facade.getOperator();
+        final Map<String, List<String>> expected = toIds(month);
+
+        // the result of an older server
+        final AppointmentMap fromOldServer = gson.fromJson(gson.toJson(new IdAppointmentMap(month)), AppointmentMap.class);
+        fromOldServer.init(resolver);
+        Assert.assertEquals(expected, toIds(fromOldServer.getResult(null)));
+
+        // an older client doesn't send the format and reads the map of appointment ids
+        final RemoteStorage.QueryAppointments oldQuery = gson.fromJson("{\"resources\":[]}", RemoteStorage.QueryAppointments.class);
+        Assert.assertEquals(AppointmentMap.FORMAT_APPOINTMENT_IDS, oldQuery.getFormat());
+        final String json = gson.toJson(new AppointmentMap(month, oldQuery.getFormat()));
+        Assert.assertEquals(expected, toIds(gson.fromJson(json, IdAppointmentMap.class).getResult(resolver)));
+
+        final RemoteStorage.QueryAppointments query = gson.fromJson(
+                gson.toJson(new RemoteStorage.QueryAppointments(new String[] {}, null, null, null, AppointmentMap.FORMAT_APPOINTMENT_INDEXES)),
+                RemoteStorage.QueryAppointments.class);
+        Assert.assertEquals(AppointmentMap.FORMAT_APPOINTMENT_INDEXES, query.getFormat());
+    }
+
+    @Ignore("benchmark, run manually")
+    @Test
+    public void benchmarkPayloadAndDecoding() throws Exception
+    {
+        final Map<Allocatable, Collection<Appointment>> month = createMonth();
+        final JsonParserWrapper.JsonParser gson = JsonParserWrapper.defaultJson().get();
+        final EntityResolver resolver = (EntityResolver) facade.getOperator();
+        final String idJson = gson.toJson(new IdAppointmentMap(month));
+        final String indexJson = gson.toJson(new AppointmentMap(month));
+        long idTime = 0;
+        long indexTime = 0;
+        for (int run = 0; run < 5; run++)
+        {
+            long t1 = System.nanoTime();
+            final Map<Allocatable, Collection<Appointment>> idResult = gson.fromJson(idJson, IdAppointmentMap.class).getResult(resolver);
+            long t2 = System.nanoTime();
+            final AppointmentMap appointmentMap = gson.fromJson(indexJson, AppointmentMap.class);
+            appointmentMap.init(resolver);
+            final Map<Allocatable, Collection<Appointment>> indexResult = appointmentMap.getResult(null);
+            long t3 = System.nanoTime();
+            Assert.assertEquals(toIds(idResult), toIds(indexResult));
+            // the first runs warm up the jit
+            if (run >= 2)
+            {
+                idTime += t2 - t1;
+                indexTime += t3 - t2;
+            }
+        }
+        System.out.println("AppointmentMap with appointment ids: " + idJson.length() + " bytes, " + gzipSize(idJson) + " bytes gzipped, decoded in "
+                + (idTime / 3000000.0) + " ms");
+        System.out.println("AppointmentMap with appointment indexes: " + indexJson.length() + " bytes, " + gzipSize(indexJson) + " bytes gzipped, decoded in "
+                + (indexTime / 3000000.0) + " ms");
+    }
+}
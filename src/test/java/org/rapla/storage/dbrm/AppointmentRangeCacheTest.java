@@ -0,0 +1,122 @@
+package org.rapla.storage.dbrm;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Date;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.junit.Assert;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+import org.rapla.components.util.DateTools;
+import org.rapla.components.util.TimeInterval;
+import org.rapla.entities.domain.Allocatable;
+import org.rapla.entities.domain.Appointment;
+import org.rapla.entities.domain.internal.AllocatableImpl;
+import org.rapla.entities.domain.internal.AppointmentImpl;
+import org.rapla.entities.domain.internal.ReservationImpl;
+
+@RunWith(JUnit4.class)
+public class AppointmentRangeCacheTest
+{
+    final long startTime = DateTools.cutDate(new Date()).getTime();
+    final Allocatable room1 = createAllocatable("room1");
+    final Allocatable room2 = createAllocatable("room2");
+    final List<String> rooms = Arrays.asList("room1", "room2");
+
+    private static Allocatable createAllocatable(String id)
+    {
+        AllocatableImpl allocatable = new AllocatableImpl(new Date(), new Date());
+        allocatable.setId(id);
+        return allocatable;
+    }
+
+    private Appointment createAppointment(String id, int day)
+    {
+        final Date start = new Date(startTime + day * DateTools.MILLISECONDS_PER_DAY);
+        AppointmentImpl appointment = new AppointmentImpl(start, new Date(start.getTime() + DateTools.MILLISECONDS_PER_HOUR));
+        appointment.setId(id);
+        ReservationImpl reservation = new ReservationImpl(new Date(), new Date());
+        reservation.setId("res" + id);
+        reservation.addAppointment(appointment);
+        return appointment;
+    }
+
+    private Date week(int week)
+    {
+        return new Date(startTime + week * DateTools.MILLISECONDS_PER_WEEK);
+    }
+
+    private void fetch(AppointmentRangeCache cache, Date start, Date end, List<Appointment> appointments)
+    {
+        final AppointmentRangeCache.Missing missing = cache.getMissing(rooms, start, end);
+        Map<Allocatable, Collection<Appointment>> result = new LinkedHashMap<Allocatable, Collection<Appointment>>();
+        for (Appointment appointment : appointments)
+        {
+            if (appointment.overlaps(missing.interval.getStart(), missing.interval.getEnd(), false))
+            {
+                result.computeIfAbsent(room1, (key) -> new ArrayList<Appointment>()).add(appointment);
+            }
+        }
+        cache.put(missing, result);
+    }
+
+    @Test
+    public void onlyMissingRangeIsFetched()
+    {
+        AppointmentRangeCache cache = new AppointmentRangeCache(100);
+        final List<Appointment> appointments = Arrays.asList(createAppointment("a", 1), createAppointment("b", 8), createAppointment("c", 15));
+        Assert.assertNull(cache.get(rooms, week(0), week(1)));
+        fetch(cache, week(0), week(1), appointments);
+        Assert.assertEquals(Collections.singletonList(appointments.get(0)), new ArrayList<Appointment>(cache.get(rooms, week(0), week(1)).get("room1")));
+        Assert.assertFalse(cache.get(rooms, week(0), week(1)).containsKey("room2"));
+
+        // the next week only needs the next week
+        Assert.assertNull(cache.get(rooms, week(0), week(2)));
+        final AppointmentRangeCache.Missing missing = cache.getMissing(rooms, week(0), week(2));
+        Assert.assertEquals(rooms, missing.allocatableIds);
+        Assert.assertEquals(new TimeInterval(week(1), week(2)), missing.interval);
+        fetch(cache, week(0), week(2), appointments);
+        Assert.assertEquals(Arrays.asList(appointments.get(0), appointments.get(1)), new ArrayList<Appointment>(cache.get(rooms, week(0), week(2)).get("room1")));
+        Assert.assertEquals(Collections.singletonList(appointments.get(1)), new ArrayList<Appointment>(cache.get(rooms, week(1), week(2)).get("room1")));
+    }
+
+    @Test
+    public void changedSliceIsInvalidated()
+    {
+        AppointmentRangeCache cache = new AppointmentRangeCache(100);
+        final List<Appointment> appointments = Arrays.asList(createAppointment("a", 1), createAppointment("b", 8), createAppointment("c", 15));
+        fetch(cache, week(0), week(3), appointments);
+        final Date changeStart = new Date(startTime + 8 * DateTools.MILLISECONDS_PER_DAY);
+        cache.invalidate(new TimeInterval(changeStart, new Date(changeStart.getTime() + DateTools.MILLISECONDS_PER_HOUR)), Collections.singleton("room1"));
+
+        // the other weeks and allocatables are still cached
+        Assert.assertNotNull(cache.get(rooms, week(0), week(1)));
+        Assert.assertNotNull(cache.get(rooms, week(2), week(3)));
+        Assert.assertNotNull(cache.get(Collections.singleton("room2"), week(0), week(3)));
+        final AppointmentRangeCache.Missing missing = cache.getMissing(rooms, week(0), week(3));
+        Assert.assertEquals(Collections.singletonList("room1"), missing.allocatableIds);
+        Assert.assertEquals(changeStart, missing.interval.getStart());
+        Assert.assertTrue(missing.interval.getEnd().before(week(2)));
+
+        // without allocatables the interval is invalid for all
+        cache.invalidate(new TimeInterval(week(2), week(3)), null);
+        Assert.assertNull(cache.get(Collections.singleton("room2"), week(0), week(3)));
+    }
+
+    @Test
+    public void resultFetchedBeforeInvalidationIsIgnored()
+    {
+        AppointmentRangeCache cache = new AppointmentRangeCache(100);
+        final AppointmentRangeCache.Missing missing = cache.getMissing(rooms, week(0), week(1));
+        cache.invalidate(new TimeInterval(week(0), week(1)), null);
+        cache.put(missing, Collections.<Allocatable, Collection<Appointment>>singletonMap(room2, Collections.singletonList(createAppointment("a", 1))));
+        Assert.assertNull(cache.get(rooms, week(0), week(1)));
+        Assert.assertEquals(0, cache.size());
+    }
+}
@@ -0,0 +1,281 @@
+package org.rapla.storage.dbsql.tests;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.sql.Connection;
+import java.sql.DatabaseMetaData;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.sql.DataSource;
+
+import org.junit.Assert;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+import org.postgresql.PGConnection;
+import org.postgresql.PGNotification;
+import org.rapla.logger.Logger;
+import org.rapla.storage.dbsql.PostgresChangeFeed;
+import org.rapla.test.util.RaplaTestCase;
+
+/** Tests the notifications of the {@link PostgresChangeFeed} against a stand-in, that delivers NOTIFY to all connections that executed LISTEN */
+@RunWith(JUnit4.class)
+public class PostgresChangeFeedTest
+{
+    Logger logger = RaplaTestCase.initLoger();
+
+    @Test
+    public void otherServersAreNotified() throws Exception
+    {
+        StandInDatabase database = new StandInDatabase("PostgreSQL");
+        PostgresChangeFeed feed1 = createFeed(database);
+        PostgresChangeFeed feed2 = createFeed(database);
+        Semaphore changes1 = new Semaphore(0);
+        Semaphore changes2 = new Semaphore(0);
+        feed1.start(changes1::release);
+        feed2.start(changes2::release);
+        try
+        {
+            // each listener reports the changes, that could have been missed before it was connected
+            Assert.assertTrue(changes1.tryAcquire(5, TimeUnit.SECONDS));
+            Assert.assertTrue(changes2.tryAcquire(5, TimeUnit.SECONDS));
+            try (Connection connection = database.getConnection())
+            {
+                Assert.assertTrue(feed2.hasChanges(connection));
+                Assert.assertFalse(feed2.hasChanges(connection));
+                final int sequenceReads = database.sequenceReads.get();
+
+                feed1.publish(connection);
+                Assert.assertTrue(changes2.tryAcquire(5, TimeUnit.SECONDS));
+                Assert.assertFalse(changes1.tryAcquire(200, TimeUnit.MILLISECONDS));
+                Assert.assertEquals(1, database.sequenceIncrements.get());
+                Assert.assertTrue(feed2.hasChanges(connection));
+                Assert.assertFalse(feed2.hasChanges(connection));
+                // while the listener is connected, the sequence is not polled on every refresh
+                Assert.assertEquals(sequenceReads, database.sequenceReads.get());
+            }
+        }
+        finally
+        {
+            feed1.stop();
+            feed2.stop();
+        }
+        for (int i = 0; i < 100 && database.openConnections.get() > 0; i++)
+        {
+            Thread.sleep(50);
+        }
+        Assert.assertEquals(0, database.openConnections.get());
+    }
+
+    @Test
+    public void otherDatabasesArePolled() throws Exception
+    {
+        StandInDatabase database = new StandInDatabase("HSQL Database Engine");
+        PostgresChangeFeed feed = createFeed(database);
+        Semaphore changes = new Semaphore(0);
+        feed.start(changes::release);
+        try (Connection connection = database.getConnection())
+        {
+            feed.publish(connection);
+            Assert.assertEquals(1, database.sequenceIncrements.get());
+            Assert.assertEquals(0, database.notifications.size());
+            Assert.assertTrue(feed.hasChanges(connection));
+            Assert.assertEquals(1, database.sequenceReads.get());
+            Assert.assertFalse(changes.tryAcquire(200, TimeUnit.MILLISECONDS));
+        }
+        finally
+        {
+            feed.stop();
+        }
+    }
+
+    private PostgresChangeFeed createFeed(StandInDatabase database)
+    {
+        PostgresChangeFeed feed = new PostgresChangeFeed(logger, database.dataSource);
+        feed.setListenInterval(5);
+        return feed;
+    }
+
+    /** supports only the statements, that are used by the change feed */
+    static class StandInDatabase
+    {
+        final String productName;
+        final DataSource dataSource;
+        final List<StandInConnection> listeners = new ArrayList<StandInConnection>();
+        final List<String> notifications = new ArrayList<String>();
+        final AtomicInteger openConnections = new AtomicInteger();
+        final AtomicInteger sequenceReads = new AtomicInteger();
+        final AtomicInteger sequenceIncrements = new AtomicInteger();
+
+        StandInDatabase(String productName)
+        {
+            this.productName = productName;
+            dataSource = proxy(DataSource.class, (proxy, method, args) -> {
+                if (method.getName().equals("getConnection"))
+                {
+                    return getConnection();
+                }
+                throw new UnsupportedOperationException(method.getName());
+            });
+        }
+
+        Connection getConnection()
+        {
+            openConnections.incrementAndGet();
+            return new StandInConnection(this).connection;
+        }
+
+        synchronized void notify(String parameter)
+        {
+            notifications.add(parameter);
+            for (StandInConnection listener : listeners)
+            {
+                listener.received.add(parameter);
+            }
+        }
+    }
+
+    static class StandInConnection implements InvocationHandler
+    {
+        final StandInDatabase database;
+        final Connection connection;
+        final List<String> received = new ArrayList<String>();
+        boolean closed;
+
+        StandInConnection(StandInDatabase database)
+        {
+            this.database = database;
+            connection = (Connection) Proxy.newProxyInstance(getClass().getClassLoader(), new Class[] { Connection.class, PGConnection.class }, this);
+        }
+
+        @Override public Object invoke(Object proxy, Method method, Object[] args) throws Throwable
+        {
+            switch (method.getName())
+            {
+            case "getMetaData":
+                return proxy(DatabaseMetaData.class, (p, m, a) -> m.getName().equals("getDatabaseProductName") ? database.productName : null);
+            case "createStatement":
+                return proxy(Statement.class, (p, m, a) -> execute(m, a != null && a.length > 0 ? (String) a[0] : null));
+            case "prepareStatement":
+                final String sql = (String) args[0];
+                final List<Object> parameters = new ArrayList<Object>();
+                return proxy(PreparedStatement.class, (p, m, a) -> {
+                    if (m.getName().startsWith("set"))
+                    {
+                        parameters.add(a[1]);
+                        return null;
+                    }
+                    return executePrepared(m, sql, parameters);
+                });
+            case "getNotifications":
+                synchronized (database)
+                {
+                    if (received.isEmpty())
+                    {
+                        return null;
+                    }
+                    List<PGNotification> notifications = new ArrayList<PGNotification>();
+                    for (final String parameter : received)
+                    {
+                        notifications.add(proxy(PGNotification.class, (p, m, a) -> m.getName().equals("getParameter") ? parameter : null));
+                    }
+                    received.clear();
+                    return notifications.toArray(new PGNotification[] {});
+                }
+            case "close":
+                if (!closed)
+                {
+                    closed = true;
+                    database.openConnections.decrementAndGet();
+                    synchronized (database)
+                    {
+                        database.listeners.remove(this);
+                    }
+                }
+                return null;
+            case "getAutoCommit":
+                return true;
+            case "unwrap":
+                return proxy;
+            case "hashCode":
+                return System.identityHashCode(proxy);
+            case "equals":
+                return proxy == args[0];
+            default:
+                return null;
+            }
+        }
+
+        private Object execute(Method method, String sql)
+        {
+            if (method.getName().startsWith("execute"))
+            {
+                if (sql.startsWith("LISTEN "))
+                {
+                    synchronized (database)
+                    {
+                        database.listeners.add(this);
+                    }
+                    return false;
+                }
+                return emptyResult();
+            }
+            return null;
+        }
+
+        private Object executePrepared(Method method, String sql, List<Object> parameters)
+        {
+            final String name = method.getName();
+            if (!name.startsWith("execute"))
+            {
+                return null;
+            }
+            if (sql.startsWith("SELECT pg_notify"))
+            {
+                database.notify((String) parameters.get(1));
+                return emptyResult();
+            }
+            if (sql.startsWith("UPDATE CHANGE_SEQUENCE"))
+            {
+                database.sequenceIncrements.incrementAndGet();
+                return 1;
+            }
+            if (sql.startsWith("SELECT SEQ"))
+            {
+                database.sequenceReads.incrementAndGet();
+                final AtomicInteger next = new AtomicInteger();
+                return proxy(ResultSet.class, (p, m, a) -> {
+                    switch (m.getName())
+                    {
+                    case "next":
+                        return next.getAndIncrement() == 0;
+                    case "getLong":
+                        return (long) database.sequenceIncrements.get();
+                    default:
+                        return null;
+                    }
+                });
+            }
+            throw new UnsupportedOperationException(sql);
+        }
+
+        private ResultSet emptyResult()
+        {
+            return proxy(ResultSet.class, (p, m, a) -> m.getName().equals("next") ? false : null);
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    static <T> T proxy(Class<T> type, InvocationHandler handler)
+    {
+        return (T) Proxy.newProxyInstance(PostgresChangeFeedTest.class.getClassLoader(), new Class[] { type }, handler);
+    }
+}
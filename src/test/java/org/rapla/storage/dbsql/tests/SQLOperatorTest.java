@@ -18,6 +18,7 @@ import java.sql.ResultSet;
 import java.sql.SQLException;
 import java.sql.Statement;
 import java.sql.Timestamp;
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Calendar;
 import java.util.Collection;
@@ -25,10 +26,12 @@ import java.util.Collections;
 import java.util.Date;
 import java.util.HashMap;
 import java.util.Iterator;
+import java.util.List;
 import java.util.Map;
 import java.util.Random;
 import java.util.Set;
 import java.util.TimeZone;
+import java.util.concurrent.CountDownLatch;
 
 import org.hsqldb.jdbc.JDBCDataSource;
 import org.jetbrains.annotations.NotNull;
@@ -61,11 +64,14 @@ import org.rapla.framework.RaplaException;
 import org.rapla.logger.Logger;
 import org.rapla.storage.CachableStorageOperator;
 import org.rapla.storage.ImportExportManager;
+import org.rapla.storage.UpdateEvent;
 import org.rapla.storage.UpdateResult;
 import org.rapla.storage.UpdateResult.Add;
 import org.rapla.storage.UpdateResult.Change;
 import org.rapla.storage.UpdateResult.Remove;
 import org.rapla.storage.dbsql.DBOperator;
+import org.rapla.storage.dbsql.SequenceChangeFeed;
+import org.rapla.storage.dbsql.StatementStatistics;
 import org.rapla.storage.tests.AbstractOperatorTest;
 import org.rapla.test.util.RaplaTestCase;
 
@@ -681,6 +687,149 @@ public class SQLOperatorTest extends AbstractOperatorTest
         }
     }
 
+    @Test
+    public void testConcurrentDispatch() throws Exception
+    {
+        final User user = facade.getUser("homer");
+        final DynamicType reservationType = facade.getDynamicTypes(DynamicTypeAnnotations.VALUE_CLASSIFICATION_TYPE_RESERVATION)[0];
+        final Allocatable allocatable = facade.getAllocatables()[0];
+        final int threadCount = 8;
+        final int reservationsPerThread = 10;
+        final List<ReferenceInfo<Reservation>> reservationIds = Collections.synchronizedList(new ArrayList<ReferenceInfo<Reservation>>());
+        final List<Throwable> errors = Collections.synchronizedList(new ArrayList<Throwable>());
+        final CountDownLatch start = new CountDownLatch(1);
+        List<Thread> threads = new ArrayList<Thread>();
+        for (int i = 0; i < threadCount; i++)
+        {
+            final int threadNumber = i;
+            Thread thread = new Thread(new Runnable()
+            {
+                public void run()
+                {
+                    try
+                    {
+                        start.await();
+                        for (int j = 0; j < reservationsPerThread; j++)
+                        {
+                            Reservation reservation = facade.newReservation(reservationType.newClassification(), user);
+                            reservation.getClassification().setValue("name", "event " + threadNumber + "-" + j);
+                            Date appStartDate = new Date(DateTools.cutDate(new Date()).getTime() + j * DateTools.MILLISECONDS_PER_HOUR);
+                            reservation.addAppointment(facade.newAppointment(appStartDate, new Date(appStartDate.getTime() + 120000), user));
+                            reservation.addAllocatable(allocatable);
+                            if (threadNumber == 0 && j == 0)
+                            {
+                                // an event that references an allocatable that is not stored must fail without affecting the others
+                                reservation.addAllocatable(facade.newAllocatable(allocatable.getClassification().getType().newClassification(), user));
+                                UpdateEvent evt = new UpdateEvent();
+                                evt.putStore(reservation);
+                                try
+                                {
+                                    getOperator().dispatch(evt);
+                                    errors.add(new AssertionError("Reservation with unknown allocatable stored"));
+                                }
+                                catch (RaplaException ex)
+                                {
+                                }
+                                continue;
+                            }
+                            facade.storeAndRemove(new Entity[] { reservation }, Entity.ENTITY_ARRAY, user);
+                            reservationIds.add(reservation.getReference());
+                        }
+                    }
+                    catch (Throwable ex)
+                    {
+                        errors.add(ex);
+                    }
+                }
+            });
+            thread.start();
+            threads.add(thread);
+        }
+        start.countDown();
+        for (Thread thread : threads)
+        {
+            thread.join(60000);
+        }
+        Assert.assertEquals(Collections.emptyList(), errors);
+        Assert.assertEquals(threadCount * reservationsPerThread - 1, reservationIds.size());
+        RaplaFacade readFacade = RaplaTestCase.createFacadeWithDatasource(logger, createDatasource(), null);
+        try
+        {
+            for (ReferenceInfo<Reservation> id : reservationIds)
+            {
+                Assert.assertNotNull(readFacade.getOperator().tryResolve(id));
+            }
+        }
+        finally
+        {
+            RaplaTestCase.dispose(readFacade);
+        }
+    }
+
+    @Test
+    public void testRefreshReusesStatements() throws Exception
+    {
+        final DBOperator operator = (DBOperator) getOperator();
+        final StatementStatistics statistics = operator.getStatementStatistics();
+        operator.refresh();
+        final long prepared = statistics.getPrepareCount();
+        final long reused = statistics.getReuseCount();
+        operator.refresh();
+        operator.refresh();
+        Assert.assertEquals(prepared, statistics.getPrepareCount());
+        Assert.assertTrue(statistics.getReuseCount() > reused);
+
+        // changes of another operator are still found on the open refresh connection
+        RaplaFacade writeFacade = RaplaTestCase.createFacadeWithDatasource(logger, createDatasource(), null);
+        try
+        {
+            final User user = writeFacade.getUser("homer");
+            Reservation reservation = writeFacade.newReservation(writeFacade.getDynamicTypes(DynamicTypeAnnotations.VALUE_CLASSIFICATION_TYPE_RESERVATION)[0].newClassification(), user);
+            reservation.getClassification().setValue("name", "reused statements");
+            Date appStartDate = DateTools.cutDate(new Date());
+            reservation.addAppointment(writeFacade.newAppointment(appStartDate, new Date(appStartDate.getTime() + DateTools.MILLISECONDS_PER_HOUR), user));
+            reservation.addAllocatable(writeFacade.getAllocatables()[0]);
+            writeFacade.storeAndRemove(new Entity[] { reservation }, Entity.ENTITY_ARRAY, user);
+            operator.refresh();
+            Assert.assertNotNull(operator.tryResolve(reservation.getReference()));
+        }
+        finally
+        {
+            RaplaTestCase.dispose(writeFacade);
+        }
+    }
+
+    @Test
+    public void testChangeSequence() throws Exception
+    {
+        final DBOperator operator = (DBOperator) getOperator();
+        final SequenceChangeFeed feed = new SequenceChangeFeed(logger);
+        try (Connection connection = operator.createConnection())
+        {
+            Assert.assertTrue(feed.hasChanges(connection));
+            connection.commit();
+            feed.refreshed();
+            Assert.assertFalse(feed.hasChanges(connection));
+            connection.commit();
+
+            final User user = facade.getUser("homer");
+            Reservation reservation = facade.newReservation(facade.getDynamicTypes(DynamicTypeAnnotations.VALUE_CLASSIFICATION_TYPE_RESERVATION)[0].newClassification(), user);
+            reservation.getClassification().setValue("name", "sequence");
+            Date appStartDate = DateTools.cutDate(new Date());
+            reservation.addAppointment(facade.newAppointment(appStartDate, new Date(appStartDate.getTime() + DateTools.MILLISECONDS_PER_HOUR), user));
+            reservation.addAllocatable(facade.getAllocatables()[0]);
+            facade.storeAndRemove(new Entity[] { reservation }, Entity.ENTITY_ARRAY, user);
+            Assert.assertTrue(feed.hasChanges(connection));
+            connection.commit();
+            // the change is reported until a refresh completed
+            Assert.assertTrue(feed.hasChanges(connection));
+            connection.commit();
+            feed.refreshed();
+            Assert.assertFalse(feed.hasChanges(connection));
+            connection.commit();
+        }
+    }
+
     @Test
     public void testInsertAndDelete() throws Exception
     {
@@ -0,0 +1,205 @@
+package org.rapla.storage.impl.server;
+
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Random;
+import java.util.SortedSet;
+import java.util.TreeSet;
+
+import org.junit.Assert;
+import org.junit.Ignore;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+import org.rapla.components.util.DateTools;
+import org.rapla.entities.domain.Appointment;
+import org.rapla.entities.domain.AppointmentStartComparator;
+import org.rapla.entities.domain.Repeating;
+import org.rapla.entities.domain.RepeatingType;
+import org.rapla.entities.domain.internal.AppointmentImpl;
+import org.rapla.entities.domain.internal.ReservationImpl;
+
+@RunWith(JUnit4.class)
+public class AppointmentIntervalTreeTest
+{
+    final long startTime = DateTools.cutDate(new Date()).getTime() - DateTools.MILLISECONDS_PER_WEEK * 52 * 10;
+
+    private List<Appointment> createAppointments(int count, long seed)
+    {
+        Random random = new Random(seed);
+        List<Appointment> result = new ArrayList<Appointment>();
+        for (int i = 0; i < count; i++)
+        {
+            long start = startTime + (random.nextInt(52 * 10 * 7 * 24)) * DateTools.MILLISECONDS_PER_HOUR;
+            long end = start + (1 + random.nextInt(4)) * DateTools.MILLISECONDS_PER_HOUR;
+            final AppointmentImpl appointment;
+            int kind = random.nextInt(100);
+            if (kind == 0)
+            {
+                // repeats forever
+                appointment = new AppointmentImpl(new Date(start), new Date(end), RepeatingType.WEEKLY, 1);
+                Repeating repeating = appointment.getRepeating();
+                repeating.setNumber(-1);
+            }
+            else if (kind == 1)
+            {
+                appointment = new AppointmentImpl(new Date(start), new Date(end), RepeatingType.DAILY, 1 + random.nextInt(30));
+            }
+            else if (kind == 2)
+            {
+                appointment = new AppointmentImpl(new Date(start), new Date(end), RepeatingType.MONTHLY, 1 + random.nextInt(12));
+            }
+            else
+            {
+                appointment = new AppointmentImpl(new Date(start), new Date(end));
+            }
+            appointment.setId("app" + i);
+            ReservationImpl reservation = new ReservationImpl(new Date(startTime), new Date(startTime));
+            reservation.setId("res" + i);
+            reservation.addAppointment(appointment);
+            appointment.setReadOnly();
+            result.add(appointment);
+        }
+        return result;
+    }
+
+    private SortedSet<Appointment> query(AppointmentIntervalTree tree, Date start, Date end)
+    {
+        SortedSet<Appointment> candidates = new TreeSet<Appointment>(new AppointmentStartComparator());
+        tree.query(start, end, candidates);
+        return AppointmentImpl.getAppointments(candidates, null, start, end, true);
+    }
+
+    @Test
+    public void sameResultAsSortedSet()
+    {
+        List<Appointment> appointments = createAppointments(2000, 1);
+        AppointmentIntervalTree tree = new AppointmentIntervalTree();
+        SortedSet<Appointment> sortedSet = new TreeSet<Appointment>(new AppointmentStartComparator());
+        for (Appointment appointment : appointments)
+        {
+            Assert.assertTrue(tree.add(appointment));
+            sortedSet.add(appointment);
+        }
+        Assert.assertFalse(tree.add(appointments.get(0)));
+        Assert.assertEquals(sortedSet.size(), tree.size());
+        Assert.assertEquals(new ArrayList<Appointment>(sortedSet), new ArrayList<Appointment>(tree));
+
+        Random random = new Random(2);
+        for (int i = 0; i < 200; i++)
+        {
+            Date start = new Date(startTime + random.nextInt(52 * 11) * DateTools.MILLISECONDS_PER_WEEK);
+            Date end = new Date(start.getTime() + DateTools.MILLISECONDS_PER_WEEK);
+            Assert.assertEquals(AppointmentImpl.getAppointments(sortedSet, null, start, end, true), query(tree, start, end));
+        }
+        Date start = new Date(startTime + DateTools.MILLISECONDS_PER_WEEK * 100);
+        Assert.assertEquals(AppointmentImpl.getAppointments(sortedSet, null, start, null, true), query(tree, start, null));
+        Assert.assertEquals(AppointmentImpl.getAppointments(sortedSet, null, null, start, true), query(tree, null, start));
+
+        // remove every second appointment
+        for (int i = 0; i < appointments.size(); i += 2)
+        {
+            Appointment appointment = appointments.get(i);
+            Assert.assertTrue(tree.remove(appointment));
+            sortedSet.remove(appointment);
+        }
+        Assert.assertFalse(tree.remove(appointments.get(0)));
+        Assert.assertEquals(sortedSet.size(), tree.size());
+        for (int i = 0; i < 100; i++)
+        {
+            start = new Date(startTime + random.nextInt(52 * 11) * DateTools.MILLISECONDS_PER_WEEK);
+            Date end = new Date(start.getTime() + DateTools.MILLISECONDS_PER_WEEK);
+            Assert.assertEquals(AppointmentImpl.getAppointments(sortedSet, null, start, end, true), query(tree, start, end));
+        }
+    }
+
+    @Test
+    public void changedAppointmentIsRemovedByTheIterator()
+    {
+        List<Appointment> appointments = createAppointments(500, 3);
+        AppointmentIntervalTree tree = new AppointmentIntervalTree();
+        SortedSet<Appointment> sortedSet = new TreeSet<Appointment>(new AppointmentStartComparator());
+        for (Appointment appointment : appointments)
+        {
+            tree.add(appointment);
+            sortedSet.add(appointment);
+        }
+        final long start = startTime + DateTools.MILLISECONDS_PER_WEEK * 52 * 5;
+        AppointmentImpl changed = new AppointmentImpl(new Date(start), new Date(start + DateTools.MILLISECONDS_PER_HOUR));
+        changed.setId("changed");
+        ReservationImpl reservation = new ReservationImpl(new Date(startTime), new Date(startTime));
+        reservation.setId("changedReservation");
+        reservation.addAppointment(changed);
+        Assert.assertTrue(tree.add(changed));
+
+        // the appointment is not found with its new interval, but the iterator removes its node
+        final long newStart = startTime + DateTools.MILLISECONDS_PER_WEEK * 52 * 9;
+        changed.move(new Date(newStart), new Date(newStart + DateTools.MILLISECONDS_PER_HOUR));
+        Assert.assertFalse(tree.remove(changed));
+        Iterator<Appointment> it = tree.iterator();
+        while (it.hasNext())
+        {
+            if (changed.equals(it.next()))
+            {
+                it.remove();
+            }
+        }
+        Assert.assertEquals(sortedSet.size(), tree.size());
+        Assert.assertEquals(new ArrayList<Appointment>(sortedSet), new ArrayList<Appointment>(tree));
+        for (long weekStart = start - DateTools.MILLISECONDS_PER_WEEK; weekStart <= newStart + DateTools.MILLISECONDS_PER_WEEK; weekStart += DateTools.MILLISECONDS_PER_WEEK * 4)
+        {
+            Date weekStartDate = new Date(weekStart);
+            Date weekEnd = new Date(weekStart + DateTools.MILLISECONDS_PER_WEEK);
+            Assert.assertEquals(AppointmentImpl.getAppointments(sortedSet, null, weekStartDate, weekEnd, true), query(tree, weekStartDate, weekEnd));
+        }
+
+        // the other appointments are removed by the iterator, too
+        it = tree.iterator();
+        while (it.hasNext())
+        {
+            it.next();
+            it.remove();
+        }
+        Assert.assertTrue(tree.isEmpty());
+    }
+
+    @Ignore("benchmark, run manually")
+    @Test
+    public void benchmarkWeekQueries()
+    {
+        final int count = 100000;
+        List<Appointment> appointments = createAppointments(count, 3);
+        AppointmentIntervalTree tree = new AppointmentIntervalTree();
+        SortedSet<Appointment> sortedSet = new TreeSet<Appointment>(new AppointmentStartComparator());
+        for (Appointment appointment : appointments)
+        {
+            tree.add(appointment);
+            sortedSet.add(appointment);
+        }
+        // query the last year week by week, as a calendar view of the resource would do
+        final int weeks = 52;
+        long sortedSetTime = 0;
+        long treeTime = 0;
+        for (int run = 0; run < 3; run++)
+        {
+            for (int i = 0; i < weeks; i++)
+            {
+                Date start = new Date(startTime + (52 * 9 + i) * DateTools.MILLISECONDS_PER_WEEK);
+                Date end = new Date(start.getTime() + DateTools.MILLISECONDS_PER_WEEK);
+                long t1 = System.nanoTime();
+                SortedSet<Appointment> expected = AppointmentImpl.getAppointments(sortedSet, null, start, end, true);
+                long t2 = System.nanoTime();
+                SortedSet<Appointment> result = query(tree, start, end);
+                long t3 = System.nanoTime();
+                Assert.assertEquals(expected, result);
+                sortedSetTime += t2 - t1;
+                treeTime += t3 - t2;
+            }
+        }
+        System.out.println(
+                "Querying " + weeks + " weeks in " + count + " appointments. SortedSet: " + (sortedSetTime / 1000000.0) + " ms, interval tree: " + (treeTime
+                        / 1000000.0) + " ms");
+    }
+}
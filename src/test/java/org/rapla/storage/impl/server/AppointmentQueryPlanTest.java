@@ -0,0 +1,145 @@
+package org.rapla.storage.impl.server;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Date;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+import org.rapla.components.util.DateTools;
+import org.rapla.entities.Entity;
+import org.rapla.entities.User;
+import org.rapla.entities.domain.Allocatable;
+import org.rapla.entities.domain.Appointment;
+import org.rapla.entities.domain.Permission;
+import org.rapla.entities.domain.Reservation;
+import org.rapla.entities.dynamictype.ClassificationFilter;
+import org.rapla.entities.dynamictype.DynamicType;
+import org.rapla.entities.dynamictype.DynamicTypeAnnotations;
+import org.rapla.entities.storage.ReferenceInfo;
+import org.rapla.facade.RaplaFacade;
+import org.rapla.server.PromiseSynchroniser;
+import org.rapla.test.util.RaplaTestCase;
+
+@RunWith(JUnit4.class)
+public class AppointmentQueryPlanTest
+{
+    RaplaFacade facade;
+    LocalAbstractCachableOperator operator;
+    List<Allocatable> rooms = new ArrayList<Allocatable>();
+    DynamicType[] eventTypes;
+    final Date start = new Date(DateTools.cutDate(System.currentTimeMillis()));
+
+    @Before
+    public void setUp() throws Exception
+    {
+        facade = RaplaTestCase.createFacadeWithFile(RaplaTestCase.initLoger(), "testdefault.xml");
+        operator = (LocalAbstractCachableOperator) facade.getOperator();
+        final User homer = facade.getUser("homer");
+        final User monty = facade.getUser("monty");
+        final DynamicType secondEventType = facade.newDynamicType(DynamicTypeAnnotations.VALUE_CLASSIFICATION_TYPE_RESERVATION);
+        secondEventType.setKey("secondEvent");
+        secondEventType.getName().setName("en", "Second event");
+        final Permission createPermission = secondEventType.newPermission();
+        createPermission.setAccessLevel(Permission.CREATE);
+        secondEventType.addPermission(createPermission);
+        facade.store(secondEventType);
+        eventTypes = facade.getDynamicTypes(DynamicTypeAnnotations.VALUE_CLASSIFICATION_TYPE_RESERVATION);
+        Assert.assertTrue(eventTypes.length > 1);
+        for (int i = 0; i < 20; i++)
+        {
+            Allocatable room = facade.newAllocatable(facade.getDynamicTypes(DynamicTypeAnnotations.VALUE_CLASSIFICATION_TYPE_RESOURCE)[0].newClassification(), homer);
+            room.getClassification().setValue("name", "room " + i);
+            rooms.add(room);
+        }
+        PromiseSynchroniser.waitForWithRaplaException(facade.dispatch(rooms, Collections.<ReferenceInfo<Entity>>emptyList(), homer), 10000);
+        List<Entity> events = new ArrayList<Entity>();
+        for (int i = 0; i < 200; i++)
+        {
+            final User owner = i % 3 == 0 ? monty : homer;
+            Reservation event = facade.newReservation(eventTypes[i % eventTypes.length].newClassification(), owner);
+            event.getClassification().setValue("name", "event " + i);
+            final Date appStart = new Date(start.getTime() + (i % 14) * DateTools.MILLISECONDS_PER_DAY);
+            event.addAppointment(facade.newAppointment(appStart, new Date(appStart.getTime() + DateTools.MILLISECONDS_PER_HOUR), owner));
+            for (int j = 0; j <= i % 3; j++)
+            {
+                event.addAllocatable(rooms.get((i + j * 7) % rooms.size()));
+            }
+            events.add(event);
+        }
+        PromiseSynchroniser.waitForWithRaplaException(facade.dispatch(events, Collections.<ReferenceInfo<Entity>>emptyList(), homer), 10000);
+    }
+
+    @After
+    public void tearDown() throws Exception
+    {
+        RaplaTestCase.dispose(facade);
+    }
+
+    private Map<String, List<String>> query(boolean planner, User user, Collection<Allocatable> allocatables, ClassificationFilter[] filters)
+            throws Exception
+    {
+        operator.setQueryPlannerEnabled(planner);
+        final Date end = new Date(start.getTime() + DateTools.MILLISECONDS_PER_WEEK);
+        final Map<Allocatable, Collection<Appointment>> result = PromiseSynchroniser
+                .waitForWithRaplaException(operator.queryAppointments(user, allocatables, start, end, filters, (Map<String, String>) null), 10000);
+        Map<String, List<String>> ids = new LinkedHashMap<String, List<String>>();
+        for (Map.Entry<Allocatable, Collection<Appointment>> entry : result.entrySet())
+        {
+            List<String> appointmentIds = new ArrayList<String>();
+            for (Appointment appointment : entry.getValue())
+            {
+                appointmentIds.add(appointment.getId());
+            }
+            ids.put(entry.getKey().getId(), appointmentIds);
+        }
+        return ids;
+    }
+
+    private void assertSameResult(User user, Collection<Allocatable> allocatables, ClassificationFilter[] filters) throws Exception
+    {
+        final Map<String, List<String>> expected = query(false, user, allocatables, filters);
+        Assert.assertFalse(expected.isEmpty());
+        Assert.assertEquals(expected, query(true, user, allocatables, filters));
+    }
+
+    @Test
+    public void typeIndexReturnsSameAppointments() throws Exception
+    {
+        final ClassificationFilter[] filters = { eventTypes[0].newClassificationFilter() };
+        assertSameResult(null, null, filters);
+        assertSameResult(null, rooms, filters);
+        assertPlan(rooms, filters, true);
+    }
+
+    @Test
+    public void ownerIndexReturnsSameAppointments() throws Exception
+    {
+        final User monty = facade.getUser("monty");
+        assertSameResult(monty, null, null);
+        assertSameResult(monty, rooms.subList(0, 5), null);
+    }
+
+    @Test
+    public void allAllocatablesAreQueriedWithOneIndex() throws Exception
+    {
+        assertSameResult(null, Collections.<Allocatable>emptyList(), null);
+        assertPlan(null, null, true);
+        // a single allocatable is more selective than the type index
+        assertPlan(Collections.singletonList(rooms.get(0)), new ClassificationFilter[] { eventTypes[0].newClassificationFilter() }, false);
+    }
+
+    private void assertPlan(Collection<Allocatable> allocatables, ClassificationFilter[] filters, boolean indexExpected)
+    {
+        final LocalAbstractCachableOperator.AppointmentQueryPlan plan = operator.createQueryPlan(null, allocatables, filters, null);
+        Assert.assertEquals(indexExpected, plan != null);
+    }
+}
@@ -0,0 +1,207 @@
+package org.rapla.storage.impl.server;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Date;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+import org.rapla.components.util.DateTools;
+import org.rapla.entities.Entity;
+import org.rapla.entities.User;
+import org.rapla.entities.configuration.CalendarModelConfiguration;
+import org.rapla.entities.configuration.Preferences;
+import org.rapla.entities.configuration.internal.RaplaMapImpl;
+import org.rapla.entities.domain.Allocatable;
+import org.rapla.entities.domain.Appointment;
+import org.rapla.entities.domain.Reservation;
+import org.rapla.entities.dynamictype.ClassificationFilter;
+import org.rapla.entities.dynamictype.DynamicType;
+import org.rapla.entities.dynamictype.DynamicTypeAnnotations;
+import org.rapla.entities.storage.ReferenceInfo;
+import org.rapla.facade.RaplaFacade;
+import org.rapla.facade.internal.CalendarModelImpl;
+import org.rapla.logger.Logger;
+import org.rapla.plugin.exchangeconnector.ExchangeConnectorPlugin;
+import org.rapla.server.PromiseSynchroniser;
+import org.rapla.test.util.RaplaTestCase;
+
+@RunWith(JUnit4.class)
+public class CalendarModelCacheTest
+{
+    RaplaFacade facade;
+    LocalAbstractCachableOperator operator;
+    Logger logger;
+    User homer;
+    User monty;
+    DynamicType roomType;
+    DynamicType eventType;
+    DynamicType seminarType;
+    Allocatable erwin;
+    Allocatable roomA66;
+    final Date today = new Date(DateTools.cutDate(System.currentTimeMillis()));
+
+    @Before
+    public void setUp() throws Exception
+    {
+        logger = RaplaTestCase.initLoger();
+        facade = RaplaTestCase.createFacadeWithFile(logger, "testdefault.xml");
+        operator = (LocalAbstractCachableOperator) facade.getOperator();
+        homer = facade.getUser("homer");
+        monty = facade.getUser("monty");
+        DynamicType newType = facade.newDynamicType(DynamicTypeAnnotations.VALUE_CLASSIFICATION_TYPE_RESERVATION);
+        newType.setKey("seminar");
+        newType.getName().setName("en", "Seminar");
+        store(Collections.<Entity>singletonList(newType));
+        roomType = facade.getDynamicType("room");
+        eventType = facade.getDynamicType("event");
+        seminarType = facade.getDynamicType("seminar");
+        erwin = getRoom("erwin");
+        roomA66 = getRoom("Room A66");
+    }
+
+    @After
+    public void tearDown() throws Exception
+    {
+        RaplaTestCase.dispose(facade);
+    }
+
+    private void store(List<Entity> entities) throws Exception
+    {
+        PromiseSynchroniser.waitForWithRaplaException(facade.dispatch(entities, Collections.<ReferenceInfo<Entity>>emptyList(), homer), 10000);
+    }
+
+    private Allocatable getRoom(String name) throws Exception
+    {
+        for (Allocatable room : facade.getAllocatables(roomType.newClassificationFilter().toArray()))
+        {
+            if (room.getName(Locale.ENGLISH).equals(name))
+            {
+                return room;
+            }
+        }
+        return null;
+    }
+
+    private CalendarModelImpl newCalendar(User user, boolean exchangeExport, Collection<?> selected, DynamicType... eventTypes) throws Exception
+    {
+        CalendarModelImpl calendar = new CalendarModelImpl(Locale.ENGLISH, user, operator, logger);
+        calendar.setSelectedObjects(selected);
+        if (eventTypes.length > 0)
+        {
+            List<ClassificationFilter> filters = new ArrayList<ClassificationFilter>();
+            for (DynamicType type : eventTypes)
+            {
+                filters.add(type.newClassificationFilter());
+            }
+            calendar.setReservationFilter(filters.toArray(ClassificationFilter.CLASSIFICATIONFILTER_ARRAY));
+        }
+        if (exchangeExport)
+        {
+            calendar.setOption(ExchangeConnectorPlugin.EXCHANGE_EXPORT, "true");
+        }
+        return calendar;
+    }
+
+    private Preferences export(User user, CalendarModelImpl... calendars) throws Exception
+    {
+        final Preferences preferences = facade.edit(facade.getPreferences(user, true));
+        Map<String, CalendarModelConfiguration> exportMap = new TreeMap<String, CalendarModelConfiguration>();
+        for (int i = 0; i < calendars.length; i++)
+        {
+            exportMap.put("export" + i, calendars[i].createConfiguration());
+        }
+        RaplaMapImpl map = new RaplaMapImpl(exportMap);
+        map.setResolver(operator);
+        preferences.putEntry(CalendarModelConfiguration.EXPORT_ENTRY, map);
+        return preferences;
+    }
+
+    private Appointment newAppointment(DynamicType type, Allocatable... allocatables) throws Exception
+    {
+        Reservation reservation = facade.newReservation(type.newClassification(), homer);
+        Appointment appointment = facade.newAppointment(today, new Date(today.getTime() + DateTools.MILLISECONDS_PER_HOUR), homer);
+        reservation.addAppointment(appointment);
+        for (Allocatable allocatable : allocatables)
+        {
+            reservation.addAllocatable(allocatable);
+        }
+        return appointment;
+    }
+
+    private Set<User> users(User... users)
+    {
+        return new HashSet<User>(Arrays.asList(users));
+    }
+
+    private Set<User> findUsers(Allocatable allocatable) throws Exception
+    {
+        return resolve(operator.findUsersThatExport(allocatable));
+    }
+
+    private Set<User> findUsers(Appointment appointment) throws Exception
+    {
+        return resolve(operator.findUsersThatExport(appointment));
+    }
+
+    private Set<User> resolve(Collection<ReferenceInfo<User>> userIds) throws Exception
+    {
+        Set<User> result = new HashSet<User>();
+        for (ReferenceInfo<User> userId : userIds)
+        {
+            result.add(operator.resolve(userId));
+        }
+        return result;
+    }
+
+    @Test
+    public void exportsMatchTheSelectionAndTheEventTypes() throws Exception
+    {
+        final Allocatable burns = facade.getAllocatables(facade.getDynamicType("lecturer").newClassificationFilter().toArray())[0];
+        List<Entity> preferences = new ArrayList<Entity>();
+        preferences.add(export(homer, newCalendar(homer, true, Collections.singleton(erwin)), newCalendar(homer, true, Collections.singleton(roomA66), seminarType)));
+        // a calendar without allocatables shows the events of all allocatables
+        preferences.add(export(monty, newCalendar(monty, true, Collections.emptyList(), eventType), newCalendar(monty, false, Collections.singleton(burns))));
+        store(preferences);
+
+        Assert.assertEquals(users(homer), findUsers(erwin));
+        Assert.assertEquals(users(homer), findUsers(roomA66));
+        Assert.assertEquals(users(), findUsers(burns));
+        Assert.assertEquals(users(homer, monty), findUsers(newAppointment(eventType, erwin)));
+        Assert.assertEquals(users(monty), findUsers(newAppointment(eventType, roomA66)));
+        Assert.assertEquals(users(homer), findUsers(newAppointment(seminarType, roomA66, burns)));
+        Assert.assertEquals(users(), findUsers(newAppointment(seminarType, burns)));
+
+        // the removed export is removed from the index
+        store(Collections.<Entity>singletonList(export(homer, newCalendar(homer, true, Collections.singleton(roomA66)))));
+        Assert.assertEquals(users(), findUsers(erwin));
+        Assert.assertEquals(users(monty), findUsers(newAppointment(eventType, erwin)));
+        Assert.assertEquals(users(homer, monty), findUsers(newAppointment(eventType, roomA66)));
+    }
+
+    @Test
+    public void changedAllocatablesAreIndexedAgain() throws Exception
+    {
+        store(Collections.<Entity>singletonList(export(homer, newCalendar(homer, true, Collections.singleton(roomType)))));
+        Assert.assertEquals(users(homer), findUsers(erwin));
+
+        Allocatable newRoom = facade.newAllocatable(roomType.newClassification(), homer);
+        newRoom.getClassification().setValue("name", "new room");
+        store(Collections.<Entity>singletonList(newRoom));
+        newRoom = facade.getPersistant(newRoom);
+        Assert.assertEquals(users(homer), findUsers(newRoom));
+        Assert.assertEquals(users(homer), findUsers(newAppointment(eventType, newRoom)));
+    }
+}
@@ -0,0 +1,108 @@
+package org.rapla.storage.impl.server;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+import org.rapla.components.util.DateTools;
+import org.rapla.entities.Entity;
+import org.rapla.entities.domain.Allocatable;
+import org.rapla.entities.domain.Appointment;
+import org.rapla.entities.domain.Reservation;
+import org.rapla.entities.storage.ReferenceInfo;
+import org.rapla.facade.ClientFacade;
+import org.rapla.facade.Conflict;
+import org.rapla.facade.RaplaFacade;
+import org.rapla.logger.Logger;
+import org.rapla.test.util.RaplaTestCase;
+
+@RunWith(JUnit4.class)
+public class ConflictFinderTest
+{
+    RaplaFacade facade;
+    LocalAbstractCachableOperator operator;
+    Logger logger;
+
+    @Before
+    public void setUp() throws Exception
+    {
+        ClientFacade clientFacade = RaplaTestCase.createSimpleSimpsonsWithHomer();
+        facade = clientFacade.getRaplaFacade();
+        operator = (LocalAbstractCachableOperator) facade.getOperator();
+        logger = RaplaTestCase.initLoger();
+    }
+
+    private Map<ReferenceInfo<Conflict>, Conflict> calculate(int parallelism)
+    {
+        Date today = operator.today();
+        ExecutorService executor = parallelism > 1 ? Executors.newFixedThreadPool(parallelism) : null;
+        try
+        {
+            ConflictFinder conflictFinder = new ConflictFinder(operator.createAllocationMap(), today, logger, operator, operator.getPermissionController(),
+                    executor);
+            Map<ReferenceInfo<Conflict>, Conflict> result = new HashMap<ReferenceInfo<Conflict>, Conflict>();
+            for (Conflict conflict : conflictFinder.getConflicts(null))
+            {
+                result.put(conflict.getReference(), conflict);
+            }
+            return result;
+        }
+        finally
+        {
+            if (executor != null)
+            {
+                executor.shutdownNow();
+            }
+        }
+    }
+
+    @Test
+    public void parallelCalculationEqualsSerial() throws Exception
+    {
+        Random random = new Random(1);
+        List<Allocatable> allocatables = new ArrayList<Allocatable>();
+        for (int i = 0; i < 3 * ConflictFinder.PARALLEL_THRESHOLD; i++)
+        {
+            Allocatable allocatable = facade.newResource();
+            allocatable.getClassification().setValue("name", "resource " + i);
+            allocatables.add(allocatable);
+        }
+        facade.storeObjects(allocatables.toArray(Entity.ENTITY_ARRAY));
+        Date start = DateTools.cutDate(new Date());
+        Collection<Entity> reservations = new ArrayList<Entity>();
+        for (int i = 0; i < 300; i++)
+        {
+            Reservation reservation = facade.newReservation();
+            reservation.getClassification().setValue("name", "event " + i);
+            Date appStart = new Date(start.getTime() + random.nextInt(14 * 24) * DateTools.MILLISECONDS_PER_HOUR);
+            Appointment appointment = facade.newAppointment(appStart, new Date(appStart.getTime() + (1 + random.nextInt(3)) * DateTools.MILLISECONDS_PER_HOUR));
+            if (random.nextInt(5) == 0)
+            {
+                appointment.setRepeatingEnabled(true);
+                appointment.getRepeating().setNumber(1 + random.nextInt(10));
+            }
+            reservation.addAppointment(appointment);
+            reservation.addAllocatable(allocatables.get(random.nextInt(allocatables.size())));
+            reservation.addAllocatable(allocatables.get(random.nextInt(allocatables.size())));
+            reservations.add(reservation);
+        }
+        facade.storeObjects(reservations.toArray(Entity.ENTITY_ARRAY));
+
+        Map<ReferenceInfo<Conflict>, Conflict> serial = calculate(1);
+        Map<ReferenceInfo<Conflict>, Conflict> parallel = calculate(4);
+        Assert.assertFalse(serial.isEmpty());
+        Assert.assertEquals(serial.keySet(), parallel.keySet());
+        Assert.assertEquals(serial.size(), facade.getConflicts().size());
+    }
+}
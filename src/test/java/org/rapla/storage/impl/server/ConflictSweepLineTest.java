@@ -0,0 +1,166 @@
+package org.rapla.storage.impl.server;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+import org.rapla.components.util.DateTools;
+import org.rapla.entities.domain.Allocatable;
+import org.rapla.entities.domain.Appointment;
+import org.rapla.entities.domain.AppointmentBlock;
+import org.rapla.entities.domain.Reservation;
+import org.rapla.entities.storage.ReferenceInfo;
+import org.rapla.facade.ClientFacade;
+import org.rapla.facade.Conflict;
+import org.rapla.facade.RaplaFacade;
+import org.rapla.facade.internal.ConflictImpl;
+import org.rapla.test.util.RaplaTestCase;
+
+@RunWith(JUnit4.class)
+public class ConflictSweepLineTest
+{
+    // with less than 1024 blocks a start range of 2^53 ms doesn't fit next to the block index in a long
+    static final long FAR_OFFSET = 1L << 54;
+    RaplaFacade facade;
+    Allocatable allocatable;
+    Date today;
+
+    @Before
+    public void setUp() throws Exception
+    {
+        ClientFacade clientFacade = RaplaTestCase.createSimpleSimpsonsWithHomer();
+        facade = clientFacade.getRaplaFacade();
+        allocatable = facade.newResource();
+        today = DateTools.cutDate(new Date());
+    }
+
+    // the event based sweep, that was used before the ConflictSweepLine
+    private static Map<ReferenceInfo<Conflict>, Conflict> previousSweepLine(Allocatable allocatable, Date today, Collection<AppointmentBlock> intervals)
+    {
+        Map<ReferenceInfo<Conflict>, Conflict> conflictList = new HashMap<ReferenceInfo<Conflict>, Conflict>();
+        Set<String> foundConflictIds = new HashSet<String>();
+        MinPQ<Event> pq = new MinPQ<Event>();
+        for (AppointmentBlock block : intervals)
+        {
+            pq.insert(new Event(block.getStart(), block));
+            pq.insert(new Event(block.getEnd(), block));
+        }
+        HashSet<AppointmentBlock> st = new HashSet<AppointmentBlock>();
+        while (!pq.isEmpty())
+        {
+            Event e = pq.delMin();
+            AppointmentBlock appBlock = e.interval;
+            Appointment appointment1 = appBlock.getAppointment();
+            if (e.time == appBlock.getEnd())
+            {
+                st.remove(appBlock);
+            }
+            else
+            {
+                for (AppointmentBlock appBlock2 : st)
+                {
+                    final Appointment appointment2 = appBlock2.getAppointment();
+                    if (appBlock == appBlock2 || appointment1.equals(appointment2))
+                    {
+                        continue;
+                    }
+                    if (appointment2.overlaps(appointment1))
+                    {
+                        String id = ConflictImpl.createId(allocatable.getReference(), appointment1.getReference(), appointment2.getReference());
+                        if (foundConflictIds.contains(id))
+                        {
+                            continue;
+                        }
+                        if (ConflictImpl.isConflictWithoutCheck(appointment1, appointment2, today))
+                        {
+                            final ConflictImpl conflict = new ConflictImpl(allocatable, appointment1, appointment2, today, id);
+                            conflictList.put(conflict.getReference(), conflict);
+                            foundConflictIds.add(id);
+                        }
+                    }
+                }
+                st.add(appBlock);
+            }
+        }
+        return conflictList;
+    }
+
+    static class Event implements Comparable<Event>
+    {
+        final long time;
+        final AppointmentBlock interval;
+
+        Event(long time, AppointmentBlock interval)
+        {
+            this.time = time;
+            this.interval = interval;
+        }
+
+        public int compareTo(Event b)
+        {
+            return Long.compare(time, b.time);
+        }
+    }
+
+    private List<AppointmentBlock> createBlocks(Random random, int count, long offset) throws Exception
+    {
+        List<AppointmentBlock> blocks = new ArrayList<AppointmentBlock>();
+        for (int i = 0; i < count; i++)
+        {
+            Reservation reservation = facade.newReservation();
+            long start = today.getTime() + offset + random.nextInt(14 * 24 * 4) * DateTools.MILLISECONDS_PER_MINUTE * 15;
+            long end = start + (1 + random.nextInt(16)) * DateTools.MILLISECONDS_PER_MINUTE * 15;
+            Appointment appointment = facade.newAppointment(new Date(start), new Date(end));
+            if (random.nextInt(4) == 0)
+            {
+                appointment.setRepeatingEnabled(true);
+                appointment.getRepeating().setNumber(1 + random.nextInt(5));
+            }
+            reservation.addAppointment(appointment);
+            appointment.createBlocks(new Date(start), new Date(start + DateTools.MILLISECONDS_PER_WEEK * 6), blocks);
+        }
+        return blocks;
+    }
+
+    private void assertSameConflicts(List<AppointmentBlock> blocks)
+    {
+        final Map<ReferenceInfo<Conflict>, Conflict> expected = previousSweepLine(allocatable, today, blocks);
+        final Map<ReferenceInfo<Conflict>, Conflict> result = new ConflictSweepLine(blocks).findConflicts(allocatable, today);
+        Assert.assertFalse(expected.isEmpty());
+        Assert.assertEquals(expected.keySet(), result.keySet());
+    }
+
+    @Test
+    public void packedKeysFindTheSameConflicts() throws Exception
+    {
+        Random random = new Random(1);
+        for (int run = 0; run < 20; run++)
+        {
+            assertSameConflicts(createBlocks(random, 10 + random.nextInt(150), 0));
+        }
+    }
+
+    @Test
+    public void largeStartRangeFindsTheSameConflicts() throws Exception
+    {
+        Random random = new Random(2);
+        for (int run = 0; run < 20; run++)
+        {
+            List<AppointmentBlock> blocks = createBlocks(random, 10 + random.nextInt(100), 0);
+            blocks.addAll(createBlocks(random, 10 + random.nextInt(100), FAR_OFFSET));
+            Assert.assertTrue(blocks.size() < 1024);
+            assertSameConflicts(blocks);
+        }
+    }
+}
@@ -5,7 +5,10 @@ import org.junit.Before;
 import org.junit.Test;
 import org.junit.runner.RunWith;
 import org.junit.runners.JUnit4;
+import org.rapla.entities.Entity;
+import org.rapla.entities.User;
 import org.rapla.entities.domain.Allocatable;
+import org.rapla.entities.internal.UserImpl;
 import org.rapla.entities.storage.ReferenceInfo;
 
 import java.util.Date;
@@ -54,4 +57,46 @@ public class TestEntityHistory
         entityHistory.addHistoryEntry(ref,json, timestamp, false);
         Assert.assertEquals(entityHistory.getHistoryList(ref)+"", 1, entityHistory.getHistoryList(ref).size());
     }
+
+    @Test
+    public void largeEntriesAreStoredDeflated()
+    {
+        final Date timestamp = new Date();
+        UserImpl user = new UserImpl(timestamp, timestamp);
+        user.setId("userId");
+        user.setUsername("homer");
+        StringBuilder name = new StringBuilder();
+        for (int i = 0; i < 200; i++)
+        {
+            name.append("Homer Simpson ");
+        }
+        user.setName(name.toString());
+        final EntityHistory.HistoryEntry entry = entityHistory.addHistoryEntry(user, timestamp, false);
+        Assert.assertTrue(entry.getStoredSize() < name.length() / 4);
+        final User decoded = (User) entityHistory.getEntity(entry);
+        Assert.assertEquals(name.toString(), decoded.getName());
+        Assert.assertEquals("homer", decoded.getUsername());
+    }
+
+    @Test
+    public void decodedEntitiesAreShared() throws Exception
+    {
+        final Date timestamp = new Date();
+        UserImpl user = new UserImpl(timestamp, timestamp);
+        user.setId("userId");
+        user.setUsername("homer");
+        entityHistory.addHistoryEntry(user, timestamp, false);
+        user.setUsername("bart");
+        entityHistory.addHistoryEntry(user, new Date(timestamp.getTime() + 10), false);
+
+        final Entity first = entityHistory.get(user.getReference(), new Date(timestamp.getTime() + 5));
+        Assert.assertEquals("homer", ((User) first).getUsername());
+        Assert.assertSame(first, entityHistory.get(user.getReference(), new Date(timestamp.getTime() + 6)));
+        Assert.assertTrue(((UserImpl) first).isReadOnly());
+        Assert.assertEquals("bart", ((User) entityHistory.get(user.getReference(), new Date(timestamp.getTime() + 10))).getUsername());
+        // modifiable copies are not shared
+        final EntityHistory.HistoryEntry latest = entityHistory.getLatest(user.getReference());
+        Assert.assertNotSame(entityHistory.getEntity(latest), entityHistory.getEntity(latest));
+        Assert.assertFalse(((UserImpl) entityHistory.getEntity(latest)).isReadOnly());
+    }
 }